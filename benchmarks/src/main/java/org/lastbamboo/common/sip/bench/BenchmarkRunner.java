@@ -0,0 +1,39 @@
+package org.lastbamboo.common.sip.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with allocation profiling on.  Pass a regular 
+ * expression to run only matching benchmarks.
+ */
+public final class BenchmarkRunner
+    {
+
+    private BenchmarkRunner()
+        {
+        // Only main.
+        }
+    
+    /**
+     * Runs the benchmarks.
+     * 
+     * @param args An optional benchmark name pattern.
+     * @throws RunnerException If the benchmarks fail.
+     */
+    public static void main(final String[] args) throws RunnerException
+        {
+        final String include = args.length > 0 ? args[0] : ".*Benchmark.*";
+        final Options options = new OptionsBuilder()
+            .include(include)
+            .addProfiler(GCProfiler.class)
+            .warmupIterations(5)
+            .measurementIterations(10)
+            .forks(1)
+            .build();
+        new Runner(options).run();
+        }
+    }
@@ -0,0 +1,78 @@
+package org.lastbamboo.common.sip.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.filter.codec.ProtocolDecoder;
+import org.lastbamboo.common.sip.proxy.StubSessions;
+import org.lastbamboo.common.sip.stack.codec.SipProtocolCodecFactory;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactoryImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks decoding the REGISTER and INVITE from SipServerTest.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DecodeBenchmark
+    {
+
+    private ProtocolDecoder m_decoder;
+    
+    private IoSession m_session;
+    
+    private byte[] m_register;
+    
+    private byte[] m_invite;
+
+    /**
+     * Sets up the decoder and encoded messages.
+     * 
+     * @throws Exception If the decoder can't be created.
+     */
+    @Setup
+    public void setUp() throws Exception
+        {
+        final SipHeaderFactory headerFactory = new SipHeaderFactoryImpl();
+        this.m_decoder = new SipProtocolCodecFactory(headerFactory).getDecoder();
+        this.m_session = StubSessions.newSession(1);
+        this.m_register = 
+            Fixtures.toBytes(Fixtures.register("111111", "213e290"));
+        this.m_invite = 
+            Fixtures.toBytes(Fixtures.invite("3", "1", "0363854"));
+        }
+    
+    /**
+     * Decodes a REGISTER.
+     * 
+     * @return The decoded messages.
+     * @throws Exception If decoding fails.
+     */
+    @Benchmark
+    public List<SipMessage> decodeRegister() throws Exception
+        {
+        return Fixtures.decode(this.m_decoder, this.m_session, this.m_register);
+        }
+    
+    /**
+     * Decodes an INVITE with its SDP body.
+     * 
+     * @return The decoded messages.
+     * @throws Exception If decoding fails.
+     */
+    @Benchmark
+    public List<SipMessage> decodeInvite() throws Exception
+        {
+        return Fixtures.decode(this.m_decoder, this.m_session, this.m_invite);
+        }
+    }
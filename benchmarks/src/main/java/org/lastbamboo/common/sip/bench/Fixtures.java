@@ -0,0 +1,187 @@
+package org.lastbamboo.common.sip.bench;
+
+import java.io.UnsupportedEncodingException;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.filter.codec.ProtocolDecoder;
+import org.littleshoot.mina.filter.codec.ProtocolDecoderOutput;
+import org.lastbamboo.common.sip.proxy.StubSessions;
+import org.lastbamboo.common.sip.stack.codec.SipProtocolCodecFactory;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+
+/**
+ * The SIP messages used by the benchmarks and load tools, matching the
+ * fixtures in SipServerTest, and a way to decode them.
+ */
+public final class Fixtures
+    {
+
+    private Fixtures()
+        {
+        // Utility class.
+        }
+    
+    /**
+     * Creates a REGISTER for the specified user.
+     * 
+     * @param user The user ID, such as "111111".
+     * @param branch Unique branch for the Via, also used for the Call-ID.
+     * @return The REGISTER as it would appear on the wire.
+     */
+    public static String register(final String user, final String branch)
+        {
+        return 
+            "REGISTER sip:lastbamboo.org SIP/2.0\r\n"+
+            "To: Anonymous <sip:" + user + "@lastbamboo.org>\r\n"+
+            "Via: SIP/2.0/TCP 192.168.0.111;branch=z9hG4bK" + branch + "\r\n"+
+            "CSeq: 2 REGISTER\r\n"+
+            "Call-ID: reg-" + branch + "\r\n"+
+            "Content-Length: 0\r\n"+
+            "From: Anonymous <sip:" + user + "@lastbamboo.org>;tag=9a6c204b-a\r\n"+
+            "Contact: <sip:" + user + "@192.168.0.111>;+sip.instance=\"<urn:uuid:1f3d37a1-5821-43db-98d1-850df172a675>\"\r\n" +
+            "\r\n";
+        }
+    
+    /**
+     * Creates an INVITE from one user to another.
+     * 
+     * @param from The calling user ID.
+     * @param to The called user ID.
+     * @param branch Unique branch for the Via.
+     * @return The INVITE as it would appear on the wire.
+     */
+    public static String invite(final String from, final String to, 
+        final String branch)
+        {
+        return
+            "INVITE sip:" + to + "@lastbamboo.org SIP/2.0\r\n" +
+            "To: Anonymous <sip:" + to + "@lastbamboo.org>\r\n" +
+            "Via: SIP/2.0/TCP 10.250.74.236;branch=z9hG4bK" + branch + "\r\n" +
+            "Content-Length: 160\r\n" +
+            "CSeq: 9 INVITE\r\n" +
+            "Contact: <sip:" + from + "@127.0.0.1>;+sip.instance=\"<urn:uuid:2d76276d-9b37-44b8-9658-7dadd4e5cbad>\"\r\n" +
+            "From: Bob <sip:" + from + "@lastbamboo.org>;tag=63366469-4\r\n" +
+            "Call-ID: " + branch + "\r\n" +
+            "Max-Forwards: 70\r\n" +
+            "Expires: 7200\r\n" +
+            "\r\n" +
+            "v=0\r\n" +
+            "o=alice 53655765 2353687637 IN IP4 pc33.atlanta.com\r\n" +
+            "s=Session SDP\r\n" +
+            "t=0 0\r\n" +
+            "c=IN IP4 pc33.atlanta.com\r\n" +
+            "m=audio 3456 RTP/AVP 0 1 3 99\r\n" +
+            "a=rtpmap:0 PCMU/8000\r\n";
+        }
+    
+    /**
+     * Creates a 200 OK to an INVITE as the callee would send it back 
+     * through the proxy, with the proxy's Via on top.
+     * 
+     * @param from The calling user ID.
+     * @param to The called user ID.
+     * @param branch The branch of the caller's Via.
+     * @return The response as it would appear on the wire.
+     */
+    public static String inviteOk(final String from, final String to, 
+        final String branch)
+        {
+        return
+            "SIP/2.0 200 OK\r\n" +
+            "Via: SIP/2.0/TCP 127.0.0.1;branch=z9hG4bKproxy" + branch + "\r\n" +
+            "Via: SIP/2.0/TCP 10.250.74.236;branch=z9hG4bK" + branch + ";received=127.0.0.1\r\n" +
+            "To: Anonymous <sip:" + to + "@lastbamboo.org>;tag=b0b\r\n" +
+            "From: Bob <sip:" + from + "@lastbamboo.org>;tag=63366469-4\r\n" +
+            "Call-ID: " + branch + "\r\n" +
+            "CSeq: 9 INVITE\r\n" +
+            "Content-Length: 0\r\n" +
+            "\r\n";
+        }
+    
+    /**
+     * Converts a message to bytes.
+     * 
+     * @param message The message.
+     * @return The message's bytes.
+     */
+    public static byte[] toBytes(final String message)
+        {
+        try
+            {
+            return message.getBytes("US-ASCII");
+            }
+        catch (final UnsupportedEncodingException e)
+            {
+            throw new IllegalStateException("No ASCII?", e);
+            }
+        }
+    
+    /**
+     * Decodes the messages in the specified bytes.
+     * 
+     * @param headerFactory The factory for headers.
+     * @param session The session to decode on.
+     * @param bytes The encoded messages.
+     * @return The decoded messages.
+     * @throws Exception If the messages could not be decoded.
+     */
+    public static List<SipMessage> decode(final SipHeaderFactory headerFactory,
+        final IoSession session, final byte[] bytes) throws Exception
+        {
+        final ProtocolDecoder decoder = 
+            new SipProtocolCodecFactory(headerFactory).getDecoder();
+        return decode(decoder, session, bytes);
+        }
+    
+    /**
+     * Decodes the messages in the specified bytes.
+     * 
+     * @param decoder The decoder to use.
+     * @param session The session to decode on.
+     * @param bytes The encoded messages.
+     * @return The decoded messages.
+     * @throws Exception If the messages could not be decoded.
+     */
+    public static List<SipMessage> decode(final ProtocolDecoder decoder,
+        final IoSession session, final byte[] bytes) throws Exception
+        {
+        final List<SipMessage> messages = new LinkedList<SipMessage>();
+        final ProtocolDecoderOutput out = new ProtocolDecoderOutput()
+            {
+            public void write(final Object message)
+                {
+                messages.add((SipMessage) message);
+                }
+            public void flush()
+                {
+                // Nothing to flush.
+                }
+            };
+        decoder.decode(session, ByteBuffer.wrap(bytes), out);
+        return messages;
+        }
+    
+    /**
+     * Decodes a single message.
+     * 
+     * @param headerFactory The factory for headers.
+     * @param message The message as it would appear on the wire.
+     * @return The decoded message.
+     * @throws Exception If the message could not be decoded.
+     */
+    public static SipMessage decodeOne(final SipHeaderFactory headerFactory,
+        final String message) throws Exception
+        {
+        final List<SipMessage> messages = decode(headerFactory, 
+            StubSessions.newSession(0), toBytes(message));
+        if (messages.isEmpty())
+            {
+            throw new IllegalArgumentException("Could not decode: "+message);
+            }
+        return messages.get(0);
+        }
+    }
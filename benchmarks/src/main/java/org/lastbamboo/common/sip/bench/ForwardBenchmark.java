@@ -0,0 +1,86 @@
+package org.lastbamboo.common.sip.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.proxy.StubSessions;
+import org.lastbamboo.common.sip.stack.message.Invite;
+import org.lastbamboo.common.sip.stack.message.Register;
+import org.lastbamboo.common.sip.stack.message.SipResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks the stateless proxy forwarding an INVITE to a registered 
+ * client and forwarding the 200 OK back to the caller.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ForwardBenchmark
+    {
+
+    private ProxyComponents m_components;
+    
+    private Invite m_invite;
+    
+    private SipResponse m_response;
+
+    /**
+     * Registers the caller and callee and decodes the messages to forward.
+     * 
+     * @throws Exception If the fixtures can't be decoded.
+     */
+    @Setup
+    public void setUp() throws Exception
+        {
+        this.m_components = new ProxyComponents();
+        // The caller is 127.0.0.1, matching the received parameter in the
+        // response fixture, so the response goes back by address lookup.
+        final IoSession caller = StubSessions.newSession(1);
+        final IoSession callee = StubSessions.newSession(2);
+        this.m_components.m_transportLayer.addConnection(caller);
+        this.m_components.m_transportLayer.addConnection(callee);
+        this.m_components.m_flowTable.add(caller);
+        this.m_components.m_flowTable.add(callee);
+        this.m_components.m_registrar.handleRegister((Register) 
+            Fixtures.decodeOne(this.m_components.m_headerFactory, 
+                Fixtures.register("3", "a")), caller);
+        this.m_components.m_registrar.handleRegister((Register) 
+            Fixtures.decodeOne(this.m_components.m_headerFactory, 
+                Fixtures.register("1", "b")), callee);
+        
+        this.m_invite = (Invite) Fixtures.decodeOne(
+            this.m_components.m_headerFactory, 
+            Fixtures.invite("3", "1", "0363854"));
+        this.m_response = (SipResponse) Fixtures.decodeOne(
+            this.m_components.m_headerFactory, 
+            Fixtures.inviteOk("3", "1", "0363854"));
+        }
+    
+    /**
+     * Forwards an INVITE to the registered callee.
+     */
+    @Benchmark
+    public void forwardSipRequest()
+        {
+        this.m_components.m_proxy.forwardSipRequest(this.m_invite);
+        }
+    
+    /**
+     * Forwards the callee's 200 OK back to the caller.
+     * 
+     * @throws IOException If the response can't be forwarded.
+     */
+    @Benchmark
+    public void forwardSipResponse() throws IOException
+        {
+        this.m_components.m_proxy.forwardSipResponse(this.m_response);
+        }
+    }
@@ -0,0 +1,97 @@
+package org.lastbamboo.common.sip.bench;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.lastbamboo.common.sip.proxy.FlowTable;
+import org.lastbamboo.common.sip.proxy.balancer.BackendHealthChecker;
+import org.lastbamboo.common.sip.proxy.balancer.HashRing;
+import org.lastbamboo.common.sip.proxy.balancer.SipLoadBalancer;
+import org.lastbamboo.common.sip.proxy.transport.MinaSipServerTransportFactory;
+import org.lastbamboo.common.sip.proxy.transport.SipListenerConfig;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactoryImpl;
+
+/**
+ * Starts several full proxies in this JVM with a load balancer in front of
+ * them, all on ephemeral loopback ports, for trying the balancer with the
+ * load and replay tools.
+ */
+public class LocalBalancer
+    {
+
+    private final String m_backend;
+
+    private final int m_proxies;
+
+    private final SipListenerConfig m_listenerConfig;
+
+    private final List<LocalProxy> m_started = new ArrayList<LocalProxy>();
+
+    private SipLoadBalancer m_balancer;
+
+    /**
+     * Creates a balancer.
+     *
+     * @param backend The name of the server transport to use, such as
+     * "mina".
+     * @param proxies The number of proxies behind the balancer.
+     * @param listenerConfig The balancer's listener configuration.  The
+     * port is overridden with an ephemeral port.
+     */
+    public LocalBalancer(final String backend, final int proxies,
+        final SipListenerConfig listenerConfig)
+        {
+        this.m_backend = backend;
+        this.m_proxies = proxies;
+        this.m_listenerConfig = listenerConfig;
+        }
+
+    /**
+     * Starts the proxies and then the balancer.
+     *
+     * @return The address to connect to the balancer on.
+     * @throws Exception If anything can't be started.
+     */
+    public InetSocketAddress start() throws Exception
+        {
+        final List<String> addresses = new ArrayList<String>();
+        for (int i = 0; i < this.m_proxies; i++)
+            {
+            final LocalProxy proxy =
+                new LocalProxy(this.m_backend, new SipListenerConfig());
+            final InetSocketAddress address = proxy.start();
+            this.m_started.add(proxy);
+            addresses.add("127.0.0.1:" + address.getPort());
+            }
+        final HashRing ring = new HashRing(addresses);
+        this.m_listenerConfig.setPort(0);
+        this.m_balancer = new SipLoadBalancer(ring,
+            new BackendHealthChecker(ring), new SipHeaderFactoryImpl(),
+            new MinaSipServerTransportFactory(), this.m_listenerConfig,
+            new FlowTable());
+        this.m_balancer.start();
+        return new InetSocketAddress("127.0.0.1",
+            this.m_balancer.getSipPort());
+        }
+
+    /**
+     * Accessor for the proxies behind the balancer.
+     *
+     * @return The proxies.
+     */
+    public List<LocalProxy> getProxies()
+        {
+        return this.m_started;
+        }
+
+    /**
+     * Accessor for the balancer.
+     *
+     * @return The balancer, or <code>null</code> if it hasn't started.
+     */
+    public SipLoadBalancer getBalancer()
+        {
+        return this.m_balancer;
+        }
+    }
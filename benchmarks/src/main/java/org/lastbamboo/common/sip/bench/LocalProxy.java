@@ -0,0 +1,111 @@
+package org.lastbamboo.common.sip.bench;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+
+import org.lastbamboo.common.sip.proxy.FlowTable;
+import org.lastbamboo.common.sip.proxy.OverloadController;
+import org.lastbamboo.common.sip.proxy.PriorityMessageScheduler;
+import org.lastbamboo.common.sip.proxy.RegistrarPartition;
+import org.lastbamboo.common.sip.proxy.SipProxyImpl;
+import org.lastbamboo.common.sip.proxy.SipRegistrarImpl;
+import org.lastbamboo.common.sip.proxy.metrics.SipMetrics;
+import org.lastbamboo.common.sip.proxy.stateless.StatelessSipProxy;
+import org.lastbamboo.common.sip.proxy.transport.MinaSipServerTransportFactory;
+import org.lastbamboo.common.sip.proxy.transport.SipListenerConfig;
+import org.lastbamboo.common.sip.proxy.transport.SipServerTransportFactory;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactory;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactoryImpl;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactoryImpl;
+import org.lastbamboo.common.sip.stack.transaction.client.SipTransactionFactory;
+import org.lastbamboo.common.sip.stack.transaction.client.SipTransactionFactoryImpl;
+import org.lastbamboo.common.sip.stack.transaction.client.SipTransactionTrackerImpl;
+import org.lastbamboo.common.sip.stack.transport.SipTcpTransportLayer;
+import org.lastbamboo.common.sip.stack.transport.SipTcpTransportLayerImpl;
+import org.lastbamboo.common.sip.stack.util.UriUtilsImpl;
+
+/**
+ * Starts a full proxy in this JVM on an ephemeral port, wired the same way
+ * as in SipServerTest, for the load and replay tools.
+ */
+public class LocalProxy
+    {
+
+    private final SipRegistrarImpl m_registrar;
+    
+    private final SipProxyImpl m_proxy;
+    
+    /**
+     * Creates a proxy.
+     * 
+     * @param backend The name of the server transport to use, such as 
+     * "mina".
+     * @param listenerConfig The listener configuration.  The port is 
+     * overridden with an ephemeral port.
+     */
+    public LocalProxy(final String backend, 
+        final SipListenerConfig listenerConfig)
+        {
+        final SipHeaderFactory headerFactory = new SipHeaderFactoryImpl();
+        final SipMessageFactory messageFactory = 
+            new SipMessageFactoryImpl(headerFactory);
+        final SipTransactionFactory transactionFactory = 
+            new SipTransactionFactoryImpl(new SipTransactionTrackerImpl(), 
+                messageFactory, 47382);
+        final SipTcpTransportLayer transportLayer = 
+            new SipTcpTransportLayerImpl(transactionFactory, headerFactory, 
+                messageFactory);
+        final SipMetrics metrics = new SipMetrics();
+        this.m_registrar = 
+            new SipRegistrarImpl(messageFactory, transportLayer, metrics);
+        this.m_registrar.setPartitions(Collections.singletonList(
+            new RegistrarPartition("lastbamboo.org", 1000000, 0)));
+        final FlowTable flowTable = new FlowTable();
+        final StatelessSipProxy forwarder = new StatelessSipProxy(
+            transportLayer, m_registrar, null, new UriUtilsImpl(), 
+            messageFactory, flowTable, metrics);
+        listenerConfig.setPort(0);
+        final OverloadController overloadController = 
+            new OverloadController(flowTable);
+        this.m_proxy = new SipProxyImpl(forwarder, m_registrar, 
+            headerFactory, messageFactory, transportLayer, 
+            newTransportFactory(backend), listenerConfig, flowTable, 
+            overloadController, 
+            new PriorityMessageScheduler(overloadController, metrics, 
+                Runtime.getRuntime().availableProcessors()),
+            metrics);
+        }
+    
+    /**
+     * Starts the proxy.
+     * 
+     * @return The address to connect to the proxy on.
+     * @throws Exception If the proxy can't be started.
+     */
+    public InetSocketAddress start() throws Exception
+        {
+        this.m_proxy.start();
+        return new InetSocketAddress("127.0.0.1", this.m_proxy.getSipPort());
+        }
+    
+    /**
+     * Accessor for the proxy's registrar.
+     * 
+     * @return The registrar.
+     */
+    public SipRegistrarImpl getRegistrar()
+        {
+        return m_registrar;
+        }
+
+    private static SipServerTransportFactory newTransportFactory(
+        final String backend)
+        {
+        if ("mina".equals(backend))
+            {
+            return new MinaSipServerTransportFactory();
+            }
+        throw new IllegalArgumentException("Unknown backend: "+backend);
+        }
+    }
@@ -0,0 +1,85 @@
+package org.lastbamboo.common.sip.bench;
+
+import java.util.Collections;
+
+import org.lastbamboo.common.sip.proxy.FlowTable;
+import org.lastbamboo.common.sip.proxy.RegistrarPartition;
+import org.lastbamboo.common.sip.proxy.SipRegistrarImpl;
+import org.lastbamboo.common.sip.proxy.metrics.SipMetrics;
+import org.lastbamboo.common.sip.proxy.stateless.StatelessSipProxy;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactory;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactoryImpl;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactoryImpl;
+import org.lastbamboo.common.sip.stack.transaction.client.SipTransactionFactory;
+import org.lastbamboo.common.sip.stack.transaction.client.SipTransactionFactoryImpl;
+import org.lastbamboo.common.sip.stack.transaction.client.SipTransactionTracker;
+import org.lastbamboo.common.sip.stack.transaction.client.SipTransactionTrackerImpl;
+import org.lastbamboo.common.sip.stack.transport.SipTcpTransportLayer;
+import org.lastbamboo.common.sip.stack.transport.SipTcpTransportLayerImpl;
+import org.lastbamboo.common.sip.stack.util.UriUtilsImpl;
+
+/**
+ * The proxy's collaborators wired together the same way SipServerTest 
+ * wires them, without a listening socket.
+ */
+public class ProxyComponents
+    {
+
+    /**
+     * Header factory.
+     */
+    public final SipHeaderFactory m_headerFactory = new SipHeaderFactoryImpl();
+    
+    /**
+     * Message factory.
+     */
+    public final SipMessageFactory m_messageFactory = 
+        new SipMessageFactoryImpl(m_headerFactory);
+    
+    /**
+     * Transport layer.
+     */
+    public final SipTcpTransportLayer m_transportLayer;
+    
+    /**
+     * Metrics shared by the components.
+     */
+    public final SipMetrics m_metrics = new SipMetrics();
+    
+    /**
+     * Registrar.
+     */
+    public final SipRegistrarImpl m_registrar;
+    
+    /**
+     * Flow table.
+     */
+    public final FlowTable m_flowTable = new FlowTable();
+    
+    /**
+     * Stateless proxy.
+     */
+    public final StatelessSipProxy m_proxy;
+
+    /**
+     * Creates the components.
+     */
+    public ProxyComponents()
+        {
+        final SipTransactionTracker transactionTracker = 
+            new SipTransactionTrackerImpl();
+        final SipTransactionFactory transactionFactory = 
+            new SipTransactionFactoryImpl(transactionTracker, 
+                m_messageFactory, 47382);
+        this.m_transportLayer = new SipTcpTransportLayerImpl(
+            transactionFactory, m_headerFactory, m_messageFactory);
+        this.m_registrar = 
+            new SipRegistrarImpl(m_messageFactory, m_transportLayer, m_metrics);
+        this.m_registrar.setPartitions(Collections.singletonList(
+            new RegistrarPartition("lastbamboo.org", 1000000, 0)));
+        this.m_proxy = new StatelessSipProxy(m_transportLayer, m_registrar, 
+            null, new UriUtilsImpl(), m_messageFactory, m_flowTable, 
+            m_metrics);
+        }
+    }
@@ -0,0 +1,95 @@
+package org.lastbamboo.common.sip.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.proxy.StubSessions;
+import org.lastbamboo.common.sip.stack.message.Register;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks the registrar's REGISTER and session closed handling at 
+ * different numbers of existing registrations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RegistrarBenchmark
+    {
+
+    /**
+     * The number of clients registered before measuring.
+     */
+    @Param({"100", "10000", "100000"})
+    public int m_registered;
+    
+    private ProxyComponents m_components;
+    
+    private Register[] m_registers;
+    
+    private IoSession[] m_sessions;
+    
+    private int m_next;
+
+    /**
+     * Registers the clients.
+     * 
+     * @throws Exception If the fixtures can't be decoded.
+     */
+    @Setup
+    public void setUp() throws Exception
+        {
+        this.m_components = new ProxyComponents();
+        this.m_registers = new Register[this.m_registered];
+        this.m_sessions = new IoSession[this.m_registered];
+        for (int i = 0; i < this.m_registered; i++)
+            {
+            final IoSession session = StubSessions.newSession(i);
+            this.m_components.m_transportLayer.addConnection(session);
+            final Register register = (Register) Fixtures.decodeOne(
+                this.m_components.m_headerFactory,
+                Fixtures.register(String.valueOf(i), String.valueOf(i)));
+            this.m_components.m_registrar.handleRegister(register, session);
+            this.m_registers[i] = register;
+            this.m_sessions[i] = session;
+            }
+        }
+    
+    /**
+     * Handles a re-REGISTER from an already registered client.
+     */
+    @Benchmark
+    public void reRegister()
+        {
+        final int i = nextIndex();
+        this.m_components.m_registrar.handleRegister(this.m_registers[i], 
+            this.m_sessions[i]);
+        }
+    
+    /**
+     * Closes a registered client's session, then registers it again so the
+     * registrar stays the same size.
+     */
+    @Benchmark
+    public void sessionClosedAndRegister()
+        {
+        final int i = nextIndex();
+        this.m_components.m_registrar.sessionClosed(this.m_sessions[i]);
+        this.m_components.m_registrar.handleRegister(this.m_registers[i], 
+            this.m_sessions[i]);
+        }
+    
+    private int nextIndex()
+        {
+        final int i = this.m_next;
+        this.m_next = (i + 1) % this.m_registered;
+        return i;
+        }
+    }
@@ -0,0 +1,252 @@
+package org.lastbamboo.common.sip.bench.load;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.lastbamboo.common.sip.bench.Fixtures;
+
+/**
+ * A simulated SIP client with one TCP connection to the proxy.  It sends
+ * whatever the load generator asks it to, reports responses to the stats,
+ * and answers any INVITE it receives with a 200 OK, as a callee would.
+ */
+public class LoadClient implements Runnable
+    {
+
+    private static final Map<String, String> COMPACT_NAMES = 
+        new HashMap<String, String>();
+    
+    static
+        {
+        COMPACT_NAMES.put("i", "call-id");
+        COMPACT_NAMES.put("v", "via");
+        COMPACT_NAMES.put("f", "from");
+        COMPACT_NAMES.put("t", "to");
+        COMPACT_NAMES.put("l", "content-length");
+        }
+    
+    private final String m_user;
+    
+    private final LoadStats m_stats;
+    
+    private final Socket m_socket;
+    
+    private final OutputStream m_out;
+    
+    private final InputStream m_in;
+
+    /**
+     * Connects a new client.
+     * 
+     * @param user The client's user ID.
+     * @param proxy The address of the proxy.
+     * @param stats The stats to report responses to.
+     * @throws IOException If we can't connect.
+     */
+    public LoadClient(final String user, final InetSocketAddress proxy,
+        final LoadStats stats) throws IOException
+        {
+        this.m_user = user;
+        this.m_stats = stats;
+        this.m_socket = new Socket();
+        this.m_socket.setTcpNoDelay(true);
+        this.m_socket.connect(proxy, 10000);
+        this.m_out = this.m_socket.getOutputStream();
+        this.m_in = new BufferedInputStream(this.m_socket.getInputStream());
+        }
+    
+    /**
+     * Accessor for the client's user ID.
+     * 
+     * @return The user ID.
+     */
+    public String getUser()
+        {
+        return m_user;
+        }
+    
+    /**
+     * Sends a message.
+     * 
+     * @param message The message as it should appear on the wire.
+     */
+    public void send(final String message)
+        {
+        try
+            {
+            synchronized (this.m_out)
+                {
+                this.m_out.write(Fixtures.toBytes(message));
+                this.m_out.flush();
+                }
+            }
+        catch (final IOException e)
+            {
+            this.m_stats.ioError();
+            }
+        }
+    
+    /**
+     * Closes the connection.
+     */
+    public void close()
+        {
+        try
+            {
+            this.m_socket.close();
+            }
+        catch (final IOException e)
+            {
+            // Ignore.
+            }
+        }
+
+    public void run()
+        {
+        try
+            {
+            while (true)
+                {
+                final String startLine = readLine();
+                if (startLine == null)
+                    {
+                    return;
+                    }
+                if (startLine.length() == 0)
+                    {
+                    // Keepalive pong, or stray CRLF.
+                    continue;
+                    }
+                final List<String> lines = new LinkedList<String>();
+                final Map<String, String> headers = 
+                    new HashMap<String, String>();
+                String line;
+                while ((line = readLine()) != null && line.length() > 0)
+                    {
+                    lines.add(line);
+                    final int colon = line.indexOf(':');
+                    if (colon > 0)
+                        {
+                        String name = 
+                            line.substring(0, colon).trim().toLowerCase();
+                        if (COMPACT_NAMES.containsKey(name))
+                            {
+                            name = COMPACT_NAMES.get(name);
+                            }
+                        if (!headers.containsKey(name))
+                            {
+                            headers.put(name, 
+                                line.substring(colon + 1).trim());
+                            }
+                        }
+                    }
+                final String length = headers.get("content-length");
+                if (length != null)
+                    {
+                    skip(Integer.parseInt(length));
+                    }
+                handle(startLine, lines, headers);
+                }
+            }
+        catch (final IOException e)
+            {
+            if (!this.m_socket.isClosed())
+                {
+                this.m_stats.ioError();
+                }
+            }
+        }
+    
+    private void handle(final String startLine, final List<String> lines,
+        final Map<String, String> headers)
+        {
+        if (startLine.startsWith("SIP/2.0 "))
+            {
+            final int status = Integer.parseInt(startLine.substring(8, 11));
+            this.m_stats.response(headers.get("call-id"), status);
+            }
+        else if (startLine.startsWith("INVITE "))
+            {
+            answer(lines);
+            }
+        }
+
+    /**
+     * Answers an INVITE with a 200 OK carrying all of its Vias back.
+     */
+    private void answer(final List<String> inviteLines)
+        {
+        final StringBuilder sb = new StringBuilder(512);
+        sb.append("SIP/2.0 200 OK\r\n");
+        for (final String line : inviteLines)
+            {
+            final String lower = line.toLowerCase();
+            if (lower.startsWith("to:") || lower.startsWith("t:"))
+                {
+                sb.append(line).append(";tag=").append(this.m_user);
+                sb.append("\r\n");
+                }
+            else if (lower.startsWith("via:") || lower.startsWith("v:") || 
+                lower.startsWith("from:") || lower.startsWith("f:") ||
+                lower.startsWith("call-id:") || lower.startsWith("i:") ||
+                lower.startsWith("cseq:"))
+                {
+                sb.append(line).append("\r\n");
+                }
+            }
+        sb.append("Content-Length: 0\r\n\r\n");
+        send(sb.toString());
+        }
+    
+    private String readLine() throws IOException
+        {
+        final StringBuilder sb = new StringBuilder(128);
+        while (true)
+            {
+            final int b = this.m_in.read();
+            if (b == -1)
+                {
+                return null;
+                }
+            if (b == '\n')
+                {
+                final int length = sb.length();
+                if (length > 0 && sb.charAt(length - 1) == '\r')
+                    {
+                    sb.setLength(length - 1);
+                    }
+                return sb.toString();
+                }
+            sb.append((char) b);
+            }
+        }
+    
+    private void skip(final int bytes) throws IOException
+        {
+        long remaining = bytes;
+        while (remaining > 0)
+            {
+            final long skipped = this.m_in.skip(remaining);
+            if (skipped <= 0)
+                {
+                if (this.m_in.read() == -1)
+                    {
+                    throw new IOException("Closed in body");
+                    }
+                remaining--;
+                }
+            else
+                {
+                remaining -= skipped;
+                }
+            }
+        }
+    }
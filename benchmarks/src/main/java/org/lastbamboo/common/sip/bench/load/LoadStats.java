@@ -0,0 +1,197 @@
+package org.lastbamboo.common.sip.bench.load;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lastbamboo.common.sip.proxy.metrics.LatencyHistogram;
+
+/**
+ * Tracks outstanding requests and the latency of their final responses.  
+ * Latency is measured from when a request was scheduled to be sent rather
+ * than when it actually went out, so a stalled proxy shows up in the 
+ * percentiles instead of just slowing the sender down.  This is the 
+ * coordinated omission correction.
+ */
+public class LoadStats
+    {
+
+    /**
+     * The kinds of request we send.
+     */
+    public enum Kind
+        {
+        /**
+         * REGISTER, answered by the registrar.
+         */
+        REGISTER,
+        
+        /**
+         * INVITE, answered by the callee through the proxy.
+         */
+        INVITE,
+        }
+    
+    private final Map<String, Pending> m_pending = 
+        new ConcurrentHashMap<String, Pending>();
+    
+    private final LatencyHistogram[] m_latencies;
+    
+    private final AtomicLong[] m_sent;
+    
+    private final AtomicLong[] m_completed;
+    
+    private final AtomicLong m_errorResponses = new AtomicLong(0);
+    
+    private final AtomicLong m_ioErrors = new AtomicLong(0);
+
+    /**
+     * Creates new stats.
+     */
+    public LoadStats()
+        {
+        final int kinds = Kind.values().length;
+        this.m_latencies = new LatencyHistogram[kinds];
+        this.m_sent = new AtomicLong[kinds];
+        this.m_completed = new AtomicLong[kinds];
+        for (int i = 0; i < kinds; i++)
+            {
+            this.m_latencies[i] = new LatencyHistogram();
+            this.m_sent[i] = new AtomicLong(0);
+            this.m_completed[i] = new AtomicLong(0);
+            }
+        }
+    
+    /**
+     * Records that we're sending a request.
+     * 
+     * @param kind The kind of request.
+     * @param callId The request's Call-ID.
+     * @param intendedNanos When the request was scheduled to go out.
+     */
+    public void sent(final Kind kind, final String callId, 
+        final long intendedNanos)
+        {
+        this.m_pending.put(callId, new Pending(kind, intendedNanos));
+        this.m_sent[kind.ordinal()].incrementAndGet();
+        }
+    
+    /**
+     * Records a response.
+     * 
+     * @param callId The response's Call-ID.
+     * @param statusCode The response's status code.
+     */
+    public void response(final String callId, final int statusCode)
+        {
+        if (statusCode < 200)
+            {
+            return;
+            }
+        final Pending pending = this.m_pending.remove(callId);
+        if (pending == null)
+            {
+            return;
+            }
+        if (statusCode >= 300)
+            {
+            this.m_errorResponses.incrementAndGet();
+            return;
+            }
+        this.m_completed[pending.m_kind.ordinal()].incrementAndGet();
+        this.m_latencies[pending.m_kind.ordinal()].recordSince(
+            pending.m_intendedNanos);
+        }
+    
+    /**
+     * Records a socket error.
+     */
+    public void ioError()
+        {
+        this.m_ioErrors.incrementAndGet();
+        }
+    
+    /**
+     * Accessor for the number of requests still waiting for a final 
+     * response.
+     * 
+     * @return The number of outstanding requests.
+     */
+    public int getOutstanding()
+        {
+        return this.m_pending.size();
+        }
+    
+    /**
+     * Clears everything recorded so far, such as after warming up.
+     */
+    public void reset()
+        {
+        this.m_pending.clear();
+        for (int i = 0; i < this.m_latencies.length; i++)
+            {
+            this.m_latencies[i].reset();
+            this.m_sent[i].set(0);
+            this.m_completed[i].set(0);
+            }
+        this.m_errorResponses.set(0);
+        this.m_ioErrors.set(0);
+        }
+    
+    /**
+     * Renders the results as a single line of JSON.
+     * 
+     * @param backend The name of the backend under test.
+     * @param clients The number of clients.
+     * @param targetRate The requests per second we tried to send.
+     * @param elapsedNanos How long the run took.
+     * @return The results.
+     */
+    public String toJson(final String backend, final int clients,
+        final int targetRate, final long elapsedNanos)
+        {
+        final double seconds = 
+            elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+        long completed = 0;
+        final StringBuilder sb = new StringBuilder(512);
+        sb.append("{\"backend\":\"").append(backend).append('"');
+        sb.append(",\"clients\":").append(clients);
+        sb.append(",\"targetRate\":").append(targetRate);
+        sb.append(",\"seconds\":").append(String.format("%.3f", seconds));
+        for (final Kind kind : Kind.values())
+            {
+            final int i = kind.ordinal();
+            final LatencyHistogram latency = this.m_latencies[i];
+            final String name = kind.name().toLowerCase();
+            completed += this.m_completed[i].get();
+            sb.append(",\"").append(name).append("\":{");
+            sb.append("\"sent\":").append(this.m_sent[i].get());
+            sb.append(",\"completed\":").append(this.m_completed[i].get());
+            sb.append(",\"p50us\":").append(latency.getPercentileMicros(50));
+            sb.append(",\"p99us\":").append(latency.getPercentileMicros(99));
+            sb.append(",\"p999us\":").append(
+                latency.getPercentileMicros(99.9));
+            sb.append('}');
+            }
+        sb.append(",\"throughput\":").append(
+            String.format("%.1f", completed / seconds));
+        sb.append(",\"errorResponses\":").append(this.m_errorResponses.get());
+        sb.append(",\"ioErrors\":").append(this.m_ioErrors.get());
+        sb.append(",\"timeouts\":").append(this.m_pending.size());
+        sb.append('}');
+        return sb.toString();
+        }
+    
+    private static final class Pending
+        {
+        private final Kind m_kind;
+        private final long m_intendedNanos;
+        
+        private Pending(final Kind kind, final long intendedNanos)
+            {
+            m_kind = kind;
+            m_intendedNanos = intendedNanos;
+            }
+        }
+    }
@@ -0,0 +1,230 @@
+package org.lastbamboo.common.sip.bench.load;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.lastbamboo.common.sip.bench.Fixtures;
+import org.lastbamboo.common.sip.bench.LocalBalancer;
+import org.lastbamboo.common.sip.bench.LocalProxy;
+import org.lastbamboo.common.sip.proxy.transport.SipListenerConfig;
+
+/**
+ * Drives a proxy with many simulated clients over real TCP connections and
+ * prints throughput and latency percentiles as one line of JSON.  Clients 
+ * first register, then a single paced sender issues a mix of INVITEs 
+ * between random pairs of clients and re-REGISTERs at a fixed rate.  The
+ * called client answers each INVITE with a 200 OK, so INVITE latency covers
+ * the full round trip through the proxy in both directions.
+ * <p>
+ * Without a target the proxy runs in this JVM on an ephemeral port, wired
+ * the same way as in SipServerTest, optionally capturing its inbound 
+ * traffic for {@link org.lastbamboo.common.sip.bench.replay.SipReplayer}.
+ * With --balance, that many proxies run in this JVM behind a load 
+ * balancer, and the clients connect to the balancer.
+ * Usage:
+ * <pre>
+ * java -cp benchmarks.jar org.lastbamboo.common.sip.bench.load.SipLoadGenerator
+ *     [--clients 100] [--rate 1000] [--duration 30] [--inviteRatio 0.5]
+ *     [--backend mina] [--target host:port]
+ *     [--capture file] [--balance 3]
+ * </pre>
+ */
+public class SipLoadGenerator
+    {
+
+    private int m_clients = 100;
+    
+    private int m_rate = 1000;
+    
+    private int m_durationSeconds = 30;
+    
+    private double m_inviteRatio = 0.5;
+    
+    private String m_backend = "mina";
+    
+    private InetSocketAddress m_target;
+    
+    private String m_captureFile;
+    
+    private int m_balancedProxies;
+    
+    /**
+     * Runs the load generator.
+     * 
+     * @param args The command line arguments.
+     * @throws Exception If anything goes wrong.
+     */
+    public static void main(final String[] args) throws Exception
+        {
+        final SipLoadGenerator generator = new SipLoadGenerator();
+        generator.parse(args);
+        System.out.println(generator.run());
+        
+        // The in-process proxy has no way to stop, so just exit.
+        System.exit(0);
+        }
+    
+    private void parse(final String[] args)
+        {
+        for (int i = 0; i + 1 < args.length; i += 2)
+            {
+            final String name = args[i];
+            final String value = args[i+1];
+            if ("--clients".equals(name))
+                {
+                this.m_clients = Integer.parseInt(value);
+                }
+            else if ("--rate".equals(name))
+                {
+                this.m_rate = Integer.parseInt(value);
+                }
+            else if ("--duration".equals(name))
+                {
+                this.m_durationSeconds = Integer.parseInt(value);
+                }
+            else if ("--inviteRatio".equals(name))
+                {
+                this.m_inviteRatio = Double.parseDouble(value);
+                }
+            else if ("--backend".equals(name))
+                {
+                this.m_backend = value;
+                }
+            else if ("--target".equals(name))
+                {
+                final int colon = value.lastIndexOf(':');
+                this.m_target = new InetSocketAddress(
+                    value.substring(0, colon), 
+                    Integer.parseInt(value.substring(colon + 1)));
+                }
+            else if ("--capture".equals(name))
+                {
+                this.m_captureFile = value;
+                }
+            else if ("--balance".equals(name))
+                {
+                this.m_balancedProxies = Integer.parseInt(value);
+                }
+            else
+                {
+                throw new IllegalArgumentException("Unknown option: "+name);
+                }
+            }
+        if (this.m_clients < 2)
+            {
+            throw new IllegalArgumentException("Need at least two clients");
+            }
+        }
+
+    private String run() throws Exception
+        {
+        final InetSocketAddress proxy;
+        if (this.m_target != null)
+            {
+            proxy = this.m_target;
+            }
+        else if (this.m_balancedProxies > 0)
+            {
+            final SipListenerConfig listenerConfig = new SipListenerConfig();
+            listenerConfig.setCaptureFile(this.m_captureFile);
+            proxy = new LocalBalancer(this.m_backend, this.m_balancedProxies,
+                listenerConfig).start();
+            }
+        else
+            {
+            final SipListenerConfig listenerConfig = new SipListenerConfig();
+            listenerConfig.setCaptureFile(this.m_captureFile);
+            proxy = new LocalProxy(this.m_backend, listenerConfig).start();
+            }
+        final LoadStats stats = new LoadStats();
+        final List<LoadClient> clients = 
+            new ArrayList<LoadClient>(this.m_clients);
+        for (int i = 0; i < this.m_clients; i++)
+            {
+            final LoadClient client = 
+                new LoadClient(String.valueOf(100000 + i), proxy, stats);
+            final Thread reader = 
+                new Thread(client, "sip-load-client-" + i);
+            reader.setDaemon(true);
+            reader.start();
+            clients.add(client);
+            }
+        
+        // Register everyone before measuring anything.
+        for (final LoadClient client : clients)
+            {
+            final String branch = "setup" + client.getUser();
+            stats.sent(LoadStats.Kind.REGISTER, "reg-" + branch, 
+                System.nanoTime());
+            client.send(Fixtures.register(client.getUser(), branch));
+            }
+        drain(stats, TimeUnit.SECONDS.toNanos(30));
+        stats.reset();
+        
+        final long elapsed = sendPaced(clients, stats);
+        drain(stats, TimeUnit.SECONDS.toNanos(5));
+        for (final LoadClient client : clients)
+            {
+            client.close();
+            }
+        return stats.toJson(this.m_backend, this.m_clients, this.m_rate, 
+            elapsed);
+        }
+
+    /**
+     * Sends requests on a fixed schedule.  When we fall behind we send 
+     * immediately without skipping any, and latency is still measured from
+     * the scheduled time.
+     */
+    private long sendPaced(final List<LoadClient> clients, 
+        final LoadStats stats)
+        {
+        final Random random = new Random(42);
+        final long interval = TimeUnit.SECONDS.toNanos(1) / this.m_rate;
+        final long total = (long) this.m_rate * this.m_durationSeconds;
+        final long start = System.nanoTime();
+        for (long k = 0; k < total; k++)
+            {
+            final long intended = start + k * interval;
+            long now;
+            while ((now = System.nanoTime()) < intended)
+                {
+                LockSupport.parkNanos(intended - now);
+                }
+            final int from = random.nextInt(clients.size());
+            final LoadClient caller = clients.get(from);
+            final String branch = "load" + k;
+            if (random.nextDouble() < this.m_inviteRatio)
+                {
+                int to = random.nextInt(clients.size() - 1);
+                if (to >= from)
+                    {
+                    to++;
+                    }
+                stats.sent(LoadStats.Kind.INVITE, branch, intended);
+                caller.send(Fixtures.invite(caller.getUser(), 
+                    clients.get(to).getUser(), branch));
+                }
+            else
+                {
+                stats.sent(LoadStats.Kind.REGISTER, "reg-" + branch, 
+                    intended);
+                caller.send(Fixtures.register(caller.getUser(), branch));
+                }
+            }
+        return System.nanoTime() - start;
+        }
+    
+    private static void drain(final LoadStats stats, final long timeoutNanos)
+        {
+        final long deadline = System.nanoTime() + timeoutNanos;
+        while (stats.getOutstanding() > 0 && System.nanoTime() < deadline)
+            {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+            }
+        }
+    }
@@ -0,0 +1,270 @@
+package org.lastbamboo.common.sip.bench.replay;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.lastbamboo.common.sip.bench.LocalProxy;
+import org.lastbamboo.common.sip.proxy.capture.SipCaptureReader;
+import org.lastbamboo.common.sip.proxy.capture.SipCaptureRecord;
+import org.lastbamboo.common.sip.proxy.transport.SipListenerConfig;
+
+/**
+ * Replays a capture written by the proxy's capture filter, opening, 
+ * writing to and closing one connection per captured session with the
+ * original timing compressed by a speedup factor.  Prints a summary as one
+ * line of JSON, including how far the replay fell behind schedule, which 
+ * is the number to compare between builds.  Usage:
+ * <pre>
+ * java -cp benchmarks.jar org.lastbamboo.common.sip.bench.replay.SipReplayer
+ *     --file capture.bin [--speed 1] [--backend mina] [--target host:port]
+ * </pre>
+ */
+public class SipReplayer
+    {
+
+    private File m_file;
+    
+    private double m_speed = 1.0;
+    
+    private String m_backend = "mina";
+    
+    private InetSocketAddress m_target;
+    
+    private final Map<Integer, Socket> m_sockets = 
+        new HashMap<Integer, Socket>();
+    
+    private final AtomicLong m_responses = new AtomicLong(0);
+    
+    private final AtomicLong m_ioErrors = new AtomicLong(0);
+    
+    private long m_records;
+    
+    private long m_messages;
+    
+    private long m_sessions;
+    
+    private long m_bytesSent;
+    
+    private long m_maxLagMicros;
+    
+    private long m_capturedMicros;
+
+    /**
+     * Runs the replayer.
+     * 
+     * @param args The command line arguments.
+     * @throws Exception If anything goes wrong.
+     */
+    public static void main(final String[] args) throws Exception
+        {
+        final SipReplayer replayer = new SipReplayer();
+        replayer.parse(args);
+        System.out.println(replayer.run());
+        System.exit(0);
+        }
+    
+    private void parse(final String[] args)
+        {
+        for (int i = 0; i + 1 < args.length; i += 2)
+            {
+            final String name = args[i];
+            final String value = args[i+1];
+            if ("--file".equals(name))
+                {
+                this.m_file = new File(value);
+                }
+            else if ("--speed".equals(name))
+                {
+                this.m_speed = Double.parseDouble(value);
+                }
+            else if ("--backend".equals(name))
+                {
+                this.m_backend = value;
+                }
+            else if ("--target".equals(name))
+                {
+                final int colon = value.lastIndexOf(':');
+                this.m_target = new InetSocketAddress(
+                    value.substring(0, colon), 
+                    Integer.parseInt(value.substring(colon + 1)));
+                }
+            else
+                {
+                throw new IllegalArgumentException("Unknown option: "+name);
+                }
+            }
+        if (this.m_file == null)
+            {
+            throw new IllegalArgumentException("No --file specified");
+            }
+        if (this.m_speed < 1.0 || this.m_speed > 100.0)
+            {
+            throw new IllegalArgumentException("Speed must be 1 to 100");
+            }
+        }
+    
+    private String run() throws Exception
+        {
+        final InetSocketAddress proxy = this.m_target != null ? 
+            this.m_target : 
+            new LocalProxy(this.m_backend, new SipListenerConfig()).start();
+        final SipCaptureReader reader = new SipCaptureReader(this.m_file);
+        final long start = System.nanoTime();
+        try
+            {
+            SipCaptureRecord record;
+            while ((record = reader.next()) != null)
+                {
+                this.m_records++;
+                this.m_capturedMicros = record.getMicros();
+                final long intended = start + 
+                    (long) (record.getMicros() * 1000 / this.m_speed);
+                long now;
+                while ((now = System.nanoTime()) < intended)
+                    {
+                    LockSupport.parkNanos(intended - now);
+                    }
+                this.m_maxLagMicros = Math.max(this.m_maxLagMicros, 
+                    TimeUnit.NANOSECONDS.toMicros(now - intended));
+                replay(proxy, record);
+                }
+            }
+        finally
+            {
+            reader.close();
+            }
+        final long elapsed = System.nanoTime() - start;
+        
+        // At high speeds the proxy can be well behind us, so wait until
+        // responses stop arriving.
+        long responses;
+        do
+            {
+            responses = this.m_responses.get();
+            Thread.sleep(1000);
+            }
+        while (this.m_responses.get() != responses);
+        for (final Socket socket : this.m_sockets.values())
+            {
+            socket.close();
+            }
+        return toJson(elapsed);
+        }
+
+    private void replay(final InetSocketAddress proxy, 
+        final SipCaptureRecord record)
+        {
+        final Integer id = Integer.valueOf(record.getSessionId());
+        try
+            {
+            switch (record.getType())
+                {
+                case OPEN:
+                    open(proxy, id);
+                    break;
+                case MESSAGE:
+                    Socket socket = this.m_sockets.get(id);
+                    if (socket == null)
+                        {
+                        // The capture started while this session was 
+                        // already open.
+                        socket = open(proxy, id);
+                        }
+                    final OutputStream os = socket.getOutputStream();
+                    os.write(record.getMessage());
+                    os.flush();
+                    this.m_messages++;
+                    this.m_bytesSent += record.getMessage().length;
+                    break;
+                case CLOSE:
+                    final Socket closed = this.m_sockets.remove(id);
+                    if (closed != null)
+                        {
+                        closed.close();
+                        }
+                    break;
+                }
+            }
+        catch (final IOException e)
+            {
+            this.m_ioErrors.incrementAndGet();
+            }
+        }
+    
+    private Socket open(final InetSocketAddress proxy, final Integer id) 
+        throws IOException
+        {
+        final Socket socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(proxy, 10000);
+        this.m_sockets.put(id, socket);
+        this.m_sessions++;
+        final Thread reader = new Thread(new Runnable()
+            {
+            public void run()
+                {
+                drain(socket);
+                }
+            }, "sip-replay-reader-" + id);
+        reader.setDaemon(true);
+        reader.start();
+        return socket;
+        }
+    
+    private void drain(final Socket socket)
+        {
+        try
+            {
+            final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            String line;
+            while ((line = reader.readLine()) != null)
+                {
+                if (line.startsWith("SIP/2.0 "))
+                    {
+                    this.m_responses.incrementAndGet();
+                    }
+                }
+            }
+        catch (final IOException e)
+            {
+            if (!socket.isClosed())
+                {
+                this.m_ioErrors.incrementAndGet();
+                }
+            }
+        }
+
+    private String toJson(final long elapsedNanos)
+        {
+        final double seconds = 
+            elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+        final StringBuilder sb = new StringBuilder(256);
+        sb.append("{\"file\":\"").append(this.m_file.getName()).append('"');
+        sb.append(",\"speed\":").append(this.m_speed);
+        sb.append(",\"capturedSeconds\":").append(
+            String.format("%.3f", this.m_capturedMicros / 1000000.0));
+        sb.append(",\"seconds\":").append(String.format("%.3f", seconds));
+        sb.append(",\"records\":").append(this.m_records);
+        sb.append(",\"sessions\":").append(this.m_sessions);
+        sb.append(",\"messages\":").append(this.m_messages);
+        sb.append(",\"bytesSent\":").append(this.m_bytesSent);
+        sb.append(",\"messagesPerSecond\":").append(
+            String.format("%.1f", this.m_messages / seconds));
+        sb.append(",\"responses\":").append(this.m_responses.get());
+        sb.append(",\"maxLagMicros\":").append(this.m_maxLagMicros);
+        sb.append(",\"ioErrors\":").append(this.m_ioErrors.get());
+        sb.append('}');
+        return sb.toString();
+        }
+    }
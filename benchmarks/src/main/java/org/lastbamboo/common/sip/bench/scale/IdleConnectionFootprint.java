@@ -0,0 +1,206 @@
+package org.lastbamboo.common.sip.bench.scale;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.lastbamboo.common.sip.bench.Fixtures;
+import org.lastbamboo.common.sip.bench.LocalProxy;
+import org.lastbamboo.common.sip.proxy.SipRegistrarImpl;
+import org.lastbamboo.common.sip.proxy.transport.SipListenerConfig;
+
+/**
+ * Measures the proxy's heap cost per idle registered connection.  For each
+ * level the clients run in a separate JVM so only the proxy's side shows up
+ * in this JVM's heap.  Each level prints one line of JSON with the bytes 
+ * per connection right after registering and again once the connections 
+ * have been idle long enough for their decoders to be released.  Usage:
+ * <pre>
+ * java -cp benchmarks.jar org.lastbamboo.common.sip.bench.scale.IdleConnectionFootprint
+ *     [--levels 10000,50000,100000] [--backend mina]
+ * </pre>
+ * Each level needs that many file descriptors in both JVMs, and clients 
+ * are spread across 127.0.0.x source addresses to stay within the 
+ * ephemeral port range.
+ */
+public class IdleConnectionFootprint
+    {
+
+    private static final int RELEASE_IDLE_SECONDS = 2;
+    
+    private static final int CLIENTS_PER_SOURCE_ADDRESS = 20000;
+
+    /**
+     * Runs the measurement, or the client side of it when called with
+     * <code>--connect</code>.
+     * 
+     * @param args The command line arguments.
+     * @throws Exception If anything goes wrong.
+     */
+    public static void main(final String[] args) throws Exception
+        {
+        String levels = "10000,50000,100000";
+        String backend = "mina";
+        String connect = null;
+        int clients = 0;
+        for (int i = 0; i + 1 < args.length; i += 2)
+            {
+            if ("--levels".equals(args[i]))
+                {
+                levels = args[i+1];
+                }
+            else if ("--backend".equals(args[i]))
+                {
+                backend = args[i+1];
+                }
+            else if ("--connect".equals(args[i]))
+                {
+                connect = args[i+1];
+                }
+            else if ("--clients".equals(args[i]))
+                {
+                clients = Integer.parseInt(args[i+1]);
+                }
+            else
+                {
+                throw new IllegalArgumentException("Unknown option: "+args[i]);
+                }
+            }
+        if (connect != null)
+            {
+            final int colon = connect.lastIndexOf(':');
+            runClients(new InetSocketAddress(connect.substring(0, colon), 
+                Integer.parseInt(connect.substring(colon + 1))), clients);
+            }
+        else
+            {
+            measure(backend, levels.split(","));
+            }
+        System.exit(0);
+        }
+
+    private static void measure(final String backend, final String[] levels)
+        throws Exception
+        {
+        final SipListenerConfig config = new SipListenerConfig();
+        config.setDecoderReleaseIdleSeconds(RELEASE_IDLE_SECONDS);
+        config.setIdleTimeoutMillis(TimeUnit.HOURS.toMillis(1));
+        final LocalProxy proxy = new LocalProxy(backend, config);
+        final InetSocketAddress address = proxy.start();
+        final SipRegistrarImpl registrar = proxy.getRegistrar();
+        
+        for (final String level : levels)
+            {
+            final int clients = Integer.parseInt(level.trim());
+            final long baseline = usedHeap();
+            final Process child = new ProcessBuilder(
+                System.getProperty("java.home") + "/bin/java", "-cp", 
+                System.getProperty("java.class.path"), 
+                IdleConnectionFootprint.class.getName(), 
+                "--connect", "127.0.0.1:" + address.getPort(), 
+                "--clients", level.trim()).redirectErrorStream(true).start();
+            final BufferedReader childOut = new BufferedReader(
+                new InputStreamReader(child.getInputStream()));
+            
+            // The child prints a single line once it has opened everything
+            // it can.
+            final String ready = childOut.readLine();
+            waitForRegistrations(registrar, ready);
+            final int registered = registrar.getSipNumRegistered();
+            final long active = usedHeap() - baseline;
+            Thread.sleep(TimeUnit.SECONDS.toMillis(RELEASE_IDLE_SECONDS + 3));
+            final long idle = usedHeap() - baseline;
+            
+            System.out.println("{\"clients\":" + clients + 
+                ",\"registered\":" + registered +
+                ",\"client\":\"" + ready + "\"" +
+                ",\"bytesPerConnection\":" + perConnection(active, registered) +
+                ",\"bytesPerIdleConnection\":" + 
+                    perConnection(idle, registered) + "}");
+            
+            child.destroy();
+            child.waitFor();
+            final long deadline = System.nanoTime() + 
+                TimeUnit.SECONDS.toNanos(60);
+            while (registrar.getSipNumRegistered() > 0 && 
+                System.nanoTime() < deadline)
+                {
+                Thread.sleep(100);
+                }
+            }
+        }
+    
+    private static void waitForRegistrations(final SipRegistrarImpl registrar,
+        final String ready) throws InterruptedException
+        {
+        if (ready == null || !ready.startsWith("connected "))
+            {
+            return;
+            }
+        final int expected = 
+            Integer.parseInt(ready.split(" ")[1]);
+        final long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(5);
+        while (registrar.getSipNumRegistered() < expected && 
+            System.nanoTime() < deadline)
+            {
+            Thread.sleep(100);
+            }
+        }
+
+    private static long perConnection(final long bytes, final int connections)
+        {
+        return connections == 0 ? 0 : bytes / connections;
+        }
+    
+    private static long usedHeap() throws InterruptedException
+        {
+        for (int i = 0; i < 3; i++)
+            {
+            System.gc();
+            Thread.sleep(200);
+            }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().
+            getUsed();
+        }
+
+    private static void runClients(final InetSocketAddress proxy, 
+        final int clients) throws IOException
+        {
+        final List<Socket> sockets = new ArrayList<Socket>(clients);
+        String error = "";
+        for (int i = 0; i < clients; i++)
+            {
+            final String source = 
+                "127.0.0." + (2 + i / CLIENTS_PER_SOURCE_ADDRESS);
+            final Socket socket = new Socket();
+            try
+                {
+                socket.bind(new InetSocketAddress(source, 0));
+                socket.connect(proxy, 10000);
+                final OutputStream os = socket.getOutputStream();
+                os.write(Fixtures.toBytes(Fixtures.register(
+                    String.valueOf(200000 + i), "scale" + i)));
+                os.flush();
+                sockets.add(socket);
+                }
+            catch (final IOException e)
+                {
+                socket.close();
+                error = " " + e.getMessage();
+                break;
+                }
+            }
+        System.out.println("connected " + sockets.size() + error);
+        System.out.flush();
+        
+        // Hold the connections until the parent kills us.
+        System.in.read();
+        }
+    }
@@ -0,0 +1,286 @@
+package org.lastbamboo.common.sip.proxy;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.littleshoot.mina.common.IoSession;
+
+/**
+ * Table of client connections indexed by flow token, in the spirit of 
+ * RFC 5626 flow tokens.  Each session gets a slot when it's created, and 
+ * the token we hand out is the slot index plus a generation count for the
+ * slot, so a message carrying the token of a closed connection never 
+ * resolves to whatever connection reused the slot.  Resolving a token is an
+ * array read, with no URI parsing or address hashing.
+ * <p>
+ * Tokens we put in headers are signed, as RFC 5626 section 5.2 requires, 
+ * so a client can't guess its way onto someone else's connection.  The 
+ * signature also covers the context the token was issued for, such as 
+ * the branch of the Via it's on, so a client that saw someone's token in
+ * one transaction can't reuse it in another.
+ */
+public class FlowTable
+    {
+
+    private static final String TOKEN_KEY = "FLOW_TOKEN";
+    
+    /**
+     * Parameter name for flow tokens in Via, Route and Record-Route values.
+     */
+    public static final String FLOW_TOKEN_PARAM = "ft";
+    
+    private final AtomicReferenceArray<IoSession> m_sessions;
+    
+    private final AtomicIntegerArray m_generations;
+    
+    private final int m_indexBits;
+    
+    private final int m_indexMask;
+    
+    private final int m_generationMask;
+    
+    private final AtomicInteger m_nextIndex = new AtomicInteger(0);
+    
+    private final Queue<Integer> m_freeIndexes = 
+        new ConcurrentLinkedQueue<Integer>();
+    
+    private final HmacSigner m_signer = new HmacSigner();
+
+    /**
+     * Creates a table with room for 2^18 concurrent connections.
+     */
+    public FlowTable()
+        {
+        this(18);
+        }
+    
+    /**
+     * Creates a table with room for 2^indexBits concurrent connections.
+     * 
+     * @param indexBits The number of bits of the token used for the slot 
+     * index.  The remaining bits up to 31 hold the generation.
+     */
+    public FlowTable(final int indexBits)
+        {
+        if (indexBits < 1 || indexBits > 24)
+            {
+            throw new IllegalArgumentException("Bad index bits: "+indexBits);
+            }
+        final int capacity = 1 << indexBits;
+        this.m_indexBits = indexBits;
+        this.m_indexMask = capacity - 1;
+        this.m_generationMask = (1 << (31 - indexBits)) - 1;
+        this.m_sessions = new AtomicReferenceArray<IoSession>(capacity);
+        this.m_generations = new AtomicIntegerArray(capacity);
+        }
+    
+    /**
+     * Assigns a flow token to the specified session.
+     * 
+     * @param session The new session.
+     * @return The token, or -1 if the table is full.
+     */
+    public int add(final IoSession session)
+        {
+        final Integer free = this.m_freeIndexes.poll();
+        final int index;
+        if (free != null)
+            {
+            index = free.intValue();
+            }
+        else
+            {
+            index = this.m_nextIndex.getAndIncrement();
+            if (index > this.m_indexMask)
+                {
+                this.m_nextIndex.decrementAndGet();
+                return -1;
+                }
+            }
+        final int generation = 
+            this.m_generations.incrementAndGet(index) & this.m_generationMask;
+        final int token = (generation << this.m_indexBits) | index;
+        this.m_sessions.set(index, session);
+        session.setAttribute(TOKEN_KEY, Integer.valueOf(token));
+        return token;
+        }
+    
+    /**
+     * Releases the flow token for the specified session.
+     * 
+     * @param session The closed session.
+     */
+    public void remove(final IoSession session)
+        {
+        final Integer token = (Integer) session.removeAttribute(TOKEN_KEY);
+        if (token == null)
+            {
+            return;
+            }
+        final int index = token.intValue() & this.m_indexMask;
+        if (this.m_sessions.compareAndSet(index, session, null))
+            {
+            this.m_freeIndexes.add(Integer.valueOf(index));
+            }
+        }
+    
+    /**
+     * Resolves a flow token to its session.
+     * 
+     * @param token The flow token.
+     * @return The session, or <code>null</code> if the token is invalid or
+     * its connection has closed.
+     */
+    public IoSession get(final int token)
+        {
+        if (token < 0)
+            {
+            return null;
+            }
+        final int index = token & this.m_indexMask;
+        final IoSession session = this.m_sessions.get(index);
+        if (session == null)
+            {
+            return null;
+            }
+        final int generation = token >>> this.m_indexBits;
+        if ((this.m_generations.get(index) & this.m_generationMask) != 
+            generation)
+            {
+            return null;
+            }
+        return session;
+        }
+    
+    /**
+     * Resolves a signed flow token to its session.
+     * 
+     * @param signed The signed token from a header parameter.
+     * @param context The context the token was signed for.
+     * @return The session, or <code>null</code> if the token is invalid, 
+     * forged or signed for another context, or its connection has closed.
+     */
+    public IoSession get(final String signed, final String context)
+        {
+        return get(verify(signed, context));
+        }
+    
+    /**
+     * Accessor for the flow token of the specified session.
+     * 
+     * @param session The session.
+     * @return The token, or -1 if the session has none.
+     */
+    public int getToken(final IoSession session)
+        {
+        final Integer token = (Integer) session.getAttribute(TOKEN_KEY);
+        if (token == null)
+            {
+            return -1;
+            }
+        return token.intValue();
+        }
+    
+    /**
+     * Accessor for the total number of bytes queued for writing across all
+     * sessions in the table.  This walks the table, so it's meant for 
+     * periodic sampling rather than per-message use.
+     * 
+     * @return The number of bytes waiting to be written.
+     */
+    public long getScheduledWriteBytes()
+        {
+        final int size = Math.min(this.m_nextIndex.get(), this.m_indexMask + 1);
+        long bytes = 0;
+        for (int i = 0; i < size; i++)
+            {
+            final IoSession session = this.m_sessions.get(i);
+            if (session != null)
+                {
+                bytes += session.getScheduledWriteBytes();
+                }
+            }
+        return bytes;
+        }
+    
+    /**
+     * Signs the flow token of the specified session for use as a header
+     * parameter.
+     * 
+     * @param session The session.
+     * @param context What the token is for, such as the branch of the Via 
+     * it goes on, or the Call-ID of the dialog for a Route.  The token only
+     * verifies with the same context.
+     * @return The signed token, or <code>null</code> if the session has no
+     * token.
+     */
+    public String sign(final IoSession session, final String context)
+        {
+        final int token = getToken(session);
+        if (token == -1)
+            {
+            return null;
+            }
+        final String encoded = Integer.toString(token, Character.MAX_RADIX);
+        return encoded + '.' + this.m_signer.sign(signedText(encoded, context));
+        }
+    
+    /**
+     * Checks a signed token from a header parameter.
+     * 
+     * @param signed The signed token.
+     * @param context The context the token should have been signed for.
+     * @return The token, or -1 if it's malformed or we didn't sign it for
+     * the context.
+     */
+    public int verify(final String signed, final String context)
+        {
+        if (signed == null)
+            {
+            return -1;
+            }
+        final int dot = signed.indexOf('.');
+        if (dot < 1 || dot > 6)
+            {
+            return -1;
+            }
+        final String encoded = signed.substring(0, dot);
+        if (!this.m_signer.verify(signedText(encoded, context), 
+            signed.substring(dot + 1)))
+            {
+            return -1;
+            }
+        return decode(encoded);
+        }
+    
+    private static String signedText(final String encoded, 
+        final String context)
+        {
+        return context == null ? encoded : encoded + ' ' + context;
+        }
+    
+    private static int decode(final String encoded)
+        {
+        int token = 0;
+        for (int i = 0; i < encoded.length(); i++)
+            {
+            final int digit = Character.digit(encoded.charAt(i), 
+                Character.MAX_RADIX);
+            if (digit < 0)
+                {
+                return -1;
+                }
+            token = token * Character.MAX_RADIX + digit;
+            }
+        return token;
+        }
+    
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName();
+        }
+    }
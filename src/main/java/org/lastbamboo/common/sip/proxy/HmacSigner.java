@@ -0,0 +1,111 @@
+package org.lastbamboo.common.sip.proxy;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Signs short strings we hand to clients and expect back, such as flow
+ * tokens and nonces, with HMAC-SHA1 truncated to 80 bits as in RFC 5626
+ * section 5.2.  The key is random and never leaves the process, so only
+ * this process can produce a signature it will accept, and a restart makes
+ * every earlier signature invalid.  Each thread keeps its own MAC, so
+ * signing never allocates one or contends for a lock.
+ */
+public final class HmacSigner
+    {
+
+    private static final String ALGORITHM = "HmacSHA1";
+
+    private static final int MAC_BYTES = 10;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final SecretKeySpec m_key;
+
+    private final ThreadLocal<Mac> m_macs = new ThreadLocal<Mac>()
+        {
+        @Override
+        protected Mac initialValue()
+            {
+            try
+                {
+                final Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(m_key);
+                return mac;
+                }
+            catch (final GeneralSecurityException e)
+                {
+                throw new IllegalStateException("No HMAC-SHA1?", e);
+                }
+            }
+        };
+
+    /**
+     * Creates a signer with a new random key.
+     */
+    public HmacSigner()
+        {
+        final byte[] secret = new byte[20];
+        new SecureRandom().nextBytes(secret);
+        this.m_key = new SecretKeySpec(secret, ALGORITHM);
+        }
+
+    /**
+     * Signs a string.
+     *
+     * @param text The string to sign.
+     * @return The signature as 20 lowercase hex characters.
+     */
+    public String sign(final String text)
+        {
+        final Mac mac = this.m_macs.get();
+        final byte[] hash;
+        try
+            {
+            hash = mac.doFinal(text.getBytes("UTF-8"));
+            }
+        catch (final UnsupportedEncodingException e)
+            {
+            throw new IllegalStateException("No UTF-8?", e);
+            }
+        final char[] hex = new char[MAC_BYTES * 2];
+        for (int i = 0; i < MAC_BYTES; i++)
+            {
+            hex[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[hash[i] & 0xf];
+            }
+        return new String(hex);
+        }
+
+    /**
+     * Checks a signature in time that doesn't depend on where it's wrong.
+     *
+     * @param text The string that was signed.
+     * @param signature The signature a client sent back.
+     * @return <code>true</code> if we signed the string.
+     */
+    public boolean verify(final String text, final String signature)
+        {
+        if (signature == null || signature.length() != MAC_BYTES * 2)
+            {
+            return false;
+            }
+        final String expected = sign(text);
+        int diff = 0;
+        for (int i = 0; i < expected.length(); i++)
+            {
+            diff |= expected.charAt(i) ^ signature.charAt(i);
+            }
+        return diff == 0;
+        }
+
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName();
+        }
+    }
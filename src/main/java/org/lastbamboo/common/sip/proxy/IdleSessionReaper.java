@@ -0,0 +1,251 @@
+package org.lastbamboo.common.sip.proxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Closes sessions we haven't heard from within the idle threshold and sends
+ * the single CRLF pong in response to RFC 5626 double CRLF keepalives.
+ * <p>
+ * Sessions sit in a timing wheel with one slot per tick.  Any activity on a
+ * session moves it to the first slot that expires at least one idle 
+ * threshold from now, which is O(1), and each tick closes whatever is left
+ * in the slot it reaches.  Sessions are closed between one idle threshold
+ * and one tick more than that after we last heard from them.  A single 
+ * thread drives the wheel and the pongs for every session rather than each
+ * session having its own idle timer.
+ */
+public class IdleSessionReaper
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+    
+    private static final String SLOT_KEY = "IDLE_REAPER_SLOT";
+    
+    private static final byte[] PONG = {'\r', '\n'};
+    
+    private final List<Set<IoSession>> m_wheel;
+    
+    private final int m_idleTicks;
+    
+    private final long m_tickMillis;
+    
+    private final AtomicLong m_tick = new AtomicLong(0);
+    
+    private final Queue<IoSession> m_pongs = 
+        new ConcurrentLinkedQueue<IoSession>();
+    
+    private final ScheduledExecutorService m_scheduler = 
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+            public Thread newThread(final Runnable r)
+                {
+                final Thread t = new Thread(r, "SIP-Idle-Reaper");
+                t.setDaemon(true);
+                return t;
+                }
+            });
+
+    /**
+     * Creates a new reaper.
+     * 
+     * @param idleMillis The number of milliseconds without any reads after 
+     * which we close a session.
+     * @param tickMillis The granularity of the wheel, which is also the 
+     * longest we'll hold a pong before sending it.
+     */
+    public IdleSessionReaper(final long idleMillis, final long tickMillis)
+        {
+        if (tickMillis <= 0 || idleMillis < tickMillis)
+            {
+            throw new IllegalArgumentException("Bad idle time or tick: " + 
+                idleMillis + ", " + tickMillis);
+            }
+        this.m_tickMillis = tickMillis;
+        
+        // A session touched just before a tick has used up almost all of 
+        // that tick, so it only counts once the next one starts.
+        this.m_idleTicks = 
+            (int) ((idleMillis + tickMillis - 1) / tickMillis) + 1;
+        
+        // One extra slot so a touched session never lands in the slot that
+        // is about to be reaped.
+        final int slots = this.m_idleTicks + 2;
+        this.m_wheel = new ArrayList<Set<IoSession>>(slots);
+        for (int i = 0; i < slots; i++)
+            {
+            this.m_wheel.add(Collections.newSetFromMap(
+                new ConcurrentHashMap<IoSession, Boolean>()));
+            }
+        }
+    
+    /**
+     * Starts turning the wheel.
+     */
+    public void start()
+        {
+        final Runnable runner = new Runnable()
+            {
+            public void run()
+                {
+                try
+                    {
+                    tick();
+                    }
+                catch (final Throwable t)
+                    {
+                    m_log.error("Error reaping idle sessions", t);
+                    }
+                }
+            };
+        this.m_scheduler.scheduleAtFixedRate(runner, this.m_tickMillis, 
+            this.m_tickMillis, TimeUnit.MILLISECONDS);
+        }
+    
+    /**
+     * Stops turning the wheel.  Sessions are left open.
+     */
+    public void stop()
+        {
+        this.m_scheduler.shutdownNow();
+        }
+
+    /**
+     * Records activity on the specified session, pushing back the time at
+     * which it will be closed.
+     * 
+     * @param session The session we've heard from.
+     */
+    public void touch(final IoSession session)
+        {
+        final int slot = 
+            (int) ((this.m_tick.get() + this.m_idleTicks) % this.m_wheel.size());
+        
+        // The I/O thread and the message workers can both touch a session at
+        // once, and a session must never end up in two slots.
+        synchronized (session)
+            {
+            final Integer current = (Integer) session.getAttribute(SLOT_KEY);
+            if (current != null)
+                {
+                if (current.intValue() == slot)
+                    {
+                    return;
+                    }
+                this.m_wheel.get(current.intValue()).remove(session);
+                }
+            session.setAttribute(SLOT_KEY, Integer.valueOf(slot));
+            this.m_wheel.get(slot).add(session);
+            }
+        }
+    
+    /**
+     * Stops tracking the specified session, typically because it has 
+     * closed.
+     * 
+     * @param session The session to stop tracking.
+     */
+    public void remove(final IoSession session)
+        {
+        synchronized (session)
+            {
+            final Integer current = 
+                (Integer) session.removeAttribute(SLOT_KEY);
+            if (current != null)
+                {
+                this.m_wheel.get(current.intValue()).remove(session);
+                }
+            }
+        }
+    
+    /**
+     * Queues a single CRLF pong to the specified session, to be sent on the
+     * next tick along with any others.
+     * 
+     * @param session The session that sent us a double CRLF ping.
+     */
+    public void pong(final IoSession session)
+        {
+        this.m_pongs.add(session);
+        }
+    
+    /**
+     * Accessor for the number of sessions we're tracking.
+     * 
+     * @return The number of sessions we're tracking.
+     */
+    public int getNumSessions()
+        {
+        int count = 0;
+        for (final Set<IoSession> slot : this.m_wheel)
+            {
+            count += slot.size();
+            }
+        return count;
+        }
+
+    /**
+     * Advances the wheel one slot, closing idle sessions and flushing 
+     * pending pongs.  Only the reaper's thread calls this, apart from 
+     * tests.
+     */
+    void tick()
+        {
+        IoSession pongSession;
+        while ((pongSession = this.m_pongs.poll()) != null)
+            {
+            if (pongSession.isConnected())
+                {
+                pongSession.write(ByteBuffer.wrap(PONG));
+                }
+            }
+        
+        final int slot = 
+            (int) (this.m_tick.incrementAndGet() % this.m_wheel.size());
+        final Set<IoSession> expired = this.m_wheel.get(slot);
+        if (expired.isEmpty())
+            {
+            return;
+            }
+        m_log.debug("Closing {} idle sessions", expired.size());
+        for (final IoSession session : expired)
+            {
+            // If the remove fails, the session was touched and moved while
+            // we were iterating.
+            final boolean idle;
+            synchronized (session)
+                {
+                idle = expired.remove(session);
+                if (idle)
+                    {
+                    session.removeAttribute(SLOT_KEY);
+                    }
+                }
+            if (idle)
+                {
+                session.close();
+                }
+            }
+        }
+    
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName();
+        }
+    }
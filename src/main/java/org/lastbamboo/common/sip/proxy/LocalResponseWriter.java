@@ -0,0 +1,216 @@
+package org.lastbamboo.common.sip.proxy;
+
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.common.WriteFuture;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.header.SipHeader;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderNames;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderValue;
+
+/**
+ * Writes responses the proxy generates itself, such as 503s when we're 
+ * overloaded, directly to the session the request arrived on.  These are 
+ * built straight into a buffer from the request's headers so rejecting a
+ * request costs as little as possible.
+ */
+public class LocalResponseWriter
+    {
+
+    private static final String[] COPIED_HEADERS = 
+        {
+        SipHeaderNames.VIA,
+        SipHeaderNames.FROM,
+        SipHeaderNames.CALL_ID,
+        SipHeaderNames.CSEQ,
+        };
+    
+    /**
+     * Writes a response with no body.
+     * 
+     * @param session The session to write to.
+     * @param request The request we're responding to.
+     * @param statusCode The status code.
+     * @param reasonPhrase The reason phrase.
+     * @param extraHeaders Any further header lines, such as 
+     * "Retry-After: 10", without line terminators.
+     * @return The future for the write.
+     */
+    public WriteFuture write(final IoSession session, 
+        final SipMessage request, final int statusCode, 
+        final String reasonPhrase, final String... extraHeaders)
+        {
+        return write(session, 
+            toResponse(request, statusCode, reasonPhrase, extraHeaders));
+        }
+    
+    /**
+     * Writes a response with no body for a request we only have the raw
+     * header lines of, such as one too large to decode.
+     * 
+     * @param session The session to write to.
+     * @param requestHeaders The request's Via, From, To, Call-ID and CSeq
+     * header lines, using full header names and without line terminators.
+     * @param statusCode The status code.
+     * @param reasonPhrase The reason phrase.
+     * @param extraHeaders Any further header lines, without line 
+     * terminators.
+     * @return The future for the write.
+     */
+    public WriteFuture write(final IoSession session, 
+        final List<String> requestHeaders, final int statusCode, 
+        final String reasonPhrase, final String... extraHeaders)
+        {
+        final StringBuilder sb = startResponse(statusCode, reasonPhrase);
+        String callId = null;
+        for (final String line : requestHeaders)
+            {
+            if (line.startsWith(SipHeaderNames.CALL_ID + ":"))
+                {
+                callId = line.substring(line.indexOf(':') + 1).trim();
+                }
+            }
+        for (final String line : requestHeaders)
+            {
+            sb.append(line);
+            if (line.startsWith(SipHeaderNames.TO + ":") && 
+                line.indexOf(";tag=") == -1)
+                {
+                appendTag(callId, sb);
+                }
+            sb.append("\r\n");
+            }
+        endResponse(sb, extraHeaders);
+        return write(session, sb.toString());
+        }
+    
+    private WriteFuture write(final IoSession session, final String response)
+        {
+        final byte[] bytes;
+        try
+            {
+            bytes = response.getBytes("US-ASCII");
+            }
+        catch (final UnsupportedEncodingException e)
+            {
+            throw new IllegalStateException("No ASCII?", e);
+            }
+        
+        // Use a pooled buffer rather than wrapping the array, so the write
+        // doesn't need a temporary direct buffer.
+        final ByteBuffer buf = ByteBuffer.allocate(bytes.length);
+        buf.put(bytes);
+        buf.flip();
+        return session.write(buf);
+        }
+    
+    /**
+     * Renders a response with no body.
+     * 
+     * @param request The request we're responding to.
+     * @param statusCode The status code.
+     * @param reasonPhrase The reason phrase.
+     * @param extraHeaders Any further header lines, without line 
+     * terminators.
+     * @return The response as it will go on the wire.
+     */
+    public String toResponse(final SipMessage request,
+        final int statusCode, final String reasonPhrase, 
+        final String... extraHeaders)
+        {
+        final StringBuilder sb = startResponse(statusCode, reasonPhrase);
+        for (final String name : COPIED_HEADERS)
+            {
+            appendHeader(request, name, sb);
+            }
+        appendTo(request, sb);
+        endResponse(sb, extraHeaders);
+        return sb.toString();
+        }
+    
+    private static StringBuilder startResponse(final int statusCode, 
+        final String reasonPhrase)
+        {
+        final StringBuilder sb = new StringBuilder(256);
+        sb.append("SIP/2.0 ");
+        sb.append(statusCode);
+        sb.append(' ');
+        sb.append(reasonPhrase);
+        sb.append("\r\n");
+        return sb;
+        }
+    
+    private static void endResponse(final StringBuilder sb, 
+        final String... extraHeaders)
+        {
+        for (final String header : extraHeaders)
+            {
+            sb.append(header);
+            sb.append("\r\n");
+            }
+        sb.append("Content-Length: 0\r\n\r\n");
+        }
+
+    /**
+     * Copies the To header, adding a tag if the request doesn't have one as
+     * required by RFC 3261 section 8.2.6.2.  The tag is derived from the 
+     * Call-ID so a retransmitted request gets the same tag.
+     */
+    private void appendTo(final SipMessage request, final StringBuilder sb)
+        {
+        final SipHeader to = request.getHeader(SipHeaderNames.TO);
+        if (to == null)
+            {
+            return;
+            }
+        sb.append(SipHeaderNames.TO);
+        sb.append(": ");
+        final SipHeaderValue value = to.getValue();
+        SipHeaderRewriter.render(value, sb);
+        if (!value.getParams().containsKey("tag"))
+            {
+            final SipHeader callId = request.getHeader(SipHeaderNames.CALL_ID);
+            appendTag(callId == null ? null : 
+                callId.getValue().getBaseValue(), sb);
+            }
+        sb.append("\r\n");
+        }
+    
+    private static void appendTag(final String callId, 
+        final StringBuilder sb)
+        {
+        sb.append(";tag=");
+        sb.append(Integer.toHexString(callId == null ? 0 : callId.hashCode()));
+        }
+
+    private void appendHeader(final SipMessage request, final String name, 
+        final StringBuilder sb)
+        {
+        final SipHeader header = request.getHeader(name);
+        if (header == null)
+            {
+            return;
+            }
+        final List<SipHeaderValue> values = header.getValues();
+        sb.append(name);
+        sb.append(": ");
+        for (int i = 0; i < values.size(); i++)
+            {
+            if (i > 0)
+                {
+                sb.append(',');
+                }
+            SipHeaderRewriter.render(values.get(i), sb);
+            }
+        sb.append("\r\n");
+        }
+    
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName();
+        }
+    }
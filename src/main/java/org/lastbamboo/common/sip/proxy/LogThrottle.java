@@ -0,0 +1,64 @@
+package org.lastbamboo.common.sip.proxy;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits one kind of log message to one per interval, so a burst of bad
+ * traffic that triggers a warning for every message doesn't turn into a
+ * burst of log writes.  Each throttle counts the messages it suppresses,
+ * so the next message that gets through can say how many there were.
+ * <p>
+ * Use one throttle per kind of message:
+ * <pre>
+ * final long suppressed = m_throttle.acquire();
+ * if (suppressed &gt;= 0)
+ *     {
+ *     m_log.warn("Bad thing from {}, {} more suppressed", from, suppressed);
+ *     }
+ * </pre>
+ */
+public final class LogThrottle
+    {
+
+    private final long m_intervalMillis;
+
+    private final AtomicLong m_next = new AtomicLong(0);
+
+    private final AtomicLong m_suppressed = new AtomicLong(0);
+
+    /**
+     * Creates a new throttle.
+     *
+     * @param intervalMillis The shortest time between messages.
+     */
+    public LogThrottle(final long intervalMillis)
+        {
+        this.m_intervalMillis = intervalMillis;
+        }
+
+    /**
+     * Returns whether we can log a message now.
+     *
+     * @return The number of messages suppressed since the last one we
+     * logged, or -1 if this message should be suppressed too.
+     */
+    public long acquire()
+        {
+        final long now = System.currentTimeMillis();
+        final long next = this.m_next.get();
+        if (now >= next &&
+            this.m_next.compareAndSet(next, now + this.m_intervalMillis))
+            {
+            return this.m_suppressed.getAndSet(0);
+            }
+        this.m_suppressed.incrementAndGet();
+        return -1;
+        }
+
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName() + " every " + this.m_intervalMillis +
+            "ms";
+        }
+    }
@@ -0,0 +1,117 @@
+package org.lastbamboo.common.sip.proxy;
+
+import java.io.IOException;
+import java.net.URI;
+
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.SipMessageUtils;
+import org.lastbamboo.common.sip.stack.message.header.SipHeader;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderNames;
+
+/**
+ * Answers OPTIONS requests addressed to the proxy itself, such as health
+ * probes from load balancers, straight from the I/O thread.  The 200 only
+ * varies by the headers copied from the request, so these never touch the
+ * scheduler, routing or the registrar.
+ */
+public class OptionsResponder
+    {
+
+    /**
+     * The name of the Route header, which the stack has no constant for.
+     */
+    public static final String ROUTE = "Route";
+
+    private static final String[] CAPABILITIES =
+        {
+        "Allow: INVITE, ACK, CANCEL, BYE, OPTIONS, MESSAGE, INFO, REGISTER",
+        "Accept: application/sdp",
+        "Supported: outbound",
+        };
+
+    private final LocalResponseWriter m_responseWriter;
+
+    /**
+     * Creates a new responder.
+     *
+     * @param responseWriter The class for writing the 200s.
+     */
+    public OptionsResponder(final LocalResponseWriter responseWriter)
+        {
+        this.m_responseWriter = responseWriter;
+        }
+
+    /**
+     * Answers the specified request if it's an OPTIONS for the proxy.
+     *
+     * @param request The request.
+     * @param session The session the request arrived on.
+     * @return <code>true</code> if we answered the request, otherwise
+     * <code>false</code>.
+     */
+    public boolean answer(final SipMessage request, final IoSession session)
+        {
+        if (!"OPTIONS".equals(getMethod(request)) || !isForUs(request))
+            {
+            return false;
+            }
+        this.m_responseWriter.write(session, request, 200, "OK",
+            CAPABILITIES);
+        return true;
+        }
+
+    /**
+     * An OPTIONS is for us if it isn't being routed anywhere and its
+     * Request-URI names no user, or if it can't go any further, as in
+     * RFC 3261 section 16.3.
+     */
+    private static boolean isForUs(final SipMessage request)
+        {
+        final SipHeader maxForwards =
+            request.getHeader(SipHeaderNames.MAX_FORWARDS);
+        if (maxForwards != null &&
+            "0".equals(maxForwards.getValue().getBaseValue().trim()))
+            {
+            return true;
+            }
+        if (request.getHeader(ROUTE) != null)
+            {
+            return false;
+            }
+        try
+            {
+            final URI uri = SipMessageUtils.extractUriFromRequestLine(request);
+            final String ssp = uri.getSchemeSpecificPart();
+            return ssp != null && ssp.indexOf('@') == -1;
+            }
+        catch (final IOException e)
+            {
+            return false;
+            }
+        }
+
+    /**
+     * Accessor for the method of a request.  The stack replaces methods it
+     * doesn't know with "Unknown" in the request line, so we take it from
+     * the CSeq, which always carries the request's own method.
+     *
+     * @param request The request.
+     * @return The method name, or <code>null</code> if there's no CSeq.
+     */
+    public static String getMethod(final SipMessage request)
+        {
+        final SipHeader cseq = request.getHeader(SipHeaderNames.CSEQ);
+        if (cseq == null)
+            {
+            return null;
+            }
+        return SipMessageUtils.extractCSeqMethod(cseq);
+        }
+
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName();
+        }
+    }
@@ -0,0 +1,328 @@
+package org.lastbamboo.common.sip.proxy;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides when the proxy is overloaded and should turn away new work.  A 
+ * sampler periodically checks how late its own scheduled runs are, which 
+ * tracks CPU and GC pressure, along with the depth of the message queue and
+ * the bytes waiting to be written to clients.  If any of these goes over 
+ * its threshold we shed new INVITEs and REGISTERs with a 503 until all of 
+ * them drop back well under their thresholds.  Responses and in-dialog 
+ * requests are never shed, so calls already set up keep working.
+ * <p>
+ * Clients we shed are told to retry after different amounts of time, 
+ * spread over retryAfterSpreadSeconds, so they don't all come back in the
+ * same second and overload us again.
+ */
+public class OverloadController implements OverloadControllerMBean
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+    
+    /**
+     * Once overloaded, we stay overloaded until the load falls below this 
+     * fraction of the thresholds, so we don't flap.
+     */
+    private static final double RECOVERY_RATIO = 0.8;
+    
+    private final FlowTable m_flowTable;
+    
+    private final AtomicInteger m_queueDepth = new AtomicInteger(0);
+    
+    private final AtomicLong m_shed = new AtomicLong(0);
+    
+    private volatile boolean m_overloaded = false;
+    
+    private volatile double m_load = 0.0;
+    
+    private volatile long m_lagMillis = 0;
+    
+    private volatile long m_maxLagMillis = 200;
+    
+    private volatile int m_maxQueueDepth = 10000;
+    
+    private volatile long m_maxWriteBytes = 64 * 1024 * 1024;
+    
+    private volatile long m_sampleMillis = 100;
+    
+    private volatile int m_minRetryAfterSeconds = 5;
+    
+    private volatile int m_maxRetryAfterSeconds = 60;
+    
+    private volatile int m_retryAfterSpreadSeconds = 30;
+    
+    private final Random m_random = new Random();
+    
+    private final ScheduledExecutorService m_scheduler = 
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+            public Thread newThread(final Runnable r)
+                {
+                final Thread t = new Thread(r, "SIP-Overload-Sampler");
+                t.setDaemon(true);
+                return t;
+                }
+            });
+
+    /**
+     * Creates a new controller.
+     * 
+     * @param flowTable The table of client sessions, used to total the 
+     * bytes waiting to be written.
+     */
+    public OverloadController(final FlowTable flowTable)
+        {
+        this.m_flowTable = flowTable;
+        }
+    
+    /**
+     * Starts sampling.
+     */
+    public void start()
+        {
+        final long period = this.m_sampleMillis;
+        final Runnable runner = new Runnable()
+            {
+            private long m_last = System.nanoTime();
+            
+            public void run()
+                {
+                final long now = System.nanoTime();
+                final long lag = 
+                    TimeUnit.NANOSECONDS.toMillis(now - m_last) - period;
+                m_last = now;
+                try
+                    {
+                    sample(Math.max(0, lag));
+                    }
+                catch (final Throwable t)
+                    {
+                    m_log.error("Error sampling load", t);
+                    }
+                }
+            };
+        this.m_scheduler.scheduleAtFixedRate(runner, period, period, 
+            TimeUnit.MILLISECONDS);
+        }
+    
+    /**
+     * Stops sampling.
+     */
+    public void stop()
+        {
+        this.m_scheduler.shutdownNow();
+        }
+    
+    /**
+     * Takes one sample of the load, deciding whether we're overloaded.  
+     * Only the sampler's thread calls this, apart from tests.
+     * 
+     * @param lagMillis How late the sampler ran.
+     */
+    void sample(final long lagMillis)
+        {
+        this.m_lagMillis = lagMillis;
+        final double lagLoad = (double) lagMillis / this.m_maxLagMillis;
+        final double queueLoad = 
+            (double) this.m_queueDepth.get() / this.m_maxQueueDepth;
+        final double writeLoad = 
+            (double) this.m_flowTable.getScheduledWriteBytes() / 
+            this.m_maxWriteBytes;
+        final double load = Math.max(lagLoad, Math.max(queueLoad, writeLoad));
+        this.m_load = load;
+        
+        if (!this.m_overloaded && load >= 1.0)
+            {
+            m_log.warn("Overloaded -- shedding new requests. Lag: {} " +
+                "queue: {} writes: {}", lagMillis, queueLoad, writeLoad);
+            this.m_overloaded = true;
+            }
+        else if (this.m_overloaded && load < RECOVERY_RATIO)
+            {
+            m_log.warn("No longer overloaded after shedding {} requests",
+                this.m_shed.get());
+            this.m_overloaded = false;
+            }
+        }
+
+    /**
+     * Returns whether or not new work should be turned away.
+     * 
+     * @return <code>true</code> if new requests should be rejected.
+     */
+    public boolean shouldShed()
+        {
+        return this.m_overloaded;
+        }
+    
+    /**
+     * Records that we've rejected a request and returns how long the client
+     * should wait before retrying.  The further over our thresholds we are,
+     * the longer we ask clients to wait, plus a random stagger of up to
+     * retryAfterSpreadSeconds that never takes us past the maximum.
+     * 
+     * @return The number of seconds for the Retry-After header.
+     */
+    public int shed()
+        {
+        this.m_shed.incrementAndGet();
+        final int min = this.m_minRetryAfterSeconds;
+        final int max = this.m_maxRetryAfterSeconds;
+        final double excess = Math.min(1.0, Math.max(0.0, this.m_load - 1.0));
+        final int base = min + (int) Math.round(excess * (max - min));
+        
+        // Near the maximum, stagger below the base instead of above it.
+        final int spread = Math.min(this.m_retryAfterSpreadSeconds, max - min);
+        final int low = Math.max(min, Math.min(base, max - spread));
+        if (spread <= 0)
+            {
+            return low;
+            }
+        return low + this.m_random.nextInt(spread + 1);
+        }
+    
+    /**
+     * Called when a message is queued for processing.
+     */
+    public void queued()
+        {
+        this.m_queueDepth.incrementAndGet();
+        }
+    
+    /**
+     * Called when a queued message is taken off the queue.
+     */
+    public void dequeued()
+        {
+        this.m_queueDepth.decrementAndGet();
+        }
+    
+    /**
+     * Accessor for the number of requests we've shed.
+     * 
+     * @return The number of requests we've shed.
+     */
+    public long getShed()
+        {
+        return this.m_shed.get();
+        }
+    
+    /**
+     * Accessor for the current load as a fraction of our thresholds.
+     * 
+     * @return The current load, where 1.0 means at the threshold.
+     */
+    public double getLoad()
+        {
+        return this.m_load;
+        }
+    
+    /**
+     * Accessor for the scheduling lag at the last sample.
+     * 
+     * @return The lag in milliseconds.
+     */
+    public long getLagMillis()
+        {
+        return this.m_lagMillis;
+        }
+    
+    /**
+     * Accessor for the number of messages waiting to be processed.
+     * 
+     * @return The queue depth.
+     */
+    public int getQueueDepth()
+        {
+        return this.m_queueDepth.get();
+        }
+
+    /**
+     * Sets the scheduling lag above which we're overloaded.
+     * 
+     * @param maxLagMillis The lag threshold in milliseconds.
+     */
+    public void setMaxLagMillis(final long maxLagMillis)
+        {
+        this.m_maxLagMillis = maxLagMillis;
+        }
+
+    /**
+     * Sets the number of queued messages above which we're overloaded.
+     * 
+     * @param maxQueueDepth The queue depth threshold.
+     */
+    public void setMaxQueueDepth(final int maxQueueDepth)
+        {
+        this.m_maxQueueDepth = maxQueueDepth;
+        }
+
+    /**
+     * Sets the number of bytes waiting to be written above which we're 
+     * overloaded.
+     * 
+     * @param maxWriteBytes The write buffer threshold in bytes.
+     */
+    public void setMaxWriteBytes(final long maxWriteBytes)
+        {
+        this.m_maxWriteBytes = maxWriteBytes;
+        }
+
+    /**
+     * Sets how often we sample.  Only takes effect before {@link #start()}.
+     * 
+     * @param sampleMillis The sample period in milliseconds.
+     */
+    public void setSampleMillis(final long sampleMillis)
+        {
+        this.m_sampleMillis = sampleMillis;
+        }
+
+    /**
+     * Sets the shortest Retry-After we'll send.
+     * 
+     * @param minRetryAfterSeconds The minimum Retry-After in seconds.
+     */
+    public void setMinRetryAfterSeconds(final int minRetryAfterSeconds)
+        {
+        this.m_minRetryAfterSeconds = minRetryAfterSeconds;
+        }
+
+    /**
+     * Sets the longest Retry-After we'll send.
+     * 
+     * @param maxRetryAfterSeconds The maximum Retry-After in seconds.
+     */
+    public void setMaxRetryAfterSeconds(final int maxRetryAfterSeconds)
+        {
+        this.m_maxRetryAfterSeconds = maxRetryAfterSeconds;
+        }
+
+    /**
+     * Sets how widely we spread the Retry-After values we send at any one
+     * load.
+     * 
+     * @param retryAfterSpreadSeconds The spread in seconds, or 0 to send 
+     * the same Retry-After to everyone.
+     */
+    public void setRetryAfterSpreadSeconds(final int retryAfterSpreadSeconds)
+        {
+        this.m_retryAfterSpreadSeconds = retryAfterSpreadSeconds;
+        }
+    
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName();
+        }
+    }
@@ -0,0 +1,43 @@
+package org.lastbamboo.common.sip.proxy;
+
+/**
+ * MBean for monitoring overload control.
+ */
+public interface OverloadControllerMBean
+    {
+
+    /**
+     * Accessor for the number of requests we've shed.
+     * 
+     * @return The number of requests we've shed.
+     */
+    long getShed();
+    
+    /**
+     * Accessor for the current load as a fraction of our thresholds.
+     * 
+     * @return The current load, where 1.0 means at the threshold.
+     */
+    double getLoad();
+    
+    /**
+     * Accessor for the scheduling lag at the last sample.
+     * 
+     * @return The lag in milliseconds.
+     */
+    long getLagMillis();
+    
+    /**
+     * Accessor for the number of messages waiting to be processed.
+     * 
+     * @return The queue depth.
+     */
+    int getQueueDepth();
+    
+    /**
+     * Returns whether or not we're currently shedding new requests.
+     * 
+     * @return <code>true</code> if we're shedding new requests.
+     */
+    boolean shouldShed();
+    }
@@ -0,0 +1,157 @@
+package org.lastbamboo.common.sip.proxy;
+
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.proxy.PriorityMessageScheduler.Priority;
+import org.lastbamboo.common.sip.proxy.metrics.SipMetrics.Method;
+import org.lastbamboo.common.sip.stack.message.DoubleCrlfKeepAlive;
+import org.lastbamboo.common.sip.stack.message.Invite;
+import org.lastbamboo.common.sip.stack.message.Register;
+import org.lastbamboo.common.sip.stack.message.RequestTimeoutResponse;
+import org.lastbamboo.common.sip.stack.message.SipMessageVisitor;
+import org.lastbamboo.common.sip.stack.message.SipResponse;
+import org.lastbamboo.common.sip.stack.message.UnknownSipRequest;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderNames;
+
+/**
+ * Visitor that classifies each message by priority and hands the real
+ * processing to the scheduler, which runs it on the shared handler.  If 
+ * the scheduler has no room, requests are shed with a 503 right here on 
+ * the I/O thread, and responses and keepalives are dropped.
+ */
+public class PrioritizingMessageVisitor implements SipMessageVisitor
+    {
+
+    private final PriorityMessageScheduler m_scheduler;
+    private final SipProxyMessageHandler m_handler;
+    private final IoSession m_ioSession;
+
+    /**
+     * Creates a new visitor.
+     * 
+     * @param scheduler The scheduler to queue processing on.
+     * @param handler The class that does the processing.
+     * @param session The session the message arrived on.
+     */
+    public PrioritizingMessageVisitor(
+        final PriorityMessageScheduler scheduler, 
+        final SipProxyMessageHandler handler, final IoSession session)
+        {
+        m_scheduler = scheduler;
+        m_handler = handler;
+        m_ioSession = session;
+        }
+
+    public void visitResponse(final SipResponse response)
+        {
+        this.m_scheduler.submit(this.m_ioSession, Priority.RESPONSE, 
+            new Runnable()
+            {
+            public void run()
+                {
+                m_handler.handleResponse(response, m_ioSession);
+                }
+            });
+        }
+
+    public void visitInvite(final Invite invite)
+        {
+        if (this.m_handler.absorbRetransmission(invite, Method.INVITE, 
+            this.m_ioSession))
+            {
+            return;
+            }
+        
+        // A To tag means a re-INVITE in an existing dialog.
+        final Priority priority;
+        if (SipHeaderRewriter.getTopParam(invite, SipHeaderNames.TO, "tag") == 
+            null)
+            {
+            priority = Priority.INVITE;
+            }
+        else
+            {
+            priority = Priority.IN_DIALOG;
+            }
+        final boolean queued = this.m_scheduler.submit(this.m_ioSession, 
+            priority, new Runnable()
+            {
+            public void run()
+                {
+                m_handler.handleInvite(invite, m_ioSession);
+                }
+            });
+        if (!queued)
+            {
+            this.m_handler.shed(invite, Method.INVITE, this.m_ioSession);
+            }
+        }
+
+    public void visitRegister(final Register register)
+        {
+        final boolean queued = this.m_scheduler.submit(this.m_ioSession, 
+            Priority.REGISTER, new Runnable()
+            {
+            public void run()
+                {
+                m_handler.handleRegister(register, m_ioSession);
+                }
+            });
+        if (!queued)
+            {
+            this.m_handler.shed(register, Method.REGISTER, this.m_ioSession);
+            }
+        }
+
+    public void visitDoubleCrlfKeepAlive(final DoubleCrlfKeepAlive keepAlive)
+        {
+        this.m_scheduler.submit(this.m_ioSession, Priority.KEEPALIVE, 
+            new Runnable()
+            {
+            public void run()
+                {
+                m_handler.handleDoubleCrlfKeepAlive(keepAlive, m_ioSession);
+                }
+            });
+        }
+
+    public void visitRequestTimedOut(final RequestTimeoutResponse response)
+        {
+        this.m_scheduler.submit(this.m_ioSession, Priority.RESPONSE, 
+            new Runnable()
+            {
+            public void run()
+                {
+                m_handler.handleRequestTimedOut(response, m_ioSession);
+                }
+            });
+        }
+
+    public void visitUnknownRequest(final UnknownSipRequest request)
+        {
+        // Health checks are answered right here so they never queue.
+        if (this.m_handler.answerOptions(request, this.m_ioSession))
+            {
+            return;
+            }
+        if (this.m_handler.absorbRetransmission(request, Method.OTHER, 
+            this.m_ioSession))
+            {
+            return;
+            }
+        
+        // ACK, BYE, CANCEL and the like.
+        final boolean queued = this.m_scheduler.submit(this.m_ioSession, 
+            Priority.IN_DIALOG, new Runnable()
+            {
+            public void run()
+                {
+                m_handler.handleUnknownRequest(request, m_ioSession);
+                }
+            });
+        if (!queued)
+            {
+            this.m_handler.shed(request, Method.OTHER, this.m_ioSession);
+            }
+        }
+
+    }
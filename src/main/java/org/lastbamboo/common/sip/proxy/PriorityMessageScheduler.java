@@ -0,0 +1,401 @@
+package org.lastbamboo.common.sip.proxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.proxy.metrics.SipMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Processes decoded messages on a pool of worker threads, in weighted 
+ * priority order across sessions.  Each priority class gets turns in 
+ * proportion to its weight, so during a re-REGISTER storm responses and 
+ * in-dialog requests still get most of the processing and call setup 
+ * latency stays flat, while REGISTERs and keepalives still make progress.
+ * When the class whose turn it is has nothing queued, the turn goes to the
+ * highest priority class that does.
+ * <p>
+ * Messages from one session are never reordered or run at the same time.
+ * Each session has its own FIFO mailbox, and it's the mailbox that waits 
+ * in the priority queues, at the priority of the message at its head.  A 
+ * worker runs one message from the mailbox and puts the mailbox back in 
+ * line for the next one, so a CANCEL can't overtake its INVITE and a 200 
+ * can't overtake a 180 from the same connection.
+ * <p>
+ * The number of queued messages is bounded.  Once it's reached, 
+ * {@link #submit(IoSession, Priority, Runnable)} turns messages away so the
+ * caller can shed them.
+ */
+public class PriorityMessageScheduler
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+    
+    private static final String MAILBOX_KEY = "PRIORITY_MAILBOX";
+    
+    /**
+     * The priority classes, highest first, with their weights.
+     */
+    public enum Priority
+        {
+        /**
+         * Responses, which complete work already in progress.
+         */
+        RESPONSE(16),
+        
+        /**
+         * Requests within an existing dialog, including ACK, BYE and CANCEL.
+         */
+        IN_DIALOG(8),
+        
+        /**
+         * New INVITEs.
+         */
+        INVITE(4),
+        
+        /**
+         * REGISTERs.
+         */
+        REGISTER(2),
+        
+        /**
+         * Double CRLF keepalives.
+         */
+        KEEPALIVE(1);
+        
+        private final int m_weight;
+
+        private Priority(final int weight)
+            {
+            m_weight = weight;
+            }
+        
+        /**
+         * Accessor for the share of turns this class gets.
+         * 
+         * @return The weight.
+         */
+        public int getWeight()
+            {
+            return m_weight;
+            }
+        }
+    
+    private final List<Queue<Mailbox>> m_queues;
+    
+    /**
+     * One permit per mailbox waiting in the queues.
+     */
+    private final Semaphore m_available = new Semaphore(0);
+    
+    /**
+     * The order in which classes take turns, spread out so no class waits
+     * for a long run of another's turns.
+     */
+    private final Priority[] m_schedule;
+    
+    private final AtomicInteger m_turn = new AtomicInteger(0);
+    
+    private final AtomicInteger m_queued = new AtomicInteger(0);
+    
+    private final AtomicLong m_rejected = new AtomicLong(0);
+    
+    private final LogThrottle m_fullWarnings = new LogThrottle(1000);
+    
+    private volatile int m_maxQueued = 50000;
+    
+    private final OverloadController m_overloadController;
+    
+    private final SipMetrics m_metrics;
+    
+    private final int m_numWorkers;
+    
+    private final List<Thread> m_workers = new ArrayList<Thread>();
+
+    /**
+     * Creates a new scheduler.
+     * 
+     * @param overloadController The controller we report our queue depth to.
+     * @param metrics The metrics we record queue waits in.
+     * @param numWorkers The number of worker threads.
+     */
+    public PriorityMessageScheduler(
+        final OverloadController overloadController, final SipMetrics metrics,
+        final int numWorkers)
+        {
+        this.m_overloadController = overloadController;
+        this.m_metrics = metrics;
+        this.m_numWorkers = numWorkers;
+        final Priority[] priorities = Priority.values();
+        this.m_queues = new ArrayList<Queue<Mailbox>>(priorities.length);
+        for (int i = 0; i < priorities.length; i++)
+            {
+            this.m_queues.add(new ConcurrentLinkedQueue<Mailbox>());
+            }
+        this.m_schedule = createSchedule(priorities);
+        }
+    
+    /**
+     * Sets the most messages we'll hold across all sessions.  This should
+     * be well above the overload controller's queue threshold, so we only
+     * turn messages away here when shedding new requests isn't keeping up.
+     * 
+     * @param maxQueued The most messages to queue.
+     */
+    public void setMaxQueued(final int maxQueued)
+        {
+        this.m_maxQueued = maxQueued;
+        }
+    
+    /**
+     * Builds the turn order using smooth weighted round robin, which 
+     * interleaves the classes rather than giving each its turns in a run.
+     */
+    private static Priority[] createSchedule(final Priority[] priorities)
+        {
+        int total = 0;
+        for (final Priority p : priorities)
+            {
+            total += p.getWeight();
+            }
+        final Priority[] schedule = new Priority[total];
+        final int[] current = new int[priorities.length];
+        for (int turn = 0; turn < total; turn++)
+            {
+            int best = 0;
+            for (int i = 0; i < priorities.length; i++)
+                {
+                current[i] += priorities[i].getWeight();
+                if (current[i] > current[best])
+                    {
+                    best = i;
+                    }
+                }
+            current[best] -= total;
+            schedule[turn] = priorities[best];
+            }
+        return schedule;
+        }
+    
+    /**
+     * Starts the worker threads.
+     */
+    public void start()
+        {
+        for (int i = 0; i < this.m_numWorkers; i++)
+            {
+            final Runnable runner = new Runnable()
+                {
+                public void run()
+                    {
+                    work();
+                    }
+                };
+            final Thread worker = 
+                new Thread(runner, "SIP-Message-Worker-" + i);
+            worker.setDaemon(true);
+            this.m_workers.add(worker);
+            worker.start();
+            }
+        }
+    
+    /**
+     * Stops the worker threads.  Queued messages are dropped.
+     */
+    public void stop()
+        {
+        for (final Thread worker : this.m_workers)
+            {
+            worker.interrupt();
+            }
+        }
+    
+    /**
+     * Queues processing of a message behind any other messages from the 
+     * same session.
+     * 
+     * @param session The session the message arrived on.
+     * @param priority The priority class of the message.
+     * @param task The processing to do.
+     * @return <code>true</code> if the message was queued, or 
+     * <code>false</code> if the queue is full and the caller should shed 
+     * the message.
+     */
+    public boolean submit(final IoSession session, final Priority priority, 
+        final Runnable task)
+        {
+        if (this.m_queued.incrementAndGet() > this.m_maxQueued)
+            {
+            this.m_queued.decrementAndGet();
+            this.m_rejected.incrementAndGet();
+            final long suppressed = this.m_fullWarnings.acquire();
+            if (suppressed >= 0)
+                {
+                m_log.warn("Message queue full -- shedding {} message, {} " +
+                    "more suppressed", priority, suppressed);
+                }
+            return false;
+            }
+        final Mailbox mailbox = getMailbox(session);
+        mailbox.m_tasks.add(new QueuedTask(priority, task));
+        this.m_overloadController.queued();
+        if (mailbox.m_scheduled.compareAndSet(false, true))
+            {
+            enqueue(mailbox);
+            }
+        return true;
+        }
+    
+    private static Mailbox getMailbox(final IoSession session)
+        {
+        synchronized (session)
+            {
+            Mailbox mailbox = (Mailbox) session.getAttribute(MAILBOX_KEY);
+            if (mailbox == null)
+                {
+                mailbox = new Mailbox();
+                session.setAttribute(MAILBOX_KEY, mailbox);
+                }
+            return mailbox;
+            }
+        }
+    
+    /**
+     * Puts a mailbox we own in line at the priority of its first message,
+     * or gives up ownership if it's empty.  It can be empty even when the 
+     * caller just added a message, since a worker that owned the mailbox 
+     * until a moment ago may have run that message already.
+     */
+    private void enqueue(final Mailbox mailbox)
+        {
+        while (true)
+            {
+            final QueuedTask head = mailbox.m_tasks.peek();
+            if (head != null)
+                {
+                this.m_queues.get(head.m_priority.ordinal()).add(mailbox);
+                this.m_available.release();
+                return;
+                }
+            mailbox.m_scheduled.set(false);
+            
+            // A message may have arrived after we checked, and its submit 
+            // saw the flag still set.
+            if (mailbox.m_tasks.isEmpty() || 
+                !mailbox.m_scheduled.compareAndSet(false, true))
+                {
+                return;
+                }
+            }
+        }
+    
+    /**
+     * Accessor for the number of messages we've turned away because the
+     * queue was full.
+     * 
+     * @return The number of messages turned away.
+     */
+    public long getRejected()
+        {
+        return this.m_rejected.get();
+        }
+    
+    private void work()
+        {
+        while (true)
+            {
+            try
+                {
+                this.m_available.acquire();
+                }
+            catch (final InterruptedException e)
+                {
+                m_log.debug("Worker interrupted -- stopping");
+                return;
+                }
+            final Mailbox mailbox = next();
+            
+            // We own the mailbox until we clear its scheduled flag, so it 
+            // has a message and nobody else is running one from it.
+            final QueuedTask task = mailbox.m_tasks.poll();
+            this.m_queued.decrementAndGet();
+            this.m_overloadController.dequeued();
+            this.m_metrics.getQueueWaitLatency().recordSince(task.m_queuedAt);
+            try
+                {
+                task.m_task.run();
+                }
+            catch (final Throwable t)
+                {
+                m_log.error("Error processing message", t);
+                }
+            enqueue(mailbox);
+            }
+        }
+
+    /**
+     * Takes the next mailbox.  We hold a permit, so there's a mailbox in 
+     * one of the queues, although another worker may be racing us for it.
+     */
+    private Mailbox next()
+        {
+        final int turn = (this.m_turn.getAndIncrement() & Integer.MAX_VALUE) % 
+            this.m_schedule.length;
+        final Mailbox scheduled = 
+            this.m_queues.get(this.m_schedule[turn].ordinal()).poll();
+        if (scheduled != null)
+            {
+            return scheduled;
+            }
+        while (true)
+            {
+            for (final Queue<Mailbox> queue : this.m_queues)
+                {
+                final Mailbox mailbox = queue.poll();
+                if (mailbox != null)
+                    {
+                    return mailbox;
+                    }
+                }
+            }
+        }
+    
+    /**
+     * The messages waiting from one session, in the order they arrived.
+     * The scheduled flag is set while the mailbox is in a priority queue 
+     * or a worker is running one of its messages.
+     */
+    private static final class Mailbox
+        {
+        private final Queue<QueuedTask> m_tasks = 
+            new ConcurrentLinkedQueue<QueuedTask>();
+        private final AtomicBoolean m_scheduled = new AtomicBoolean(false);
+        }
+    
+    private static final class QueuedTask
+        {
+        private final Priority m_priority;
+        private final Runnable m_task;
+        private final long m_queuedAt = System.nanoTime();
+        
+        private QueuedTask(final Priority priority, final Runnable task)
+            {
+            m_priority = priority;
+            m_task = task;
+            }
+        }
+    
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName();
+        }
+    }
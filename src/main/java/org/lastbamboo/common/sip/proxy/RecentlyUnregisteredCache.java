@@ -0,0 +1,129 @@
+package org.lastbamboo.common.sip.proxy;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers users who were registered with us until recently, so an INVITE
+ * for a user who just went offline can get a 480 Temporarily Unavailable
+ * while one for a user we've never seen gets a 404.  The cache holds at
+ * most a fixed number of users, dropping the oldest unregistrations first,
+ * and forgets users once they've been gone for the maximum age.
+ */
+public class RecentlyUnregisteredCache implements RegistrationListener
+    {
+
+    private final int m_maxSize;
+
+    private final long m_maxAgeMillis;
+
+    /**
+     * Unregistration times by URI, in the order users unregistered.
+     */
+    private final Map<URI, Long> m_unregistered;
+
+    /**
+     * Creates a new cache holding up to 100,000 users for up to an hour.
+     */
+    public RecentlyUnregisteredCache()
+        {
+        this(100000, 60 * 60 * 1000);
+        }
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxSize The most users to remember.
+     * @param maxAgeMillis How long to remember a user after they
+     * unregister.
+     */
+    public RecentlyUnregisteredCache(final int maxSize,
+        final long maxAgeMillis)
+        {
+        if (maxSize <= 0 || maxAgeMillis <= 0)
+            {
+            throw new IllegalArgumentException("Bad size or age: " +
+                maxSize + ", " + maxAgeMillis);
+            }
+        this.m_maxSize = maxSize;
+        this.m_maxAgeMillis = maxAgeMillis;
+        this.m_unregistered = new LinkedHashMap<URI, Long>(
+            Math.min(maxSize, 1024), 0.75f, false)
+            {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                final Map.Entry<URI, Long> eldest)
+                {
+                return size() > m_maxSize;
+                }
+            };
+        }
+
+    public void onRegistered(final URI uri)
+        {
+        synchronized (this.m_unregistered)
+            {
+            this.m_unregistered.remove(uri);
+            }
+        }
+
+    public void onUnregistered(final URI uri)
+        {
+        final Long now = Long.valueOf(System.currentTimeMillis());
+        synchronized (this.m_unregistered)
+            {
+            // Remove first so the user moves to the back of the line.
+            this.m_unregistered.remove(uri);
+            this.m_unregistered.put(uri, now);
+            }
+        }
+
+    /**
+     * Returns whether the specified user unregistered within the maximum
+     * age.
+     *
+     * @param uri The URI of the user.
+     * @return <code>true</code> if the user was registered recently,
+     * otherwise <code>false</code>.
+     */
+    public boolean wasRecentlyRegistered(final URI uri)
+        {
+        synchronized (this.m_unregistered)
+            {
+            final Long unregistered = this.m_unregistered.get(uri);
+            if (unregistered == null)
+                {
+                return false;
+                }
+            if (System.currentTimeMillis() - unregistered.longValue() >
+                this.m_maxAgeMillis)
+                {
+                this.m_unregistered.remove(uri);
+                return false;
+                }
+            return true;
+            }
+        }
+
+    /**
+     * Accessor for the number of users we're remembering.
+     *
+     * @return The number of users in the cache.
+     */
+    public int size()
+        {
+        synchronized (this.m_unregistered)
+            {
+            return this.m_unregistered.size();
+            }
+        }
+
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName();
+        }
+    }
@@ -0,0 +1,223 @@
+package org.lastbamboo.common.sip.proxy;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.proxy.metrics.StripedCounter;
+
+/**
+ * The registrations for one domain, with their own quota on how many
+ * users can be registered at once and how fast the domain can send
+ * REGISTERs.  A domain that hits either limit only has its own REGISTERs
+ * turned away, and its registrations live in their own map, so it can't
+ * slow lookups for anyone else.
+ */
+public class RegistrarPartition implements RegistrarPartitionMBean
+    {
+
+    private final String m_domain;
+
+    private final ConcurrentMap<URI, IoSession> m_registrations =
+        new ConcurrentHashMap<URI, IoSession>();
+
+    private final AtomicInteger m_size = new AtomicInteger(0);
+
+    private volatile int m_maxRegistered;
+
+    private volatile int m_registersPerSecond;
+
+    private double m_tokens;
+
+    private long m_lastRefill = System.nanoTime();
+
+    private final StripedCounter m_accepted = new StripedCounter();
+
+    private final AtomicLong m_quotaRejections = new AtomicLong(0);
+
+    private final AtomicLong m_rateRejections = new AtomicLong(0);
+
+    /**
+     * Creates a new partition.
+     *
+     * @param domain The domain, in lower case.
+     * @param maxRegistered The most users the domain can have registered
+     * at once.
+     * @param registersPerSecond How many REGISTERs a second the domain can
+     * send, or 0 for no limit.  The domain can send up to a second's worth
+     * in a burst.
+     */
+    public RegistrarPartition(final String domain, final int maxRegistered,
+        final int registersPerSecond)
+        {
+        this.m_domain = domain;
+        this.m_maxRegistered = maxRegistered;
+        this.m_registersPerSecond = registersPerSecond;
+        this.m_tokens = registersPerSecond;
+        }
+
+    /**
+     * Takes one REGISTER out of the domain's rate budget.
+     *
+     * @return <code>true</code> if the REGISTER is within the budget, or
+     * <code>false</code> if it should be turned away.
+     */
+    public boolean acquireRegister()
+        {
+        final int rate = this.m_registersPerSecond;
+        if (rate <= 0)
+            {
+            return true;
+            }
+        synchronized (this)
+            {
+            final long now = System.nanoTime();
+            final double elapsed = (double) (now - this.m_lastRefill) /
+                TimeUnit.SECONDS.toNanos(1);
+            this.m_lastRefill = now;
+            this.m_tokens = Math.min(rate, this.m_tokens + elapsed * rate);
+            if (this.m_tokens >= 1.0)
+                {
+                this.m_tokens -= 1.0;
+                return true;
+                }
+            }
+        this.m_rateRejections.incrementAndGet();
+        return false;
+        }
+
+    /**
+     * Registers a user on a session, replacing any session the user was
+     * registered on before.
+     *
+     * @param uri The user's address-of-record.
+     * @param session The session.
+     * @return <code>true</code> if the user is now registered, or
+     * <code>false</code> if the user is new and the domain is at its quota.
+     */
+    public boolean register(final URI uri, final IoSession session)
+        {
+        if (this.m_registrations.replace(uri, session) != null)
+            {
+            this.m_accepted.increment();
+            return true;
+            }
+        while (true)
+            {
+            final int size = this.m_size.get();
+            if (size >= this.m_maxRegistered)
+                {
+                this.m_quotaRejections.incrementAndGet();
+                return false;
+                }
+            if (this.m_size.compareAndSet(size, size + 1))
+                {
+                break;
+                }
+            }
+        if (this.m_registrations.put(uri, session) != null)
+            {
+            // Somebody else registered the same user at the same time.
+            this.m_size.decrementAndGet();
+            }
+        this.m_accepted.increment();
+        return true;
+        }
+
+    /**
+     * Unregisters a user, if the user is still registered on the specified
+     * session.
+     *
+     * @param uri The user's address-of-record.
+     * @param session The session the user registered on.
+     * @return <code>true</code> if we removed the registration.
+     */
+    public boolean unregister(final URI uri, final IoSession session)
+        {
+        if (this.m_registrations.remove(uri, session))
+            {
+            this.m_size.decrementAndGet();
+            return true;
+            }
+        return false;
+        }
+
+    /**
+     * Accessor for the session a user is registered on.
+     *
+     * @param uri The user's address-of-record.
+     * @return The session, or <code>null</code> if the user isn't
+     * registered.
+     */
+    public IoSession getIoSession(final URI uri)
+        {
+        return this.m_registrations.get(uri);
+        }
+
+    /**
+     * Accessor for the users registered in the domain.
+     *
+     * @return The users' addresses-of-record.
+     */
+    public Collection<URI> getUris()
+        {
+        return this.m_registrations.keySet();
+        }
+
+    public String getDomain()
+        {
+        return this.m_domain;
+        }
+
+    public int getRegistered()
+        {
+        return this.m_size.get();
+        }
+
+    public int getMaxRegistered()
+        {
+        return this.m_maxRegistered;
+        }
+
+    public void setMaxRegistered(final int maxRegistered)
+        {
+        this.m_maxRegistered = maxRegistered;
+        }
+
+    public int getRegistersPerSecond()
+        {
+        return this.m_registersPerSecond;
+        }
+
+    public void setRegistersPerSecond(final int registersPerSecond)
+        {
+        this.m_registersPerSecond = registersPerSecond;
+        }
+
+    public long getRegistersAccepted()
+        {
+        return this.m_accepted.sum();
+        }
+
+    public long getQuotaRejections()
+        {
+        return this.m_quotaRejections.get();
+        }
+
+    public long getRateRejections()
+        {
+        return this.m_rateRejections.get();
+        }
+
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName() + " for " + this.m_domain + " with " +
+            this.m_size.get() + "/" + this.m_maxRegistered;
+        }
+    }
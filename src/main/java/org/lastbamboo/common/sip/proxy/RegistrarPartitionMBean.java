@@ -0,0 +1,74 @@
+package org.lastbamboo.common.sip.proxy;
+
+/**
+ * MBean for monitoring and tuning one domain's share of the registrar.
+ */
+public interface RegistrarPartitionMBean
+    {
+
+    /**
+     * Accessor for the domain this partition holds registrations for.
+     *
+     * @return The domain.
+     */
+    String getDomain();
+
+    /**
+     * Accessor for the number of users registered in the domain.
+     *
+     * @return The number of registrations.
+     */
+    int getRegistered();
+
+    /**
+     * Accessor for the most users the domain can have registered at once.
+     *
+     * @return The quota.
+     */
+    int getMaxRegistered();
+
+    /**
+     * Sets the most users the domain can have registered at once.  Users
+     * already registered stay registered if the quota drops below them.
+     *
+     * @param maxRegistered The quota.
+     */
+    void setMaxRegistered(int maxRegistered);
+
+    /**
+     * Accessor for how many REGISTERs a second the domain can send.
+     *
+     * @return The rate, or 0 if there's no limit.
+     */
+    int getRegistersPerSecond();
+
+    /**
+     * Sets how many REGISTERs a second the domain can send.
+     *
+     * @param registersPerSecond The rate, or 0 for no limit.
+     */
+    void setRegistersPerSecond(int registersPerSecond);
+
+    /**
+     * Accessor for the number of REGISTERs we've accepted for the domain.
+     *
+     * @return The number of REGISTERs accepted.
+     */
+    long getRegistersAccepted();
+
+    /**
+     * Accessor for the number of REGISTERs we've turned away because the
+     * domain was at its quota.
+     *
+     * @return The number of REGISTERs over quota.
+     */
+    long getQuotaRejections();
+
+    /**
+     * Accessor for the number of REGISTERs we've turned away because the
+     * domain was sending them too fast.
+     *
+     * @return The number of REGISTERs over the rate.
+     */
+    long getRateRejections();
+    }
@@ -0,0 +1,184 @@
+package org.lastbamboo.common.sip.proxy;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.openmbean.ArrayType;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+
+/**
+ * Registrations and unregistrations over one reporting period.  Recording
+ * an event is a counter increment and a couple of map puts, so the
+ * registrar can record every event however fast clients churn, and only
+ * the summary of the whole period is ever published.  The sets of users
+ * and sources stop growing at a fixed size, so a storm can't make a
+ * period's summary arbitrarily large.
+ */
+final class RegistrationChurn
+    {
+
+    private static final int MAX_TRACKED = 100000;
+
+    private static final String[] ITEMS =
+        {
+        "registers", "unregisters", "uniqueAors", "topSources",
+        "startMillis", "periodMillis",
+        };
+
+    private static final String[] DESCRIPTIONS =
+        {
+        "Registrations", "Unregistrations", "Distinct users",
+        "The busiest sources as address=count", "Start of the period",
+        "Length of the period in milliseconds",
+        };
+
+    /**
+     * The open type of a summary, so any JMX client can read one without
+     * our classes.
+     */
+    static final CompositeType SUMMARY_TYPE = createSummaryType();
+
+    private final long m_startMillis = System.currentTimeMillis();
+
+    private final AtomicInteger m_registers = new AtomicInteger(0);
+
+    private final AtomicInteger m_unregisters = new AtomicInteger(0);
+
+    private final Map<URI, Boolean> m_aors =
+        new ConcurrentHashMap<URI, Boolean>();
+
+    private final Map<String, AtomicInteger> m_sources =
+        new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * Records an event.
+     *
+     * @param uri The user who registered or unregistered.
+     * @param source The address of the client, or <code>null</code> if we
+     * don't know it.
+     * @param registered Whether the user registered or unregistered.
+     */
+    void record(final URI uri, final String source, final boolean registered)
+        {
+        if (registered)
+            {
+            this.m_registers.incrementAndGet();
+            }
+        else
+            {
+            this.m_unregisters.incrementAndGet();
+            }
+        if (this.m_aors.size() < MAX_TRACKED)
+            {
+            this.m_aors.put(uri, Boolean.TRUE);
+            }
+        if (source == null)
+            {
+            return;
+            }
+        final AtomicInteger count = this.m_sources.get(source);
+        if (count != null)
+            {
+            count.incrementAndGet();
+            }
+        else if (this.m_sources.size() < MAX_TRACKED)
+            {
+            // Two threads may both create the counter and one count is
+            // lost, which doesn't matter for a summary.
+            this.m_sources.put(source, new AtomicInteger(1));
+            }
+        }
+
+    /**
+     * Accessor for whether anything happened in the period.
+     *
+     * @return <code>true</code> if there were no events.
+     */
+    boolean isEmpty()
+        {
+        return this.m_registers.get() == 0 && this.m_unregisters.get() == 0;
+        }
+
+    /**
+     * Summarizes the period.
+     *
+     * @param topSources How many of the busiest sources to include.
+     * @return The summary of type {@link #SUMMARY_TYPE}, with the number
+     * of registrations under
+     * "registers", unregistrations under "unregisters", distinct users
+     * under "uniqueAors", the busiest sources as "address=count" strings
+     * under "topSources", and the start and length of the period under
+     * "startMillis" and "periodMillis".
+     */
+    CompositeData summarize(final int topSources)
+        {
+        final List<Map.Entry<String, AtomicInteger>> sources =
+            new ArrayList<Map.Entry<String, AtomicInteger>>(
+                this.m_sources.entrySet());
+        Collections.sort(sources,
+            new Comparator<Map.Entry<String, AtomicInteger>>()
+            {
+            public int compare(final Map.Entry<String, AtomicInteger> e1,
+                final Map.Entry<String, AtomicInteger> e2)
+                {
+                return e2.getValue().get() - e1.getValue().get();
+                }
+            });
+        final int top = Math.min(topSources, sources.size());
+        final String[] topStrings = new String[top];
+        for (int i = 0; i < top; i++)
+            {
+            final Map.Entry<String, AtomicInteger> source = sources.get(i);
+            topStrings[i] = source.getKey() + "=" + source.getValue().get();
+            }
+
+        final Object[] values =
+            {
+            Integer.valueOf(this.m_registers.get()),
+            Integer.valueOf(this.m_unregisters.get()),
+            Integer.valueOf(this.m_aors.size()),
+            topStrings,
+            Long.valueOf(this.m_startMillis),
+            Long.valueOf(System.currentTimeMillis() - this.m_startMillis),
+            };
+        try
+            {
+            return new CompositeDataSupport(SUMMARY_TYPE, ITEMS, values);
+            }
+        catch (final OpenDataException e)
+            {
+            throw new IllegalStateException("Bad summary?", e);
+            }
+        }
+
+    private static CompositeType createSummaryType()
+        {
+        try
+            {
+            final OpenType<?>[] types =
+                {
+                SimpleType.INTEGER, SimpleType.INTEGER, SimpleType.INTEGER,
+                new ArrayType<String[]>(1, SimpleType.STRING),
+                SimpleType.LONG, SimpleType.LONG,
+                };
+            return new CompositeType("RegistrationChurn",
+                "Registrations and unregistrations over one period", ITEMS,
+                DESCRIPTIONS, types);
+            }
+        catch (final OpenDataException e)
+            {
+            throw new IllegalStateException("Bad summary type?", e);
+            }
+        }
+    }
@@ -0,0 +1,297 @@
+package org.lastbamboo.common.sip.proxy;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.proxy.transport.UnknownMethodResponseFilter;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactory;
+import org.lastbamboo.common.sip.stack.message.SipResponse;
+import org.lastbamboo.common.sip.stack.message.header.SipHeader;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderNames;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Recognizes retransmitted requests so we don't forward every copy.  We
+ * remember the last response we relayed for each request by the sent-by 
+ * and branch of the caller's Via and the request's method, as in RFC 3261
+ * section 17.2.3.  A retransmission of a request we have a response for
+ * gets that response again.  That's all the transaction state we keep --
+ * there are no timers and no SipTransaction objects.
+ * <p>
+ * A request is only remembered once a response for it comes back, so a 
+ * retransmission before then, or of a request we answered ourselves, goes
+ * through again like the original.  A stateless proxy can forward the 
+ * same request twice, and our own answers don't depend on earlier copies.
+ * <p>
+ * Entries expire after the maximum age, and each of the stripes holds at
+ * most its share of the maximum size, dropping the oldest requests first.
+ * Requests from clients that don't use RFC 3261 branches are never
+ * matched.
+ */
+public class RetransmissionCache
+    {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(RetransmissionCache.class);
+
+    private static final String MAGIC_COOKIE = "z9hG4bK";
+
+    private static final int STRIPES = 16;
+
+    private final long m_maxAgeMillis;
+
+    private final SipMessageFactory m_messageFactory;
+
+    private final List<Map<String, CachedResponse>> m_stripes;
+
+    /**
+     * Creates a new cache holding up to 100,000 requests for 32 seconds,
+     * the time an INVITE client transaction waits for a response.
+     *
+     * @param messageFactory The factory for stripping our Via from
+     * responses we replay.
+     */
+    public RetransmissionCache(final SipMessageFactory messageFactory)
+        {
+        this(messageFactory, 100000, 32 * 1000);
+        }
+
+    /**
+     * Creates a new cache.
+     *
+     * @param messageFactory The factory for stripping our Via from
+     * responses we replay.
+     * @param maxSize The most requests to remember.
+     * @param maxAgeMillis How long to remember a request.
+     */
+    public RetransmissionCache(final SipMessageFactory messageFactory,
+        final int maxSize, final long maxAgeMillis)
+        {
+        if (maxSize <= 0 || maxAgeMillis <= 0)
+            {
+            throw new IllegalArgumentException("Bad size or age: " +
+                maxSize + ", " + maxAgeMillis);
+            }
+        this.m_messageFactory = messageFactory;
+        this.m_maxAgeMillis = maxAgeMillis;
+        final int stripeSize = Math.max(1, maxSize / STRIPES);
+        this.m_stripes = new ArrayList<Map<String, CachedResponse>>(STRIPES);
+        for (int i = 0; i < STRIPES; i++)
+            {
+            this.m_stripes.add(new LinkedHashMap<String, CachedResponse>(
+                Math.min(stripeSize, 1024), 0.75f, false)
+                {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(
+                    final Map.Entry<String, CachedResponse> eldest)
+                    {
+                    return size() > stripeSize;
+                    }
+                });
+            }
+        }
+
+    /**
+     * Checks whether a request is a retransmission of one we've already
+     * relayed a response for, and if so writes that response to the 
+     * session the request arrived on.
+     *
+     * @param request The request.
+     * @param session The session the request arrived on.
+     * @return <code>true</code> if we answered the retransmission and the
+     * request should go no further.
+     */
+    public boolean absorb(final SipMessage request, final IoSession session)
+        {
+        final String method = OptionsResponder.getMethod(request);
+        if ("ACK".equals(method))
+            {
+            // There's nothing to replay, and ACKs for 2xx responses are
+            // end to end.
+            return false;
+            }
+        final String key = key(request, 0, method);
+        if (key == null)
+            {
+            return false;
+            }
+        final long now = System.currentTimeMillis();
+        final Map<String, CachedResponse> stripe = stripe(key);
+        final SipResponse response;
+        final ByteBuffer body;
+        synchronized (stripe)
+            {
+            final CachedResponse entry = stripe.get(key);
+            if (entry == null)
+                {
+                return false;
+                }
+            if (now - entry.m_created > this.m_maxAgeMillis)
+                {
+                stripe.remove(key);
+                return false;
+                }
+            response = entry.m_response;
+            body = entry.m_body;
+            }
+        LOG.debug("Replaying {} for retransmission", 
+            response.getStatusCode());
+        replay(response, body, session);
+        return true;
+        }
+
+    /**
+     * Remembers a response we've relayed for a request.  A provisional 
+     * response doesn't replace a final one.
+     *
+     * @param response The response as it arrived, with our Via on top.
+     */
+    public void onResponse(final SipResponse response)
+        {
+        final String key = key(response, 1, getResponseMethod(response));
+        if (key == null)
+            {
+            return;
+            }
+        final Map<String, CachedResponse> stripe = stripe(key);
+        final ByteBuffer body = response.getBody();
+        synchronized (stripe)
+            {
+            CachedResponse entry = stripe.get(key);
+            if (entry == null)
+                {
+                entry = new CachedResponse(System.currentTimeMillis());
+                stripe.put(key, entry);
+                }
+            else if (entry.m_response.getStatusCode() >= 200 &&
+                response.getStatusCode() < 200)
+                {
+                return;
+                }
+            entry.m_response = response;
+
+            // Our own copy of the body's position, since encoding the
+            // response moves it.
+            entry.m_body = body == null ? null : body.duplicate();
+            }
+        }
+
+    /**
+     * Accessor for the number of requests we're remembering.
+     *
+     * @return The number of requests in the cache.
+     */
+    public int size()
+        {
+        int size = 0;
+        for (final Map<String, CachedResponse> stripe : this.m_stripes)
+            {
+            synchronized (stripe)
+                {
+                size += stripe.size();
+                }
+            }
+        return size;
+        }
+
+    private void replay(final SipResponse response, final ByteBuffer body,
+        final IoSession session)
+        {
+        final SipResponse copy;
+        if (body == null)
+            {
+            copy = new SipResponse(response.getStatusCode(),
+                response.getReasonPhrase(), response.getHeaders());
+            }
+        else
+            {
+            copy = new SipResponse(response.getStatusCode(),
+                response.getReasonPhrase(), response.getHeaders(),
+                body.duplicate());
+            }
+        session.write(this.m_messageFactory.stripVia(copy));
+        }
+
+    private Map<String, CachedResponse> stripe(final String key)
+        {
+        return this.m_stripes.get((key.hashCode() & 0x7fffffff) % STRIPES);
+        }
+
+    /**
+     * Creates the key for the request a message belongs to from the Via
+     * value at the specified index and the method.
+     */
+    private static String key(final SipMessage message, final int viaIndex,
+        final String method)
+        {
+        if (method == null)
+            {
+            return null;
+            }
+        final SipHeader via = message.getHeader(SipHeaderNames.VIA);
+        if (via == null)
+            {
+            return null;
+            }
+        final List<SipHeaderValue> values = via.getValues();
+        if (values.size() <= viaIndex)
+            {
+            return null;
+            }
+        final SipHeaderValue value = values.get(viaIndex);
+        final String branch = value.getParamValue("branch");
+        if (branch == null || !branch.startsWith(MAGIC_COOKIE))
+            {
+            return null;
+            }
+        return value.getBaseValue() + ' ' + branch + ' ' + method;
+        }
+
+    /**
+     * Accessor for the method of the request a response answers, which for
+     * methods the stack doesn't know is kept aside by
+     * {@link UnknownMethodResponseFilter}.
+     */
+    private static String getResponseMethod(final SipResponse response)
+        {
+        final SipHeader original =
+            response.getHeader(UnknownMethodResponseFilter.ORIGINAL_CSEQ);
+        if (original == null)
+            {
+            return OptionsResponder.getMethod(response);
+            }
+        final String cseq = original.getValue().getBaseValue().trim();
+        final int space = cseq.indexOf(' ');
+        return space == -1 ? null : cseq.substring(space + 1).trim();
+        }
+
+    /**
+     * The response we last relayed for a request.
+     */
+    private static final class CachedResponse
+        {
+        private final long m_created;
+        private SipResponse m_response;
+        private ByteBuffer m_body;
+
+        private CachedResponse(final long created)
+            {
+            this.m_created = created;
+            }
+        }
+
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName();
+        }
+    }
@@ -0,0 +1,169 @@
+package org.lastbamboo.common.sip.proxy;
+
+import java.util.List;
+import java.util.Map;
+
+import org.lastbamboo.common.sip.stack.message.Invite;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.header.SipHeader;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderNames;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderValue;
+
+/**
+ * Makes the small header edits the proxy needs on messages it's about to 
+ * forward, such as tagging its own Via with a parameter.  Messages only 
+ * hand out copies of their headers, so edits return a rebuilt message 
+ * sharing the original's start line and body.
+ */
+public class SipHeaderRewriter
+    {
+
+    private final SipHeaderFactory m_headerFactory;
+
+    /**
+     * Creates a new rewriter.
+     * 
+     * @param headerFactory The factory for creating replacement headers.
+     */
+    public SipHeaderRewriter(final SipHeaderFactory headerFactory)
+        {
+        this.m_headerFactory = headerFactory;
+        }
+    
+    /**
+     * Adds a parameter to the topmost Via value of the specified INVITE, 
+     * replacing any the sender put there.
+     * 
+     * @param invite The INVITE to modify.
+     * @param name The parameter name.
+     * @param value The parameter value.
+     * @return The INVITE with the parameter added.
+     */
+    public Invite addTopViaParam(final Invite invite, final String name, 
+        final String value)
+        {
+        final SipHeader via = invite.getHeader(SipHeaderNames.VIA);
+        if (via == null || via.getValues().isEmpty())
+            {
+            return invite;
+            }
+        final List<SipHeaderValue> values = via.getValues();
+        final StringBuilder sb = new StringBuilder(128);
+        render(values.get(0), sb, name);
+        sb.append(';');
+        sb.append(name);
+        sb.append('=');
+        sb.append(value);
+        for (int i = 1; i < values.size(); i++)
+            {
+            sb.append(',');
+            render(values.get(i), sb);
+            }
+        return setHeader(invite, SipHeaderNames.VIA, sb.toString());
+        }
+    
+    /**
+     * Sets the header with the specified name, replacing any existing 
+     * header with that name.
+     * 
+     * @param invite The INVITE to modify.
+     * @param name The header name.
+     * @param value The full header value.
+     * @return The INVITE with the header set.
+     */
+    public Invite setHeader(final Invite invite, final String name, 
+        final String value)
+        {
+        final Map<String, SipHeader> headers = invite.getHeaders();
+        headers.put(name, this.m_headerFactory.createHeader(name, value));
+        return new Invite(invite.getStartLine(), headers, invite.getBody());
+        }
+    
+    /**
+     * Removes the header with the specified name.
+     * 
+     * @param invite The INVITE to modify.
+     * @param name The header name.
+     * @return The INVITE without the header.
+     */
+    public Invite removeHeader(final Invite invite, final String name)
+        {
+        final Map<String, SipHeader> headers = invite.getHeaders();
+        headers.remove(name);
+        return new Invite(invite.getStartLine(), headers, invite.getBody());
+        }
+    
+    /**
+     * Accessor for a parameter of the topmost value of a header.
+     * 
+     * @param message The message.
+     * @param headerName The name of the header.
+     * @param paramName The name of the parameter.
+     * @return The parameter value, or <code>null</code> if there's no such
+     * header or parameter.
+     */
+    public static String getTopParam(final SipMessage message, 
+        final String headerName, final String paramName)
+        {
+        final SipHeader header = message.getHeader(headerName);
+        if (header == null)
+            {
+            return null;
+            }
+        final List<SipHeaderValue> values = header.getValues();
+        if (values.isEmpty())
+            {
+            return null;
+            }
+        return values.get(0).getParams().get(paramName);
+        }
+    
+    /**
+     * Renders a header value as it would appear on the wire.
+     * 
+     * @param value The header value.
+     * @param sb The builder to render into.
+     */
+    public static void render(final SipHeaderValue value, 
+        final StringBuilder sb)
+        {
+        render(value, sb, null);
+        }
+    
+    /**
+     * Renders a header value as it would appear on the wire, leaving out 
+     * one parameter, typically because we're about to add our own.
+     * 
+     * @param value The header value.
+     * @param sb The builder to render into.
+     * @param without The name of the parameter to leave out.
+     */
+    public static void render(final SipHeaderValue value, 
+        final StringBuilder sb, final String without)
+        {
+        sb.append(value.getBaseValue());
+        final Map<String, String> params = value.getParams();
+        for (final Map.Entry<String, String> param : params.entrySet())
+            {
+            if (param.getKey().equalsIgnoreCase(without))
+                {
+                continue;
+                }
+            sb.append(';');
+            sb.append(param.getKey());
+            final String paramValue = param.getValue();
+            if (paramValue != null && paramValue.length() > 0)
+                {
+                sb.append('=');
+                sb.append(paramValue);
+                }
+            }
+        }
+    
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName();
+        }
+    }
@@ -2,6 +2,7 @@ package org.lastbamboo.common.sip.proxy;
 
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -13,15 +14,20 @@ import org.littleshoot.mina.common.IoServiceConfig;
 import org.littleshoot.mina.common.IoServiceListener;
 import org.littleshoot.mina.common.IoSession;
 import org.littleshoot.mina.filter.codec.ProtocolCodecFactory;
+import org.lastbamboo.common.sip.proxy.auth.DigestAuthenticator;
+import org.lastbamboo.common.sip.proxy.metrics.SipMetrics;
+import org.lastbamboo.common.sip.proxy.transport.CompactSipCodecFactory;
+import org.lastbamboo.common.sip.proxy.transport.MinaSipServerTransportFactory;
+import org.lastbamboo.common.sip.proxy.transport.SipListenerConfig;
+import org.lastbamboo.common.sip.proxy.transport.SipServerTransport;
+import org.lastbamboo.common.sip.proxy.transport.SipServerTransportFactory;
 import org.lastbamboo.common.sip.stack.codec.SipIoHandler;
-import org.lastbamboo.common.sip.stack.codec.SipProtocolCodecFactory;
 import org.lastbamboo.common.sip.stack.message.SipMessageFactory;
 import org.lastbamboo.common.sip.stack.message.SipMessageVisitorFactory;
 import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
 import org.lastbamboo.common.sip.stack.transport.SipTcpTransportLayer;
 import org.littleshoot.util.JmxUtils;
 import org.littleshoot.util.RuntimeIoException;
-import org.littleshoot.util.mina.MinaTcpServer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,10 +49,28 @@ public class SipProxyImpl implements SipProxy, IoServiceListener,
 
     private final SipHeaderFactory m_sipHeaderFactory;
 
-    private final MinaTcpServer m_minaServer;
+    private final SipServerTransport m_serverTransport;
 
     private final AtomicBoolean m_serviceActivated = new AtomicBoolean(false);
 
+    private final SipListenerConfig m_listenerConfig;
+    
+    /**
+     * The port we actually bound to, which differs from the configured port
+     * when the configuration asks for an ephemeral port.
+     */
+    private volatile int m_boundPort = -1;
+    
+    private final IdleSessionReaper m_reaper;
+    
+    private final FlowTable m_flowTable;
+    
+    private final OverloadController m_overloadController;
+    
+    private final PriorityMessageScheduler m_scheduler;
+    
+    private final SipMetrics m_metrics;
+
     /**
      * Creates a new SIP server.
      * 
@@ -64,29 +88,143 @@ public class SipProxyImpl implements SipProxy, IoServiceListener,
         final SipMessageFactory sipMessageFactory,
         final SipTcpTransportLayer transportLayer)
         {
+        this(forwarder, registrar, sipHeaderFactory, sipMessageFactory, 
+            transportLayer, new FlowTable());
+        }
+    
+    private SipProxyImpl(
+        final SipRequestAndResponseForwarder forwarder,
+        final SipRegistrar registrar,
+        final SipHeaderFactory sipHeaderFactory,
+        final SipMessageFactory sipMessageFactory,
+        final SipTcpTransportLayer transportLayer,
+        final FlowTable flowTable)
+        {
+        this(forwarder, registrar, sipHeaderFactory, sipMessageFactory, 
+            transportLayer, new MinaSipServerTransportFactory(), 
+            new SipListenerConfig(), flowTable, 
+            new OverloadController(flowTable), null, new SipMetrics());
+        }
+    
+    /**
+     * Creates a new SIP server running on the specified network backend.
+     * 
+     * @param forwarder The class that forwards messages.
+     * @param registrar The class that tracks registered clients.
+     * @param sipHeaderFactory The class for creating SIP headers.
+     * @param sipMessageFactory The class for creating SIP messages.
+     * @param transportLayer The class that writes messages to the network,
+     * modifying them as appropriate prior to transport.
+     * @param serverTransportFactory The factory for the backend that accepts
+     * and reads client connections.
+     * @param listenerConfig The addresses, ports and socket options to listen
+     * with.
+     * @param flowTable The table of flow tokens for client connections, 
+     * shared with the forwarder.
+     * @param overloadController The class that decides when to turn away
+     * new requests.
+     * @param scheduler The scheduler to process messages on in priority 
+     * order, or <code>null</code> to process them on the I/O threads in 
+     * arrival order.
+     * @param metrics The counters and latencies to record and publish over
+     * JMX.
+     */
+    public SipProxyImpl(
+        final SipRequestAndResponseForwarder forwarder,
+        final SipRegistrar registrar,
+        final SipHeaderFactory sipHeaderFactory,
+        final SipMessageFactory sipMessageFactory,
+        final SipTcpTransportLayer transportLayer,
+        final SipServerTransportFactory serverTransportFactory,
+        final SipListenerConfig listenerConfig,
+        final FlowTable flowTable,
+        final OverloadController overloadController,
+        final PriorityMessageScheduler scheduler,
+        final SipMetrics metrics)
+        {
+        this(forwarder, registrar, sipHeaderFactory, sipMessageFactory,
+            transportLayer, serverTransportFactory, listenerConfig, flowTable,
+            overloadController, scheduler, metrics, null);
+        }
+    
+    /**
+     * Creates a new SIP server running on the specified network backend.
+     * 
+     * @param forwarder The class that forwards messages.
+     * @param registrar The class that tracks registered clients.
+     * @param sipHeaderFactory The class for creating SIP headers.
+     * @param sipMessageFactory The class for creating SIP messages.
+     * @param transportLayer The class that writes messages to the network,
+     * modifying them as appropriate prior to transport.
+     * @param serverTransportFactory The factory for the backend that accepts
+     * and reads client connections.
+     * @param listenerConfig The addresses, ports and socket options to listen
+     * with.
+     * @param flowTable The table of flow tokens for client connections, 
+     * shared with the forwarder.
+     * @param overloadController The class that decides when to turn away
+     * new requests.
+     * @param scheduler The scheduler to process messages on in priority 
+     * order, or <code>null</code> to process them on the I/O threads in 
+     * arrival order.
+     * @param metrics The counters and latencies to record and publish over
+     * JMX.
+     * @param authenticator The class that checks the credentials on
+     * requests, or <code>null</code> to let anyone in.
+     */
+    public SipProxyImpl(
+        final SipRequestAndResponseForwarder forwarder,
+        final SipRegistrar registrar,
+        final SipHeaderFactory sipHeaderFactory,
+        final SipMessageFactory sipMessageFactory,
+        final SipTcpTransportLayer transportLayer,
+        final SipServerTransportFactory serverTransportFactory,
+        final SipListenerConfig listenerConfig,
+        final FlowTable flowTable,
+        final OverloadController overloadController,
+        final PriorityMessageScheduler scheduler,
+        final SipMetrics metrics,
+        final DigestAuthenticator authenticator)
+        {
         m_forwarder = forwarder;
         m_registrar = registrar;
         m_sipHeaderFactory = sipHeaderFactory;
         m_sipMessageFactory = sipMessageFactory;
         m_transportLayer = transportLayer;
+        m_listenerConfig = listenerConfig;
+        m_flowTable = flowTable;
+        m_overloadController = overloadController;
+        m_scheduler = scheduler;
+        m_metrics = metrics;
 
-        m_log.debug("Starting server on: " + SipConstants.SIP_PORT);
+        m_log.debug("Starting server on: {}", listenerConfig);
+        m_reaper = new IdleSessionReaper(listenerConfig.getIdleTimeoutMillis(),
+            listenerConfig.getIdleTickMillis());
         
         final ProtocolCodecFactory codecFactory = 
-            new SipProtocolCodecFactory(m_sipHeaderFactory);
+            new CompactSipCodecFactory(m_sipHeaderFactory);
         
         final SipMessageVisitorFactory visitorFactory = 
             new SipProxyMessageVisitorFactory(m_forwarder, m_registrar, 
-                m_sipMessageFactory);
+                m_sipMessageFactory, m_reaper, m_flowTable, 
+                new SipHeaderRewriter(m_sipHeaderFactory), 
+                m_overloadController, new LocalResponseWriter(), m_scheduler,
+                m_metrics, authenticator);
         final IoHandler handler = new SipIoHandler(visitorFactory);
-        this.m_minaServer = new MinaTcpServer(codecFactory, this, handler, 
-            "SIP-Proxy");
+        this.m_serverTransport = 
+            serverTransportFactory.newTransport(codecFactory, this, handler);
         }
 
     public void start() throws IOException
         {
-        m_log.debug("Starting MINA server...");
-        this.m_minaServer.start(SipConstants.SIP_PORT);
+        m_log.debug("Starting {} server...", this.m_serverTransport.getName());
+        this.m_reaper.start();
+        this.m_overloadController.start();
+        if (this.m_scheduler != null)
+            {
+            this.m_scheduler.start();
+            }
+        this.m_serverTransport.start(this.m_listenerConfig);
         
         // Wait for the server to really start.
         synchronized (this.m_serviceActivated)
@@ -116,19 +254,26 @@ public class SipProxyImpl implements SipProxy, IoServiceListener,
         
         // Start this last because otherwise we might be seen as "online"
         // prematurely.
-        //startJmxServer();
+        startJmxServer();
         }
 
     public void sessionCreated(final IoSession session)
         {
         this.m_transportLayer.addConnection(session);
+        if (this.m_flowTable.add(session) == -1)
+            {
+            m_log.warn("Flow table full -- no token for: {}", session);
+            }
+        this.m_reaper.touch(session);
         }
 
     public void sessionDestroyed(final IoSession session)
         {
         m_log.debug("Session was destroyed: {}", session);
+        this.m_reaper.remove(session);
         this.m_registrar.sessionClosed(session);
         this.m_transportLayer.removeConnection(session);
+        this.m_flowTable.remove(session);
         }
 
     public void serviceActivated(final IoService service, 
@@ -136,6 +281,10 @@ public class SipProxyImpl implements SipProxy, IoServiceListener,
         final IoServiceConfig config)
         {
         m_log.debug("Service activated on: {}", serviceAddress);
+        if (serviceAddress instanceof InetSocketAddress)
+            {
+            this.m_boundPort = ((InetSocketAddress) serviceAddress).getPort();
+            }
         this.m_serviceActivated.set(true);
         synchronized (this.m_serviceActivated)
             {
@@ -147,7 +296,7 @@ public class SipProxyImpl implements SipProxy, IoServiceListener,
         final SocketAddress serviceAddress, final IoHandler handler, 
         final IoServiceConfig config)
         {
-        m_log.debug("Service deactivated on: "+serviceAddress);
+        m_log.debug("Service deactivated on: {}", serviceAddress);
         }
     
 
@@ -158,11 +307,18 @@ public class SipProxyImpl implements SipProxy, IoServiceListener,
         final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
         JmxUtils.register(mbs, this.m_registrar);
         JmxUtils.register(mbs, this);
+        JmxUtils.register(mbs, this.m_metrics);
+        JmxUtils.register(mbs, this.m_metrics.getTracer());
+        JmxUtils.register(mbs, this.m_overloadController);
         }
     
     public int getSipPort()
         {
-        return SipConstants.SIP_PORT;
+        if (this.m_boundPort == -1)
+            {
+            return this.m_listenerConfig.getPort();
+            }
+        return this.m_boundPort;
         }
     
     @Override
@@ -0,0 +1,390 @@
+package org.lastbamboo.common.sip.proxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.proxy.auth.DigestAuthenticator;
+import org.lastbamboo.common.sip.proxy.metrics.PipelineTracer;
+import org.lastbamboo.common.sip.proxy.metrics.PipelineTracer.Stage;
+import org.lastbamboo.common.sip.proxy.metrics.SipMetrics;
+import org.lastbamboo.common.sip.proxy.metrics.SipMetrics.Method;
+import org.lastbamboo.common.sip.proxy.metrics.SipMetrics.Outcome;
+import org.lastbamboo.common.sip.stack.message.DoubleCrlfKeepAlive;
+import org.lastbamboo.common.sip.stack.message.Invite;
+import org.lastbamboo.common.sip.stack.message.Register;
+import org.lastbamboo.common.sip.stack.message.RequestTimeoutResponse;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactory;
+import org.lastbamboo.common.sip.stack.message.SipResponse;
+import org.lastbamboo.common.sip.stack.message.UnknownSipRequest;
+import org.lastbamboo.common.sip.stack.message.header.SipHeader;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderNames;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Processes messages read by the proxy.  A single instance is shared by 
+ * every connection, so it holds no per-connection state and each method 
+ * takes the session the message arrived on.
+ */
+public class SipProxyMessageHandler
+    {
+    
+    private static final Logger LOG = 
+        LoggerFactory.getLogger(SipProxyMessageHandler.class);
+    private final SipRequestAndResponseForwarder m_forwarder;
+    private final SipRegistrar m_registrar;
+    private final SipMessageFactory m_messageFactory;
+    private final IdleSessionReaper m_reaper;
+    private final FlowTable m_flowTable;
+    private final SipHeaderRewriter m_rewriter;
+    private final OverloadController m_overloadController;
+    private final LocalResponseWriter m_responseWriter;
+    private final OptionsResponder m_optionsResponder;
+    private final RetransmissionCache m_retransmissions;
+    private final SipMetrics m_metrics;
+    private final LogThrottle m_malformedWarnings = new LogThrottle(1000);
+    private final LogThrottle m_timeoutWarnings = new LogThrottle(1000);
+    private final DigestAuthenticator m_authenticator;
+    
+    /**
+     * Creates a new handler.
+     * 
+     * @param forwarder The class that forwards messages to other clients.
+     * @param registrar The SIP registrar.
+     * @param messageFactory The factory for creating new messages and adding
+     * and removing Via header values.
+     * @param reaper The class that tracks session activity and answers
+     * keepalives.
+     * @param flowTable The table of flow tokens for client connections.
+     * @param rewriter The class for tagging forwarded messages.
+     * @param overloadController The class that decides when to turn away
+     * new requests.
+     * @param responseWriter The class for writing responses we generate 
+     * ourselves.
+     * @param metrics The counters and latencies to record.
+     * @param authenticator The class that checks the credentials on
+     * requests, or <code>null</code> to let anyone in.
+     */
+    public SipProxyMessageHandler(
+        final SipRequestAndResponseForwarder forwarder,
+        final SipRegistrar registrar,
+        final SipMessageFactory messageFactory, 
+        final IdleSessionReaper reaper, final FlowTable flowTable,
+        final SipHeaderRewriter rewriter, 
+        final OverloadController overloadController,
+        final LocalResponseWriter responseWriter, final SipMetrics metrics,
+        final DigestAuthenticator authenticator)
+        {
+        m_forwarder = forwarder;
+        m_registrar = registrar;
+        m_messageFactory = messageFactory;
+        m_reaper = reaper;
+        m_flowTable = flowTable;
+        m_rewriter = rewriter;
+        m_overloadController = overloadController;
+        m_responseWriter = responseWriter;
+        m_optionsResponder = new OptionsResponder(responseWriter);
+        m_retransmissions = new RetransmissionCache(messageFactory);
+        m_metrics = metrics;
+        m_authenticator = authenticator;
+        }
+
+    /**
+     * Forwards a response.
+     * 
+     * @param response The response.
+     * @param session The session the response arrived on.
+     */
+    public void handleResponse(final SipResponse response, 
+        final IoSession session)
+        {
+        // We know these are OKs to INVITEs because the server will never 
+        // visit REGISTER OKs.
+        this.m_metrics.count(Method.RESPONSE, Outcome.RECEIVED);
+        this.m_reaper.touch(session);
+        
+        try
+            {
+            // Only responses that verified are any good for answering 
+            // retransmissions.
+            if (this.m_forwarder.forwardSipResponse(response))
+                {
+                this.m_retransmissions.onResponse(response);
+                this.m_metrics.count(Method.RESPONSE, Outcome.FORWARDED);
+                }
+            else
+                {
+                this.m_metrics.count(Method.RESPONSE, Outcome.FAILED);
+                }
+            }
+        catch (final IOException e)
+            {
+            this.m_metrics.count(Method.RESPONSE, Outcome.FAILED);
+            LOG.error("Could not process response", e);
+            }
+        }
+
+    /**
+     * Forwards an INVITE, or rejects it if we're overloaded.
+     * 
+     * @param invite The INVITE.
+     * @param session The session the INVITE arrived on.
+     */
+    public void handleInvite(final Invite invite, final IoSession session)
+        {
+        final long start = System.nanoTime();
+        final PipelineTracer tracer = this.m_metrics.getTracer();
+        final long traceStart = tracer.start();
+        this.m_metrics.count(Method.INVITE, Outcome.RECEIVED);
+        this.m_reaper.touch(session);
+        
+        final SipHeader via = invite.getHeader(SipHeaderNames.VIA);
+        if (via == null)
+            {
+            final long suppressed = this.m_malformedWarnings.acquire();
+            if (suppressed >= 0)
+                {
+                LOG.warn("No Via header in INVITE from {}, {} more suppressed", 
+                    session.getRemoteAddress(), suppressed);
+                }
+            this.m_metrics.count(Method.INVITE, Outcome.FAILED);
+            this.m_responseWriter.write(session, invite, 400, 
+                "Missing Via Header");
+            return;
+            }
+        
+        // Only new calls are shed -- re-INVITEs in an existing dialog have 
+        // a To tag and keep flowing.  Anyone can make up a To tag, though,
+        // so every INVITE is authenticated.
+        final boolean newCall = 
+            SipHeaderRewriter.getTopParam(invite, SipHeaderNames.TO, "tag") == 
+                null;
+        if (newCall && this.m_overloadController.shouldShed())
+            {
+            rejectOverloaded(invite, Method.INVITE, session);
+            return;
+            }
+        if (!authenticate(invite, Method.INVITE, session))
+            {
+            return;
+            }
+        
+        final InetSocketAddress remoteSocketAddress = 
+            (InetSocketAddress) session.getRemoteAddress();
+        
+        Invite inviteToForward;
+        final long createStart = tracer.start();
+        try
+            {
+            inviteToForward = this.m_messageFactory.createInviteToForward(
+                remoteSocketAddress, invite);
+            tracer.end(Stage.CREATE_INVITE_TO_FORWARD, invite, createStart);
+            }
+        catch (final IOException e)
+            {
+            // TODO Remove the connection??
+            LOG.warn("Could not create INVITE to forward..");
+            this.m_metrics.count(Method.INVITE, Outcome.FAILED);
+            return;
+            }  
+        if (inviteToForward == null)
+            {
+            this.m_metrics.count(Method.INVITE, Outcome.FAILED);
+            return;
+            }
+        
+        // Tag the caller's Via with its flow token so responses can go 
+        // straight back to this session.  The transport layer adds our own
+        // Via on top when it writes the INVITE.  The token is signed for
+        // the Via's branch, so it's only good for this transaction.
+        final String token = this.m_flowTable.sign(session, 
+            SipHeaderRewriter.getTopParam(inviteToForward, SipHeaderNames.VIA,
+                "branch"));
+        if (token != null)
+            {
+            inviteToForward = this.m_rewriter.addTopViaParam(
+                inviteToForward, FlowTable.FLOW_TOKEN_PARAM, token);
+            }
+        
+        this.m_forwarder.forwardSipRequest(inviteToForward);
+        this.m_metrics.count(Method.INVITE, Outcome.FORWARDED);
+        this.m_metrics.getInviteForwardLatency().recordSince(start);
+        tracer.end(Stage.VISIT_INVITE, invite, traceStart);
+        }
+
+    /**
+     * Passes a REGISTER to the registrar, or rejects it if we're 
+     * overloaded.
+     * 
+     * @param register The REGISTER.
+     * @param session The session the REGISTER arrived on.
+     */
+    public void handleRegister(final Register register, 
+        final IoSession session)
+        {
+        this.m_metrics.count(Method.REGISTER, Outcome.RECEIVED);
+        this.m_reaper.touch(session);
+        
+        if (this.m_overloadController.shouldShed())
+            {
+            rejectOverloaded(register, Method.REGISTER, session);
+            return;
+            }
+        if (!authenticate(register, Method.REGISTER, session))
+            {
+            return;
+            }
+        
+        this.m_registrar.handleRegister(register, session);
+        }
+    
+    private boolean authenticate(final SipMessage request, 
+        final Method method, final IoSession session)
+        {
+        if (this.m_authenticator == null || 
+            this.m_authenticator.authenticate(request, session, 
+                this.m_responseWriter))
+            {
+            return true;
+            }
+        this.m_metrics.count(method, Outcome.REJECTED);
+        return false;
+        }
+    
+    /**
+     * Turns away a request there was no room to queue.  Anything but an
+     * ACK gets a 503, so the client backs off rather than retransmitting.
+     * 
+     * @param request The request.
+     * @param method The kind of request, for counting.
+     * @param session The session the request arrived on.
+     */
+    public void shed(final SipMessage request, final Method method, 
+        final IoSession session)
+        {
+        if ("ACK".equals(OptionsResponder.getMethod(request)))
+            {
+            this.m_metrics.count(method, Outcome.REJECTED);
+            return;
+            }
+        rejectOverloaded(request, method, session);
+        }
+    
+    private void rejectOverloaded(final SipMessage request, 
+        final Method method, final IoSession session)
+        {
+        this.m_metrics.count(method, Outcome.REJECTED);
+        final int retryAfter = this.m_overloadController.shed();
+        this.m_responseWriter.write(session, request, 503, 
+            "Service Unavailable", "Retry-After: " + retryAfter);
+        }
+    
+    /**
+     * Answers a double CRLF keepalive.
+     * 
+     * @param keepAlive The keepalive.
+     * @param session The session the keepalive arrived on.
+     */
+    public void handleDoubleCrlfKeepAlive(final DoubleCrlfKeepAlive keepAlive,
+        final IoSession session)
+        {
+        this.m_metrics.count(Method.KEEPALIVE, Outcome.RECEIVED);
+        LOG.debug("Visiting double CRLF from: {}", session.getRemoteAddress());
+        
+        // The ping keeps the session off the reaper's list, and the single
+        // CRLF pong tells the client the flow is still alive, as in 
+        // RFC 5626 section 4.4.1.
+        this.m_reaper.touch(session);
+        this.m_reaper.pong(session);
+        }
+    
+    /**
+     * Handles a request timing out.
+     * 
+     * @param response The timeout.
+     * @param session The session the timed out request was for.
+     */
+    public void handleRequestTimedOut(final RequestTimeoutResponse response,
+        final IoSession session)
+        {
+        this.m_reaper.touch(session);
+        final long suppressed = this.m_timeoutWarnings.acquire();
+        if (suppressed >= 0)
+            {
+            LOG.warn("Received request timed out on the proxy: {}, {} more " +
+                "suppressed", response, suppressed);
+            }
+        }
+    
+    /**
+     * Checks whether a request is a retransmission of one we've already
+     * relayed a response for, in which case we send that response again 
+     * and the request goes no further.  This is cheap enough to run on the
+     * I/O thread before the request is queued.
+     * 
+     * @param request The request.
+     * @param method The kind of request, for counting.
+     * @param session The session the request arrived on.
+     * @return <code>true</code> if the request was a retransmission.
+     */
+    public boolean absorbRetransmission(final SipMessage request, 
+        final Method method, final IoSession session)
+        {
+        if (!this.m_retransmissions.absorb(request, session))
+            {
+            return false;
+            }
+        this.m_metrics.count(method, Outcome.RECEIVED);
+        this.m_metrics.count(method, Outcome.ABSORBED);
+        this.m_reaper.touch(session);
+        return true;
+        }
+    
+    /**
+     * Answers the request if it's an OPTIONS for the proxy itself.
+     * 
+     * @param request The request.
+     * @param session The session the request arrived on.
+     * @return <code>true</code> if we answered the request, otherwise
+     * <code>false</code>.
+     */
+    public boolean answerOptions(final UnknownSipRequest request,
+        final IoSession session)
+        {
+        if (!this.m_optionsResponder.answer(request, session))
+            {
+            return false;
+            }
+        this.m_metrics.count(Method.OTHER, Outcome.RECEIVED);
+        this.m_reaper.touch(session);
+        return true;
+        }
+    
+    /**
+     * Forwards a request of a method we don't otherwise process, such as a
+     * BYE.  The visitor has already answered any OPTIONS for us.  Requests
+     * like BYE and MESSAGE need the same credentials as an INVITE, but ACK
+     * and CANCEL can't be challenged, as in RFC 3261 section 22.1.  They 
+     * go to the same place as the INVITE they belong to, which was itself
+     * authenticated.
+     * 
+     * @param request The request.
+     * @param session The session the request arrived on.
+     */
+    public void handleUnknownRequest(final UnknownSipRequest request,
+        final IoSession session)
+        {
+        this.m_metrics.count(Method.OTHER, Outcome.RECEIVED);
+        this.m_reaper.touch(session);
+        final String method = OptionsResponder.getMethod(request);
+        if (!"ACK".equals(method) && !"CANCEL".equals(method) &&
+            !authenticate(request, Method.OTHER, session))
+            {
+            return;
+            }
+        this.m_forwarder.forwardSipRequest(request, session);
+        }
+
+    }
@@ -1,6 +1,8 @@
 package org.lastbamboo.common.sip.proxy;
 
 import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.proxy.auth.DigestAuthenticator;
+import org.lastbamboo.common.sip.proxy.metrics.SipMetrics;
 import org.lastbamboo.common.sip.stack.message.SipMessageFactory;
 import org.lastbamboo.common.sip.stack.message.SipMessageVisitor;
 import org.lastbamboo.common.sip.stack.message.SipMessageVisitorFactory;
@@ -12,9 +14,8 @@ import org.lastbamboo.common.sip.stack.message.SipMessageVisitorFactory;
 public class SipProxyMessageVisitorFactory implements SipMessageVisitorFactory
     {
     
-    private final SipRequestAndResponseForwarder m_forwarder;
-    private final SipRegistrar m_registrar;
-    private final SipMessageFactory m_messageFactory;
+    private final SipProxyMessageHandler m_handler;
+    private final PriorityMessageScheduler m_scheduler;
 
     /**
      * Creates a new factory.
@@ -22,21 +23,47 @@ public class SipProxyMessageVisitorFactory implements SipMessageVisitorFactory
      * @param forwarder The class that forwards messages to their destinations.
      * @param registrar The class that keeps track of registered clients.
      * @param messageFactory The factory for creating SIP messages.
+     * @param reaper The class that tracks session activity and answers
+     * keepalives.
+     * @param flowTable The table of flow tokens for client connections.
+     * @param rewriter The class for tagging forwarded messages.
+     * @param overloadController The class that decides when to turn away
+     * new requests.
+     * @param responseWriter The class for writing responses we generate 
+     * ourselves.
+     * @param scheduler The scheduler to process messages on in priority 
+     * order, or <code>null</code> to process them on the I/O thread as they
+     * arrive.
+     * @param metrics The counters and latencies to record.
+     * @param authenticator The class that checks the credentials on
+     * requests, or <code>null</code> to let anyone in.
      */
     public SipProxyMessageVisitorFactory(
         final SipRequestAndResponseForwarder forwarder,
         final SipRegistrar registrar,
-        final SipMessageFactory messageFactory)
+        final SipMessageFactory messageFactory,
+        final IdleSessionReaper reaper, final FlowTable flowTable,
+        final SipHeaderRewriter rewriter, 
+        final OverloadController overloadController,
+        final LocalResponseWriter responseWriter,
+        final PriorityMessageScheduler scheduler, final SipMetrics metrics,
+        final DigestAuthenticator authenticator)
         {
-        m_forwarder = forwarder;
-        m_registrar = registrar;
-        m_messageFactory = messageFactory;
+        m_handler = new SipProxyMessageHandler(forwarder, registrar, 
+            messageFactory, reaper, flowTable, rewriter, overloadController,
+            responseWriter, metrics, authenticator);
+        m_scheduler = scheduler;
         }
 
     public SipMessageVisitor createVisitor(final IoSession session)
         {
-        return new SipProxyMessageVisitor(m_forwarder, m_registrar, 
-            m_messageFactory, session);
+        // This is called for every message, so keep it to one small 
+        // allocation with all the real state in the shared handler.
+        if (m_scheduler == null)
+            {
+            return new SipProxyMessageVisitor(m_handler, session);
+            }
+        return new PrioritizingMessageVisitor(m_scheduler, m_handler, session);
         }
 
     }
@@ -60,5 +60,21 @@ public interface SipRegistrar
      * @return The registered URIs.
      */
     Collection<URI> getRegistered();
+    
+    /**
+     * Determines whether or not a domain has been given its own partition,
+     * which means we're the registrar for it.
+     * 
+     * @param domain The domain.
+     * @return <code>true</code> if we host the domain.
+     */
+    boolean hostsDomain(String domain);
+    
+    /**
+     * Accessor for the domains we're the registrar for.
+     * 
+     * @return The domains, in lower case.
+     */
+    Collection<String> getHostedDomains();
 
     }
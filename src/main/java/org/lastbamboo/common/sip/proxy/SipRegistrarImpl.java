@@ -1,38 +1,98 @@
 package org.lastbamboo.common.sip.proxy;
 
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.URI;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+import javax.management.JMException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanNotificationInfo;
+import javax.management.Notification;
 import javax.management.NotificationBroadcasterSupport;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 
 import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.proxy.metrics.PipelineTracer.Stage;
+import org.lastbamboo.common.sip.proxy.metrics.SipMetrics;
+import org.lastbamboo.common.sip.proxy.metrics.SipMetrics.Method;
+import org.lastbamboo.common.sip.proxy.metrics.SipMetrics.Outcome;
 import org.lastbamboo.common.sip.stack.message.Register;
 import org.lastbamboo.common.sip.stack.message.SipMessageFactory;
 import org.lastbamboo.common.sip.stack.message.SipMessageUtils;
 import org.lastbamboo.common.sip.stack.message.SipResponse;
 import org.lastbamboo.common.sip.stack.message.header.SipHeader;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderImpl;
 import org.lastbamboo.common.sip.stack.message.header.SipHeaderNames;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderValue;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderValueImpl;
 import org.lastbamboo.common.sip.stack.transport.SipTcpTransportLayer;
-import org.littleshoot.util.MapUtils;
+import org.littleshoot.util.JmxUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Registrar for SIP clients.
- * 
- * TODO: Also create a map of reader/writers to SIP URIs for more efficient
- * removals??
+ * <p>
+ * Registration churn is published over JMX as one {@link #CHURN} 
+ * notification per reporting period summarizing the registrations and 
+ * unregistrations in it, never one per event, so monitoring costs the same
+ * however fast clients come and go.  Nothing is summarized while nobody 
+ * listens for notifications.
+ * <p>
+ * Each 200 OK grants a registration a little shorter than the client asked
+ * for, by a random amount of up to expiresJitterSeconds.  Clients that all
+ * registered at once after an outage then refresh at different times, and
+ * since each refresh is jittered again they drift further apart until the
+ * refreshes arrive at a steady rate.
+ * <p>
+ * Registrations are partitioned by domain, each {@link RegistrarPartition}
+ * with its own quota and REGISTER rate, so one busy domain can't crowd out
+ * the others.  Only the domains we host, which are the ones with a 
+ * configured partition, get partitions of their own.  Any other domain 
+ * shares one with the default limits, so clients can't make us create 
+ * partitions by registering in made-up domains.  Each session remembers 
+ * the user registered on it, so closing it goes straight to the 
+ * registration to remove.  When a user moves to a new session, the old 
+ * session forgets the user, so closing it is nothing out of the ordinary.
  */
 public class SipRegistrarImpl extends NotificationBroadcasterSupport 
     implements SipRegistrar, SipRegistrarImplMBean
     {
 
+    /**
+     * The type of the notifications summarizing registration churn.  The
+     * user data is the summary as {@link CompositeData}, as described in 
+     * {@link RegistrationChurn#summarize(int)}.
+     */
+    public static final String CHURN = "sip.registrar.churn";
+    
+    private static final int TOP_SOURCES = 5;
+    
     private final Logger m_log = 
         LoggerFactory.getLogger(SipRegistrarImpl.class);
     
@@ -40,8 +100,31 @@ public class SipRegistrarImpl extends NotificationBroadcasterSupport
 
     private final SipTcpTransportLayer m_transportLayer;
     
-    private final Map<URI, IoSession> m_registrations = 
-        new ConcurrentHashMap<URI, IoSession>();
+    /**
+     * The partition shared by the domains we don't host.
+     */
+    private static final String OTHER_DOMAINS = "*";
+    
+    private static final String AOR = "SIP_REGISTRAR_AOR";
+    
+    /**
+     * The longest we ask clients of a domain that's over its REGISTER rate
+     * to wait before trying again.
+     */
+    private static final int RATE_RETRY_AFTER_SECONDS = 10;
+    
+    private final ConcurrentMap<String, RegistrarPartition> m_partitions = 
+        new ConcurrentHashMap<String, RegistrarPartition>();
+    
+    private final Set<String> m_hostedDomains = Collections.newSetFromMap(
+        new ConcurrentHashMap<String, Boolean>());
+    
+    private final AtomicInteger m_size = new AtomicInteger(0);
+    
+    private final LocalResponseWriter m_responseWriter = 
+        new LocalResponseWriter();
+    
+    private final LogThrottle m_unknownCloseWarnings = new LogThrottle(1000);
 
     private final Collection<RegistrationListener> m_registrationListeners =
         new LinkedList<RegistrationListener>();
@@ -49,7 +132,58 @@ public class SipRegistrarImpl extends NotificationBroadcasterSupport
     /**
      * Keep track of the maximum number of registrations we've seen.
      */
-    private int m_maxSize = 0;
+    private final AtomicInteger m_maxSize = new AtomicInteger(0);
+    
+    private final SipMetrics m_metrics;
+    
+    private final AtomicReference<RegistrationChurn> m_churn = 
+        new AtomicReference<RegistrationChurn>();
+    
+    private final Object m_reportLock = new Object();
+    
+    /**
+     * The listeners for notifications, so we know when the last one goes.
+     * Guarded by m_reportLock.
+     */
+    private final List<NotificationListener> m_notificationListeners = 
+        new LinkedList<NotificationListener>();
+    
+    /**
+     * The task publishing churn while anyone is listening.  Guarded by 
+     * m_reportLock.
+     */
+    private ScheduledFuture<?> m_reportTask;
+    
+    private final AtomicLong m_sequence = new AtomicLong(0);
+    
+    private volatile long m_churnReportMillis = 1000;
+    
+    /**
+     * The registration time RFC 3261 says to assume when the client doesn't
+     * ask for one.
+     */
+    private static final int DEFAULT_EXPIRES = 3600;
+    
+    private volatile int m_expiresJitterSeconds = 1800;
+    
+    private volatile int m_minExpiresSeconds = 60;
+    
+    private final Random m_random = new Random();
+    
+    private volatile int m_defaultMaxRegistered = 1000000;
+    
+    private volatile int m_defaultRegistersPerSecond = 0;
+    
+    private final ScheduledExecutorService m_scheduler = 
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+            public Thread newThread(final Runnable r)
+                {
+                final Thread t = new Thread(r, "SIP-Registrar-Churn");
+                t.setDaemon(true);
+                return t;
+                }
+            });
     
     /**
      * Creates a new registrar.
@@ -61,74 +195,512 @@ public class SipRegistrarImpl extends NotificationBroadcasterSupport
     public SipRegistrarImpl(final SipMessageFactory factory, 
         final SipTcpTransportLayer transportLayer)
         {
+        this(factory, transportLayer, new SipMetrics());
+        }
+    
+    /**
+     * Creates a new registrar.
+     * 
+     * @param factory The factory for creating messages for responding to
+     * register requests.
+     * @param transportLayer The transport layer for actually sending data.
+     * @param metrics The metrics to record REGISTER latencies in.
+     */
+    public SipRegistrarImpl(final SipMessageFactory factory, 
+        final SipTcpTransportLayer transportLayer, final SipMetrics metrics)
+        {
         this.m_messageFactory = factory;
         this.m_transportLayer = transportLayer;
+        this.m_metrics = metrics;
         }
 
     public void handleRegister(final Register register, final IoSession session)
         {
+        final long start = System.nanoTime();
+        final long traceStart = this.m_metrics.getTracer().start();
         m_log.debug("Processing registration...");
         
         // We also need to add a mapping according to the URI.
         final SipHeader fromHeader = register.getHeader(SipHeaderNames.FROM);
         final URI uri = SipMessageUtils.extractUri(fromHeader);
-        if (this.m_registrations.containsKey(uri))
+        final RegistrarPartition partition = findPartition(uri);
+        if (!partition.acquireRegister())
+            {
+            this.m_metrics.count(Method.REGISTER, Outcome.REJECTED);
+            this.m_responseWriter.write(session, register, 503, 
+                "Service Unavailable", 
+                "Retry-After: " + 
+                (1 + this.m_random.nextInt(RATE_RETRY_AFTER_SECONDS)));
+            return;
+            }
+        final IoSession existingSession = partition.getIoSession(uri);
+        
+        // A refresh on the same connection is routine, so only close the 
+        // old connection if the client has moved to a new one.
+        if (existingSession != null && existingSession != session)
             {
-            final IoSession existingSession = this.m_registrations.get(uri);
-            m_log.warn("We already have a registration for URI: " + 
-                uri+" with value: "+existingSession+"...closing");
+            m_log.debug("Closing old session for {}, which moved from {}", 
+                uri, existingSession);
+            
+            // The user lives on in the new session, so the old one no 
+            // longer counts, and closing it has nothing to unregister.  If
+            // it's closing already, whichever of us removes the user first
+            // does the counting.
+            if (existingSession.removeAttribute(AOR) != null)
+                {
+                this.m_size.decrementAndGet();
+                }
             existingSession.close();
             }
-        this.m_registrations.put(uri, session);
+        if (!partition.register(uri, session))
+            {
+            m_log.debug("Domain at its quota: {}", partition);
+            this.m_metrics.count(Method.REGISTER, Outcome.REJECTED);
+            this.m_responseWriter.write(session, register, 403, 
+                "Registration Quota Exceeded");
+            return;
+            }
+        final URI previous = (URI) session.setAttribute(AOR, uri);
+        if (previous == null)
+            {
+            this.m_size.incrementAndGet();
+            }
+        else if (!previous.equals(uri))
+            {
+            // The client registered as somebody else on the same 
+            // connection, so we can only route to it as its latest user.
+            if (findPartition(previous).unregister(previous, session))
+                {
+                notifyListeners(previous, false);
+                recordChurn(previous, session, false);
+                }
+            }
         
         // Keep stats on the maximum number of registrations we've seen.
-        if (m_registrations.size() > m_maxSize)
+        final int size = this.m_size.get();
+        int max = m_maxSize.get();
+        while (size > max)
             {
-            m_maxSize = m_registrations.size();
-            m_log.debug("New maximum registrations this session: {}", m_maxSize);
+            if (m_maxSize.compareAndSet(max, size))
+                {
+                m_log.debug("New maximum registrations this session: {}", 
+                    size);
+                break;
+                }
+            max = m_maxSize.get();
             }
         
         final SipResponse response = 
-            this.m_messageFactory.createRegisterOk(register);
+            withExpires(this.m_messageFactory.createRegisterOk(register),
+                grantExpires(register));
         
         final InetSocketAddress remoteAddress = 
             (InetSocketAddress) session.getRemoteAddress();
         m_log.debug("Writing OK response to SIP client...");
         
         this.m_transportLayer.writeResponse(remoteAddress, response);
+        this.m_metrics.count(Method.REGISTER, Outcome.FORWARDED);
+        this.m_metrics.getRegisterOkLatency().recordSince(start);
+        this.m_metrics.getTracer().end(Stage.REGISTER, register, traceStart);
         notifyListeners(uri, true);
+        recordChurn(uri, session, true);
+        }
+
+    /**
+     * Decides how long to grant a registration for.
+     * 
+     * @param register The REGISTER.
+     * @return The registration time in seconds.
+     */
+    int grantExpires(final Register register)
+        {
+        final int requested = requestedExpires(register);
+        final int jitter = 
+            Math.min(this.m_expiresJitterSeconds, 
+                requested - this.m_minExpiresSeconds);
+        if (jitter <= 0)
+            {
+            return requested;
+            }
+        return requested - this.m_random.nextInt(jitter + 1);
+        }
+    
+    private static int requestedExpires(final Register register)
+        {
+        // An expires parameter on the Contact takes precedence over the 
+        // Expires header.
+        final SipHeader contact = register.getHeader(SipHeaderNames.CONTACT);
+        if (contact != null)
+            {
+            final String param = contact.getValue().getParamValue("expires");
+            if (param != null)
+                {
+                return parseExpires(param);
+                }
+            }
+        final SipHeader expires = register.getHeader(SipHeaderNames.EXPIRES);
+        if (expires != null)
+            {
+            return parseExpires(expires.getValue().getBaseValue());
+            }
+        return DEFAULT_EXPIRES;
+        }
+    
+    private static int parseExpires(final String value)
+        {
+        try
+            {
+            return Math.max(0, Integer.parseInt(value.trim()));
+            }
+        catch (final NumberFormatException e)
+            {
+            return DEFAULT_EXPIRES;
+            }
+        }
+    
+    private static SipResponse withExpires(final SipResponse response, 
+        final int expires)
+        {
+        final SipHeaderValue value = new SipHeaderValueImpl(
+            Integer.toString(expires), new HashMap<String, String>());
+        final Map<String, SipHeader> headers = response.getHeaders();
+        headers.put(SipHeaderNames.EXPIRES, 
+            new SipHeaderImpl(SipHeaderNames.EXPIRES, value));
+        return new SipResponse(response.getStatusCode(), 
+            response.getReasonPhrase(), headers);
         }
 
     public IoSession getIoSession(final URI uri)
         {
-        return this.m_registrations.get(uri);
+        return findPartition(uri).getIoSession(uri);
         }
 
     public boolean hasRegistration(final URI uri)
         {
-        return this.m_registrations.containsKey(uri);
+        return getIoSession(uri) != null;
         }
 
     public void sessionClosed(final IoSession session) 
         {
-        final URI uri = 
-            (URI) MapUtils.removeFromMapValues(this.m_registrations, 
-                session);
-        if (uri != null)
+        final URI uri = (URI) session.removeAttribute(AOR);
+        if (uri == null)
+            {
+            // The client never registered on this session, or moved to a
+            // new one.
+            m_log.debug("No user registered on: {}", session);
+            return;
+            }
+        this.m_size.decrementAndGet();
+        if (findPartition(uri).unregister(uri, session))
             {
             notifyListeners(uri, false);
+            recordChurn(uri, session, false);
             }
         else
             {
-            // Maybe we've received duplicate close events?  This could also
-            // happen if the client connected but never actually registered,
-            // and we're getting a session closed for a client we never knew
-            // about.
-            m_log.warn("Could not locate URI for reader/writer: " + 
-                session + " in:\n" + this.m_registrations.values());
+            // Maybe we've received duplicate close events?
+            final long suppressed = this.m_unknownCloseWarnings.acquire();
+            if (suppressed >= 0)
+                {
+                m_log.warn("Could not locate URI for reader/writer: {}, {} " +
+                    "more suppressed", session, suppressed);
+                }
+            }
+        }
+    
+    /**
+     * Finds the partition that holds the registrations for a user's 
+     * domain.  Only the shared partition is ever created here, so lookups
+     * and registrations for domains we don't host cost nothing.
+     * 
+     * @param uri The user's address-of-record.
+     * @return The partition, which may be empty.
+     */
+    private RegistrarPartition findPartition(final URI uri)
+        {
+        final RegistrarPartition partition = 
+            this.m_partitions.get(domainOf(uri));
+        if (partition != null)
+            {
+            return partition;
+            }
+        return getOrCreatePartition(OTHER_DOMAINS);
+        }
+    
+    private RegistrarPartition getOrCreatePartition(final String domain)
+        {
+        final RegistrarPartition existing = this.m_partitions.get(domain);
+        if (existing != null)
+            {
+            return existing;
+            }
+        final RegistrarPartition partition = new RegistrarPartition(domain, 
+            this.m_defaultMaxRegistered, this.m_defaultRegistersPerSecond);
+        final RegistrarPartition raced = 
+            this.m_partitions.putIfAbsent(domain, partition);
+        if (raced != null)
+            {
+            return raced;
+            }
+        m_log.debug("Created partition: {}", partition);
+        register(partition);
+        return partition;
+        }
+    
+    private void register(final RegistrarPartition partition)
+        {
+        try
+            {
+            final ObjectName name = new ObjectName(
+                JmxUtils.getObjectName(RegistrarPartition.class) + 
+                ",domain=" + ObjectName.quote(partition.getDomain()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                partition, name);
+            }
+        catch (final JMException e)
+            {
+            // Usually just another registrar in the same JVM.
+            m_log.debug("Could not register partition: {}", partition, e);
+            }
+        }
+    
+    /**
+     * Extracts the domain from a SIP URI such as 
+     * "sip:1234@lastbamboo.org;transport=tcp".
+     * 
+     * @param uri The URI.
+     * @return The domain in lower case.
+     */
+    static String domainOf(final URI uri)
+        {
+        final String ssp = uri.getSchemeSpecificPart();
+        final int start = ssp.indexOf('@') + 1;
+        int end = ssp.length();
+        for (int i = start; i < end; i++)
+            {
+            final char c = ssp.charAt(i);
+            if (c == ':' || c == ';' || c == '?' || c == '>')
+                {
+                end = i;
+                }
+            }
+        return ssp.substring(start, end).toLowerCase(Locale.US);
+        }
+    
+    private void recordChurn(final URI uri, final IoSession session, 
+        final boolean registered)
+        {
+        final RegistrationChurn churn = this.m_churn.get();
+        if (churn == null)
+            {
+            return;
+            }
+        final SocketAddress remote = session.getRemoteAddress();
+        final String source = remote instanceof InetSocketAddress ?
+            ((InetSocketAddress) remote).getAddress().getHostAddress() : null;
+        churn.record(uri, source, registered);
+        }
+    
+    /**
+     * Publishes the churn since the last report and starts a new period.
+     */
+    private void reportChurn()
+        {
+        final RegistrationChurn churn = this.m_churn.get();
+        
+        // If reporting stopped in the meantime, it stays stopped.
+        if (churn == null || 
+            !this.m_churn.compareAndSet(churn, new RegistrationChurn()) ||
+            churn.isEmpty())
+            {
+            return;
+            }
+        final CompositeData summary = churn.summarize(TOP_SOURCES);
+        final Notification notification = new Notification(CHURN, this, 
+            this.m_sequence.incrementAndGet(), System.currentTimeMillis(),
+            "Registers: " + summary.get("registers") + 
+            " Unregisters: " + summary.get("unregisters") + 
+            " Unique AORs: " + summary.get("uniqueAors") + 
+            " Top sources: " + 
+            Arrays.asList((String[]) summary.get("topSources")));
+        notification.setUserData(summary);
+        sendNotification(notification);
+        }
+    
+    @Override
+    public void addNotificationListener(final NotificationListener listener,
+        final NotificationFilter filter, final Object handback)
+        {
+        synchronized (this.m_reportLock)
+            {
+            super.addNotificationListener(listener, filter, handback);
+            this.m_notificationListeners.add(listener);
+            if (this.m_reportTask != null)
+                {
+                return;
+                }
+            this.m_churn.set(new RegistrationChurn());
+            final Runnable runner = new Runnable()
+                {
+                public void run()
+                    {
+                    try
+                        {
+                        reportChurn();
+                        }
+                    catch (final Throwable t)
+                        {
+                        m_log.error("Error reporting registration churn", t);
+                        }
+                    }
+                };
+            final long period = this.m_churnReportMillis;
+            this.m_reportTask = this.m_scheduler.scheduleAtFixedRate(runner, 
+                period, period, TimeUnit.MILLISECONDS);
             }
         }
     
+    @Override
+    public void removeNotificationListener(
+        final NotificationListener listener) 
+        throws ListenerNotFoundException
+        {
+        synchronized (this.m_reportLock)
+            {
+            super.removeNotificationListener(listener);
+            this.m_notificationListeners.removeAll(
+                Collections.singleton(listener));
+            stopReportingIfUnheard();
+            }
+        }
+    
+    @Override
+    public void removeNotificationListener(
+        final NotificationListener listener, final NotificationFilter filter,
+        final Object handback) throws ListenerNotFoundException
+        {
+        synchronized (this.m_reportLock)
+            {
+            super.removeNotificationListener(listener, filter, handback);
+            this.m_notificationListeners.remove(listener);
+            stopReportingIfUnheard();
+            }
+        }
+    
+    /**
+     * Stops summarizing churn once the last listener has gone.  Called 
+     * holding m_reportLock.
+     */
+    private void stopReportingIfUnheard()
+        {
+        if (!this.m_notificationListeners.isEmpty() || 
+            this.m_reportTask == null)
+            {
+            return;
+            }
+        this.m_reportTask.cancel(false);
+        this.m_reportTask = null;
+        this.m_churn.set(null);
+        }
+    
+    /**
+     * Accessor for whether we're summarizing churn, which we only do while
+     * someone is listening.
+     * 
+     * @return <code>true</code> if we're summarizing churn.
+     */
+    boolean isReportingChurn()
+        {
+        synchronized (this.m_reportLock)
+            {
+            return this.m_reportTask != null;
+            }
+        }
+    
+    @Override
+    public MBeanNotificationInfo[] getNotificationInfo()
+        {
+        return new MBeanNotificationInfo[] 
+            {
+            new MBeanNotificationInfo(new String[] {CHURN}, 
+                Notification.class.getName(), 
+                "Summary of registrations and unregistrations")
+            };
+        }
+    
+    /**
+     * Sets how often to publish registration churn.  This only takes 
+     * effect the next time someone starts listening for notifications 
+     * while nobody else is.
+     * 
+     * @param churnReportMillis The reporting period in milliseconds.
+     */
+    public void setChurnReportMillis(final long churnReportMillis)
+        {
+        this.m_churnReportMillis = churnReportMillis;
+        }
+    
+    /**
+     * Sets the most we'll shorten a registration by, so refreshes from 
+     * clients that registered together spread out over that many seconds.
+     * 
+     * @param expiresJitterSeconds The jitter in seconds, or 0 to grant 
+     * exactly what clients ask for.
+     */
+    public void setExpiresJitterSeconds(final int expiresJitterSeconds)
+        {
+        this.m_expiresJitterSeconds = expiresJitterSeconds;
+        }
+    
+    /**
+     * Sets the shortest registration jitter will bring a registration 
+     * down to.
+     * 
+     * @param minExpiresSeconds The minimum registration time in seconds.
+     */
+    public void setMinExpiresSeconds(final int minExpiresSeconds)
+        {
+        this.m_minExpiresSeconds = minExpiresSeconds;
+        }
+    
+    /**
+     * Sets the partitions for domains with their own limits.
+     * 
+     * @param partitions The partitions.
+     */
+    public void setPartitions(final List<RegistrarPartition> partitions)
+        {
+        for (final RegistrarPartition partition : partitions)
+            {
+            this.m_partitions.put(partition.getDomain(), partition);
+            this.m_hostedDomains.add(partition.getDomain());
+            register(partition);
+            }
+        }
+    
+    /**
+     * Sets the most users the domains we don't host can have registered at
+     * once, between them.
+     * 
+     * @param defaultMaxRegistered The quota.
+     */
+    public void setDefaultMaxRegistered(final int defaultMaxRegistered)
+        {
+        this.m_defaultMaxRegistered = defaultMaxRegistered;
+        }
+    
+    /**
+     * Sets how many REGISTERs a second the domains we don't host can send,
+     * between them.
+     * 
+     * @param defaultRegistersPerSecond The rate, or 0 for no limit.
+     */
+    public void setDefaultRegistersPerSecond(
+        final int defaultRegistersPerSecond)
+        {
+        this.m_defaultRegistersPerSecond = defaultRegistersPerSecond;
+        }
+    
     private void notifyListeners(final URI uri, final boolean registered)
         {
         // Note we're still on the selector thread, so none of the listeners
@@ -153,26 +725,38 @@ public class SipRegistrarImpl extends NotificationBroadcasterSupport
     public void addRegistrationListener(final RegistrationListener listener)
         {
         m_log.debug("Adding registration listener...");
-        this.m_registrationListeners.add(listener);
+        synchronized (this.m_registrationListeners)
+            {
+            this.m_registrationListeners.add(listener);
+            }
         }
 
     public int getSipNumRegistered()
         {
-        return this.m_registrations.size();
+        return this.m_size.get();
         }
 
     public int getSipMaxRegistered()
         {
-        return this.m_maxSize;
+        return this.m_maxSize.get();
+        }
+    
+    public boolean hostsDomain(final String domain)
+        {
+        return this.m_hostedDomains.contains(domain.toLowerCase(Locale.US));
+        }
+    
+    public Collection<String> getHostedDomains()
+        {
+        return Collections.unmodifiableSet(this.m_hostedDomains);
         }
     
     public Collection<URI> getRegistered()
         {
         final Collection<URI> registered = new HashSet<URI>();
-        synchronized (this.m_registrations)
+        for (final RegistrarPartition partition : this.m_partitions.values())
             {
-            final Set<URI> keySet = this.m_registrations.keySet();
-            registered.addAll(keySet);
+            registered.addAll(partition.getUris());
             }
         return registered;
         }
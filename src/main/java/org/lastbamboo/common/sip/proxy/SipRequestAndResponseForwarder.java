@@ -2,7 +2,9 @@ package org.lastbamboo.common.sip.proxy;
 
 import java.io.IOException;
 
+import org.littleshoot.mina.common.IoSession;
 import org.lastbamboo.common.sip.stack.message.SipResponse;
+import org.lastbamboo.common.sip.stack.message.UnknownSipRequest;
 
 /**
  * Interface for classes that can forward SIP requests and responses.
@@ -14,7 +16,20 @@ public interface SipRequestAndResponseForwarder extends SipRequestForwarder
      * Forwards the SIP response to the appropriate target.
      * 
      * @param response The response to forward.
+     * @return <code>true</code> if we sent the response on, or 
+     * <code>false</code> if we dropped it, such as for a flow token that 
+     * doesn't verify.
      * @throws IOException If the response could not be forwarded as expected.
      */
-    void forwardSipResponse(SipResponse response) throws IOException;
+    boolean forwardSipResponse(SipResponse response) throws IOException;
+    
+    /**
+     * Forwards a request of a method other than INVITE or REGISTER, such as
+     * a BYE or an ACK, or answers it with an error if it can't be 
+     * forwarded.
+     * 
+     * @param request The request to forward.
+     * @param session The session the request arrived on.
+     */
+    void forwardSipRequest(UnknownSipRequest request, IoSession session);
     }
@@ -0,0 +1,22 @@
+package org.lastbamboo.common.sip.proxy.auth;
+
+/**
+ * Where the proxy looks up users' digest credentials, such as a database
+ * or a directory server.  Lookups may be slow -- the authenticator caches
+ * what they return, so a store is only asked about a user the first time
+ * they authenticate and after they've fallen out of the cache.
+ */
+public interface CredentialStore
+    {
+
+    /**
+     * Accessor for a user's HA1, the MD5 of "username:realm:password" as
+     * lowercase hex, as in RFC 2617 section 3.2.2.2.  Stores can keep HA1
+     * values rather than passwords.
+     *
+     * @param username The user name.
+     * @param realm The realm.
+     * @return The HA1, or <code>null</code> if there's no such user.
+     */
+    String getHa1(String username, String realm);
+    }
@@ -0,0 +1,351 @@
+package org.lastbamboo.common.sip.proxy.auth;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.proxy.LocalResponseWriter;
+import org.lastbamboo.common.sip.proxy.OptionsResponder;
+import org.lastbamboo.common.sip.proxy.SipHeaderRewriter;
+import org.lastbamboo.common.sip.proxy.auth.NonceCache.Status;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.SipMessageUtils;
+import org.lastbamboo.common.sip.stack.message.header.SipHeader;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderNames;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Digest authentication of requests, as in RFC 3261 section 22.  REGISTERs
+ * are challenged with a 401 as the registrar, and everything else with a
+ * 407 as the proxy.  Users can only register their own address-of-record
+ * and can only send requests from it, so knowing one user's password
+ * doesn't let you take over another user's binding.
+ * <p>
+ * A client that has answered a challenge keeps using the same nonce with
+ * increasing nonce counts until it expires, so a registration refresh is
+ * checked against the nonce cache and the HA1 cache and never touches the
+ * credential store.  Clients that don't use qop=auth can only use each
+ * nonce once, since without a nonce count we can't tell a retry from a
+ * replay.
+ */
+public class DigestAuthenticator
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final String m_realm;
+
+    private final CredentialStore m_credentialStore;
+
+    private final NonceCache m_nonces;
+
+    private final Ha1Cache m_ha1s;
+
+    /**
+     * Creates a new authenticator with default nonce and HA1 caches.
+     *
+     * @param realm The realm users authenticate in.
+     * @param credentialStore The store to look users up in.
+     */
+    public DigestAuthenticator(final String realm,
+        final CredentialStore credentialStore)
+        {
+        this(realm, credentialStore, new NonceCache(), new Ha1Cache());
+        }
+
+    /**
+     * Creates a new authenticator.
+     *
+     * @param realm The realm users authenticate in.
+     * @param credentialStore The store to look users up in.
+     * @param nonces The nonces we've issued.
+     * @param ha1s The cache of users' HA1s.
+     */
+    public DigestAuthenticator(final String realm,
+        final CredentialStore credentialStore, final NonceCache nonces,
+        final Ha1Cache ha1s)
+        {
+        this.m_realm = realm;
+        this.m_credentialStore = credentialStore;
+        this.m_nonces = nonces;
+        this.m_ha1s = ha1s;
+        }
+
+    /**
+     * Checks the credentials on a request, writing a challenge
+     * or a 403 to the session if they don't check out.
+     *
+     * @param request The request.
+     * @param session The session the request arrived on.
+     * @param responseWriter The class for writing the response if the
+     * request isn't authorized.
+     * @return <code>true</code> if the request can go on, or
+     * <code>false</code> if we've answered it.
+     */
+    public boolean authenticate(final SipMessage request,
+        final IoSession session, final LocalResponseWriter responseWriter)
+        {
+        final String method = OptionsResponder.getMethod(request);
+        final boolean register = "REGISTER".equals(method);
+        final SipHeader header = request.getHeader(
+            register ? "Authorization" : "Proxy-Authorization");
+        final Map<String, String> params =
+            header == null ? null : parse(header);
+        if (params == null || !this.m_realm.equals(params.get("realm")))
+            {
+            challenge(request, register, false, session, responseWriter);
+            return false;
+            }
+
+        final String username = params.get("username");
+        final String nonce = params.get("nonce");
+        final String response = params.get("response");
+        final String algorithm = params.get("algorithm");
+        if (username == null || nonce == null || response == null ||
+            (algorithm != null && !algorithm.equalsIgnoreCase("MD5")))
+            {
+            challenge(request, register, false, session, responseWriter);
+            return false;
+            }
+
+        // The user can only act as their own address-of-record.
+        final SipHeader identity = request.getHeader(
+            register ? SipHeaderNames.TO : SipHeaderNames.FROM);
+        if (!username.equals(getUser(identity)))
+            {
+            m_log.debug("{} can't use {}", username, identity);
+            responseWriter.write(session, request, 403, "Forbidden");
+            return false;
+            }
+
+        final String qop = params.get("qop");
+        final String nc = params.get("nc");
+        final String cnonce = params.get("cnonce");
+        final long count;
+        if (qop == null)
+            {
+            count = 1;
+            }
+        else if (!qop.equalsIgnoreCase("auth") || nc == null ||
+            cnonce == null)
+            {
+            challenge(request, register, false, session, responseWriter);
+            return false;
+            }
+        else
+            {
+            try
+                {
+                count = Long.parseLong(nc, 16);
+                }
+            catch (final NumberFormatException e)
+                {
+                challenge(request, register, false, session, responseWriter);
+                return false;
+                }
+            }
+
+        final String ha1 = getHa1(username);
+        if (ha1 == null)
+            {
+            responseWriter.write(session, request, 403, "Forbidden");
+            return false;
+            }
+
+        // RFC 3261 section 22.4 has the digest URI match the Request-URI,
+        // and the stack doesn't keep the order of the URI's parameters in
+        // the header, so we hash the Request-URI as it arrived.
+        final String ha2 =
+            Digests.md5Hex(method + ":" + getRequestUri(request));
+        final String expected;
+        if (qop == null)
+            {
+            expected = Digests.md5Hex(ha1 + ":" + nonce + ":" + ha2);
+            }
+        else
+            {
+            expected = Digests.md5Hex(ha1 + ":" + nonce + ":" + nc + ":" +
+                cnonce + ":" + qop + ":" + ha2);
+            }
+        if (!Digests.matches(expected, response))
+            {
+            m_log.debug("Bad digest from: {}", username);
+            responseWriter.write(session, request, 403, "Forbidden");
+            return false;
+            }
+
+        // Only count the nonce as used once the digest checks out, so
+        // nobody can burn through a client's counts without its password.
+        final Status status = this.m_nonces.check(nonce, count);
+        if (status != Status.VALID)
+            {
+            m_log.debug("Nonce from {} is {}", username, status);
+            challenge(request, register, status == Status.STALE, session,
+                responseWriter);
+            return false;
+            }
+        return true;
+        }
+
+    /**
+     * Accessor for the cache of users' HA1s, for forgetting users whose
+     * password has changed.
+     *
+     * @return The HA1 cache.
+     */
+    public Ha1Cache getHa1Cache()
+        {
+        return this.m_ha1s;
+        }
+
+    private String getHa1(final String username)
+        {
+        final String cached = this.m_ha1s.get(username, this.m_realm);
+        if (cached != null)
+            {
+            return cached;
+            }
+        final String ha1 = this.m_credentialStore.getHa1(username,
+            this.m_realm);
+        if (ha1 != null)
+            {
+            this.m_ha1s.put(username, this.m_realm, ha1);
+            }
+        return ha1;
+        }
+
+    private void challenge(final SipMessage request, final boolean register,
+        final boolean stale, final IoSession session,
+        final LocalResponseWriter responseWriter)
+        {
+        final StringBuilder sb = new StringBuilder(128);
+        sb.append(register ? "WWW-Authenticate" : "Proxy-Authenticate");
+        sb.append(": Digest realm=\"");
+        sb.append(this.m_realm);
+        sb.append("\", nonce=\"");
+        sb.append(this.m_nonces.create());
+        sb.append("\", algorithm=MD5, qop=\"auth\"");
+        if (stale)
+            {
+            sb.append(", stale=true");
+            }
+        if (register)
+            {
+            responseWriter.write(session, request, 401, "Unauthorized",
+                sb.toString());
+            }
+        else
+            {
+            responseWriter.write(session, request, 407,
+                "Proxy Authentication Required", sb.toString());
+            }
+        }
+
+    /**
+     * Parses the parameters of Digest credentials.  The stack splits
+     * header values on commas, so we put the values back together and
+     * parse the whole header ourselves.
+     *
+     * @param header The Authorization or Proxy-Authorization header.
+     * @return The parameters, or <code>null</code> if they aren't Digest
+     * credentials.
+     */
+    static Map<String, String> parse(final SipHeader header)
+        {
+        final StringBuilder sb = new StringBuilder(256);
+        final List<SipHeaderValue> values = header.getValues();
+        for (int i = 0; i < values.size(); i++)
+            {
+            if (i > 0)
+                {
+                sb.append(',');
+                }
+            SipHeaderRewriter.render(values.get(i), sb);
+            }
+        final String text = sb.toString().trim();
+        if (!text.regionMatches(true, 0, "Digest ", 0, 7))
+            {
+            return null;
+            }
+
+        final Map<String, String> params = new HashMap<String, String>();
+        int i = 7;
+        final int length = text.length();
+        while (i < length)
+            {
+            final int equals = text.indexOf('=', i);
+            if (equals == -1)
+                {
+                break;
+                }
+            final String name =
+                text.substring(i, equals).trim().toLowerCase(Locale.US);
+            i = equals + 1;
+            while (i < length && text.charAt(i) == ' ')
+                {
+                i++;
+                }
+            final String value;
+            if (i < length && text.charAt(i) == '"')
+                {
+                final int close = text.indexOf('"', i + 1);
+                if (close == -1)
+                    {
+                    return null;
+                    }
+                value = text.substring(i + 1, close);
+                i = close + 1;
+                }
+            else
+                {
+                final int comma = text.indexOf(',', i);
+                final int end = comma == -1 ? length : comma;
+                value = text.substring(i, end).trim();
+                i = end;
+                }
+            params.put(name, value);
+            final int comma = text.indexOf(',', i);
+            if (comma == -1)
+                {
+                break;
+                }
+            i = comma + 1;
+            }
+        return params;
+        }
+
+    private static String getUser(final SipHeader header)
+        {
+        if (header == null)
+            {
+            return null;
+            }
+        final URI uri = SipMessageUtils.extractUri(header);
+        final String ssp = uri == null ? null : uri.getSchemeSpecificPart();
+        final int at = ssp == null ? -1 : ssp.indexOf('@');
+        return at == -1 ? null : ssp.substring(0, at);
+        }
+
+    private static String getRequestUri(final SipMessage request)
+        {
+        final String startLine = request.getStartLine();
+        final int start = startLine.indexOf(' ');
+        final int end = startLine.lastIndexOf(' ');
+        if (start == -1 || end <= start)
+            {
+            return "";
+            }
+        return startLine.substring(start + 1, end);
+        }
+
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName();
+        }
+    }
@@ -0,0 +1,89 @@
+package org.lastbamboo.common.sip.proxy.auth;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * MD5 hashing for digest authentication.  Each thread keeps its own
+ * digest, so hashing never allocates one or contends for a lock.
+ */
+final class Digests
+    {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<MessageDigest> MD5 =
+        new ThreadLocal<MessageDigest>()
+        {
+        @Override
+        protected MessageDigest initialValue()
+            {
+            try
+                {
+                return MessageDigest.getInstance("MD5");
+                }
+            catch (final NoSuchAlgorithmException e)
+                {
+                throw new IllegalStateException("No MD5?", e);
+                }
+            }
+        };
+
+    private Digests()
+        {
+        // Only static methods.
+        }
+
+    /**
+     * Hashes a string.
+     *
+     * @param text The string.
+     * @return The MD5 of the string's UTF-8 bytes as lowercase hex.
+     */
+    static String md5Hex(final String text)
+        {
+        final byte[] bytes;
+        try
+            {
+            bytes = text.getBytes("UTF-8");
+            }
+        catch (final UnsupportedEncodingException e)
+            {
+            throw new IllegalStateException("No UTF-8?", e);
+            }
+        final MessageDigest md5 = MD5.get();
+        md5.reset();
+        final byte[] hash = md5.digest(bytes);
+        final char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++)
+            {
+            hex[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[hash[i] & 0xf];
+            }
+        return new String(hex);
+        }
+
+    /**
+     * Compares two hashes in time that doesn't depend on where they
+     * differ.
+     *
+     * @param expected The hash we computed.
+     * @param actual The hash the client sent, in either case.
+     * @return <code>true</code> if they match.
+     */
+    static boolean matches(final String expected, final String actual)
+        {
+        if (actual == null || expected.length() != actual.length())
+            {
+            return false;
+            }
+        int diff = 0;
+        for (int i = 0; i < expected.length(); i++)
+            {
+            diff |= expected.charAt(i) ^
+                Character.toLowerCase(actual.charAt(i));
+            }
+        return diff == 0;
+        }
+    }
@@ -0,0 +1,143 @@
+package org.lastbamboo.common.sip.proxy.auth;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HA1 values we've fetched from the credential store, so a client
+ * refreshing its registration costs a few hashes rather than a trip to
+ * the store.  Each stripe evicts its least recently used users first, and
+ * threads only contend when their users hash to the same stripe.
+ */
+public class Ha1Cache
+    {
+
+    private static final int STRIPES = 16;
+
+    private final List<Map<String, String>> m_stripes;
+
+    /**
+     * Creates a new cache holding up to 100,000 users.
+     */
+    public Ha1Cache()
+        {
+        this(100000);
+        }
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxSize The most users to keep.
+     */
+    public Ha1Cache(final int maxSize)
+        {
+        if (maxSize <= 0)
+            {
+            throw new IllegalArgumentException("Bad size: " + maxSize);
+            }
+        final int stripeSize = Math.max(1, maxSize / STRIPES);
+        this.m_stripes = new ArrayList<Map<String, String>>(STRIPES);
+        for (int i = 0; i < STRIPES; i++)
+            {
+            this.m_stripes.add(new LinkedHashMap<String, String>(
+                Math.min(stripeSize, 1024), 0.75f, true)
+                {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(
+                    final Map.Entry<String, String> eldest)
+                    {
+                    return size() > stripeSize;
+                    }
+                });
+            }
+        }
+
+    /**
+     * Accessor for a user's HA1.
+     *
+     * @param username The user name.
+     * @param realm The realm.
+     * @return The HA1, or <code>null</code> if it isn't cached.
+     */
+    public String get(final String username, final String realm)
+        {
+        final String key = key(username, realm);
+        final Map<String, String> stripe = stripe(key);
+        synchronized (stripe)
+            {
+            return stripe.get(key);
+            }
+        }
+
+    /**
+     * Caches a user's HA1.
+     *
+     * @param username The user name.
+     * @param realm The realm.
+     * @param ha1 The HA1.
+     */
+    public void put(final String username, final String realm,
+        final String ha1)
+        {
+        final String key = key(username, realm);
+        final Map<String, String> stripe = stripe(key);
+        synchronized (stripe)
+            {
+            stripe.put(key, ha1);
+            }
+        }
+
+    /**
+     * Forgets a user's HA1, such as when their password changes.
+     *
+     * @param username The user name.
+     * @param realm The realm.
+     */
+    public void remove(final String username, final String realm)
+        {
+        final String key = key(username, realm);
+        final Map<String, String> stripe = stripe(key);
+        synchronized (stripe)
+            {
+            stripe.remove(key);
+            }
+        }
+
+    /**
+     * Accessor for the number of users we're keeping.
+     *
+     * @return The number of users in the cache.
+     */
+    public int size()
+        {
+        int size = 0;
+        for (final Map<String, String> stripe : this.m_stripes)
+            {
+            synchronized (stripe)
+                {
+                size += stripe.size();
+                }
+            }
+        return size;
+        }
+
+    private Map<String, String> stripe(final String key)
+        {
+        return this.m_stripes.get((key.hashCode() & 0x7fffffff) % STRIPES);
+        }
+
+    private static String key(final String username, final String realm)
+        {
+        return username + ':' + realm;
+        }
+
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName();
+        }
+    }
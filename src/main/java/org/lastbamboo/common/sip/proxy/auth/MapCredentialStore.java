@@ -0,0 +1,40 @@
+package org.lastbamboo.common.sip.proxy.auth;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Credential store backed by a map of user names to passwords, for small
+ * deployments and testing.  The map can be set up in Spring.
+ */
+public class MapCredentialStore implements CredentialStore
+    {
+
+    private final Map<String, String> m_passwords;
+
+    /**
+     * Creates a new store.
+     *
+     * @param passwords The passwords, keyed by user name.
+     */
+    public MapCredentialStore(final Map<String, String> passwords)
+        {
+        this.m_passwords = new HashMap<String, String>(passwords);
+        }
+
+    public String getHa1(final String username, final String realm)
+        {
+        final String password = this.m_passwords.get(username);
+        if (password == null)
+            {
+            return null;
+            }
+        return Digests.md5Hex(username + ":" + realm + ":" + password);
+        }
+
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName();
+        }
+    }
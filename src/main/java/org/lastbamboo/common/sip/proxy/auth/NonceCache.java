@@ -0,0 +1,226 @@
+package org.lastbamboo.common.sip.proxy.auth;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lastbamboo.common.sip.proxy.HmacSigner;
+
+/**
+ * The nonces we hand out in challenges, with the highest nonce count each
+ * has been used with.  A client can reuse a nonce for as long as it lives,
+ * as long as each request carries a higher count than the last, so a
+ * captured request can't be replayed.
+ * <p>
+ * A nonce is the time it was issued and a sequence number, signed with a
+ * key only this process knows, so issuing one keeps no state and a flood
+ * of challenges can't fill the cache.  A nonce only gets an entry here
+ * once a request using it passes the digest check, which takes the user's
+ * password.  Nonces live for two hours by default, longer than clients
+ * wait between registration refreshes, so a refresh doesn't need a new
+ * challenge.
+ * <p>
+ * Entries are kept in stripes that each evict the least recently used
+ * nonce first.  Once a nonce's entry is gone we can't tell its first use
+ * from a replay, so we only accept a first use of a nonce issued in the
+ * last few minutes, and an older nonce we've lost track of is stale.  The
+ * client then retries with a new nonce without asking the user again.
+ */
+public class NonceCache
+    {
+
+    /**
+     * What we know about a nonce a client sent.
+     */
+    public enum Status
+        {
+        /**
+         * The nonce is current and the count is higher than any before.
+         */
+        VALID,
+
+        /**
+         * We didn't issue the nonce, it's expired, or we've lost track of
+         * it.  The client should retry with a new nonce without asking the
+         * user again.
+         */
+        STALE,
+
+        /**
+         * The count isn't higher than one we've already seen.
+         */
+        REPLAYED,
+        }
+
+    private static final int STRIPES = 16;
+
+    /**
+     * The length of a signature from {@link HmacSigner}.
+     */
+    private static final int SIGNATURE_LENGTH = 20;
+
+    private final HmacSigner m_signer = new HmacSigner();
+
+    private final AtomicLong m_sequence = new AtomicLong();
+
+    private final List<Map<String, Long>> m_stripes;
+
+    private final long m_maxAgeMillis;
+
+    private final long m_firstUseMillis;
+
+    /**
+     * Creates a new cache tracking up to 100,000 nonces, which live for two
+     * hours and have to be used for the first time within five minutes.
+     */
+    public NonceCache()
+        {
+        this(100000, 2 * 60 * 60 * 1000, 5 * 60 * 1000);
+        }
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxSize The most nonces to track counts for.
+     * @param maxAgeMillis How long a nonce can be used for.
+     * @param firstUseMillis How long after we issue a nonce a client can
+     * use it for the first time.
+     */
+    public NonceCache(final int maxSize, final long maxAgeMillis,
+        final long firstUseMillis)
+        {
+        if (maxSize <= 0 || maxAgeMillis <= 0 || firstUseMillis <= 0)
+            {
+            throw new IllegalArgumentException("Bad size or age: " +
+                maxSize + ", " + maxAgeMillis + ", " + firstUseMillis);
+            }
+        this.m_maxAgeMillis = maxAgeMillis;
+        this.m_firstUseMillis = Math.min(firstUseMillis, maxAgeMillis);
+        final int stripeSize = Math.max(1, maxSize / STRIPES);
+        this.m_stripes = new ArrayList<Map<String, Long>>(STRIPES);
+        for (int i = 0; i < STRIPES; i++)
+            {
+            this.m_stripes.add(new LinkedHashMap<String, Long>(
+                Math.min(stripeSize, 1024), 0.75f, true)
+                {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(
+                    final Map.Entry<String, Long> eldest)
+                    {
+                    return size() > stripeSize;
+                    }
+                });
+            }
+        }
+
+    /**
+     * Creates a nonce for a challenge.
+     *
+     * @return The new nonce.
+     */
+    public String create()
+        {
+        final String text = Long.toHexString(System.currentTimeMillis()) +
+            '-' + Long.toHexString(this.m_sequence.incrementAndGet());
+        return text + this.m_signer.sign(text);
+        }
+
+    /**
+     * Checks a nonce and count a client sent, recording the count if it's
+     * valid.
+     *
+     * @param nonce The nonce.
+     * @param count The nonce count, or 1 if the client didn't send one.
+     * @return Whether the client can use the nonce and count.
+     */
+    public Status check(final String nonce, final long count)
+        {
+        final long age = age(nonce);
+        if (age < 0 || age > this.m_maxAgeMillis)
+            {
+            return Status.STALE;
+            }
+        final Map<String, Long> stripe = stripe(nonce);
+        synchronized (stripe)
+            {
+            final Long last = stripe.get(nonce);
+            if (last == null)
+                {
+                if (age > this.m_firstUseMillis)
+                    {
+                    return Status.STALE;
+                    }
+                }
+            else if (count <= last.longValue())
+                {
+                return Status.REPLAYED;
+                }
+            stripe.put(nonce, Long.valueOf(count));
+            return Status.VALID;
+            }
+        }
+
+    /**
+     * Accessor for the number of nonces we're tracking counts for.
+     *
+     * @return The number of nonces in the cache.
+     */
+    public int size()
+        {
+        int size = 0;
+        for (final Map<String, Long> stripe : this.m_stripes)
+            {
+            synchronized (stripe)
+                {
+                size += stripe.size();
+                }
+            }
+        return size;
+        }
+
+    /**
+     * Works out how long ago we issued a nonce.
+     *
+     * @param nonce The nonce.
+     * @return The nonce's age, or -1 if we didn't issue it.
+     */
+    private long age(final String nonce)
+        {
+        final int length = nonce.length() - SIGNATURE_LENGTH;
+        final int dash = nonce.indexOf('-');
+        if (dash <= 0 || dash >= length)
+            {
+            return -1;
+            }
+        final String text = nonce.substring(0, length);
+        if (!this.m_signer.verify(text, nonce.substring(length)))
+            {
+            return -1;
+            }
+        final long issued;
+        try
+            {
+            issued = Long.parseLong(text.substring(0, dash), 16);
+            }
+        catch (final NumberFormatException e)
+            {
+            return -1;
+            }
+        return Math.max(0, System.currentTimeMillis() - issued);
+        }
+
+    private Map<String, Long> stripe(final String nonce)
+        {
+        return this.m_stripes.get((nonce.hashCode() & 0x7fffffff) % STRIPES);
+        }
+
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName();
+        }
+    }
@@ -0,0 +1,107 @@
+package org.lastbamboo.common.sip.proxy.balancer;
+
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.littleshoot.mina.common.IoSession;
+
+/**
+ * A proxy behind the load balancer, with whether its health checks are
+ * passing and the connections we have open to it.
+ */
+public class Backend
+    {
+
+    private final InetSocketAddress m_address;
+
+    private volatile boolean m_up = true;
+
+    private final Map<IoSession, Boolean> m_sessions =
+        new ConcurrentHashMap<IoSession, Boolean>();
+
+    /**
+     * Creates a new backend.  Backends start out up, so we can use them
+     * before the first health check.
+     *
+     * @param hostAndPort The backend's address, as "host:port".
+     */
+    public Backend(final String hostAndPort)
+        {
+        final int colon = hostAndPort.lastIndexOf(':');
+        if (colon == -1)
+            {
+            throw new IllegalArgumentException("No port: " + hostAndPort);
+            }
+        this.m_address = new InetSocketAddress(
+            hostAndPort.substring(0, colon).trim(),
+            Integer.parseInt(hostAndPort.substring(colon + 1).trim()));
+        }
+
+    /**
+     * Accessor for the backend's address.
+     *
+     * @return The address.
+     */
+    public InetSocketAddress getAddress()
+        {
+        return this.m_address;
+        }
+
+    /**
+     * Accessor for whether the backend is passing its health checks.
+     *
+     * @return <code>true</code> if we can send it requests.
+     */
+    public boolean isUp()
+        {
+        return this.m_up;
+        }
+
+    void setUp(final boolean up)
+        {
+        this.m_up = up;
+        }
+
+    void addSession(final IoSession session)
+        {
+        this.m_sessions.put(session, Boolean.TRUE);
+        }
+
+    void removeSession(final IoSession session)
+        {
+        this.m_sessions.remove(session);
+        }
+
+    /**
+     * Accessor for the connections we have open to the backend.
+     *
+     * @return The connections.
+     */
+    public Collection<IoSession> getSessions()
+        {
+        return Collections.unmodifiableSet(this.m_sessions.keySet());
+        }
+
+    /**
+     * Accessor for the backend as "host:port".
+     *
+     * @return The backend's address as a string.
+     */
+    public String getName()
+        {
+        return this.m_address.getAddress() == null ?
+            this.m_address.getHostName() + ":" + this.m_address.getPort() :
+            this.m_address.getAddress().getHostAddress() + ":" +
+                this.m_address.getPort();
+        }
+
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName() + " " + getName() +
+            (this.m_up ? " up" : " down");
+        }
+    }
@@ -0,0 +1,271 @@
+package org.lastbamboo.common.sip.proxy.balancer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends each backend in the ring an OPTIONS addressed to the backend
+ * itself every so often, as in RFC 3261 section 11, and takes it out of
+ * the ring after enough of them go unanswered in a row.  One answered
+ * OPTIONS brings it back.  Each check uses its own short-lived connection,
+ * so a check can't be held up behind client traffic and a backend that
+ * accepts connections but never answers still counts as down.
+ */
+public class BackendHealthChecker
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final HashRing m_ring;
+
+    private final List<BackendListener> m_listeners =
+        new CopyOnWriteArrayList<BackendListener>();
+
+    private final Map<Backend, Integer> m_failures =
+        new ConcurrentHashMap<Backend, Integer>();
+
+    private final AtomicLong m_sequence = new AtomicLong(0);
+
+    private volatile long m_intervalMillis = 2000;
+
+    private volatile int m_timeoutMillis = 1000;
+
+    private volatile int m_failuresBeforeDown = 2;
+
+    private final ScheduledExecutorService m_scheduler =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+            public Thread newThread(final Runnable r)
+                {
+                final Thread t = new Thread(r, "SIP-Backend-Health");
+                t.setDaemon(true);
+                return t;
+                }
+            });
+
+    /**
+     * Creates a new checker.
+     *
+     * @param ring The ring of backends to check.
+     */
+    public BackendHealthChecker(final HashRing ring)
+        {
+        this.m_ring = ring;
+        }
+
+    /**
+     * Adds a listener for backends going down and coming back.
+     *
+     * @param listener The listener.
+     */
+    public void addListener(final BackendListener listener)
+        {
+        this.m_listeners.add(listener);
+        }
+
+    /**
+     * Starts checking, with the first round of checks right away.
+     */
+    public void start()
+        {
+        final Runnable runner = new Runnable()
+            {
+            public void run()
+                {
+                try
+                    {
+                    checkAll();
+                    }
+                catch (final Throwable t)
+                    {
+                    m_log.error("Error checking backends", t);
+                    }
+                }
+            };
+        this.m_scheduler.scheduleWithFixedDelay(runner, 0,
+            this.m_intervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+    /**
+     * Stops checking.
+     */
+    public void stop()
+        {
+        this.m_scheduler.shutdownNow();
+        }
+
+    /**
+     * Checks every backend in the ring once.
+     */
+    public void checkAll()
+        {
+        for (final Backend backend : this.m_ring.getBackends())
+            {
+            if (check(backend))
+                {
+                this.m_failures.remove(backend);
+                if (!backend.isUp())
+                    {
+                    m_log.info("Backend is back: {}", backend.getName());
+                    backend.setUp(true);
+                    for (final BackendListener listener : this.m_listeners)
+                        {
+                        listener.onBackendUp(backend);
+                        }
+                    }
+                continue;
+                }
+            final Integer previous = this.m_failures.get(backend);
+            final int failures = previous == null ? 1 : previous + 1;
+            this.m_failures.put(backend, Integer.valueOf(failures));
+            if (backend.isUp() && failures >= this.m_failuresBeforeDown)
+                {
+                m_log.warn("Backend is down: {}", backend.getName());
+                backend.setUp(false);
+                for (final BackendListener listener : this.m_listeners)
+                    {
+                    listener.onBackendDown(backend);
+                    }
+                }
+            }
+        }
+
+    /**
+     * Sends a backend an OPTIONS and waits for any final response.
+     */
+    private boolean check(final Backend backend)
+        {
+        final InetSocketAddress address = backend.getAddress();
+        final Socket sock = new Socket();
+        try
+            {
+            sock.connect(address, this.m_timeoutMillis);
+            sock.setSoTimeout(this.m_timeoutMillis);
+            final OutputStream os = sock.getOutputStream();
+            os.write(toOptions(sock, address).getBytes("US-ASCII"));
+            os.flush();
+            return readStatusLine(sock.getInputStream()).startsWith(
+                "SIP/2.0 2");
+            }
+        catch (final IOException e)
+            {
+            m_log.debug("Health check failed for {}", backend.getName(), e);
+            return false;
+            }
+        finally
+            {
+            try
+                {
+                sock.close();
+                }
+            catch (final IOException e)
+                {
+                // Nothing left to do with it.
+                }
+            }
+        }
+
+    private String toOptions(final Socket sock,
+        final InetSocketAddress address)
+        {
+        final String target = address.getAddress().getHostAddress() + ":" +
+            address.getPort();
+        final String local = sock.getLocalAddress().getHostAddress() + ":" +
+            sock.getLocalPort();
+        final long id = this.m_sequence.incrementAndGet();
+        return "OPTIONS sip:" + target + " SIP/2.0\r\n" +
+            "Via: SIP/2.0/TCP " + local + ";branch=z9hG4bKhc" + id + "\r\n" +
+            "Max-Forwards: 0\r\n" +
+            "From: <sip:health@" + local + ">;tag=hc" + id + "\r\n" +
+            "To: <sip:" + target + ">\r\n" +
+            "Call-ID: hc" + id + "-" + local + "\r\n" +
+            "CSeq: 1 OPTIONS\r\n" +
+            "Content-Length: 0\r\n" +
+            "\r\n";
+        }
+
+    /**
+     * Reads the first line of the response, skipping any blank lines.
+     */
+    private static String readStatusLine(final InputStream is)
+        throws IOException
+        {
+        final StringBuilder sb = new StringBuilder(64);
+        while (true)
+            {
+            final int b = is.read();
+            if (b == -1)
+                {
+                throw new IOException("Closed before a response");
+                }
+            if (b == '\n')
+                {
+                if (sb.length() > 0)
+                    {
+                    return sb.toString();
+                    }
+                continue;
+                }
+            if (b != '\r')
+                {
+                sb.append((char) b);
+                }
+            if (sb.length() > 256)
+                {
+                throw new IOException("Status line too long");
+                }
+            }
+        }
+
+    /**
+     * Sets how often we check each backend.  Takes effect on start.
+     *
+     * @param intervalMillis The time between rounds of checks.
+     */
+    public void setIntervalMillis(final long intervalMillis)
+        {
+        this.m_intervalMillis = intervalMillis;
+        }
+
+    /**
+     * Sets how long a backend has to connect and answer.
+     *
+     * @param timeoutMillis The timeout for each check.
+     */
+    public void setTimeoutMillis(final int timeoutMillis)
+        {
+        this.m_timeoutMillis = timeoutMillis;
+        }
+
+    /**
+     * Sets how many checks in a row a backend has to fail before we take
+     * it out of the ring.
+     *
+     * @param failuresBeforeDown The number of failed checks.
+     */
+    public void setFailuresBeforeDown(final int failuresBeforeDown)
+        {
+        this.m_failuresBeforeDown = failuresBeforeDown;
+        }
+
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName();
+        }
+    }
@@ -0,0 +1,24 @@
+package org.lastbamboo.common.sip.proxy.balancer;
+
+/**
+ * Interface for classes listening for backends going down and coming back.
+ */
+public interface BackendListener
+    {
+
+    /**
+     * Called when a backend has failed enough health checks in a row that
+     * we've stopped sending it requests.
+     *
+     * @param backend The backend.
+     */
+    void onBackendDown(Backend backend);
+
+    /**
+     * Called when a backend that was down has passed a health check.
+     *
+     * @param backend The backend.
+     */
+    void onBackendUp(Backend backend);
+
+    }
@@ -0,0 +1,211 @@
+package org.lastbamboo.common.sip.proxy.balancer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring of backends.  Each backend owns many points on the
+ * ring so load spreads evenly, and a key belongs to the first backend that
+ * is up at or after the key's own point.  When a backend goes down or
+ * leaves, only its keys move, and they spread over all the others rather
+ * than piling onto one neighbor.
+ * <p>
+ * Lookups binary search an immutable snapshot of the ring without any
+ * locks.  Adding or removing a backend builds a new snapshot.
+ */
+public class HashRing
+    {
+
+    private final int m_pointsPerBackend;
+
+    private final List<Backend> m_backends = new ArrayList<Backend>();
+
+    private volatile Points m_points = new Points(new int[0], new Backend[0]);
+
+    /**
+     * Creates a new ring with 160 points per backend.
+     *
+     * @param backends The backends, each as "host:port".
+     */
+    public HashRing(final List<String> backends)
+        {
+        this(backends, 160);
+        }
+
+    /**
+     * Creates a new ring.
+     *
+     * @param backends The backends, each as "host:port".
+     * @param pointsPerBackend How many points each backend owns.
+     */
+    public HashRing(final List<String> backends, final int pointsPerBackend)
+        {
+        if (pointsPerBackend <= 0)
+            {
+            throw new IllegalArgumentException("Bad points per backend: " +
+                pointsPerBackend);
+            }
+        this.m_pointsPerBackend = pointsPerBackend;
+        for (final String backend : backends)
+            {
+            add(backend);
+            }
+        }
+
+    /**
+     * Finds the backend for a key.
+     *
+     * @param key The key, such as the user part of an address-of-record.
+     * @return The backend, or <code>null</code> if no backend is up.
+     */
+    public Backend get(final String key)
+        {
+        final Points points = this.m_points;
+        final int length = points.m_hashes.length;
+        if (length == 0)
+            {
+            return null;
+            }
+        int i = Arrays.binarySearch(points.m_hashes, hash(key));
+        if (i < 0)
+            {
+            i = -i - 1;
+            }
+        for (int n = 0; n < length; n++)
+            {
+            final Backend backend = points.m_owners[(i + n) % length];
+            if (backend.isUp())
+                {
+                return backend;
+                }
+            }
+        return null;
+        }
+
+    /**
+     * Adds a backend to the ring, unless it's already there.
+     *
+     * @param hostAndPort The backend's address, as "host:port".
+     * @return The backend.
+     */
+    public synchronized Backend add(final String hostAndPort)
+        {
+        final Backend added = new Backend(hostAndPort);
+        for (final Backend backend : this.m_backends)
+            {
+            if (backend.getName().equals(added.getName()))
+                {
+                return backend;
+                }
+            }
+        this.m_backends.add(added);
+        rebuild();
+        return added;
+        }
+
+    /**
+     * Removes a backend from the ring.
+     *
+     * @param hostAndPort The backend's address, as "host:port".
+     * @return The backend we removed, or <code>null</code> if it wasn't in
+     * the ring.
+     */
+    public synchronized Backend remove(final String hostAndPort)
+        {
+        final String name = new Backend(hostAndPort).getName();
+        for (final Backend backend : this.m_backends)
+            {
+            if (backend.getName().equals(name))
+                {
+                this.m_backends.remove(backend);
+                rebuild();
+                return backend;
+                }
+            }
+        return null;
+        }
+
+    /**
+     * Accessor for the backends in the ring.
+     *
+     * @return A copy of the list of backends.
+     */
+    public synchronized List<Backend> getBackends()
+        {
+        return new ArrayList<Backend>(this.m_backends);
+        }
+
+    private void rebuild()
+        {
+        final Map<Integer, Backend> ring = new TreeMap<Integer, Backend>();
+        for (final Backend backend : this.m_backends)
+            {
+            for (int i = 0; i < this.m_pointsPerBackend; i++)
+                {
+                final Integer point =
+                    Integer.valueOf(hash(backend.getName() + "#" + i));
+                // On the rare collision the first backend keeps the point,
+                // which every balancer agrees on.
+                if (!ring.containsKey(point))
+                    {
+                    ring.put(point, backend);
+                    }
+                }
+            }
+        final int[] hashes = new int[ring.size()];
+        final Backend[] owners = new Backend[ring.size()];
+        int i = 0;
+        for (final Map.Entry<Integer, Backend> point : ring.entrySet())
+            {
+            hashes[i] = point.getKey().intValue();
+            owners[i] = point.getValue();
+            i++;
+            }
+        this.m_points = new Points(hashes, owners);
+        }
+
+    /**
+     * Hashes a key onto the ring.  FNV-1a is cheap and the same on every
+     * JVM, and the MurmurHash3 finalizer after it spreads keys that only
+     * differ in their last character, like consecutive user numbers.
+     *
+     * @param key The key.
+     * @return The key's point on the ring.
+     */
+    static int hash(final String key)
+        {
+        int h = 0x811c9dc5;
+        for (int i = 0; i < key.length(); i++)
+            {
+            h ^= key.charAt(i);
+            h *= 0x01000193;
+            }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+        }
+
+    private static final class Points
+        {
+        private final int[] m_hashes;
+        private final Backend[] m_owners;
+
+        private Points(final int[] hashes, final Backend[] owners)
+            {
+            this.m_hashes = hashes;
+            this.m_owners = owners;
+            }
+        }
+
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName() + " " + getBackends();
+        }
+    }
@@ -0,0 +1,889 @@
+package org.lastbamboo.common.sip.proxy.balancer;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.ConnectFuture;
+import org.littleshoot.mina.common.IoFuture;
+import org.littleshoot.mina.common.IoFutureListener;
+import org.littleshoot.mina.common.IoHandler;
+import org.littleshoot.mina.common.IoHandlerAdapter;
+import org.littleshoot.mina.common.IoService;
+import org.littleshoot.mina.common.IoServiceConfig;
+import org.littleshoot.mina.common.IoServiceListener;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.common.ThreadModel;
+import org.littleshoot.mina.filter.codec.ProtocolCodecFactory;
+import org.littleshoot.mina.filter.codec.ProtocolCodecFilter;
+import org.littleshoot.mina.transport.socket.nio.SocketConnector;
+import org.littleshoot.mina.transport.socket.nio.SocketConnectorConfig;
+import org.littleshoot.mina.transport.socket.nio.SocketSessionConfig;
+import org.lastbamboo.common.sip.proxy.FlowTable;
+import org.lastbamboo.common.sip.proxy.IdleSessionReaper;
+import org.lastbamboo.common.sip.proxy.LocalResponseWriter;
+import org.lastbamboo.common.sip.proxy.OptionsResponder;
+import org.lastbamboo.common.sip.proxy.SipHeaderRewriter;
+import org.lastbamboo.common.sip.proxy.SipProxy;
+import org.lastbamboo.common.sip.proxy.metrics.StripedCounter;
+import org.lastbamboo.common.sip.proxy.transport.CompactHeaderExpansionFilter;
+import org.lastbamboo.common.sip.proxy.transport.CompactSipCodecFactory;
+import org.lastbamboo.common.sip.proxy.transport.SipListenerConfig;
+import org.lastbamboo.common.sip.proxy.transport.SipMessageSizeFilter;
+import org.lastbamboo.common.sip.proxy.transport.SipServerTransport;
+import org.lastbamboo.common.sip.proxy.transport.SipServerTransportFactory;
+import org.lastbamboo.common.sip.proxy.transport.UnknownMethodResponseFilter;
+import org.lastbamboo.common.sip.stack.message.DoubleCrlfKeepAlive;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.SipMessageUtils;
+import org.lastbamboo.common.sip.stack.message.SipResponse;
+import org.lastbamboo.common.sip.stack.message.UnknownSipRequest;
+import org.lastbamboo.common.sip.stack.message.header.SipHeader;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderNames;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderValue;
+import org.littleshoot.util.JmxUtils;
+import org.littleshoot.util.RuntimeIoException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stateless front end that spreads users over several proxies, each with
+ * its own registrar.  REGISTERs go to the backend that owns the user in
+ * the To header on a consistent hash ring, and every other request goes
+ * to the backend that owns the user in its Request-URI, so calls reach
+ * whichever backend the callee registered with.  We add a Via to every
+ * request we pass on and take it off the responses, and we do no
+ * registrar or transaction work of our own.
+ * <p>
+ * Each client gets its own connection to each backend it talks to.  A
+ * backend's registrar maps users to the connection they registered on,
+ * so when a backend sends us a request for a user, the connection it
+ * arrives on tells us which client it's for without us keeping any
+ * registrations.  Responses from clients find their backend connection
+ * through the flow token on our Via.  When the connection a client
+ * registered through closes, or its backend fails its health checks, we
+ * disconnect the client so it registers again with whichever backend now
+ * owns it.
+ * <p>
+ * Users are hashed by the user part alone, since clients put their own
+ * addresses rather than the domain in the Request-URIs of requests within
+ * dialogs.
+ */
+public class SipLoadBalancer extends IoHandlerAdapter implements SipProxy,
+    IoServiceListener, BackendListener, SipLoadBalancerMBean
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private static final String MAGIC_COOKIE = "z9hG4bK";
+
+    /**
+     * Ends the branch of every Via we add, so we can tell ours apart.
+     */
+    private static final String BRANCH_SUFFIX = ".lb";
+
+    private static final int DEFAULT_MAX_FORWARDS = 70;
+
+    private static final String PAIRS = "SIP_LB_PAIRS";
+
+    private static final String REGISTERED_WITH = "SIP_LB_REGISTERED_WITH";
+
+    private static final String REGISTERED_KEY = "SIP_LB_REGISTERED_KEY";
+
+    private static final String RETRY_AFTER = "Retry-After: 5";
+
+    private static final byte[] PING = {'\r', '\n', '\r', '\n'};
+
+    private final HashRing m_ring;
+
+    private final BackendHealthChecker m_healthChecker;
+
+    private final SipHeaderFactory m_headerFactory;
+
+    private final SipListenerConfig m_listenerConfig;
+
+    private final FlowTable m_flowTable;
+
+    private final IdleSessionReaper m_reaper;
+
+    private final SipServerTransport m_serverTransport;
+
+    private final SocketConnector m_connector;
+
+    private final SocketConnectorConfig m_connectorConfig;
+
+    private final LocalResponseWriter m_responseWriter =
+        new LocalResponseWriter();
+
+    private final OptionsResponder m_optionsResponder =
+        new OptionsResponder(m_responseWriter);
+
+    private final Map<IoSession, Boolean> m_clients =
+        new ConcurrentHashMap<IoSession, Boolean>();
+
+    private final AtomicBoolean m_serviceActivated = new AtomicBoolean(false);
+
+    private volatile int m_boundPort = -1;
+
+    private final StripedCounter m_forwarded = new StripedCounter();
+
+    private final StripedCounter m_relayed = new StripedCounter();
+
+    private final StripedCounter m_rejected = new StripedCounter();
+
+    /**
+     * Creates a new load balancer.
+     *
+     * @param ring The backends.
+     * @param healthChecker The class that takes failed backends out of the
+     * ring.
+     * @param headerFactory The factory for creating headers.
+     * @param serverTransportFactory The factory for the transport clients
+     * connect to.
+     * @param listenerConfig The listener configuration.
+     * @param flowTable The table of flow tokens for our connections to
+     * backends.
+     */
+    public SipLoadBalancer(final HashRing ring,
+        final BackendHealthChecker healthChecker,
+        final SipHeaderFactory headerFactory,
+        final SipServerTransportFactory serverTransportFactory,
+        final SipListenerConfig listenerConfig, final FlowTable flowTable)
+        {
+        this.m_ring = ring;
+        this.m_healthChecker = healthChecker;
+        this.m_headerFactory = headerFactory;
+        this.m_listenerConfig = listenerConfig;
+        this.m_flowTable = flowTable;
+        this.m_reaper = new IdleSessionReaper(
+            listenerConfig.getIdleTimeoutMillis(),
+            listenerConfig.getIdleTickMillis());
+
+        final ProtocolCodecFactory codecFactory =
+            new CompactSipCodecFactory(headerFactory);
+        this.m_serverTransport =
+            serverTransportFactory.newTransport(codecFactory, this, this);
+
+        this.m_connector = new SocketConnector(
+            listenerConfig.getIoProcessors(), Executors.newCachedThreadPool());
+        this.m_connectorConfig = new SocketConnectorConfig();
+        this.m_connectorConfig.setThreadModel(ThreadModel.MANUAL);
+        this.m_connectorConfig.getFilterChain().addLast("limits",
+            new SipMessageSizeFilter(listenerConfig.getMaxHeaderBytes(),
+                listenerConfig.getMaxBodyBytes()));
+        this.m_connectorConfig.getFilterChain().addLast("expand",
+            new CompactHeaderExpansionFilter());
+        this.m_connectorConfig.getFilterChain().addLast("methods",
+            new UnknownMethodResponseFilter());
+        this.m_connectorConfig.getFilterChain().addLast("codec",
+            new ProtocolCodecFilter(codecFactory));
+        final SocketSessionConfig sessionConfig =
+            this.m_connectorConfig.getSessionConfig();
+        sessionConfig.setTcpNoDelay(true);
+
+        healthChecker.addListener(this);
+        }
+
+    public void start() throws IOException
+        {
+        m_log.debug("Starting load balancer for: {}", this.m_ring);
+        this.m_reaper.start();
+        this.m_healthChecker.start();
+        this.m_serverTransport.start(this.m_listenerConfig);
+
+        // Wait for the server to really start.
+        synchronized (this.m_serviceActivated)
+            {
+            if (!this.m_serviceActivated.get())
+                {
+                try
+                    {
+                    this.m_serviceActivated.wait(6000);
+                    }
+                catch (final InterruptedException e)
+                    {
+                    m_log.error("Interrupted??", e);
+                    }
+                }
+            }
+        if (!this.m_serviceActivated.get())
+            {
+            m_log.error("Load balancer not started!!");
+            throw new RuntimeIoException("Could not start load balancer");
+            }
+        JmxUtils.register(ManagementFactory.getPlatformMBeanServer(), this);
+        }
+
+    /**
+     * Accessor for the port clients connect to.
+     *
+     * @return The port.
+     */
+    public int getSipPort()
+        {
+        if (this.m_boundPort == -1)
+            {
+            return this.m_listenerConfig.getPort();
+            }
+        return this.m_boundPort;
+        }
+
+    public void sessionCreated(final IoSession session)
+        {
+        session.setAttribute(PAIRS,
+            new ConcurrentHashMap<Backend, ConnectFuture>());
+        this.m_clients.put(session, Boolean.TRUE);
+        this.m_reaper.touch(session);
+        }
+
+    public void sessionDestroyed(final IoSession session)
+        {
+        m_log.debug("Client session was destroyed: {}", session);
+        this.m_reaper.remove(session);
+        this.m_clients.remove(session);
+
+        // The backends see our connections close and unregister the user.
+        final ConcurrentMap<Backend, ConnectFuture> pairs = getPairs(session);
+        if (pairs == null)
+            {
+            return;
+            }
+        for (final ConnectFuture future : pairs.values())
+            {
+            future.addListener(new IoFutureListener()
+                {
+                public void operationComplete(final IoFuture f)
+                    {
+                    if (future.isConnected())
+                        {
+                        future.getSession().close();
+                        }
+                    }
+                });
+            }
+        pairs.clear();
+        }
+
+    public void serviceActivated(final IoService service,
+        final SocketAddress serviceAddress, final IoHandler handler,
+        final IoServiceConfig config)
+        {
+        m_log.debug("Service activated on: {}", serviceAddress);
+        if (serviceAddress instanceof InetSocketAddress)
+            {
+            this.m_boundPort = ((InetSocketAddress) serviceAddress).getPort();
+            }
+        this.m_serviceActivated.set(true);
+        synchronized (this.m_serviceActivated)
+            {
+            this.m_serviceActivated.notify();
+            }
+        }
+
+    public void serviceDeactivated(final IoService service,
+        final SocketAddress serviceAddress, final IoHandler handler,
+        final IoServiceConfig config)
+        {
+        m_log.debug("Service deactivated on: {}", serviceAddress);
+        }
+
+    /**
+     * Handles a message from a client.
+     */
+    @Override
+    public void messageReceived(final IoSession session,
+        final Object message)
+        {
+        this.m_reaper.touch(session);
+        if (message instanceof DoubleCrlfKeepAlive)
+            {
+            this.m_reaper.pong(session);
+            pingBackends(session);
+            }
+        else if (message instanceof SipResponse)
+            {
+            relayToBackend((SipResponse) message);
+            }
+        else if (message instanceof SipMessage)
+            {
+            forwardToBackend((SipMessage) message, session);
+            }
+        }
+
+    @Override
+    public void exceptionCaught(final IoSession session,
+        final Throwable cause)
+        {
+        m_log.debug("Closing client session on error: {}", session, cause);
+        session.close();
+        }
+
+    public void onBackendDown(final Backend backend)
+        {
+        // Closing our connections disconnects the clients registered
+        // through the backend, and they register again elsewhere.
+        for (final IoSession session : backend.getSessions())
+            {
+            session.close();
+            }
+        }
+
+    public void onBackendUp(final Backend backend)
+        {
+        rebalance();
+        }
+
+    private void forwardToBackend(final SipMessage request,
+        final IoSession session)
+        {
+        if (this.m_optionsResponder.answer(request, session))
+            {
+            return;
+            }
+        final String method = OptionsResponder.getMethod(request);
+        final URI requestUri;
+        try
+            {
+            requestUri = SipMessageUtils.extractUriFromRequestLine(request);
+            }
+        catch (final IOException e)
+            {
+            reject(request, method, session, 400, "Bad Request-URI");
+            return;
+            }
+
+        final boolean register = "REGISTER".equals(method);
+        final String key;
+        if (register)
+            {
+            final SipHeader to = request.getHeader(SipHeaderNames.TO);
+            key = to == null ? null : getUser(SipMessageUtils.extractUri(to));
+            }
+        else
+            {
+            key = getUser(requestUri);
+            }
+        if (key == null)
+            {
+            reject(request, method, session, 400, "Bad Address");
+            return;
+            }
+
+        final Backend backend = this.m_ring.get(key);
+        if (backend == null)
+            {
+            m_log.debug("No backend is up for: {}", key);
+            reject(request, method, session, 503, "Service Unavailable",
+                RETRY_AFTER);
+            return;
+            }
+
+        final SipMessage forwarded =
+            toForward(request, method, requestUri, session, session, null);
+        if (forwarded == null)
+            {
+            return;
+            }
+        if (register)
+            {
+            session.setAttribute(REGISTERED_WITH, backend);
+            session.setAttribute(REGISTERED_KEY, key);
+            }
+        send(session, backend, request, method, forwarded);
+        }
+
+    /**
+     * Writes a request to the client's connection to a backend, opening
+     * the connection first if we don't have one yet.
+     */
+    private void send(final IoSession client, final Backend backend,
+        final SipMessage request, final String method,
+        final SipMessage forwarded)
+        {
+        final ConcurrentMap<Backend, ConnectFuture> pairs = getPairs(client);
+        if (pairs == null)
+            {
+            return;
+            }
+
+        // Messages from a client are handled in order on one thread, so
+        // we can't race another request from the same client here.
+        ConnectFuture pair = pairs.get(backend);
+        if (pair == null)
+            {
+            pair = this.m_connector.connect(backend.getAddress(),
+                new BackendHandler(client, backend), this.m_connectorConfig);
+            pairs.put(backend, pair);
+            }
+        final ConnectFuture future = pair;
+        future.addListener(new IoFutureListener()
+            {
+            public void operationComplete(final IoFuture f)
+                {
+                if (future.isConnected())
+                    {
+                    future.getSession().write(forwarded);
+                    m_forwarded.increment();
+                    return;
+                    }
+                m_log.debug("Could not connect to: {}", backend);
+                pairs.remove(backend, future);
+                reject(request, method, client, 503, "Service Unavailable",
+                    RETRY_AFTER);
+                }
+            });
+        }
+
+    /**
+     * Passes a response from a client back to the backend connection named
+     * by the flow token on our Via.
+     */
+    private void relayToBackend(final SipResponse response)
+        {
+        final SipHeader via = response.getHeader(SipHeaderNames.VIA);
+        if (!isOurs(via))
+            {
+            m_log.debug("Dropping response that isn't ours: {}", response);
+            return;
+            }
+        final IoSession pair = this.m_flowTable.get(
+            via.getValue().getParamValue(FlowTable.FLOW_TOKEN_PARAM),
+            via.getValue().getParamValue("branch"));
+        if (pair == null)
+            {
+            m_log.debug("Bad flow token or backend connection gone: {}",
+                response);
+            return;
+            }
+        final SipResponse stripped = stripVia(response, via);
+        if (stripped != null)
+            {
+            pair.write(stripped);
+            this.m_relayed.increment();
+            }
+        }
+
+    /**
+     * Sends our connections to backends a keepalive whenever the client
+     * sends us one, so backends don't time them out while the client is
+     * quiet.
+     */
+    private void pingBackends(final IoSession client)
+        {
+        final Map<Backend, ConnectFuture> pairs = getPairs(client);
+        if (pairs == null)
+            {
+            return;
+            }
+        for (final ConnectFuture future : pairs.values())
+            {
+            if (future.isConnected())
+                {
+                future.getSession().write(ByteBuffer.wrap(PING));
+                }
+            }
+        }
+
+    /**
+     * Disconnects clients whose users now belong to a different backend
+     * than the one they registered through, such as when a backend comes
+     * back up.  Consistent hashing means only those users move.
+     */
+    private void rebalance()
+        {
+        for (final IoSession client : this.m_clients.keySet())
+            {
+            final String key = (String) client.getAttribute(REGISTERED_KEY);
+            if (key != null &&
+                this.m_ring.get(key) != client.getAttribute(REGISTERED_WITH))
+                {
+                m_log.debug("Moving {} to a new backend", key);
+                client.close();
+                }
+            }
+        }
+
+    /**
+     * Creates the request to pass on, with our Via on top and Max-Forwards
+     * decremented.
+     *
+     * @param request The request.
+     * @param method The request's method.
+     * @param requestUri The request's Request-URI.
+     * @param session The session the request arrived on.
+     * @param client The client's session, for the address in our Via.
+     * @param flow The session for responses to come back on, which we put
+     * in our Via as a flow token, or <code>null</code> if they'll come back
+     * on the connection we send the request on.
+     * @return The request to pass on, or <code>null</code> if we've
+     * answered it with an error.
+     */
+    private SipMessage toForward(final SipMessage request,
+        final String method, final URI requestUri, final IoSession session,
+        final IoSession client, final IoSession flow)
+        {
+        final SipHeader via = request.getHeader(SipHeaderNames.VIA);
+        if (via == null || via.getValues().isEmpty())
+            {
+            reject(request, method, session, 400, "Missing Via Header");
+            return null;
+            }
+        final int maxForwards = getMaxForwards(request);
+        if (maxForwards < 0)
+            {
+            reject(request, method, session, 400, "Bad Max-Forwards");
+            return null;
+            }
+        if (maxForwards == 0)
+            {
+            reject(request, method, session, 483, "Too Many Hops");
+            return null;
+            }
+
+        // Deriving our branch from the incoming one gives retransmissions
+        // and CANCELs the same branch as the request they go with.
+        final String incoming = via.getValue().getParamValue("branch");
+        final String branch = MAGIC_COOKIE + Integer.toHexString(
+            incoming == null ? 0 : incoming.hashCode()) + BRANCH_SUFFIX;
+
+        final InetSocketAddress local =
+            (InetSocketAddress) client.getLocalAddress();
+        final StringBuilder sb = new StringBuilder(256);
+        sb.append("SIP/2.0/TCP ");
+        sb.append(local.getAddress().getHostAddress());
+        sb.append(':');
+        sb.append(local.getPort());
+        sb.append(";branch=");
+        sb.append(branch);
+        // The token is signed for our branch, so it only brings back 
+        // responses to this request.
+        final String token = 
+            flow == null ? null : this.m_flowTable.sign(flow, branch);
+        if (token != null)
+            {
+            sb.append(';');
+            sb.append(FlowTable.FLOW_TOKEN_PARAM);
+            sb.append('=');
+            sb.append(token);
+            }
+        for (final SipHeaderValue value : via.getValues())
+            {
+            sb.append(',');
+            SipHeaderRewriter.render(value, sb);
+            }
+
+        final Map<String, SipHeader> headers = request.getHeaders();
+        headers.put(SipHeaderNames.VIA, this.m_headerFactory.createHeader(
+            SipHeaderNames.VIA, sb.toString()));
+        headers.put(SipHeaderNames.MAX_FORWARDS,
+            this.m_headerFactory.createMaxForwards(maxForwards - 1));
+        return new UnknownSipRequest(method, requestUri, headers,
+            request.getBody());
+        }
+
+    /**
+     * Takes our Via off a response.
+     *
+     * @return The response to pass on, or <code>null</code> if there's
+     * nothing left to route it by.
+     */
+    private SipResponse stripVia(final SipResponse response,
+        final SipHeader via)
+        {
+        final List<SipHeaderValue> values = via.getValues();
+        if (values.size() < 2)
+            {
+            m_log.debug("No Via left to route by: {}", response);
+            return null;
+            }
+        final StringBuilder sb = new StringBuilder(256);
+        for (int i = 1; i < values.size(); i++)
+            {
+            if (i > 1)
+                {
+                sb.append(',');
+                }
+            SipHeaderRewriter.render(values.get(i), sb);
+            }
+        final Map<String, SipHeader> headers = response.getHeaders();
+        headers.put(SipHeaderNames.VIA, this.m_headerFactory.createHeader(
+            SipHeaderNames.VIA, sb.toString()));
+        return new SipResponse(response.getStatusCode(),
+            response.getReasonPhrase(), headers, response.getBody());
+        }
+
+    private void reject(final SipMessage request, final String method,
+        final IoSession session, final int statusCode,
+        final String reasonPhrase, final String... extraHeaders)
+        {
+        this.m_rejected.increment();
+        if ("ACK".equals(method))
+            {
+            // ACKs never get responses.
+            m_log.debug("Dropping ACK we can't forward: {}", reasonPhrase);
+            return;
+            }
+        this.m_responseWriter.write(session, request, statusCode,
+            reasonPhrase, extraHeaders);
+        }
+
+    private static boolean isOurs(final SipHeader via)
+        {
+        if (via == null || via.getValues().isEmpty())
+            {
+            return false;
+            }
+        final String branch = via.getValue().getParamValue("branch");
+        return branch != null && branch.startsWith(MAGIC_COOKIE) &&
+            branch.endsWith(BRANCH_SUFFIX);
+        }
+
+    @SuppressWarnings("unchecked")
+    private static ConcurrentMap<Backend, ConnectFuture> getPairs(
+        final IoSession client)
+        {
+        return (ConcurrentMap<Backend, ConnectFuture>)
+            client.getAttribute(PAIRS);
+        }
+
+    /**
+     * Accessor for the user part of a URI, or the whole URI if it has no
+     * user, such as a Request-URI naming a host.
+     */
+    private static String getUser(final URI uri)
+        {
+        if (uri == null)
+            {
+            return null;
+            }
+        final String ssp = uri.getSchemeSpecificPart();
+        if (ssp == null)
+            {
+            return null;
+            }
+        final int at = ssp.indexOf('@');
+        return at == -1 ? ssp : ssp.substring(0, at);
+        }
+
+    private static int getMaxForwards(final SipMessage request)
+        {
+        final SipHeader header =
+            request.getHeader(SipHeaderNames.MAX_FORWARDS);
+        if (header == null)
+            {
+            return DEFAULT_MAX_FORWARDS;
+            }
+        try
+            {
+            return Integer.parseInt(header.getValue().getBaseValue().trim());
+            }
+        catch (final NumberFormatException e)
+            {
+            return -1;
+            }
+        }
+
+    public String[] getBackends()
+        {
+        final List<Backend> backends = this.m_ring.getBackends();
+        final String[] strings = new String[backends.size()];
+        for (int i = 0; i < strings.length; i++)
+            {
+            final Backend backend = backends.get(i);
+            strings[i] = backend.getName() +
+                (backend.isUp() ? " up, " : " down, ") +
+                backend.getSessions().size() + " connections";
+            }
+        return strings;
+        }
+
+    public int getBackendsUp()
+        {
+        int up = 0;
+        for (final Backend backend : this.m_ring.getBackends())
+            {
+            if (backend.isUp())
+                {
+                up++;
+                }
+            }
+        return up;
+        }
+
+    public int getClients()
+        {
+        return this.m_clients.size();
+        }
+
+    public long getRequestsForwarded()
+        {
+        return this.m_forwarded.sum();
+        }
+
+    public long getResponsesRelayed()
+        {
+        return this.m_relayed.sum();
+        }
+
+    public long getRequestsRejected()
+        {
+        return this.m_rejected.sum();
+        }
+
+    public void addBackend(final String hostAndPort)
+        {
+        m_log.info("Adding backend: {}", hostAndPort);
+        this.m_ring.add(hostAndPort);
+        rebalance();
+        }
+
+    public void removeBackend(final String hostAndPort)
+        {
+        m_log.info("Removing backend: {}", hostAndPort);
+        final Backend backend = this.m_ring.remove(hostAndPort);
+        if (backend != null)
+            {
+            onBackendDown(backend);
+            }
+        }
+
+    /**
+     * Handler for one client's connection to one backend.
+     */
+    private final class BackendHandler extends IoHandlerAdapter
+        {
+
+        private final IoSession m_client;
+
+        private final Backend m_backend;
+
+        private BackendHandler(final IoSession client, final Backend backend)
+            {
+            this.m_client = client;
+            this.m_backend = backend;
+            }
+
+        @Override
+        public void sessionCreated(final IoSession session)
+            {
+            if (m_flowTable.add(session) == -1)
+                {
+                m_log.warn("Flow table full -- no token for: {}", session);
+                }
+            this.m_backend.addSession(session);
+            }
+
+        @Override
+        public void sessionClosed(final IoSession session)
+            {
+            m_flowTable.remove(session);
+            this.m_backend.removeSession(session);
+            final ConcurrentMap<Backend, ConnectFuture> pairs =
+                getPairs(this.m_client);
+            if (pairs != null)
+                {
+                final ConnectFuture future = pairs.get(this.m_backend);
+                if (future != null && future.isConnected() &&
+                    future.getSession() == session)
+                    {
+                    pairs.remove(this.m_backend, future);
+                    }
+                }
+            if (this.m_client.getAttribute(REGISTERED_WITH) == this.m_backend)
+                {
+                // The backend no longer has the client's registration.
+                m_log.debug("Lost registration backend for: {}",
+                    this.m_client);
+                this.m_client.close();
+                }
+            }
+
+        @Override
+        public void messageReceived(final IoSession session,
+            final Object message)
+            {
+            if (message instanceof SipResponse)
+                {
+                final SipResponse response = (SipResponse) message;
+                final SipHeader via = response.getHeader(SipHeaderNames.VIA);
+                if (!isOurs(via))
+                    {
+                    m_log.debug("Dropping response that isn't ours: {}",
+                        response);
+                    return;
+                    }
+                final SipResponse stripped = stripVia(response, via);
+                if (stripped != null)
+                    {
+                    this.m_client.write(stripped);
+                    m_relayed.increment();
+                    }
+                }
+            else if (message instanceof SipMessage &&
+                !(message instanceof DoubleCrlfKeepAlive))
+                {
+                forwardToClient((SipMessage) message, session);
+                }
+            }
+
+        /**
+         * Passes a request from a backend on to the client, with the flow
+         * token of the backend connection on our Via for the responses.
+         */
+        private void forwardToClient(final SipMessage request,
+            final IoSession session)
+            {
+            final String method = OptionsResponder.getMethod(request);
+            final URI requestUri;
+            try
+                {
+                requestUri =
+                    SipMessageUtils.extractUriFromRequestLine(request);
+                }
+            catch (final IOException e)
+                {
+                reject(request, method, session, 400, "Bad Request-URI");
+                return;
+                }
+            if (m_flowTable.getToken(session) == -1)
+                {
+                reject(request, method, session, 503, "Service Unavailable",
+                    RETRY_AFTER);
+                return;
+                }
+            final SipMessage forwarded =
+                toForward(request, method, requestUri, session,
+                    this.m_client, session);
+            if (forwarded != null)
+                {
+                this.m_client.write(forwarded);
+                m_forwarded.increment();
+                }
+            }
+
+        @Override
+        public void exceptionCaught(final IoSession session,
+            final Throwable cause)
+            {
+            m_log.debug("Closing backend session on error: {}", session,
+                cause);
+            session.close();
+            }
+        }
+
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName();
+        }
+    }
@@ -0,0 +1,67 @@
+package org.lastbamboo.common.sip.proxy.balancer;
+
+/**
+ * MBean for monitoring the load balancer and changing its backends.
+ */
+public interface SipLoadBalancerMBean
+    {
+
+    /**
+     * Accessor for the backends, each with whether it's up and how many
+     * connections we have open to it.
+     *
+     * @return The backends.
+     */
+    String[] getBackends();
+
+    /**
+     * Accessor for the number of backends passing their health checks.
+     *
+     * @return The number of backends that are up.
+     */
+    int getBackendsUp();
+
+    /**
+     * Accessor for the number of clients connected to us.
+     *
+     * @return The number of clients.
+     */
+    int getClients();
+
+    /**
+     * Accessor for the number of requests we've forwarded either way.
+     *
+     * @return The number of requests forwarded.
+     */
+    long getRequestsForwarded();
+
+    /**
+     * Accessor for the number of responses we've relayed either way.
+     *
+     * @return The number of responses relayed.
+     */
+    long getResponsesRelayed();
+
+    /**
+     * Accessor for the number of requests we've answered with an error
+     * rather than forwarded.
+     *
+     * @return The number of requests rejected.
+     */
+    long getRequestsRejected();
+
+    /**
+     * Adds a backend.  Clients whose users now belong to it are
+     * disconnected so they register again through it.
+     *
+     * @param hostAndPort The backend's address, as "host:port".
+     */
+    void addBackend(String hostAndPort);
+
+    /**
+     * Removes a backend, disconnecting the clients registered through it.
+     *
+     * @param hostAndPort The backend's address, as "host:port".
+     */
+    void removeBackend(String hostAndPort);
+    }
@@ -0,0 +1,138 @@
+package org.lastbamboo.common.sip.proxy.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoFilterAdapter;
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.proxy.transport.ProxySipMessageEncoder;
+import org.lastbamboo.common.sip.stack.codec.encoder.SipMessageEncoder;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Filter that records every decoded inbound message, along with 
+ * connection opens and closes, to a capture file for later replay.  It 
+ * goes after the codec in the filter chain.  If the file can't be written
+ * we log it and stop capturing rather than affect live traffic.
+ */
+public class SipCaptureFilter extends IoFilterAdapter
+    {
+
+    private static final String SESSION_ID = "CAPTURE_SESSION_ID";
+    
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+    
+    private final SipCaptureWriter m_writer;
+    
+    private final SipMessageEncoder m_encoder = 
+        new ProxySipMessageEncoder();
+    
+    private final AtomicInteger m_sessionIds = new AtomicInteger(0);
+    
+    private volatile boolean m_failed;
+
+    /**
+     * Creates a new filter writing to the specified file.
+     * 
+     * @param file The file to capture to.
+     * @throws IOException If the file can't be created.
+     */
+    public SipCaptureFilter(final File file) throws IOException
+        {
+        this.m_writer = new SipCaptureWriter(file);
+        m_log.info("Capturing SIP traffic to: {}", file);
+        
+        // The proxy has no orderly shutdown, so make sure the tail of the
+        // capture makes it to disk when the process exits.
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+            {
+            public void run()
+                {
+                try
+                    {
+                    m_writer.close();
+                    }
+                catch (final IOException e)
+                    {
+                    m_log.warn("Could not close capture", e);
+                    }
+                }
+            }, "SIP-Capture-Close"));
+        }
+    
+    @Override
+    public void sessionOpened(final NextFilter nextFilter, 
+        final IoSession session) throws Exception
+        {
+        final int id = this.m_sessionIds.incrementAndGet();
+        session.setAttribute(SESSION_ID, Integer.valueOf(id));
+        write(SipCaptureRecord.Type.OPEN, id, null);
+        nextFilter.sessionOpened(session);
+        }
+
+    @Override
+    public void messageReceived(final NextFilter nextFilter, 
+        final IoSession session, final Object message) throws Exception
+        {
+        if (!this.m_failed && message instanceof SipMessage)
+            {
+            final SipMessage sipMessage = (SipMessage) message;
+            
+            // The encoder reads the body buffer, and the message still has
+            // to be forwarded with its body intact.
+            final ByteBuffer body = sipMessage.getBody();
+            final int bodyPosition = body == null ? 0 : body.position();
+            final ByteBuffer buf = this.m_encoder.encode(sipMessage);
+            if (body != null)
+                {
+                body.position(bodyPosition);
+                }
+            final byte[] bytes = new byte[buf.remaining()];
+            buf.get(bytes);
+            write(SipCaptureRecord.Type.MESSAGE, sessionId(session), bytes);
+            }
+        nextFilter.messageReceived(session, message);
+        }
+
+    @Override
+    public void sessionClosed(final NextFilter nextFilter, 
+        final IoSession session) throws Exception
+        {
+        write(SipCaptureRecord.Type.CLOSE, sessionId(session), null);
+        nextFilter.sessionClosed(session);
+        }
+    
+    @Override
+    public void destroy() throws Exception
+        {
+        this.m_writer.close();
+        }
+    
+    private static int sessionId(final IoSession session)
+        {
+        final Integer id = (Integer) session.getAttribute(SESSION_ID);
+        return id == null ? 0 : id.intValue();
+        }
+
+    private void write(final SipCaptureRecord.Type type, final int sessionId,
+        final byte[] message)
+        {
+        if (this.m_failed)
+            {
+            return;
+            }
+        try
+            {
+            this.m_writer.write(type, sessionId, message);
+            }
+        catch (final IOException e)
+            {
+            m_log.error("Could not write capture, disabling it", e);
+            this.m_failed = true;
+            }
+        }
+    }
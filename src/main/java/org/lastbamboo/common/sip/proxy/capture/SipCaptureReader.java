@@ -0,0 +1,104 @@
+package org.lastbamboo.common.sip.proxy.capture;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads the records written by {@link SipCaptureWriter}.
+ */
+public class SipCaptureReader
+    {
+
+    private static final SipCaptureRecord.Type[] TYPES = 
+        SipCaptureRecord.Type.values();
+    
+    private final DataInputStream m_in;
+    
+    private long m_micros;
+
+    /**
+     * Opens a capture file.
+     * 
+     * @param file The file to read.
+     * @throws IOException If the file can't be read or isn't a capture.
+     */
+    public SipCaptureReader(final File file) throws IOException
+        {
+        this.m_in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(file), 64 * 1024));
+        if (this.m_in.readInt() != SipCaptureWriter.MAGIC)
+            {
+            this.m_in.close();
+            throw new IOException("Not a SIP capture: "+file);
+            }
+        final int version = this.m_in.readUnsignedByte();
+        if (version != SipCaptureWriter.VERSION)
+            {
+            this.m_in.close();
+            throw new IOException("Unsupported capture version: "+version);
+            }
+        }
+    
+    /**
+     * Reads the next record.
+     * 
+     * @return The next record, or <code>null</code> at the end of the file.
+     * @throws IOException If the file can't be read.
+     */
+    public SipCaptureRecord next() throws IOException
+        {
+        final int type = this.m_in.read();
+        if (type == -1)
+            {
+            return null;
+            }
+        if (type >= TYPES.length)
+            {
+            throw new IOException("Bad record type: "+type);
+            }
+        this.m_micros += readVarLong(this.m_in);
+        final int sessionId = (int) readVarLong(this.m_in);
+        byte[] message = null;
+        if (TYPES[type] == SipCaptureRecord.Type.MESSAGE)
+            {
+            message = new byte[(int) readVarLong(this.m_in)];
+            this.m_in.readFully(message);
+            }
+        return new SipCaptureRecord(TYPES[type], this.m_micros, sessionId, 
+            message);
+        }
+    
+    /**
+     * Closes the file.
+     * 
+     * @throws IOException If the file can't be closed.
+     */
+    public void close() throws IOException
+        {
+        this.m_in.close();
+        }
+    
+    private static long readVarLong(final DataInputStream in) 
+        throws IOException
+        {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7)
+            {
+            final int b = in.read();
+            if (b == -1)
+                {
+                throw new EOFException("Truncated record");
+                }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                {
+                return value;
+                }
+            }
+        throw new IOException("Malformed varint");
+        }
+    }
@@ -0,0 +1,103 @@
+package org.lastbamboo.common.sip.proxy.capture;
+
+/**
+ * A single event in a capture file.
+ */
+public class SipCaptureRecord
+    {
+
+    /**
+     * The kinds of records.
+     */
+    public enum Type
+        {
+        /**
+         * A client connected.
+         */
+        OPEN,
+        
+        /**
+         * A client sent a message.
+         */
+        MESSAGE,
+        
+        /**
+         * A client's connection closed.
+         */
+        CLOSE,
+        }
+    
+    private final Type m_type;
+    
+    private final long m_micros;
+    
+    private final int m_sessionId;
+    
+    private final byte[] m_message;
+
+    /**
+     * Creates a new record.
+     * 
+     * @param type The type of the record.
+     * @param micros When the event happened, in microseconds since the 
+     * capture started.
+     * @param sessionId The ID of the session, unique within the capture.
+     * @param message The encoded message, or <code>null</code> for 
+     * records other than messages.
+     */
+    public SipCaptureRecord(final Type type, final long micros, 
+        final int sessionId, final byte[] message)
+        {
+        this.m_type = type;
+        this.m_micros = micros;
+        this.m_sessionId = sessionId;
+        this.m_message = message;
+        }
+
+    /**
+     * Accessor for the type of the record.
+     * 
+     * @return The type of the record.
+     */
+    public Type getType()
+        {
+        return m_type;
+        }
+
+    /**
+     * Accessor for when the event happened.
+     * 
+     * @return Microseconds since the capture started.
+     */
+    public long getMicros()
+        {
+        return m_micros;
+        }
+
+    /**
+     * Accessor for the session ID.
+     * 
+     * @return The session ID, unique within the capture.
+     */
+    public int getSessionId()
+        {
+        return m_sessionId;
+        }
+
+    /**
+     * Accessor for the message.
+     * 
+     * @return The message as it would appear on the wire, or 
+     * <code>null</code> for records other than messages.
+     */
+    public byte[] getMessage()
+        {
+        return m_message;
+        }
+    
+    @Override
+    public String toString()
+        {
+        return m_type + " " + m_sessionId + " @" + m_micros;
+        }
+    }
@@ -0,0 +1,119 @@
+package org.lastbamboo.common.sip.proxy.capture;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes capture records to a file.  The file starts with 
+ * {@link #MAGIC} and {@link #VERSION}, followed by records of the form:
+ * <pre>
+ * type (1 byte) | time delta in micros (varint) | session ID (varint) |
+ * [message length (varint) | message bytes]
+ * </pre>
+ * where the message part is only present for messages.  Time deltas are
+ * relative to the previous record, which keeps the common case to a byte
+ * or two.
+ */
+public class SipCaptureWriter
+    {
+
+    /**
+     * The bytes every capture file starts with.
+     */
+    public static final int MAGIC = 0x53495043;
+    
+    /**
+     * The current version of the format.
+     */
+    public static final int VERSION = 1;
+    
+    private static final long FLUSH_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    
+    private final DataOutputStream m_out;
+    
+    private final long m_start = System.nanoTime();
+    
+    private long m_lastMicros;
+    
+    private long m_lastFlush = m_start;
+    
+    private boolean m_closed;
+
+    /**
+     * Creates a new writer, truncating any existing file.
+     * 
+     * @param file The file to write to.
+     * @throws IOException If the file can't be opened.
+     */
+    public SipCaptureWriter(final File file) throws IOException
+        {
+        this.m_out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(file), 64 * 1024));
+        this.m_out.writeInt(MAGIC);
+        this.m_out.writeByte(VERSION);
+        }
+    
+    /**
+     * Writes a record, stamping it with the current time.  Writes are
+     * flushed at least once a second.
+     * 
+     * @param type The type of the record.
+     * @param sessionId The ID of the session.
+     * @param message The encoded message, or <code>null</code>.
+     * @throws IOException If the record can't be written.
+     */
+    public synchronized void write(final SipCaptureRecord.Type type, 
+        final int sessionId, final byte[] message) throws IOException
+        {
+        if (this.m_closed)
+            {
+            return;
+            }
+        final long now = System.nanoTime();
+        final long micros = TimeUnit.NANOSECONDS.toMicros(now - this.m_start);
+        this.m_out.writeByte(type.ordinal());
+        writeVarLong(this.m_out, Math.max(0, micros - this.m_lastMicros));
+        writeVarLong(this.m_out, sessionId);
+        if (message != null)
+            {
+            writeVarLong(this.m_out, message.length);
+            this.m_out.write(message);
+            }
+        this.m_lastMicros = Math.max(this.m_lastMicros, micros);
+        if (now - this.m_lastFlush > FLUSH_INTERVAL)
+            {
+            this.m_out.flush();
+            this.m_lastFlush = now;
+            }
+        }
+    
+    /**
+     * Flushes and closes the file.
+     * 
+     * @throws IOException If the file can't be closed.
+     */
+    public synchronized void close() throws IOException
+        {
+        if (!this.m_closed)
+            {
+            this.m_closed = true;
+            this.m_out.close();
+            }
+        }
+    
+    private static void writeVarLong(final DataOutputStream out, 
+        final long value) throws IOException
+        {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0)
+            {
+            out.writeByte((int) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+            }
+        out.writeByte((int) remaining);
+        }
+    }
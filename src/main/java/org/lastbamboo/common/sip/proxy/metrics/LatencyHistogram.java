@@ -0,0 +1,139 @@
+package org.lastbamboo.common.sip.proxy.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-memory latency histogram in the style of HdrHistogram.  Values are
+ * recorded in microseconds into log-linear buckets: each power of two range
+ * is split into 32 equal sub-buckets, so any percentile we report is within
+ * about 3% of the true value.  Recording is a few shifts and one atomic 
+ * increment, with no allocation.
+ */
+public class LatencyHistogram
+    {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    
+    /**
+     * Values at or above 2^MAX_BITS microseconds, about 19 hours, are 
+     * recorded in the top bucket.
+     */
+    private static final int MAX_BITS = 36;
+    
+    private static final int NUM_BUCKETS = 
+        (MAX_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    
+    private final AtomicLongArray m_counts = new AtomicLongArray(NUM_BUCKETS);
+    
+    private final StripedCounter m_total = new StripedCounter();
+
+    /**
+     * Records the time elapsed since the specified start time.
+     * 
+     * @param startNanos The start time from {@link System#nanoTime()}.
+     */
+    public void recordSince(final long startNanos)
+        {
+        recordMicros(
+            TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+        }
+    
+    /**
+     * Records a latency.
+     * 
+     * @param micros The latency in microseconds.
+     */
+    public void recordMicros(final long micros)
+        {
+        this.m_counts.incrementAndGet(bucket(Math.max(0, micros)));
+        this.m_total.increment();
+        }
+    
+    /**
+     * Accessor for the value at the specified percentile.
+     * 
+     * @param percentile The percentile, such as 99.9.
+     * @return The latency in microseconds at the percentile, or 0 if nothing
+     * has been recorded.
+     */
+    public long getPercentileMicros(final double percentile)
+        {
+        final long total = this.m_total.sum();
+        if (total == 0)
+            {
+            return 0;
+            }
+        final long rank = 
+            Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++)
+            {
+            seen += this.m_counts.get(i);
+            if (seen >= rank)
+                {
+                return upperBound(i);
+                }
+            }
+        return upperBound(NUM_BUCKETS - 1);
+        }
+    
+    /**
+     * Accessor for the number of values recorded.
+     * 
+     * @return The number of values recorded.
+     */
+    public long getCount()
+        {
+        return this.m_total.sum();
+        }
+    
+    /**
+     * Clears the histogram.
+     */
+    public void reset()
+        {
+        for (int i = 0; i < NUM_BUCKETS; i++)
+            {
+            this.m_counts.set(i, 0);
+            }
+        this.m_total.reset();
+        }
+    
+    private static int bucket(final long value)
+        {
+        if (value < SUB_BUCKETS)
+            {
+            return (int) value;
+            }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_BITS)
+            {
+            return NUM_BUCKETS - 1;
+            }
+        final int shift = exponent - SUB_BUCKET_BITS;
+        final int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+        }
+    
+    private static long upperBound(final int bucket)
+        {
+        if (bucket < SUB_BUCKETS)
+            {
+            return bucket;
+            }
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final long sub = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+        }
+    
+    @Override
+    public String toString()
+        {
+        return "p50=" + getPercentileMicros(50) + "us p99=" + 
+            getPercentileMicros(99) + "us p99.9=" + getPercentileMicros(99.9) +
+            "us n=" + getCount();
+        }
+    }
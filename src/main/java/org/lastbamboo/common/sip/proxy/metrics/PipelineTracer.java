@@ -0,0 +1,184 @@
+package org.lastbamboo.common.sip.proxy.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.header.SipHeader;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderNames;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records how long each stage of processing a message took, keeping only
+ * the stages that took longer than a threshold.  Slow stages are logged to
+ * the "org.lastbamboo.common.sip.proxy.trace" category and kept in a 
+ * bounded in-memory ring that's readable over JMX, so a slow call can be 
+ * inspected after the fact by Call-ID.
+ * <p>
+ * Tracing is off by default.  When it's off, {@link #start()} is a single
+ * volatile read and {@link #end(Stage, SipMessage, long)} returns 
+ * immediately.
+ */
+public class PipelineTracer implements PipelineTracerMBean
+    {
+
+    private static final Logger TRACE_LOG = 
+        LoggerFactory.getLogger("org.lastbamboo.common.sip.proxy.trace");
+    
+    /**
+     * The stages we time.
+     */
+    public enum Stage
+        {
+        /**
+         * The visitor's processing of an INVITE, end to end.
+         */
+        VISIT_INVITE,
+        
+        /**
+         * Creating the INVITE to forward, including adding our Via.
+         */
+        CREATE_INVITE_TO_FORWARD,
+        
+        /**
+         * Looking up the target of a request in the registrar.
+         */
+        REGISTRAR_LOOKUP,
+        
+        /**
+         * Handing a forwarded message to the transport.
+         */
+        TRANSPORT_WRITE,
+        
+        /**
+         * The registrar's processing of a REGISTER, through writing the
+         * 200 OK.
+         */
+        REGISTER,
+        }
+    
+    private static final int RING_SIZE = 1024;
+    
+    private final AtomicReferenceArray<String> m_ring = 
+        new AtomicReferenceArray<String>(RING_SIZE);
+    
+    private final AtomicLong m_next = new AtomicLong(0);
+    
+    /**
+     * The threshold in nanoseconds, or -1 if tracing is off.
+     */
+    private volatile long m_thresholdNanos = -1;
+    
+    /**
+     * Starts timing a stage.
+     * 
+     * @return The start time to pass to 
+     * {@link #end(Stage, SipMessage, long)}, or 0 if tracing is off.
+     */
+    public long start()
+        {
+        if (this.m_thresholdNanos < 0)
+            {
+            return 0;
+            }
+        return System.nanoTime();
+        }
+    
+    /**
+     * Finishes timing a stage, recording it if it took longer than the 
+     * threshold.
+     * 
+     * @param stage The stage.
+     * @param message The message being processed.
+     * @param start The value returned from {@link #start()}.
+     */
+    public void end(final Stage stage, final SipMessage message, 
+        final long start)
+        {
+        if (start == 0)
+            {
+            return;
+            }
+        final long threshold = this.m_thresholdNanos;
+        final long elapsed = System.nanoTime() - start;
+        if (threshold < 0 || elapsed < threshold)
+            {
+            return;
+            }
+        final String event = System.currentTimeMillis() + " " + stage + 
+            " callId=" + headerValue(message, SipHeaderNames.CALL_ID) + 
+            " cseq=" + headerValue(message, SipHeaderNames.CSEQ) + 
+            " micros=" + TimeUnit.NANOSECONDS.toMicros(elapsed);
+        final int slot = (int) (this.m_next.getAndIncrement() % RING_SIZE);
+        this.m_ring.set(slot, event);
+        TRACE_LOG.info(event);
+        }
+    
+    private static String headerValue(final SipMessage message, 
+        final String name)
+        {
+        final SipHeader header = message.getHeader(name);
+        if (header == null)
+            {
+            return "";
+            }
+        return header.getValue().getBaseValue();
+        }
+    
+    public void setThresholdMicros(final long thresholdMicros)
+        {
+        if (thresholdMicros < 0)
+            {
+            this.m_thresholdNanos = -1;
+            }
+        else
+            {
+            this.m_thresholdNanos = 
+                TimeUnit.MICROSECONDS.toNanos(thresholdMicros);
+            }
+        }
+    
+    public long getThresholdMicros()
+        {
+        final long threshold = this.m_thresholdNanos;
+        if (threshold < 0)
+            {
+            return -1;
+            }
+        return TimeUnit.NANOSECONDS.toMicros(threshold);
+        }
+    
+    public String[] getSlowEvents()
+        {
+        final long next = this.m_next.get();
+        final long first = Math.max(0, next - RING_SIZE);
+        final List<String> events = new ArrayList<String>();
+        for (long i = first; i < next; i++)
+            {
+            final String event = this.m_ring.get((int) (i % RING_SIZE));
+            if (event != null)
+                {
+                events.add(event);
+                }
+            }
+        return events.toArray(new String[events.size()]);
+        }
+    
+    public void clearSlowEvents()
+        {
+        for (int i = 0; i < RING_SIZE; i++)
+            {
+            this.m_ring.set(i, null);
+            }
+        }
+    
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName();
+        }
+    }
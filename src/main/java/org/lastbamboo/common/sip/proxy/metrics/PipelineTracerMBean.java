@@ -0,0 +1,35 @@
+package org.lastbamboo.common.sip.proxy.metrics;
+
+/**
+ * MBean for controlling and reading slow message stage traces.
+ */
+public interface PipelineTracerMBean
+    {
+
+    /**
+     * Sets the duration above which a stage is recorded.  A negative value
+     * turns tracing off.
+     * 
+     * @param thresholdMicros The threshold in microseconds.
+     */
+    void setThresholdMicros(long thresholdMicros);
+    
+    /**
+     * Accessor for the duration above which a stage is recorded.
+     * 
+     * @return The threshold in microseconds, or -1 if tracing is off.
+     */
+    long getThresholdMicros();
+    
+    /**
+     * Accessor for the most recent slow stages, oldest first.
+     * 
+     * @return The most recent slow stages.
+     */
+    String[] getSlowEvents();
+    
+    /**
+     * Clears the recorded slow stages.
+     */
+    void clearSlowEvents();
+    }
@@ -0,0 +1,299 @@
+package org.lastbamboo.common.sip.proxy.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Counters and latency histograms for the proxy.  Everything here is safe
+ * to update from any number of threads without locking and is cheap enough
+ * to leave on under full load.
+ */
+public class SipMetrics implements SipMetricsMBean
+    {
+
+    /**
+     * The kinds of message we count.
+     */
+    public enum Method
+        {
+        /**
+         * REGISTER requests.
+         */
+        REGISTER,
+        
+        /**
+         * INVITE requests.
+         */
+        INVITE,
+        
+        /**
+         * Responses.
+         */
+        RESPONSE,
+        
+        /**
+         * Double CRLF keepalives.
+         */
+        KEEPALIVE,
+        
+        /**
+         * Any other request.
+         */
+        OTHER,
+        }
+    
+    /**
+     * What happened to a message.
+     */
+    public enum Outcome
+        {
+        /**
+         * We read the message.
+         */
+        RECEIVED,
+        
+        /**
+         * We forwarded the message, or for REGISTERs, accepted it.
+         */
+        FORWARDED,
+        
+        /**
+         * We answered the message with an error response ourselves.
+         */
+        REJECTED,
+        
+        /**
+         * We couldn't process the message and dropped it.
+         */
+        FAILED,
+        
+        /**
+         * The message was a retransmission, so we sent the last response
+         * again.
+         */
+        ABSORBED,
+        }
+    
+    private final StripedCounter[][] m_counters;
+    
+    private final LatencyHistogram m_inviteForward = new LatencyHistogram();
+    
+    private final LatencyHistogram m_registerOk = new LatencyHistogram();
+    
+    private final LatencyHistogram m_queueWait = new LatencyHistogram();
+    
+    private final PipelineTracer m_tracer = new PipelineTracer();
+
+    /**
+     * Creates a new set of metrics.
+     */
+    public SipMetrics()
+        {
+        final Method[] methods = Method.values();
+        final Outcome[] outcomes = Outcome.values();
+        this.m_counters = new StripedCounter[methods.length][outcomes.length];
+        for (int i = 0; i < methods.length; i++)
+            {
+            for (int j = 0; j < outcomes.length; j++)
+                {
+                this.m_counters[i][j] = new StripedCounter();
+                }
+            }
+        }
+    
+    /**
+     * Counts a message.
+     * 
+     * @param method The kind of message.
+     * @param outcome What happened to it.
+     */
+    public void count(final Method method, final Outcome outcome)
+        {
+        this.m_counters[method.ordinal()][outcome.ordinal()].increment();
+        }
+    
+    /**
+     * Accessor for a count.
+     * 
+     * @param method The kind of message.
+     * @param outcome What happened to it.
+     * @return The count.
+     */
+    public long getCount(final Method method, final Outcome outcome)
+        {
+        return this.m_counters[method.ordinal()][outcome.ordinal()].sum();
+        }
+    
+    /**
+     * Accessor for the histogram of time from visiting an INVITE to having
+     * handed it to the transport.
+     * 
+     * @return The histogram.
+     */
+    public LatencyHistogram getInviteForwardLatency()
+        {
+        return m_inviteForward;
+        }
+    
+    /**
+     * Accessor for the histogram of time from visiting a REGISTER to having
+     * written the 200 OK.
+     * 
+     * @return The histogram.
+     */
+    public LatencyHistogram getRegisterOkLatency()
+        {
+        return m_registerOk;
+        }
+    
+    /**
+     * Accessor for the histogram of time messages wait in the priority 
+     * queues before processing.
+     * 
+     * @return The histogram.
+     */
+    public LatencyHistogram getQueueWaitLatency()
+        {
+        return m_queueWait;
+        }
+    
+    /**
+     * Accessor for the tracer for slow processing stages.
+     * 
+     * @return The tracer.
+     */
+    public PipelineTracer getTracer()
+        {
+        return m_tracer;
+        }
+    
+    public long getRegistersReceived()
+        {
+        return getCount(Method.REGISTER, Outcome.RECEIVED);
+        }
+
+    public long getRegistersRejected()
+        {
+        return getCount(Method.REGISTER, Outcome.REJECTED);
+        }
+
+    public long getInvitesReceived()
+        {
+        return getCount(Method.INVITE, Outcome.RECEIVED);
+        }
+
+    public long getInvitesForwarded()
+        {
+        return getCount(Method.INVITE, Outcome.FORWARDED);
+        }
+
+    public long getInvitesRejected()
+        {
+        return getCount(Method.INVITE, Outcome.REJECTED);
+        }
+
+    public long getInvitesFailed()
+        {
+        return getCount(Method.INVITE, Outcome.FAILED);
+        }
+
+    public long getInvitesAbsorbed()
+        {
+        return getCount(Method.INVITE, Outcome.ABSORBED);
+        }
+
+    public long getResponsesReceived()
+        {
+        return getCount(Method.RESPONSE, Outcome.RECEIVED);
+        }
+
+    public long getResponsesForwarded()
+        {
+        return getCount(Method.RESPONSE, Outcome.FORWARDED);
+        }
+
+    public long getResponsesFailed()
+        {
+        return getCount(Method.RESPONSE, Outcome.FAILED);
+        }
+
+    public long getKeepAlivesReceived()
+        {
+        return getCount(Method.KEEPALIVE, Outcome.RECEIVED);
+        }
+
+    public long getOtherRequestsReceived()
+        {
+        return getCount(Method.OTHER, Outcome.RECEIVED);
+        }
+
+    public long getInviteForwardMicrosP50()
+        {
+        return this.m_inviteForward.getPercentileMicros(50);
+        }
+
+    public long getInviteForwardMicrosP99()
+        {
+        return this.m_inviteForward.getPercentileMicros(99);
+        }
+
+    public long getInviteForwardMicrosP999()
+        {
+        return this.m_inviteForward.getPercentileMicros(99.9);
+        }
+
+    public long getRegisterOkMicrosP50()
+        {
+        return this.m_registerOk.getPercentileMicros(50);
+        }
+
+    public long getRegisterOkMicrosP99()
+        {
+        return this.m_registerOk.getPercentileMicros(99);
+        }
+
+    public long getRegisterOkMicrosP999()
+        {
+        return this.m_registerOk.getPercentileMicros(99.9);
+        }
+
+    public long getQueueWaitMicrosP50()
+        {
+        return this.m_queueWait.getPercentileMicros(50);
+        }
+
+    public long getQueueWaitMicrosP99()
+        {
+        return this.m_queueWait.getPercentileMicros(99);
+        }
+
+    public String[] getCounters()
+        {
+        final List<String> counters = new ArrayList<String>();
+        for (final Method method : Method.values())
+            {
+            for (final Outcome outcome : Outcome.values())
+                {
+                final long count = getCount(method, outcome);
+                if (count != 0)
+                    {
+                    counters.add(method + "." + outcome + "=" + count);
+                    }
+                }
+            }
+        return counters.toArray(new String[counters.size()]);
+        }
+    
+    public void resetLatencies()
+        {
+        this.m_inviteForward.reset();
+        this.m_registerOk.reset();
+        this.m_queueWait.reset();
+        }
+    
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName();
+        }
+    }
@@ -0,0 +1,161 @@
+package org.lastbamboo.common.sip.proxy.metrics;
+
+/**
+ * MBean for the proxy's message counters and latencies.  Latencies are in
+ * microseconds.
+ */
+public interface SipMetricsMBean
+    {
+
+    /**
+     * Accessor for the number of REGISTERs we've read.
+     * 
+     * @return The number of REGISTERs we've read.
+     */
+    long getRegistersReceived();
+    
+    /**
+     * Accessor for the number of REGISTERs we've rejected.
+     * 
+     * @return The number of REGISTERs we've rejected.
+     */
+    long getRegistersRejected();
+    
+    /**
+     * Accessor for the number of INVITEs we've read.
+     * 
+     * @return The number of INVITEs we've read.
+     */
+    long getInvitesReceived();
+    
+    /**
+     * Accessor for the number of INVITEs we've forwarded.
+     * 
+     * @return The number of INVITEs we've forwarded.
+     */
+    long getInvitesForwarded();
+    
+    /**
+     * Accessor for the number of INVITEs we've rejected.
+     * 
+     * @return The number of INVITEs we've rejected.
+     */
+    long getInvitesRejected();
+    
+    /**
+     * Accessor for the number of INVITEs we couldn't process.
+     * 
+     * @return The number of INVITEs we couldn't process.
+     */
+    long getInvitesFailed();
+    
+    /**
+     * Accessor for the number of INVITE retransmissions we didn't forward.
+     * 
+     * @return The number of INVITE retransmissions we absorbed.
+     */
+    long getInvitesAbsorbed();
+    
+    /**
+     * Accessor for the number of responses we've read.
+     * 
+     * @return The number of responses we've read.
+     */
+    long getResponsesReceived();
+    
+    /**
+     * Accessor for the number of responses we've forwarded.
+     * 
+     * @return The number of responses we've forwarded.
+     */
+    long getResponsesForwarded();
+    
+    /**
+     * Accessor for the number of responses we couldn't forward.
+     * 
+     * @return The number of responses we couldn't forward.
+     */
+    long getResponsesFailed();
+    
+    /**
+     * Accessor for the number of keepalives we've read.
+     * 
+     * @return The number of keepalives we've read.
+     */
+    long getKeepAlivesReceived();
+    
+    /**
+     * Accessor for the number of other requests we've read.
+     * 
+     * @return The number of other requests we've read.
+     */
+    long getOtherRequestsReceived();
+    
+    /**
+     * Accessor for the median time to forward an INVITE.
+     * 
+     * @return The median time to forward an INVITE.
+     */
+    long getInviteForwardMicrosP50();
+    
+    /**
+     * Accessor for the 99th percentile time to forward an INVITE.
+     * 
+     * @return The 99th percentile time to forward an INVITE.
+     */
+    long getInviteForwardMicrosP99();
+    
+    /**
+     * Accessor for the 99.9th percentile time to forward an INVITE.
+     * 
+     * @return The 99.9th percentile time to forward an INVITE.
+     */
+    long getInviteForwardMicrosP999();
+    
+    /**
+     * Accessor for the median time from REGISTER to 200 OK.
+     * 
+     * @return The median time from REGISTER to 200 OK.
+     */
+    long getRegisterOkMicrosP50();
+    
+    /**
+     * Accessor for the 99th percentile time from REGISTER to 200 OK.
+     * 
+     * @return The 99th percentile time from REGISTER to 200 OK.
+     */
+    long getRegisterOkMicrosP99();
+    
+    /**
+     * Accessor for the 99.9th percentile time from REGISTER to 200 OK.
+     * 
+     * @return The 99.9th percentile time from REGISTER to 200 OK.
+     */
+    long getRegisterOkMicrosP999();
+    
+    /**
+     * Accessor for the median time messages wait to be processed.
+     * 
+     * @return The median queue wait.
+     */
+    long getQueueWaitMicrosP50();
+    
+    /**
+     * Accessor for the 99th percentile time messages wait to be processed.
+     * 
+     * @return The 99th percentile queue wait.
+     */
+    long getQueueWaitMicrosP99();
+    
+    /**
+     * Accessor for every non-zero counter, as "METHOD.OUTCOME=count".
+     * 
+     * @return The non-zero counters.
+     */
+    String[] getCounters();
+    
+    /**
+     * Clears the latency histograms.
+     */
+    void resetLatencies();
+    }
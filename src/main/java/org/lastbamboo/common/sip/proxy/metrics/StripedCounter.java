@@ -0,0 +1,94 @@
+package org.lastbamboo.common.sip.proxy.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that spreads increments across several cells, each on its own 
+ * cache line, chosen by thread.  Threads incrementing the same counter 
+ * rarely contend, and reading the total just sums the cells.  This is the
+ * idea behind the JDK 8 LongAdder, which isn't available at our language
+ * level.
+ */
+public class StripedCounter
+    {
+
+    private static final int STRIPES = stripes();
+    
+    /**
+     * Cells are this many longs apart, which keeps them on separate 64 byte
+     * cache lines.
+     */
+    private static final int PAD = 8;
+    
+    private final AtomicLongArray m_cells = new AtomicLongArray(STRIPES * PAD);
+
+    private static int stripes()
+        {
+        final int cpus = Runtime.getRuntime().availableProcessors();
+        int stripes = 1;
+        while (stripes < cpus * 2)
+            {
+            stripes <<= 1;
+            }
+        return stripes;
+        }
+    
+    /**
+     * Adds one to the counter.
+     */
+    public void increment()
+        {
+        add(1);
+        }
+    
+    /**
+     * Adds the specified amount to the counter.
+     * 
+     * @param amount The amount to add.
+     */
+    public void add(final long amount)
+        {
+        this.m_cells.getAndAdd(cell(), amount);
+        }
+    
+    /**
+     * Accessor for the total.  This isn't an atomic snapshot if other 
+     * threads are adding concurrently.
+     * 
+     * @return The total.
+     */
+    public long sum()
+        {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++)
+            {
+            sum += this.m_cells.get(i * PAD);
+            }
+        return sum;
+        }
+    
+    /**
+     * Sets the counter back to zero.
+     */
+    public void reset()
+        {
+        for (int i = 0; i < STRIPES; i++)
+            {
+            this.m_cells.set(i * PAD, 0);
+            }
+        }
+    
+    private static int cell()
+        {
+        // Spread sequential thread IDs across the stripes.
+        final long id = Thread.currentThread().getId();
+        final int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return ((hash >>> 16) & (STRIPES - 1)) * PAD;
+        }
+    
+    @Override
+    public String toString()
+        {
+        return String.valueOf(sum());
+        }
+    }
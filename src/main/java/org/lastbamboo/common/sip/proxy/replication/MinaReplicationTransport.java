@@ -0,0 +1,235 @@
+package org.lastbamboo.common.sip.proxy.replication;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.littleshoot.mina.common.ConnectFuture;
+import org.littleshoot.mina.common.IoFuture;
+import org.littleshoot.mina.common.IoFutureListener;
+import org.littleshoot.mina.common.IoHandlerAdapter;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.common.ThreadModel;
+import org.littleshoot.mina.filter.codec.ProtocolCodecFilter;
+import org.littleshoot.mina.filter.codec.textline.TextLineCodecFactory;
+import org.littleshoot.mina.transport.socket.nio.SocketAcceptor;
+import org.littleshoot.mina.transport.socket.nio.SocketAcceptorConfig;
+import org.littleshoot.mina.transport.socket.nio.SocketConnector;
+import org.littleshoot.mina.transport.socket.nio.SocketConnectorConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replication over TCP using MINA, with one batch per line.  We keep one
+ * outgoing connection open to each peer and accept its connection to us,
+ * so each direction has its own ordered stream.  A peer that stops
+ * reading has its connection closed once too much is queued for it,
+ * rather than us buffering without limit, and it gets a snapshot when we
+ * reconnect.
+ */
+public class MinaReplicationTransport implements ReplicationTransport
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private final int m_port;
+
+    private final ExecutorService m_executor = Executors.newCachedThreadPool();
+
+    private final SocketAcceptor m_acceptor =
+        new SocketAcceptor(1, this.m_executor);
+
+    private final SocketConnector m_connector =
+        new SocketConnector(1, this.m_executor);
+
+    private final SocketConnectorConfig m_connectorConfig =
+        new SocketConnectorConfig();
+
+    private final Map<String, IoSession> m_sessions =
+        new ConcurrentHashMap<String, IoSession>();
+
+    private volatile int m_boundPort = -1;
+
+    private volatile int m_connectTimeoutMillis = 2000;
+
+    private volatile int m_maxQueuedBytes = 16 * 1024 * 1024;
+
+    /**
+     * Creates a new transport.
+     *
+     * @param port The port to accept peers on, or 0 for an ephemeral port.
+     */
+    public MinaReplicationTransport(final int port)
+        {
+        this.m_port = port;
+        this.m_connectorConfig.setThreadModel(ThreadModel.MANUAL);
+        this.m_connectorConfig.getFilterChain().addLast("codec",
+            new ProtocolCodecFilter(newCodecFactory()));
+        this.m_connectorConfig.getSessionConfig().setTcpNoDelay(true);
+        }
+
+    public void start(final ReplicationReceiver receiver) throws IOException
+        {
+        final SocketAcceptorConfig config = new SocketAcceptorConfig();
+        config.setReuseAddress(true);
+        config.setThreadModel(ThreadModel.MANUAL);
+        config.getFilterChain().addLast("codec",
+            new ProtocolCodecFilter(newCodecFactory()));
+        this.m_acceptor.bind(new InetSocketAddress(this.m_port),
+            new IoHandlerAdapter()
+            {
+            @Override
+            public void messageReceived(final IoSession session,
+                final Object message)
+                {
+                final ReplicationBatch batch;
+                try
+                    {
+                    batch = ReplicationBatch.decode((String) message);
+                    }
+                catch (final IllegalArgumentException e)
+                    {
+                    m_log.warn("Closing peer that sent garbage: {}",
+                        session.getRemoteAddress());
+                    session.close();
+                    return;
+                    }
+                receiver.receive(batch);
+                }
+
+            @Override
+            public void exceptionCaught(final IoSession session,
+                final Throwable cause)
+                {
+                m_log.debug("Closing peer session on error: {}", session,
+                    cause);
+                session.close();
+                }
+            }, config);
+        for (final SocketAddress address :
+            this.m_acceptor.getManagedServiceAddresses())
+            {
+            if (address instanceof InetSocketAddress)
+                {
+                this.m_boundPort = ((InetSocketAddress) address).getPort();
+                }
+            }
+        m_log.debug("Accepting peers on port: {}", this.m_boundPort);
+        }
+
+    public boolean send(final String peer, final ReplicationBatch batch)
+        throws IOException
+        {
+        IoSession session = this.m_sessions.get(peer);
+        boolean opened = false;
+        if (session == null || !session.isConnected())
+            {
+            session = connect(peer);
+            this.m_sessions.put(peer, session);
+            opened = true;
+            }
+        else if (session.getScheduledWriteBytes() > this.m_maxQueuedBytes)
+            {
+            session.close();
+            this.m_sessions.remove(peer);
+            throw new IOException("Peer isn't keeping up: " + peer);
+            }
+        session.write(batch.encode());
+        return opened;
+        }
+
+    private IoSession connect(final String peer) throws IOException
+        {
+        final int colon = peer.lastIndexOf(':');
+        if (colon == -1)
+            {
+            throw new IOException("No port: " + peer);
+            }
+        final InetSocketAddress address = new InetSocketAddress(
+            peer.substring(0, colon),
+            Integer.parseInt(peer.substring(colon + 1)));
+        final ConnectFuture future = this.m_connector.connect(address,
+            new IoHandlerAdapter()
+            {
+            @Override
+            public void exceptionCaught(final IoSession session,
+                final Throwable cause)
+                {
+                session.close();
+                }
+            }, this.m_connectorConfig);
+        if (!future.join(this.m_connectTimeoutMillis))
+            {
+            // Don't leave the connection open if it gets there later.
+            future.addListener(new IoFutureListener()
+                {
+                public void operationComplete(final IoFuture f)
+                    {
+                    if (future.isConnected())
+                        {
+                        future.getSession().close();
+                        }
+                    }
+                });
+            throw new IOException("Timed out connecting to: " + peer);
+            }
+        if (!future.isConnected())
+            {
+            throw new IOException("Could not connect to: " + peer);
+            }
+        m_log.debug("Connected to peer: {}", peer);
+        return future.getSession();
+        }
+
+    private static TextLineCodecFactory newCodecFactory()
+        {
+        final TextLineCodecFactory factory = new TextLineCodecFactory(CHARSET);
+        factory.setDecoderMaxLineLength(Integer.MAX_VALUE);
+        factory.setEncoderMaxLineLength(Integer.MAX_VALUE);
+        return factory;
+        }
+
+    /**
+     * Accessor for the port we accept peers on.
+     *
+     * @return The port, or -1 if we haven't started.
+     */
+    public int getPort()
+        {
+        return this.m_boundPort;
+        }
+
+    /**
+     * Sets how long to wait when connecting to a peer.
+     *
+     * @param connectTimeoutMillis The timeout in milliseconds.
+     */
+    public void setConnectTimeoutMillis(final int connectTimeoutMillis)
+        {
+        this.m_connectTimeoutMillis = connectTimeoutMillis;
+        }
+
+    /**
+     * Sets how much can be waiting to be written to a peer before we give
+     * up on its connection.
+     *
+     * @param maxQueuedBytes The limit in bytes.
+     */
+    public void setMaxQueuedBytes(final int maxQueuedBytes)
+        {
+        this.m_maxQueuedBytes = maxQueuedBytes;
+        }
+
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName() + " on " + this.m_port;
+        }
+    }
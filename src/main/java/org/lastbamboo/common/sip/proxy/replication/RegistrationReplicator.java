@@ -0,0 +1,411 @@
+package org.lastbamboo.common.sip.proxy.replication;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lastbamboo.common.sip.proxy.RegistrationListener;
+import org.lastbamboo.common.sip.proxy.SipRegistrar;
+import org.lastbamboo.common.sip.proxy.replication.ReplicationBatch.Change;
+import org.littleshoot.util.JmxUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shares which users are registered with this node with its peers, so any
+ * node can tell which node a user is on.  Registrar callbacks only queue
+ * the change, and every flushMillis we send the changes since the last
+ * flush to each peer as one batch, with later changes to a user replacing
+ * earlier ones.  We send an empty batch every heartbeatMillis when there's
+ * nothing else to send, so peers know we're alive.
+ * <p>
+ * Each change carries a version from a clock that follows wall time but
+ * never goes backwards and never falls behind a version we've received,
+ * so a user's most recent registration anywhere has the highest version.
+ * A peer that misses batches, because it was unreachable or its
+ * connection dropped, gets a snapshot of all our users once we can reach
+ * it again.
+ */
+public class RegistrationReplicator implements RegistrationListener,
+    ReplicationReceiver, RegistrationReplicatorMBean
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final String m_nodeName;
+
+    private final SipRegistrar m_registrar;
+
+    private final ReplicationTransport m_transport;
+
+    private final List<String> m_peers;
+
+    private final Queue<Pending> m_pending =
+        new ConcurrentLinkedQueue<Pending>();
+
+    /**
+     * Our own users and their versions.  Only the flush thread touches this.
+     */
+    private final Map<URI, Long> m_local = new LinkedHashMap<URI, Long>();
+
+    private final Set<String> m_needsSnapshot = Collections.newSetFromMap(
+        new ConcurrentHashMap<String, Boolean>());
+
+    private final AtomicLong m_clock = new AtomicLong(0);
+
+    private final AtomicLong m_batchesSent = new AtomicLong(0);
+
+    private final AtomicLong m_snapshotsSent = new AtomicLong(0);
+
+    private final AtomicLong m_batchesReceived = new AtomicLong(0);
+
+    private final AtomicLong m_sendFailures = new AtomicLong(0);
+
+    private volatile ReplicatedBindings m_bindings;
+
+    private volatile long m_flushMillis = 100;
+
+    private volatile long m_heartbeatMillis = 1000;
+
+    private volatile long m_peerTimeoutMillis = 5000;
+
+    private volatile long m_tombstoneMillis = 60 * 1000;
+
+    private long m_lastSent = 0;
+
+    private long m_lastPurged = System.currentTimeMillis();
+
+    private final ScheduledExecutorService m_scheduler =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+            public Thread newThread(final Runnable r)
+                {
+                final Thread t = new Thread(r, "SIP-Registrar-Replication");
+                t.setDaemon(true);
+                return t;
+                }
+            });
+
+    /**
+     * Creates a new replicator.
+     *
+     * @param nodeName The name peers know this node by, which is the
+     * "host:port" address they forward requests for our users to.
+     * @param registrar The registrar whose users we share.
+     * @param transport The network to our peers.
+     * @param peers The replication addresses of our peers, as "host:port".
+     */
+    public RegistrationReplicator(final String nodeName,
+        final SipRegistrar registrar, final ReplicationTransport transport,
+        final List<String> peers)
+        {
+        this.m_nodeName = nodeName;
+        this.m_registrar = registrar;
+        this.m_transport = transport;
+        this.m_peers = new ArrayList<String>(peers);
+        this.m_bindings = new ReplicatedBindings(this.m_peerTimeoutMillis);
+        this.m_needsSnapshot.addAll(peers);
+        registrar.addRegistrationListener(this);
+        }
+
+    /**
+     * Starts accepting batches from peers and sending them ours.
+     *
+     * @throws IOException If we can't listen for peers.
+     */
+    public void start() throws IOException
+        {
+        m_log.debug("Replicating {} to: {}", this.m_nodeName, this.m_peers);
+        for (final URI uri : this.m_registrar.getRegistered())
+            {
+            onRegistered(uri);
+            }
+        this.m_transport.start(this);
+        final Runnable runner = new Runnable()
+            {
+            public void run()
+                {
+                try
+                    {
+                    flush();
+                    }
+                catch (final Throwable t)
+                    {
+                    m_log.error("Error replicating registrations", t);
+                    }
+                }
+            };
+        this.m_scheduler.scheduleWithFixedDelay(runner, 0,
+            this.m_flushMillis, TimeUnit.MILLISECONDS);
+        JmxUtils.register(ManagementFactory.getPlatformMBeanServer(), this);
+        }
+
+    /**
+     * Stops sending batches to peers.
+     */
+    public void stop()
+        {
+        this.m_scheduler.shutdownNow();
+        }
+
+    /**
+     * Finds the node a user is registered with.
+     *
+     * @param aor The user's address-of-record.
+     * @return The node's name, which is our own if the user is registered
+     * here, or <code>null</code> if the user isn't registered with any node
+     * we've heard from recently.
+     */
+    public String getOwner(final URI aor)
+        {
+        if (this.m_registrar.hasRegistration(aor))
+            {
+            return this.m_nodeName;
+            }
+        return this.m_bindings.getOwner(aor);
+        }
+
+    /**
+     * Accessor for the name peers know this node by.
+     *
+     * @return The node's name.
+     */
+    public String getNodeName()
+        {
+        return this.m_nodeName;
+        }
+
+    public void onRegistered(final URI uri)
+        {
+        this.m_pending.add(new Pending(uri, true));
+        }
+
+    public void onUnregistered(final URI uri)
+        {
+        this.m_pending.add(new Pending(uri, false));
+        }
+
+    public void receive(final ReplicationBatch batch)
+        {
+        this.m_batchesReceived.incrementAndGet();
+        observe(batch.getClock());
+        this.m_bindings.merge(batch);
+        }
+
+    /**
+     * Sends the changes since the last flush to each peer, or a snapshot to
+     * any peer that needs one.  Only ever called from one thread at a time.
+     */
+    void flush()
+        {
+        final Map<URI, Change> changes = new LinkedHashMap<URI, Change>();
+        Pending pending;
+        while ((pending = this.m_pending.poll()) != null)
+            {
+            final long version = tick();
+            if (pending.m_registered)
+                {
+                this.m_local.put(pending.m_aor, Long.valueOf(version));
+                }
+            else
+                {
+                this.m_local.remove(pending.m_aor);
+                }
+            changes.remove(pending.m_aor);
+            changes.put(pending.m_aor,
+                new Change(pending.m_aor, version, pending.m_registered));
+            }
+
+        final long now = System.currentTimeMillis();
+        if (now - this.m_lastPurged > this.m_tombstoneMillis)
+            {
+            this.m_bindings.purge(this.m_tombstoneMillis);
+            this.m_lastPurged = now;
+            }
+        if (changes.isEmpty() && this.m_needsSnapshot.isEmpty() &&
+            now - this.m_lastSent < this.m_heartbeatMillis)
+            {
+            return;
+            }
+        this.m_lastSent = now;
+
+        final ReplicationBatch delta = new ReplicationBatch(this.m_nodeName,
+            tick(), false, new ArrayList<Change>(changes.values()));
+        ReplicationBatch snapshot = null;
+        for (final String peer : this.m_peers)
+            {
+            try
+                {
+                if (!this.m_needsSnapshot.contains(peer))
+                    {
+                    final boolean opened = this.m_transport.send(peer, delta);
+                    this.m_batchesSent.incrementAndGet();
+                    if (!opened)
+                        {
+                        continue;
+                        }
+                    }
+                if (snapshot == null)
+                    {
+                    snapshot = snapshot();
+                    }
+                this.m_transport.send(peer, snapshot);
+                this.m_batchesSent.incrementAndGet();
+                this.m_snapshotsSent.incrementAndGet();
+                this.m_needsSnapshot.remove(peer);
+                }
+            catch (final IOException e)
+                {
+                if (this.m_needsSnapshot.add(peer))
+                    {
+                    m_log.warn("Lost peer {}: {}", peer, e.getMessage());
+                    }
+                this.m_sendFailures.incrementAndGet();
+                }
+            }
+        }
+
+    private ReplicationBatch snapshot()
+        {
+        final List<Change> changes =
+            new ArrayList<Change>(this.m_local.size());
+        for (final Map.Entry<URI, Long> entry : this.m_local.entrySet())
+            {
+            changes.add(new Change(entry.getKey(),
+                entry.getValue().longValue(), true));
+            }
+        return new ReplicationBatch(this.m_nodeName, tick(), true, changes);
+        }
+
+    private long tick()
+        {
+        while (true)
+            {
+            final long last = this.m_clock.get();
+            final long next = Math.max(System.currentTimeMillis(), last + 1);
+            if (this.m_clock.compareAndSet(last, next))
+                {
+                return next;
+                }
+            }
+        }
+
+    private void observe(final long clock)
+        {
+        while (true)
+            {
+            final long last = this.m_clock.get();
+            if (last >= clock || this.m_clock.compareAndSet(last, clock))
+                {
+                return;
+                }
+            }
+        }
+
+    /**
+     * Sets how often we send peers the latest changes.  Takes effect when
+     * we start.
+     *
+     * @param flushMillis The interval in milliseconds.
+     */
+    public void setFlushMillis(final long flushMillis)
+        {
+        this.m_flushMillis = flushMillis;
+        }
+
+    /**
+     * Sets how often we tell peers we're alive when there are no changes
+     * to send.
+     *
+     * @param heartbeatMillis The interval in milliseconds.
+     */
+    public void setHeartbeatMillis(final long heartbeatMillis)
+        {
+        this.m_heartbeatMillis = heartbeatMillis;
+        }
+
+    /**
+     * Sets how long we can go without hearing from a peer before we stop
+     * sending its users there.  Only takes effect before we start.
+     *
+     * @param peerTimeoutMillis The timeout in milliseconds.
+     */
+    public void setPeerTimeoutMillis(final long peerTimeoutMillis)
+        {
+        this.m_peerTimeoutMillis = peerTimeoutMillis;
+        this.m_bindings = new ReplicatedBindings(peerTimeoutMillis);
+        }
+
+    /**
+     * Sets how long we remember that a user unregistered from a peer.
+     * This has to be longer than a batch can take to reach us.
+     *
+     * @param tombstoneMillis The time in milliseconds.
+     */
+    public void setTombstoneMillis(final long tombstoneMillis)
+        {
+        this.m_tombstoneMillis = tombstoneMillis;
+        }
+
+    public long getBatchesSent()
+        {
+        return this.m_batchesSent.get();
+        }
+
+    public long getSnapshotsSent()
+        {
+        return this.m_snapshotsSent.get();
+        }
+
+    public long getBatchesReceived()
+        {
+        return this.m_batchesReceived.get();
+        }
+
+    public long getSendFailures()
+        {
+        return this.m_sendFailures.get();
+        }
+
+    public int getRemoteRegistrations()
+        {
+        return this.m_bindings.size();
+        }
+
+    public int getPeersUp()
+        {
+        return this.m_bindings.getNodesAlive();
+        }
+
+    private static final class Pending
+        {
+        private final URI m_aor;
+        private final boolean m_registered;
+
+        private Pending(final URI aor, final boolean registered)
+            {
+            this.m_aor = aor;
+            this.m_registered = registered;
+            }
+        }
+
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName() + " for " + this.m_nodeName;
+        }
+    }
@@ -0,0 +1,51 @@
+package org.lastbamboo.common.sip.proxy.replication;
+
+/**
+ * MBean for monitoring registration replication.
+ */
+public interface RegistrationReplicatorMBean
+    {
+
+    /**
+     * Accessor for the number of batches we've sent to peers, including
+     * snapshots.
+     *
+     * @return The number of batches sent.
+     */
+    long getBatchesSent();
+
+    /**
+     * Accessor for the number of snapshots we've sent to peers.
+     *
+     * @return The number of snapshots sent.
+     */
+    long getSnapshotsSent();
+
+    /**
+     * Accessor for the number of batches we've received from peers.
+     *
+     * @return The number of batches received.
+     */
+    long getBatchesReceived();
+
+    /**
+     * Accessor for the number of times we couldn't send to a peer.
+     *
+     * @return The number of failed sends.
+     */
+    long getSendFailures();
+
+    /**
+     * Accessor for the number of users registered with other nodes.
+     *
+     * @return The number of remote registrations.
+     */
+    int getRemoteRegistrations();
+
+    /**
+     * Accessor for the number of peers we've heard from recently.
+     *
+     * @return The number of peers up.
+     */
+    int getPeersUp();
+    }
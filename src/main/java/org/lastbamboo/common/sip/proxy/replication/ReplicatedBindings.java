@@ -0,0 +1,295 @@
+package org.lastbamboo.common.sip.proxy.replication;
+
+import java.net.URI;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.lastbamboo.common.sip.proxy.replication.ReplicationBatch.Change;
+
+/**
+ * Which peers users are registered with, merged from the batches peers
+ * send us.  Each entry belongs to a user and a node, and only that node
+ * ever changes it, so merging a change just keeps whichever version is
+ * higher.  Changes can arrive late, twice or after a snapshot and every
+ * node still ends up with the same entries, with no coordination between
+ * nodes.  A user registered with several nodes at once, such as while
+ * moving from one to another, belongs to whichever registered last.
+ * <p>
+ * Unregistrations are kept for a while as tombstones, so a late copy of
+ * the registration they replaced can't bring it back.  Lookups are a map
+ * read and skip nodes we haven't heard from recently.
+ */
+public class ReplicatedBindings
+    {
+
+    private final ConcurrentMap<URI, Entry[]> m_entries =
+        new ConcurrentHashMap<URI, Entry[]>();
+
+    private final Map<String, Long> m_lastHeard =
+        new ConcurrentHashMap<String, Long>();
+
+    private final long m_nodeTimeoutMillis;
+
+    /**
+     * Creates a new set of bindings.
+     *
+     * @param nodeTimeoutMillis How long we can go without hearing from a
+     * node before we stop sending its users there.
+     */
+    public ReplicatedBindings(final long nodeTimeoutMillis)
+        {
+        this.m_nodeTimeoutMillis = nodeTimeoutMillis;
+        }
+
+    /**
+     * Merges a batch from a peer.
+     *
+     * @param batch The batch.
+     */
+    public void merge(final ReplicationBatch batch)
+        {
+        final String node = batch.getSender();
+        final long now = System.currentTimeMillis();
+        this.m_lastHeard.put(node, Long.valueOf(now));
+        for (final Change change : batch.getChanges())
+            {
+            merge(change.getAor(), node, change.getVersion(),
+                change.isRegistered(), now);
+            }
+        if (!batch.isSnapshot())
+            {
+            return;
+            }
+
+        // Anything of the node's that isn't in the snapshot is gone.
+        final Set<URI> current = new HashSet<URI>();
+        for (final Change change : batch.getChanges())
+            {
+            current.add(change.getAor());
+            }
+        for (final Map.Entry<URI, Entry[]> entry : this.m_entries.entrySet())
+            {
+            if (current.contains(entry.getKey()))
+                {
+                continue;
+                }
+            for (final Entry e : entry.getValue())
+                {
+                if (e.m_node.equals(node) && e.m_registered)
+                    {
+                    merge(entry.getKey(), node, batch.getClock(), false, now);
+                    }
+                }
+            }
+        }
+
+    /**
+     * Finds the node a user is registered with.
+     *
+     * @param aor The user's address-of-record.
+     * @return The node's name, or <code>null</code> if the user isn't
+     * registered with any node we've heard from recently.
+     */
+    public String getOwner(final URI aor)
+        {
+        final Entry[] entries = this.m_entries.get(aor);
+        if (entries == null)
+            {
+            return null;
+            }
+        final long now = System.currentTimeMillis();
+        Entry owner = null;
+        for (final Entry entry : entries)
+            {
+            if (entry.m_registered && isAlive(entry.m_node, now) &&
+                (owner == null || entry.m_version > owner.m_version))
+                {
+                owner = entry;
+                }
+            }
+        return owner == null ? null : owner.m_node;
+        }
+
+    /**
+     * Accessor for whether we've heard from a node recently.
+     *
+     * @param node The node's name.
+     * @return <code>true</code> if the node is alive as far as we know.
+     */
+    public boolean isAlive(final String node)
+        {
+        return isAlive(node, System.currentTimeMillis());
+        }
+
+    /**
+     * Accessor for the number of nodes we've heard from recently.
+     *
+     * @return The number of nodes alive.
+     */
+    public int getNodesAlive()
+        {
+        final long now = System.currentTimeMillis();
+        int alive = 0;
+        for (final String node : this.m_lastHeard.keySet())
+            {
+            if (isAlive(node, now))
+                {
+                alive++;
+                }
+            }
+        return alive;
+        }
+
+    private boolean isAlive(final String node, final long now)
+        {
+        final Long heard = this.m_lastHeard.get(node);
+        return heard != null && now - heard.longValue() <=
+            this.m_nodeTimeoutMillis;
+        }
+
+    /**
+     * Forgets tombstones older than the specified age.
+     *
+     * @param maxAgeMillis How long to keep tombstones.
+     */
+    public void purge(final long maxAgeMillis)
+        {
+        final long now = System.currentTimeMillis();
+        final Iterator<Map.Entry<URI, Entry[]>> iter =
+            this.m_entries.entrySet().iterator();
+        while (iter.hasNext())
+            {
+            final Map.Entry<URI, Entry[]> entry = iter.next();
+            final Entry[] entries = entry.getValue();
+            int live = 0;
+            for (final Entry e : entries)
+                {
+                if (e.m_registered || now - e.m_updated <= maxAgeMillis)
+                    {
+                    live++;
+                    }
+                }
+            if (live == entries.length)
+                {
+                continue;
+                }
+            final Entry[] kept = new Entry[live];
+            int i = 0;
+            for (final Entry e : entries)
+                {
+                if (e.m_registered || now - e.m_updated <= maxAgeMillis)
+                    {
+                    kept[i++] = e;
+                    }
+                }
+            // If a change slipped in since we read the entries, leave them
+            // for the next purge.
+            if (live == 0)
+                {
+                this.m_entries.remove(entry.getKey(), entries);
+                }
+            else
+                {
+                this.m_entries.replace(entry.getKey(), entries, kept);
+                }
+            }
+        }
+
+    /**
+     * Accessor for the number of users registered with other nodes,
+     * including any on nodes we haven't heard from recently.
+     *
+     * @return The number of users.
+     */
+    public int size()
+        {
+        int size = 0;
+        for (final Entry[] entries : this.m_entries.values())
+            {
+            for (final Entry entry : entries)
+                {
+                if (entry.m_registered)
+                    {
+                    size++;
+                    break;
+                    }
+                }
+            }
+        return size;
+        }
+
+    private void merge(final URI aor, final String node, final long version,
+        final boolean registered, final long now)
+        {
+        final Entry updated = new Entry(node, version, registered, now);
+        while (true)
+            {
+            final Entry[] entries = this.m_entries.get(aor);
+            if (entries == null)
+                {
+                if (this.m_entries.putIfAbsent(aor,
+                    new Entry[] {updated}) == null)
+                    {
+                    return;
+                    }
+                continue;
+                }
+            int index = -1;
+            for (int i = 0; i < entries.length; i++)
+                {
+                if (entries[i].m_node.equals(node))
+                    {
+                    index = i;
+                    break;
+                    }
+                }
+            final Entry[] merged;
+            if (index == -1)
+                {
+                merged = new Entry[entries.length + 1];
+                System.arraycopy(entries, 0, merged, 0, entries.length);
+                merged[entries.length] = updated;
+                }
+            else if (entries[index].m_version >= version)
+                {
+                return;
+                }
+            else
+                {
+                merged = entries.clone();
+                merged[index] = updated;
+                }
+            if (this.m_entries.replace(aor, entries, merged))
+                {
+                return;
+                }
+            }
+        }
+
+    private static final class Entry
+        {
+        private final String m_node;
+        private final long m_version;
+        private final boolean m_registered;
+        private final long m_updated;
+
+        private Entry(final String node, final long version,
+            final boolean registered, final long updated)
+            {
+            this.m_node = node;
+            this.m_version = version;
+            this.m_registered = registered;
+            this.m_updated = updated;
+            }
+        }
+
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName();
+        }
+    }
@@ -0,0 +1,51 @@
+package org.lastbamboo.common.sip.proxy.replication;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.lastbamboo.common.sip.proxy.LocationService;
+
+/**
+ * A location service for users registered with one of our peers, as
+ * replicated to us.
+ */
+public final class ReplicatedLocationService implements LocationService
+    {
+
+    private final RegistrationReplicator m_replicator;
+
+    /**
+     * Creates a new location service.
+     *
+     * @param replicator The class that knows which peer each user is
+     * registered with.
+     */
+    public ReplicatedLocationService(final RegistrationReplicator replicator)
+        {
+        this.m_replicator = replicator;
+        }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean canHandle(final URI requestUri)
+        {
+        final String owner = this.m_replicator.getOwner(requestUri);
+        return owner != null &&
+            !owner.equals(this.m_replicator.getNodeName());
+        }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Collection getTargetSet(final URI requestUri)
+        {
+        final String owner = this.m_replicator.getOwner(requestUri);
+        if (owner == null || owner.equals(this.m_replicator.getNodeName()))
+            {
+            return Collections.EMPTY_LIST;
+            }
+        return Collections.singletonList(URI.create("sip:" + owner));
+        }
+    }
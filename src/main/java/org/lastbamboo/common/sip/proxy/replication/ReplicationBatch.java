@@ -0,0 +1,223 @@
+package org.lastbamboo.common.sip.proxy.replication;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Changes to one node's registrations, as sent to its peers.  A delta
+ * batch holds the registrations and unregistrations since the last batch.
+ * A snapshot holds every user registered with the node, and anything the
+ * receiver has for the node that isn't in it is gone.  A batch with no
+ * changes still tells peers the node is alive.
+ * <p>
+ * On the wire a batch is one line: the sender, its clock and "D" or "S",
+ * then the version, "+" or "-" and address-of-record of each change, all
+ * separated by spaces.  Addresses-of-record never contain spaces.
+ */
+public final class ReplicationBatch
+    {
+
+    private final String m_sender;
+
+    private final long m_clock;
+
+    private final boolean m_snapshot;
+
+    private final List<Change> m_changes;
+
+    /**
+     * Creates a new batch.
+     *
+     * @param sender The name of the node the changes are from.
+     * @param clock The node's clock when it sent the batch, which is at
+     * least the version of any of its changes.
+     * @param snapshot Whether the batch holds every user registered with
+     * the node rather than what changed.
+     * @param changes The changes.
+     */
+    public ReplicationBatch(final String sender, final long clock,
+        final boolean snapshot, final List<Change> changes)
+        {
+        if (sender.indexOf(' ') != -1)
+            {
+            throw new IllegalArgumentException("Bad node name: " + sender);
+            }
+        this.m_sender = sender;
+        this.m_clock = clock;
+        this.m_snapshot = snapshot;
+        this.m_changes = Collections.unmodifiableList(changes);
+        }
+
+    /**
+     * Accessor for the name of the node the changes are from.
+     *
+     * @return The sender.
+     */
+    public String getSender()
+        {
+        return this.m_sender;
+        }
+
+    /**
+     * Accessor for the sender's clock when it sent the batch.
+     *
+     * @return The clock.
+     */
+    public long getClock()
+        {
+        return this.m_clock;
+        }
+
+    /**
+     * Accessor for whether this is a snapshot.
+     *
+     * @return <code>true</code> if the batch holds every user registered
+     * with the sender.
+     */
+    public boolean isSnapshot()
+        {
+        return this.m_snapshot;
+        }
+
+    /**
+     * Accessor for the changes.
+     *
+     * @return The changes.
+     */
+    public List<Change> getChanges()
+        {
+        return this.m_changes;
+        }
+
+    /**
+     * Encodes the batch as a line, without the line terminator.
+     *
+     * @return The encoded batch.
+     */
+    public String encode()
+        {
+        final StringBuilder sb = new StringBuilder(32 + 48 * m_changes.size());
+        sb.append(this.m_sender);
+        sb.append(' ');
+        sb.append(this.m_clock);
+        sb.append(this.m_snapshot ? " S" : " D");
+        for (final Change change : this.m_changes)
+            {
+            sb.append(' ');
+            sb.append(change.m_version);
+            sb.append(change.m_registered ? " + " : " - ");
+            sb.append(change.m_aor.toString());
+            }
+        return sb.toString();
+        }
+
+    /**
+     * Decodes a batch encoded with {@link #encode()}.
+     *
+     * @param line The encoded batch.
+     * @return The batch.
+     * @throws IllegalArgumentException If the line isn't a batch.
+     */
+    public static ReplicationBatch decode(final String line)
+        {
+        final String[] fields = line.trim().split(" ");
+        if (fields.length < 3 || (fields.length - 3) % 3 != 0)
+            {
+            throw new IllegalArgumentException("Bad batch: " + line);
+            }
+        try
+            {
+            final List<Change> changes =
+                new ArrayList<Change>((fields.length - 3) / 3);
+            for (int i = 3; i < fields.length; i += 3)
+                {
+                final boolean registered = "+".equals(fields[i + 1]);
+                if (!registered && !"-".equals(fields[i + 1]))
+                    {
+                    throw new IllegalArgumentException("Bad batch: " + line);
+                    }
+                changes.add(new Change(new URI(fields[i + 2]),
+                    Long.parseLong(fields[i]), registered));
+                }
+            return new ReplicationBatch(fields[0], Long.parseLong(fields[1]),
+                "S".equals(fields[2]), changes);
+            }
+        catch (final NumberFormatException e)
+            {
+            throw new IllegalArgumentException("Bad batch: " + line, e);
+            }
+        catch (final URISyntaxException e)
+            {
+            throw new IllegalArgumentException("Bad batch: " + line, e);
+            }
+        }
+
+    /**
+     * A user registering with or unregistering from the sender.
+     */
+    public static final class Change
+        {
+
+        private final URI m_aor;
+
+        private final long m_version;
+
+        private final boolean m_registered;
+
+        /**
+         * Creates a new change.
+         *
+         * @param aor The user's address-of-record.
+         * @param version The sender's clock when the change happened.
+         * @param registered Whether the user registered or unregistered.
+         */
+        public Change(final URI aor, final long version,
+            final boolean registered)
+            {
+            this.m_aor = aor;
+            this.m_version = version;
+            this.m_registered = registered;
+            }
+
+        /**
+         * Accessor for the user's address-of-record.
+         *
+         * @return The address-of-record.
+         */
+        public URI getAor()
+            {
+            return this.m_aor;
+            }
+
+        /**
+         * Accessor for the version of the change.
+         *
+         * @return The version.
+         */
+        public long getVersion()
+            {
+            return this.m_version;
+            }
+
+        /**
+         * Accessor for whether the user registered or unregistered.
+         *
+         * @return <code>true</code> if the user registered.
+         */
+        public boolean isRegistered()
+            {
+            return this.m_registered;
+            }
+        }
+
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName() + " from " + this.m_sender +
+            (this.m_snapshot ? " snapshot of " : " with ") +
+            this.m_changes.size() + " changes";
+        }
+    }
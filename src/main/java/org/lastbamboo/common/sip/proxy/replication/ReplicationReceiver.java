@@ -0,0 +1,18 @@
+package org.lastbamboo.common.sip.proxy.replication;
+
+/**
+ * Interface for classes receiving batches of registration changes from
+ * peers.
+ */
+public interface ReplicationReceiver
+    {
+
+    /**
+     * Called with each batch a peer sends us.  Batches from any one peer
+     * arrive in the order it sent them.
+     * 
+     * @param batch The batch.
+     */
+    void receive(ReplicationBatch batch);
+
+    }
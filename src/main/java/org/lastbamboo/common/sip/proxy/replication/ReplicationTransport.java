@@ -0,0 +1,34 @@
+package org.lastbamboo.common.sip.proxy.replication;
+
+import java.io.IOException;
+
+/**
+ * Interface for the network between peer registrars.
+ */
+public interface ReplicationTransport
+    {
+
+    /**
+     * Starts accepting batches from peers.
+     * 
+     * @param receiver The class to pass batches we receive to.
+     * @throws IOException If we can't listen for peers.
+     */
+    void start(ReplicationReceiver receiver) throws IOException;
+
+    /**
+     * Sends a batch to a peer, connecting to it first if we aren't 
+     * already.  Batches sent on a connection that has since closed may 
+     * never have arrived, so a new connection means the peer needs a 
+     * snapshot.
+     * 
+     * @param peer The peer's address, as "host:port".
+     * @param batch The batch.
+     * @return <code>true</code> if we sent the batch on a connection we 
+     * opened for it, or <code>false</code> if we sent it on one that was
+     * already open.
+     * @throws IOException If we couldn't reach the peer.
+     */
+    boolean send(String peer, ReplicationBatch batch) throws IOException;
+
+    }
@@ -2,6 +2,7 @@ package org.lastbamboo.common.sip.proxy.stateless;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.lastbamboo.common.sip.proxy.LogThrottle;
 import org.lastbamboo.common.sip.proxy.SipRequestForwarder;
 import org.lastbamboo.common.sip.stack.message.Invite;
 
@@ -14,10 +15,17 @@ public class ExternalDomainForwarder implements SipRequestForwarder
 
     private final Logger LOG = LoggerFactory.getLogger(ExternalDomainForwarder.class);
     
+    private final LogThrottle m_warnings = new LogThrottle(1000);
+    
     public void forwardSipRequest(final Invite request)
         {
         // TODO: Implement this!!
-        LOG.warn("Attempting to forward message to external domain: "+request);
+        final long suppressed = this.m_warnings.acquire();
+        if (suppressed >= 0)
+            {
+            LOG.warn("Attempting to forward message to external domain: {}, " +
+                "{} more suppressed", request, suppressed);
+            }
         }
 
     }
@@ -0,0 +1,264 @@
+package org.lastbamboo.common.sip.proxy.stateless;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.proxy.FlowTable;
+import org.lastbamboo.common.sip.proxy.OptionsResponder;
+import org.lastbamboo.common.sip.proxy.SipHeaderRewriter;
+import org.lastbamboo.common.sip.stack.message.Invite;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.header.SipHeader;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderNames;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderValue;
+
+/**
+ * Keeps the proxy on the path of the dialogs it sets up.  The Record-Route
+ * we add to an INVITE names the flow of each side of the call, so every
+ * later request in the dialog comes back to us with a Route saying which
+ * connection to send it out on, and we never parse its Request-URI or ask
+ * the registrar.  Since both sides see the same Route, we pick whichever
+ * flow the request didn't arrive on.
+ * <p>
+ * The flow tokens go in the user part of the URI, as in
+ * "sip:ft-callee-caller@host:port".  The stack doesn't keep the order of
+ * parameters, and would move any after the first out of the URI when we
+ * forward the INVITE.  It also can't parse valueless parameters, so we 
+ * write "lr=on" rather than "lr", which loose routers accept all the same.
+ * The tokens are signed for the dialog's Call-ID, so they only route 
+ * requests within the dialog they were recorded for.
+ */
+public class RecordRouter
+    {
+
+    private static final String USER_PREFIX = 
+        FlowTable.FLOW_TOKEN_PARAM + "-";
+
+    private final FlowTable m_flowTable;
+
+    private final SipHeaderRewriter m_rewriter;
+
+    /**
+     * Creates a new router.
+     *
+     * @param flowTable The table of flow tokens for client connections.
+     * @param rewriter The class for editing the headers of INVITEs.
+     */
+    public RecordRouter(final FlowTable flowTable,
+        final SipHeaderRewriter rewriter)
+        {
+        this.m_flowTable = flowTable;
+        this.m_rewriter = rewriter;
+        }
+
+    /**
+     * Adds our Record-Route to an INVITE we're about to send to a client.
+     *
+     * @param invite The INVITE, with the caller's Via already tagged with
+     * its flow token.
+     * @param callee The session for the client we're sending it to.
+     * @return The INVITE with our Record-Route on top, or the original if
+     * either side has no flow token.
+     */
+    public Invite recordRoute(final Invite invite, final IoSession callee)
+        {
+        final IoSession caller = this.m_flowTable.get(
+            SipHeaderRewriter.getTopParam(invite, SipHeaderNames.VIA, 
+                FlowTable.FLOW_TOKEN_PARAM),
+            SipHeaderRewriter.getTopParam(invite, SipHeaderNames.VIA, 
+                "branch"));
+        if (caller == null)
+            {
+            return invite;
+            }
+        final String callId = getCallId(invite);
+        final String callerToken = this.m_flowTable.sign(caller, callId);
+        final String calleeToken = this.m_flowTable.sign(callee, callId);
+        if (callerToken == null || calleeToken == null)
+            {
+            return invite;
+            }
+        final InetSocketAddress local =
+            (InetSocketAddress) callee.getLocalAddress();
+        final StringBuilder sb = new StringBuilder(128);
+        sb.append("<sip:");
+        sb.append(USER_PREFIX);
+        sb.append(calleeToken);
+        sb.append('-');
+        sb.append(callerToken);
+        sb.append('@');
+        sb.append(local.getAddress().getHostAddress());
+        sb.append(':');
+        sb.append(local.getPort());
+        sb.append(";lr=on>");
+
+        final SipHeader existing =
+            invite.getHeader(SipHeaderNames.RECORD_ROUTE);
+        if (existing != null)
+            {
+            sb.append(',');
+            sb.append(render(existing.getValues()));
+            }
+        return this.m_rewriter.setHeader(invite, SipHeaderNames.RECORD_ROUTE,
+            sb.toString());
+        }
+
+    /**
+     * Accessor for whether the topmost Route of a request is one we
+     * recorded.
+     *
+     * @param request The request.
+     * @return <code>true</code> if the Route carries our flow tokens.
+     */
+    public static boolean hasFlowRoute(final SipMessage request)
+        {
+        final List<SipHeaderValue> routes = getRoutes(request);
+        return routes != null && getFlowTokens(routes.get(0)) != null;
+        }
+
+    /**
+     * Finds the session to send a request to from the flow tokens in its
+     * topmost Route.
+     *
+     * @param request The request.
+     * @param route The request's topmost Route.
+     * @param session The session the request arrived on.
+     * @return The session to forward the request on, or <code>null</code>
+     * if the Route names no flow, its tokens aren't ones we recorded for 
+     * the request's dialog, or the flow is gone.
+     */
+    public IoSession route(final SipMessage request, 
+        final SipHeaderValue route, final IoSession session)
+        {
+        final String[] tokens = getFlowTokens(route);
+        if (tokens == null)
+            {
+            return null;
+            }
+        final String callId = getCallId(request);
+        final int callee = this.m_flowTable.verify(tokens[0], callId);
+        if (callee == -1)
+            {
+            return null;
+            }
+        if (callee == this.m_flowTable.getToken(session))
+            {
+            // From the callee, so back toward the caller.
+            return this.m_flowTable.get(tokens[1], callId);
+            }
+        return this.m_flowTable.get(callee);
+        }
+
+    /**
+     * Routes an INVITE within a dialog we recorded, removing our Route.
+     *
+     * @param invite The INVITE.
+     * @param session The session the INVITE arrived on.
+     * @return The session to forward the INVITE on, or <code>null</code>
+     * if the flow is gone.
+     */
+    public IoSession route(final Invite invite, final IoSession session)
+        {
+        return route(invite, getRoutes(invite).get(0), session);
+        }
+
+    /**
+     * Removes the topmost Route from an INVITE.
+     *
+     * @param invite The INVITE.
+     * @return The INVITE without its topmost Route.
+     */
+    public Invite popRoute(final Invite invite)
+        {
+        final List<SipHeaderValue> routes = getRoutes(invite);
+        if (routes == null)
+            {
+            return invite;
+            }
+        if (routes.size() == 1)
+            {
+            return this.m_rewriter.removeHeader(invite,
+                OptionsResponder.ROUTE);
+            }
+        return this.m_rewriter.setHeader(invite, OptionsResponder.ROUTE,
+            render(routes.subList(1, routes.size())));
+        }
+
+    /**
+     * Accessor for the Route values of a request.
+     *
+     * @param request The request.
+     * @return The Route values, or <code>null</code> if there are none.
+     */
+    static List<SipHeaderValue> getRoutes(final SipMessage request)
+        {
+        final SipHeader route = request.getHeader(OptionsResponder.ROUTE);
+        if (route == null)
+            {
+            return null;
+            }
+        final List<SipHeaderValue> values = route.getValues();
+        return values.isEmpty() ? null : values;
+        }
+
+    private static String getCallId(final SipMessage message)
+        {
+        final SipHeader callId = message.getHeader(SipHeaderNames.CALL_ID);
+        return callId == null ? null : callId.getValue().getBaseValue();
+        }
+
+    /**
+     * Accessor for the flow tokens in a Route we recorded.
+     *
+     * @param route The Route value.
+     * @return The callee's and the caller's flow tokens, or 
+     * <code>null</code> if the Route isn't one of ours.
+     */
+    static String[] getFlowTokens(final SipHeaderValue route)
+        {
+        final String base = route.getBaseValue();
+        final int start = base.indexOf("sip:" + USER_PREFIX);
+        if (start == -1)
+            {
+            return null;
+            }
+        final int userStart = start + 4 + USER_PREFIX.length();
+        final int at = base.indexOf('@', userStart);
+        final int dash = base.indexOf('-', userStart);
+        if (at == -1 || dash == -1 || dash > at)
+            {
+            return null;
+            }
+        return new String[] 
+            {
+            base.substring(userStart, dash), base.substring(dash + 1, at)
+            };
+        }
+
+    /**
+     * Renders header values as a single comma-separated header.
+     *
+     * @param values The values.
+     * @return The rendered values.
+     */
+    static String render(final List<SipHeaderValue> values)
+        {
+        final StringBuilder sb = new StringBuilder(128);
+        for (int i = 0; i < values.size(); i++)
+            {
+            if (i > 0)
+                {
+                sb.append(',');
+                }
+            SipHeaderRewriter.render(values.get(i), sb);
+            }
+        return sb.toString();
+        }
+
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName();
+        }
+    }
@@ -0,0 +1,481 @@
+package org.lastbamboo.common.sip.proxy.stateless;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.proxy.FlowTable;
+import org.lastbamboo.common.sip.proxy.LocalResponseWriter;
+import org.lastbamboo.common.sip.proxy.OptionsResponder;
+import org.lastbamboo.common.sip.proxy.RecentlyUnregisteredCache;
+import org.lastbamboo.common.sip.proxy.SipHeaderRewriter;
+import org.lastbamboo.common.sip.proxy.SipRegistrar;
+import org.lastbamboo.common.sip.proxy.metrics.SipMetrics;
+import org.lastbamboo.common.sip.proxy.metrics.SipMetrics.Method;
+import org.lastbamboo.common.sip.proxy.metrics.SipMetrics.Outcome;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.SipMessageUtils;
+import org.lastbamboo.common.sip.stack.message.UnknownSipRequest;
+import org.lastbamboo.common.sip.stack.message.header.SipHeader;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderNames;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Forwards requests other than INVITE and REGISTER, such as BYE, ACK,
+ * CANCEL, OPTIONS, MESSAGE and INFO, without keeping any state, as in
+ * RFC 3261 section 16.11.  We add our own Via with a branch derived from
+ * the request the same way as for INVITEs, so retransmissions get the same
+ * branch and a CANCEL or the ACK for a non-2xx response gets the branch of
+ * the INVITE it goes with.  Responses find their way back through the 
+ * flow token on the caller's Via just like responses to INVITEs.
+ */
+public class StatelessRequestForwarder
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private static final String MAGIC_COOKIE = "z9hG4bK";
+
+    private static final int DEFAULT_MAX_FORWARDS = 70;
+
+    private final SipRegistrar m_registrar;
+
+    private final FlowTable m_flowTable;
+
+    private final RecentlyUnregisteredCache m_recentlyUnregistered;
+
+    private final SipHeaderFactory m_headerFactory;
+
+    private final LocalResponseWriter m_responseWriter;
+
+    private final SipMetrics m_metrics;
+
+    private final RecordRouter m_recordRouter;
+
+    /**
+     * Creates a new forwarder.
+     *
+     * @param registrar The registrar for looking up client connections.
+     * @param flowTable The table of flow tokens for client connections.
+     * @param recentlyUnregistered The users who were registered recently.
+     * @param headerFactory The factory for creating headers.
+     * @param responseWriter The class for writing responses we generate
+     * ourselves.
+     * @param metrics The counters to record outcomes in.
+     * @param recordRouter The class for routing requests within dialogs we
+     * recorded.
+     */
+    public StatelessRequestForwarder(final SipRegistrar registrar,
+        final FlowTable flowTable,
+        final RecentlyUnregisteredCache recentlyUnregistered,
+        final SipHeaderFactory headerFactory,
+        final LocalResponseWriter responseWriter, final SipMetrics metrics,
+        final RecordRouter recordRouter)
+        {
+        this.m_registrar = registrar;
+        this.m_flowTable = flowTable;
+        this.m_recentlyUnregistered = recentlyUnregistered;
+        this.m_headerFactory = headerFactory;
+        this.m_responseWriter = responseWriter;
+        this.m_metrics = metrics;
+        this.m_recordRouter = recordRouter;
+        }
+
+    /**
+     * Forwards the specified request, or answers it with an error if it
+     * can't go any further.
+     *
+     * @param request The request.
+     * @param session The session the request arrived on.
+     */
+    public void forward(final UnknownSipRequest request,
+        final IoSession session)
+        {
+        final String method = OptionsResponder.getMethod(request);
+        final SipHeader via = request.getHeader(SipHeaderNames.VIA);
+        if (via == null || via.getValues().isEmpty())
+            {
+            reject(request, method, session, 400, "Missing Via Header");
+            return;
+            }
+
+        final int maxForwards = getMaxForwards(request);
+        if (maxForwards < 0)
+            {
+            reject(request, method, session, 400, "Bad Max-Forwards");
+            return;
+            }
+        if (maxForwards == 0)
+            {
+            reject(request, method, session, 483, "Too Many Hops");
+            return;
+            }
+
+        final URI requestUri;
+        try
+            {
+            requestUri = SipMessageUtils.extractUriFromRequestLine(request);
+            }
+        catch (final IOException e)
+            {
+            reject(request, method, session, 400, "Bad Request-URI");
+            return;
+            }
+
+        // The loop part of our branch only depends on fields that don't
+        // change from hop to hop, so if we see it in a Via we've already
+        // forwarded this exact request.
+        final String loopHash = loopHash(request, requestUri);
+        for (final SipHeaderValue value : via.getValues())
+            {
+            final String branch = value.getParamValue("branch");
+            if (branch != null && branch.startsWith(MAGIC_COOKIE) &&
+                branch.endsWith(loopHash))
+                {
+                reject(request, method, session, 482, "Loop Detected");
+                return;
+                }
+            }
+
+        final List<SipHeaderValue> routes = RecordRouter.getRoutes(request);
+
+        final IoSession target;
+        boolean popRoute = false;
+        if (routes != null)
+            {
+            final SipHeaderValue top = routes.get(0);
+            if (RecordRouter.hasFlowRoute(request))
+                {
+                // A Route we recorded ourselves, naming the flows to use.
+                target = this.m_recordRouter.route(request, top, session);
+                popRoute = true;
+                }
+            else if (isOurs(top))
+                {
+                target = lookup(requestUri);
+                popRoute = true;
+                }
+            else
+                {
+                m_log.debug("Can't reach Route: {}", top);
+                target = null;
+                }
+            }
+        else
+            {
+            target = lookup(requestUri);
+            }
+
+        if (target == null)
+            {
+            if (wasRecentlyRegistered(requestUri))
+                {
+                reject(request, method, session, 480,
+                    "Temporarily Unavailable");
+                }
+            else
+                {
+                reject(request, method, session, 404, "Not Found");
+                }
+            return;
+            }
+
+        final Map<String, SipHeader> headers = request.getHeaders();
+        headers.put(SipHeaderNames.VIA, createVia(via, target, session, 
+            transactionHash(request, requestUri, via) + loopHash));
+        headers.put(SipHeaderNames.MAX_FORWARDS,
+            this.m_headerFactory.createMaxForwards(maxForwards - 1));
+        if (popRoute)
+            {
+            if (routes.size() == 1)
+                {
+                headers.remove(OptionsResponder.ROUTE);
+                }
+            else
+                {
+                headers.put(OptionsResponder.ROUTE, this.m_headerFactory.
+                    createHeader(OptionsResponder.ROUTE,
+                        RecordRouter.render(
+                            routes.subList(1, routes.size()))));
+                }
+            }
+
+        target.write(new UnknownSipRequest(method, requestUri, headers,
+            request.getBody()));
+        this.m_metrics.count(Method.OTHER, Outcome.FORWARDED);
+        }
+
+    private void reject(final SipMessage request, final String method,
+        final IoSession session, final int statusCode,
+        final String reasonPhrase)
+        {
+        this.m_metrics.count(Method.OTHER, Outcome.REJECTED);
+        if ("ACK".equals(method))
+            {
+            // ACKs never get responses.
+            m_log.debug("Dropping ACK we can't forward: {}", reasonPhrase);
+            return;
+            }
+        this.m_responseWriter.write(session, request, statusCode,
+            reasonPhrase);
+        }
+
+    /**
+     * Finds the connection for a Request-URI.  Clients register their
+     * address-of-record but put their own address in their Contact, so
+     * requests within a dialog usually name an address we can't reach
+     * directly, and we fall back to the user's address-of-record in each
+     * domain we host.
+     */
+    private IoSession lookup(final URI requestUri)
+        {
+        final IoSession session = this.m_registrar.getIoSession(requestUri);
+        if (session != null)
+            {
+            return session;
+            }
+        for (final URI aor : toAddressesOfRecord(requestUri))
+            {
+            final IoSession aorSession = this.m_registrar.getIoSession(aor);
+            if (aorSession != null)
+                {
+                return aorSession;
+                }
+            }
+        return null;
+        }
+
+    private boolean wasRecentlyRegistered(final URI requestUri)
+        {
+        if (this.m_recentlyUnregistered.wasRecentlyRegistered(requestUri))
+            {
+            return true;
+            }
+        for (final URI aor : toAddressesOfRecord(requestUri))
+            {
+            if (this.m_recentlyUnregistered.wasRecentlyRegistered(aor))
+                {
+                return true;
+                }
+            }
+        return false;
+        }
+
+    private Collection<URI> toAddressesOfRecord(final URI uri)
+        {
+        final String ssp = uri.getSchemeSpecificPart();
+        final int at = ssp == null ? -1 : ssp.indexOf('@');
+        if (at == -1)
+            {
+            return Collections.emptyList();
+            }
+        final Collection<URI> aors = new LinkedList<URI>();
+        for (final String domain : this.m_registrar.getHostedDomains())
+            {
+            try
+                {
+                aors.add(new URI(uri.getScheme() + ":" + 
+                    ssp.substring(0, at) + "@" + domain));
+                }
+            catch (final URISyntaxException e)
+                {
+                m_log.debug("Bad user in: " + uri, e);
+                }
+            }
+        return aors;
+        }
+
+    /**
+     * Creates our Via for an INVITE we forward.  The INVITE's own Via 
+     * already carries the caller's flow token.
+     *
+     * @param request The INVITE as it arrived.
+     * @param requestUri The INVITE's Request-URI.
+     * @param target The session we're forwarding the INVITE on.
+     * @return Our Via, to add on top of the INVITE's.
+     */
+    SipHeader createVia(final SipMessage request, final URI requestUri,
+        final IoSession target)
+        {
+        final SipHeader via = request.getHeader(SipHeaderNames.VIA);
+        final StringBuilder sb = new StringBuilder(128);
+        appendVia(sb, target, transactionHash(request, requestUri, via) + 
+            loopHash(request, requestUri));
+        return this.m_headerFactory.createHeader(SipHeaderNames.VIA,
+            sb.toString());
+        }
+
+    /**
+     * Creates the Via for the forwarded request, with ours on top and the
+     * caller's tagged with its flow token.
+     */
+    private SipHeader createVia(final SipHeader via, final IoSession target,
+        final IoSession session, final String branch)
+        {
+        final StringBuilder sb = new StringBuilder(256);
+        appendVia(sb, target, branch);
+
+        // The caller's token is signed for the caller's branch, so it's 
+        // only good for responses in this transaction.
+        final List<SipHeaderValue> values = via.getValues();
+        final String token = this.m_flowTable.sign(session, 
+            values.get(0).getParamValue("branch"));
+        for (int i = 0; i < values.size(); i++)
+            {
+            sb.append(',');
+            if (i == 0 && token != null)
+                {
+                SipHeaderRewriter.render(values.get(i), sb, 
+                    FlowTable.FLOW_TOKEN_PARAM);
+                sb.append(';');
+                sb.append(FlowTable.FLOW_TOKEN_PARAM);
+                sb.append('=');
+                sb.append(token);
+                }
+            else
+                {
+                SipHeaderRewriter.render(values.get(i), sb);
+                }
+            }
+        return this.m_headerFactory.createHeader(SipHeaderNames.VIA,
+            sb.toString());
+        }
+
+    private static void appendVia(final StringBuilder sb, 
+        final IoSession target, final String branch)
+        {
+        final InetSocketAddress local =
+            (InetSocketAddress) target.getLocalAddress();
+        sb.append("SIP/2.0/TCP ");
+        sb.append(local.getAddress().getHostAddress());
+        sb.append(':');
+        sb.append(local.getPort());
+        sb.append(";branch=");
+        sb.append(MAGIC_COOKIE);
+        sb.append(branch);
+        }
+
+    /**
+     * Derives the transaction part of our branch as RFC 3261 section 16.11
+     * recommends.  An RFC 3261 client gives a CANCEL, and the ACK for a 
+     * non-2xx response, the branch of the INVITE, so we hash that.  For 
+     * older clients we hash the fields that identify the transaction, 
+     * using the CSeq number without the method for the same reason.
+     */
+    private static String transactionHash(final SipMessage request,
+        final URI requestUri, final SipHeader via)
+        {
+        final SipHeaderValue top = via.getValue();
+        final String incoming = top.getParamValue("branch");
+        if (incoming != null && incoming.startsWith(MAGIC_COOKIE))
+            {
+            return Integer.toHexString(incoming.hashCode());
+            }
+        int hash = requestUri.hashCode();
+        hash = 31 * hash + top.getBaseValue().hashCode();
+        hash = 31 * hash + (incoming == null ? 0 : incoming.hashCode());
+        hash = 31 * hash + hashTop(request, SipHeaderNames.FROM, "tag");
+        hash = 31 * hash + hashTop(request, SipHeaderNames.TO, "tag");
+        hash = 31 * hash + hashTop(request, SipHeaderNames.CALL_ID, null);
+        hash = 31 * hash + getCSeqNumber(request).hashCode();
+        return Integer.toHexString(hash);
+        }
+
+    /**
+     * Hashes the fields RFC 3261 section 16.6 item 8 suggests for loop
+     * detection.  We leave out the To tag and the CSeq method, which are 
+     * all that differ between an INVITE and its CANCEL or non-2xx ACK, so 
+     * those get the INVITE's branch as section 16.11 requires.
+     */
+    private static String loopHash(final SipMessage request,
+        final URI requestUri)
+        {
+        int hash = requestUri.hashCode();
+        hash = 31 * hash + hashTop(request, SipHeaderNames.FROM, "tag");
+        hash = 31 * hash + hashTop(request, SipHeaderNames.CALL_ID, null);
+        hash = 31 * hash + getCSeqNumber(request).hashCode();
+        hash = 31 * hash + hashTop(request, OptionsResponder.ROUTE, null);
+        return "." + Integer.toHexString(hash);
+        }
+
+    private static String getCSeqNumber(final SipMessage request)
+        {
+        final SipHeader header = request.getHeader(SipHeaderNames.CSEQ);
+        if (header == null || header.getValues().isEmpty())
+            {
+            return "";
+            }
+        final String cseq = header.getValue().getBaseValue().trim();
+        final int space = cseq.indexOf(' ');
+        return space == -1 ? cseq : cseq.substring(0, space);
+        }
+
+    private static int hashTop(final SipMessage request, final String name,
+        final String param)
+        {
+        final SipHeader header = request.getHeader(name);
+        if (header == null || header.getValues().isEmpty())
+            {
+            return 0;
+            }
+        final SipHeaderValue value = header.getValue();
+        final String field =
+            param == null ? value.getBaseValue() : value.getParamValue(param);
+        return field == null ? 0 : field.hashCode();
+        }
+
+    private static int getMaxForwards(final SipMessage request)
+        {
+        final SipHeader header =
+            request.getHeader(SipHeaderNames.MAX_FORWARDS);
+        if (header == null)
+            {
+            return DEFAULT_MAX_FORWARDS;
+            }
+        try
+            {
+            return Integer.parseInt(header.getValue().getBaseValue().trim());
+            }
+        catch (final NumberFormatException e)
+            {
+            return -1;
+            }
+        }
+
+    /**
+     * Determines whether a Route names one of the domains we host, as in 
+     * "&lt;sip:lastbamboo.org;lr&gt;".
+     */
+    private boolean isOurs(final SipHeaderValue route)
+        {
+        final String base = route.getBaseValue().trim();
+        int start = base.indexOf(':') + 1;
+        final int at = base.indexOf('@', start);
+        if (at != -1)
+            {
+            start = at + 1;
+            }
+        int end = start;
+        while (end < base.length() && ";:>?".indexOf(base.charAt(end)) == -1)
+            {
+            end++;
+            }
+        return this.m_registrar.hostsDomain(base.substring(start, end));
+        }
+
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName();
+        }
+    }
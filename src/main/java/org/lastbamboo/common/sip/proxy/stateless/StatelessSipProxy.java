@@ -7,14 +7,28 @@ import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.proxy.FlowTable;
+import org.lastbamboo.common.sip.proxy.LocalResponseWriter;
+import org.lastbamboo.common.sip.proxy.LogThrottle;
+import org.lastbamboo.common.sip.proxy.RecentlyUnregisteredCache;
+import org.lastbamboo.common.sip.proxy.SipHeaderRewriter;
 import org.lastbamboo.common.sip.proxy.SipRegistrar;
 import org.lastbamboo.common.sip.proxy.SipRequestAndResponseForwarder;
 import org.lastbamboo.common.sip.proxy.SipRequestForwarder;
+import org.lastbamboo.common.sip.proxy.metrics.PipelineTracer;
+import org.lastbamboo.common.sip.proxy.metrics.PipelineTracer.Stage;
+import org.lastbamboo.common.sip.proxy.metrics.SipMetrics;
+import org.lastbamboo.common.sip.proxy.metrics.SipMetrics.Method;
+import org.lastbamboo.common.sip.proxy.metrics.SipMetrics.Outcome;
 import org.lastbamboo.common.sip.stack.message.Invite;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
 import org.lastbamboo.common.sip.stack.message.SipMessageFactory;
 import org.lastbamboo.common.sip.stack.message.SipMessageUtils;
 import org.lastbamboo.common.sip.stack.message.SipResponse;
+import org.lastbamboo.common.sip.stack.message.UnknownSipRequest;
 import org.lastbamboo.common.sip.stack.message.header.SipHeader;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactoryImpl;
 import org.lastbamboo.common.sip.stack.message.header.SipHeaderNames;
 import org.lastbamboo.common.sip.stack.message.header.SipHeaderValue;
 import org.lastbamboo.common.sip.stack.transport.SipTcpTransportLayer;
@@ -26,12 +40,15 @@ import org.lastbamboo.common.sip.stack.util.UriUtils;
 public class StatelessSipProxy implements SipRequestAndResponseForwarder
     {
 
-    private final Logger LOG = LoggerFactory.getLogger(StatelessSipProxy.class);
+    private static final Logger LOG = 
+        LoggerFactory.getLogger(StatelessSipProxy.class);
+    
+    private final LogThrottle m_badRequestWarnings = new LogThrottle(1000);
+    
+    private final LogThrottle m_badResponseWarnings = new LogThrottle(1000);
     
     private final SipRegistrar m_registrar;
     
-    private final SipRequestForwarder m_unregisteredUriForwarder;
-
     private final SipRequestForwarder m_externalDomainForwarder;
 
     private final UriUtils m_uriUtils;
@@ -40,14 +57,29 @@ public class StatelessSipProxy implements SipRequestAndResponseForwarder
 
     private final SipMessageFactory m_messageFactory;
 
+    private final FlowTable m_flowTable;
+
+    private final PipelineTracer m_tracer;
+
+    private final SipMetrics m_metrics;
+
+    private final RecentlyUnregisteredCache m_recentlyUnregistered;
+
+    private final LocalResponseWriter m_responseWriter = 
+        new LocalResponseWriter();
+
+    private final StatelessRequestForwarder m_requestForwarder;
+
+    private final RecordRouter m_recordRouter;
+
+    private volatile boolean m_recordRoute;
+
     /**
      * Creates a new stateless SIP proxy.
      * 
      * @param transportLayer The class for sending messages.
      * @param registrar The registrar the proxy uses to lookup client 
      * connections.
-     * @param unregisteredUriForwarder The class for forwarding messages when
-     * we do not have registration data for the URI.
      * @param externalDomainForwarder The class for forwarding messages to
      * domains we are not responsible for, such as 'vonage.com'.
      * @param uriUtils Class for handling SIP uris.
@@ -55,26 +87,106 @@ public class StatelessSipProxy implements SipRequestAndResponseForwarder
      */
     public StatelessSipProxy(final SipTcpTransportLayer transportLayer, 
         final SipRegistrar registrar, 
-        final SipRequestForwarder unregisteredUriForwarder,
         final SipRequestForwarder externalDomainForwarder,
         final UriUtils uriUtils, final SipMessageFactory messageFactory)
         {
+        this(transportLayer, registrar, externalDomainForwarder, uriUtils, 
+            messageFactory, new FlowTable(), new SipMetrics());
+        }
+    
+    /**
+     * Creates a new stateless SIP proxy.
+     * 
+     * @param transportLayer The class for sending messages.
+     * @param registrar The registrar the proxy uses to lookup client 
+     * connections.
+     * @param externalDomainForwarder The class for forwarding messages to
+     * domains we are not responsible for, such as 'vonage.com'.
+     * @param uriUtils Class for handling SIP uris.
+     * @param messageFactory The class for creating SIP messages.
+     * @param flowTable The table of flow tokens for client connections, 
+     * shared with the proxy that accepts them.
+     * @param metrics The metrics holding the tracer for slow stages.
+     */
+    public StatelessSipProxy(final SipTcpTransportLayer transportLayer, 
+        final SipRegistrar registrar, 
+        final SipRequestForwarder externalDomainForwarder,
+        final UriUtils uriUtils, final SipMessageFactory messageFactory,
+        final FlowTable flowTable, final SipMetrics metrics)
+        {
+        this(transportLayer, registrar, externalDomainForwarder, uriUtils, 
+            messageFactory, flowTable, metrics, 
+            new RecentlyUnregisteredCache(), new SipHeaderFactoryImpl());
+        }
+    
+    /**
+     * Creates a new stateless SIP proxy.
+     * 
+     * @param transportLayer The class for sending messages.
+     * @param registrar The registrar the proxy uses to lookup client 
+     * connections.
+     * @param externalDomainForwarder The class for forwarding messages to
+     * domains we are not responsible for, such as 'vonage.com'.
+     * @param uriUtils Class for handling SIP uris.
+     * @param messageFactory The class for creating SIP messages.
+     * @param flowTable The table of flow tokens for client connections, 
+     * shared with the proxy that accepts them.
+     * @param metrics The metrics holding the tracer for slow stages.
+     * @param recentlyUnregistered The cache of users who were recently
+     * registered, which we add as a listener to the registrar.
+     * @param headerFactory The factory for headers we add to requests other
+     * than INVITEs.
+     */
+    public StatelessSipProxy(final SipTcpTransportLayer transportLayer, 
+        final SipRegistrar registrar, 
+        final SipRequestForwarder externalDomainForwarder,
+        final UriUtils uriUtils, final SipMessageFactory messageFactory,
+        final FlowTable flowTable, final SipMetrics metrics,
+        final RecentlyUnregisteredCache recentlyUnregistered,
+        final SipHeaderFactory headerFactory)
+        {
+        this.m_flowTable = flowTable;
+        this.m_tracer = metrics.getTracer();
+        this.m_metrics = metrics;
+        this.m_recentlyUnregistered = recentlyUnregistered;
+        registrar.addRegistrationListener(recentlyUnregistered);
         this.m_transportLayer = transportLayer;
         this.m_registrar = registrar;
-        this.m_unregisteredUriForwarder = unregisteredUriForwarder;
         this.m_externalDomainForwarder = externalDomainForwarder;
         this.m_uriUtils = uriUtils;
         this.m_messageFactory = messageFactory;
+        this.m_recordRouter = new RecordRouter(flowTable, 
+            new SipHeaderRewriter(headerFactory));
+        this.m_requestForwarder = new StatelessRequestForwarder(registrar, 
+            flowTable, recentlyUnregistered, headerFactory, 
+            this.m_responseWriter, metrics, this.m_recordRouter);
+        }
+    
+    /**
+     * Sets whether we add a Record-Route to the INVITEs we forward to our 
+     * clients, so the rest of the dialog is routed through us by flow 
+     * token rather than by registrar lookups.  Off by default.
+     * 
+     * @param recordRoute Whether to record-route.
+     */
+    public void setRecordRoute(final boolean recordRoute)
+        {
+        this.m_recordRoute = recordRoute;
+        }
+    
+    /**
+     * Accessor for whether we add a Record-Route to forwarded INVITEs.
+     * 
+     * @return <code>true</code> if we record-route.
+     */
+    public boolean isRecordRoute()
+        {
+        return this.m_recordRoute;
         }
     
     public void forwardSipRequest(final Invite request)
         {
-        if (LOG.isDebugEnabled())
-            {
-            LOG.debug("Processing request...");
-            }
-        // Determine request targets, as specified in RFC 3261 section 16.5.
-        
+        LOG.debug("Processing request...");
         final URI uri;
         try
             {
@@ -82,75 +194,215 @@ public class StatelessSipProxy implements SipRequestAndResponseForwarder
             }
         catch (final IOException e)
             {
-            // TODO Return a response indicating an invalid message from the
-            // client.  For now, we just drop it.
-            LOG.warn("Could not extract URI from request: "+request);
+            final long suppressed = this.m_badRequestWarnings.acquire();
+            if (suppressed >= 0)
+                {
+                LOG.warn("Could not extract URI from request: {}, {} more " +
+                    "suppressed", request, suppressed);
+                }
+            respond(request, 400, "Bad Request");
+            return;
+            }
+        if (RecordRouter.hasFlowRoute(request))
+            {
+            forwardInDialog(request, uri);
+            return;
+            }
+        
+        // Determine request targets, as specified in RFC 3261 section 16.5.
+        final String host = 
+            isSipUri(uri) ? this.m_uriUtils.getHostInSipUri(uri) : null;
+        if (host == null || host.length() == 0)
+            {
+            LOG.debug("Not a SIP URI: {}", uri);
+            respond(request, 400, "Bad Request-URI");
             return;
             }
         
-        final String host = this.m_uriUtils.getHostInSipUri(uri);
-        if (host.equalsIgnoreCase("lastbamboo.org"))
+        if (this.m_registrar.hostsDomain(host))
             {
             // Check our registrar for the user, and forward it if we have the
             // user registered.  Otherwise, send to to the external location
-            // service.
-            if (this.m_registrar.hasRegistration(uri))
+            // service.  The registrar goes straight to the domain's 
+            // partition, in a single lookup.
+            final long lookupStart = this.m_tracer.start();
+            final IoSession io = this.m_registrar.getIoSession(uri);
+            if (io != null)
                 {
-                final IoSession io = this.m_registrar.getIoSession(uri);
+                this.m_tracer.end(Stage.REGISTRAR_LOOKUP, request, 
+                    lookupStart);
+                LOG.debug("Forwarding message for client we have...");
+                final Invite toWrite = this.m_recordRoute ?
+                    this.m_recordRouter.recordRoute(request, io) : request;
+                final long writeStart = this.m_tracer.start();
+                write(request, uri, toWrite, io);
+                this.m_tracer.end(Stage.TRANSPORT_WRITE, request, 
+                    writeStart);
+                }
+            else 
+                {
+                this.m_tracer.end(Stage.REGISTRAR_LOOKUP, request, 
+                    lookupStart);
                 
-                if (io == null) 
+                // We don't forward to other proxies for now, so answer 
+                // right away rather than letting the caller retransmit 
+                // until it times out.
+                if (this.m_recentlyUnregistered.wasRecentlyRegistered(uri))
                     {
-                    // This can still happen if we happen to lose a 
-                    // connection...
-                    LOG.debug("Forwarding request for user not registered " +
-                        "with this proxy...");
-                    this.m_unregisteredUriForwarder.forwardSipRequest(request);
+                    LOG.debug("User recently unregistered: {}", uri);
+                    respond(request, 480, "Temporarily Unavailable");
                     }
-                else 
+                else
                     {
-                    LOG.debug("Forwarding message for client we have...");
-                    this.m_transportLayer.writeRequestStatelessly(request, io);
+                    LOG.debug("No such user: {}", uri);
+                    respond(request, 404, "Not Found");
                     }
                 }
-            else 
-                {
-                LOG.debug("Forwarding request for user not registered " +
-                    "with this proxy...");
-                
-                // TODO: We don't do this for now.
-                //this.m_unregisteredUriForwarder.forwardSipRequest(request);
-                }
             }
         else
             {
             // We are not responsible for the domain, so forward it 
             // appropriately.  
-            LOG.debug("Forwarding request for external domain: "+host);
+            LOG.debug("Forwarding request for external domain: {}", host);
             this.m_externalDomainForwarder.forwardSipRequest(request);
             }     
         }
 
-    public void forwardSipResponse(final SipResponse originalResponse) 
-        throws IOException
+    /**
+     * Forwards an INVITE within a dialog we record-routed on the flow its
+     * Route names.
+     */
+    private void forwardInDialog(final Invite request, final URI uri)
         {
-        if (LOG.isDebugEnabled())
+        final IoSession caller = getFlow(request);
+        final IoSession io = caller == null ? 
+            null : this.m_recordRouter.route(request, caller);
+        if (io == null)
             {
-            LOG.debug("Forwarding original response: "+originalResponse);
+            LOG.debug("Flow for dialog is gone");
+            respond(request, 480, "Temporarily Unavailable");
+            return;
             }
+        final long writeStart = this.m_tracer.start();
+        write(request, uri, this.m_recordRouter.popRoute(request), io);
+        this.m_tracer.end(Stage.TRANSPORT_WRITE, request, writeStart);
+        }
+
+    /**
+     * Writes an INVITE with our Via on top.  The branch is derived from the
+     * INVITE as it arrived, the same way the request forwarder derives it,
+     * so a CANCEL for the INVITE gets the same branch as RFC 3261 section 
+     * 16.11 requires.
+     */
+    private void write(final Invite request, final URI uri, 
+        final Invite toWrite, final IoSession io)
+        {
+        io.write(this.m_messageFactory.addVia(toWrite, 
+            this.m_requestForwarder.createVia(request, uri, io)));
+        }
+
+    /**
+     * Finds the session named by the flow token on a message's topmost Via,
+     * which we signed for that Via's branch.
+     * 
+     * @param message The message.
+     * @return The session, or <code>null</code> if there's no token, it
+     * doesn't verify or its connection has closed.
+     */
+    private IoSession getFlow(final SipMessage message)
+        {
+        return this.m_flowTable.get(
+            SipHeaderRewriter.getTopParam(message, SipHeaderNames.VIA, 
+                FlowTable.FLOW_TOKEN_PARAM),
+            SipHeaderRewriter.getTopParam(message, SipHeaderNames.VIA, 
+                "branch"));
+        }
+
+    private static boolean isSipUri(final URI uri)
+        {
+        final String scheme = uri.getScheme();
+        return "sip".equalsIgnoreCase(scheme) || 
+            "sips".equalsIgnoreCase(scheme);
+        }
+
+    /**
+     * Answers a request we would otherwise have forwarded on the session it
+     * arrived on, which we find from the flow token in the caller's Via.
+     */
+    private void respond(final Invite request, final int statusCode, 
+        final String reasonPhrase)
+        {
+        this.m_metrics.count(Method.INVITE, Outcome.REJECTED);
+        final IoSession io = getFlow(request);
+        if (io == null)
+            {
+            LOG.debug("Caller's connection is gone -- not sending {}", 
+                statusCode);
+            return;
+            }
+        this.m_responseWriter.write(io, request, statusCode, reasonPhrase);
+        }
+
+    public void forwardSipRequest(final UnknownSipRequest request, 
+        final IoSession session)
+        {
+        this.m_requestForwarder.forward(request, session);
+        }
+
+    public boolean forwardSipResponse(final SipResponse originalResponse) 
+        throws IOException
+        {
+        LOG.debug("Forwarding original response: {}", originalResponse);
         final SipHeader header = 
             originalResponse.getHeader(SipHeaderNames.VIA);
         final List<SipHeaderValue> values = header.getValues();
         if (values.size() < 2)
             {
-            LOG.warn("Not enough Via headers in response: "+
-                originalResponse);
+            final long suppressed = this.m_badResponseWarnings.acquire();
+            if (suppressed >= 0)
+                {
+                LOG.warn("Not enough Via headers in response: {}, {} more " +
+                    "suppressed", originalResponse, suppressed);
+                }
             throw new IOException("Not enough Via headers " +
                 "in response: "+originalResponse);
             }
 
         final SipResponse response = 
             this.m_messageFactory.stripVia(originalResponse);
+        
+        // With our Via gone, the caller's Via is on top and carries the flow
+        // token of the session the request came in on.  We signed the token
+        // for that Via's branch when we tagged it, so a token copied from 
+        // another transaction or made up doesn't verify, and we drop the 
+        // response rather than send it down someone else's connection.
+        final IoSession io;
+        if (SipHeaderRewriter.getTopParam(response, SipHeaderNames.VIA, 
+            FlowTable.FLOW_TOKEN_PARAM) != null)
+            {
+            io = getFlow(response);
+            if (io == null)
+                {
+                LOG.debug("Dropping response with a bad or stale flow " +
+                    "token: {}", originalResponse);
+                return false;
+                }
+            }
+        else
+            {
+            io = null;
+            }
 
-        this.m_transportLayer.writeResponse(response);
+        final long writeStart = this.m_tracer.start();
+        if (io != null)
+            {
+            io.write(response);
+            }
+        else
+            {
+            this.m_transportLayer.writeResponse(response);
+            }
+        this.m_tracer.end(Stage.TRANSPORT_WRITE, response, writeStart);
+        return true;
         }
     }
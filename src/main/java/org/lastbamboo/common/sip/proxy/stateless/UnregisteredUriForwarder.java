@@ -114,10 +114,7 @@ public class UnregisteredUriForwarder implements SipRequestForwarder
 
     private void forwardSipRequest(final URI uri, final Invite request) 
         {
-        if (LOG.isDebugEnabled())
-            {
-            LOG.debug("Forwarding SIP request for URI: "+uri);
-            }
+        LOG.debug("Forwarding SIP request for URI: {}", uri);
         final Collection targetUris = this.m_locationService.getTargetSet(uri);
         if (targetUris.isEmpty())
             {
@@ -131,16 +128,13 @@ public class UnregisteredUriForwarder implements SipRequestForwarder
             return;
             }
         
-        if (LOG.isDebugEnabled())
-            {
-            LOG.debug("Forwarding to targetUris: "+targetUris);
-            }
+        LOG.debug("Forwarding to targetUris: {}", targetUris);
         
         final Transformer socketAddressTransformer = new Transformer()
             {
             public Object transform(final Object obj)
                 {
-                LOG.debug("Transforming: "+obj);
+                LOG.debug("Transforming: {}", obj);
                 final URI targetUri = (URI) obj;
                 LOG.debug("Cast URI...");
                 final String host = m_uriUtils.getHostInSipUri(targetUri);
@@ -154,7 +148,7 @@ public class UnregisteredUriForwarder implements SipRequestForwarder
         final Collection targetSocketAddresses = 
             CollectionUtils.collect(targetUris, socketAddressTransformer);
         
-        LOG.debug("Using socket addresses: " + targetSocketAddresses);
+        LOG.debug("Using socket addresses: {}", targetSocketAddresses);
         if (this.m_transportLayer.hasConnectionForAny(targetSocketAddresses))
             {
             LOG.debug("Writing request using existing connection...");
@@ -189,7 +183,7 @@ public class UnregisteredUriForwarder implements SipRequestForwarder
     private boolean connectToAnyTargetAndSendRequest(
         final Collection targetUris, final Invite request)
         {
-        LOG.debug("Attempting to connect to " + targetUris.size() + " URIs...");
+        LOG.debug("Attempting to connect to {} URIs...", targetUris.size());
         // Loop through and use the first URI we're able to connect to.
         for (final Iterator iter = targetUris.iterator(); iter.hasNext();)
             {
@@ -205,7 +199,7 @@ public class UnregisteredUriForwarder implements SipRequestForwarder
             catch (final IOException e)
                 {
                 // Go on to the next one...
-                LOG.debug("Could not connect to URI: "+target, e);
+                LOG.debug("Could not connect to URI: {}", target, e);
                 }
             }
         
@@ -219,10 +213,7 @@ public class UnregisteredUriForwarder implements SipRequestForwarder
         final InetSocketAddress target, final SipMessage request) 
         throws IOException
         {
-        if (LOG.isDebugEnabled())
-            {
-            LOG.debug("Connecting to external URI: "+target);
-            }
+        LOG.debug("Connecting to external URI: {}", target);
         
         // TODO: We need to implement this with MINA.
         return true;
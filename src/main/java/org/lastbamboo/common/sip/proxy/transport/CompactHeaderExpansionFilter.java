@@ -0,0 +1,32 @@
+package org.lastbamboo.common.sip.proxy.transport;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Filter that goes in front of the codec and expands the compact header
+ * names from RFC 3261 section 7.3.3 to their full names, since the stack's
+ * decoder doesn't know them.  Only the names change; values go through 
+ * byte for byte.
+ */
+public class CompactHeaderExpansionFilter extends HeaderRewritingFilter
+    {
+
+    /**
+     * Creates a new filter for expanding compact header names.
+     */
+    public CompactHeaderExpansionFilter()
+        {
+        super(CompactHeaderFilter.getCompactNames());
+        }
+
+    @Override
+    protected byte[] rewrite(final boolean response, final String name,
+        final byte[] value)
+        {
+        final String longName = CompactHeaderFilter.toLongName(name.charAt(0));
+        final ByteArrayOutputStream line = 
+            new ByteArrayOutputStream(longName.length() + value.length + 4);
+        writeLine(line, longName, value);
+        return line.toByteArray();
+        }
+    }
@@ -0,0 +1,498 @@
+package org.lastbamboo.common.sip.proxy.transport;
+
+import java.util.Locale;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoFilterAdapter;
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.proxy.metrics.StripedCounter;
+
+/**
+ * Filter that goes in front of the codec and shrinks the messages we
+ * write by using the compact header names from RFC 3261 section 7.3.3 and
+ * dropping optional whitespace after header colons and between the values
+ * of list headers such as Via and Contact.  Everything we send passes
+ * through here as raw bytes, whether the codec encoded it or we wrote it
+ * ourselves, and since compacting only ever makes a message shorter, we
+ * rewrite each buffer in place.  Bodies are left alone, so Content-Length
+ * stays correct.
+ * <p>
+ * Every RFC 3261 implementation has to accept compact forms, but some
+ * older clients don't, so we can either compact for everyone or only for
+ * peers that use compact forms in what they send us.
+ */
+public class CompactHeaderFilter extends IoFilterAdapter
+    implements CompactHeaderFilterMBean
+    {
+
+    /**
+     * Who we compact messages for.
+     */
+    public enum Mode
+        {
+        /**
+         * Nobody.
+         */
+        OFF,
+
+        /**
+         * Peers that send us compact header names.
+         */
+        PEER,
+
+        /**
+         * Everybody.
+         */
+        ALWAYS,
+        }
+
+    private static final String COMPACT = "SIP_COMPACT_PEER";
+
+    /**
+     * How many buffers we look at for compact names from a peer before
+     * deciding it doesn't use them.
+     */
+    private static final int MAX_SNIFFED_BUFFERS = 4;
+
+    private static final String[] LONG_NAMES =
+        {
+        "Via", "From", "To", "Call-ID", "Contact", "Content-Length",
+        "Content-Type", "Content-Encoding", "Supported", "Subject",
+        };
+
+    private static final byte[][] LONG_NAME_BYTES = toBytes(LONG_NAMES);
+
+    private static final byte[] COMPACT_NAMES =
+        {
+        'v', 'f', 't', 'i', 'm', 'l', 'c', 'e', 'k', 's',
+        };
+
+    /**
+     * The headers whose values are comma-separated lists, where we can
+     * drop the whitespace after each comma.
+     */
+    private static final String[] LIST_NAMES =
+        {
+        "Via", "Contact", "Route", "Record-Route", "Supported", "Allow",
+        };
+
+    private static final byte[][] LIST_NAME_BYTES = toBytes(LIST_NAMES);
+
+    private static final byte[] COMPACT_LIST_NAMES =
+        {
+        'v', 'm', 'k',
+        };
+
+    private final Mode m_mode;
+
+    private final StripedCounter m_messages = new StripedCounter();
+
+    private final StripedCounter m_bytesIn = new StripedCounter();
+
+    private final StripedCounter m_bytesSaved = new StripedCounter();
+
+    /**
+     * Creates a new filter.
+     *
+     * @param mode Who to compact messages for.
+     */
+    public CompactHeaderFilter(final Mode mode)
+        {
+        this.m_mode = mode;
+        }
+
+    @Override
+    public void messageReceived(final NextFilter nextFilter,
+        final IoSession session, final Object message) throws Exception
+        {
+        if (this.m_mode == Mode.PEER && message instanceof ByteBuffer)
+            {
+            sniff(session, (ByteBuffer) message);
+            }
+        nextFilter.messageReceived(session, message);
+        }
+
+    @Override
+    public void filterWrite(final NextFilter nextFilter,
+        final IoSession session, final WriteRequest writeRequest)
+        throws Exception
+        {
+        final Object message = writeRequest.getMessage();
+        if (message instanceof ByteBuffer && isCompact(session))
+            {
+            final ByteBuffer buf = (ByteBuffer) message;
+            final int before = buf.remaining();
+            if (before > 0 && compact(buf))
+                {
+                this.m_messages.increment();
+                this.m_bytesIn.add(before);
+                this.m_bytesSaved.add(before - buf.remaining());
+                }
+            }
+        nextFilter.filterWrite(session, writeRequest);
+        }
+
+    public long getMessagesCompacted()
+        {
+        return this.m_messages.sum();
+        }
+
+    public long getBytesBeforeCompacting()
+        {
+        return this.m_bytesIn.sum();
+        }
+
+    public long getBytesSaved()
+        {
+        return this.m_bytesSaved.sum();
+        }
+
+    private boolean isCompact(final IoSession session)
+        {
+        switch (this.m_mode)
+            {
+            case ALWAYS:
+                return true;
+            case PEER:
+                return session.getAttribute(COMPACT) == Boolean.TRUE;
+            default:
+                return false;
+            }
+        }
+
+    /**
+     * Looks for a header line with a compact name in a buffer the peer
+     * sent, without moving its position.  Once we've found one, or looked
+     * at enough buffers without finding one, we stop looking.
+     */
+    private static void sniff(final IoSession session, final ByteBuffer buf)
+        {
+        final Object state = session.getAttribute(COMPACT);
+        if (state instanceof Boolean)
+            {
+            return;
+            }
+        final int limit = buf.limit();
+        for (int i = buf.position(); i + 2 < limit; i++)
+            {
+            if (buf.get(i) == '\n' && buf.get(i + 2) == ':' &&
+                isCompactName(buf.get(i + 1)))
+                {
+                session.setAttribute(COMPACT, Boolean.TRUE);
+                return;
+                }
+            }
+        final int sniffed = state == null ? 1 : ((Integer) state) + 1;
+        session.setAttribute(COMPACT, sniffed >= MAX_SNIFFED_BUFFERS ?
+            (Object) Boolean.FALSE : (Object) Integer.valueOf(sniffed));
+        }
+
+    private static boolean isCompactName(final byte b)
+        {
+        return toLongName((char) b) != null;
+        }
+
+    /**
+     * Accessor for the compact names we know.
+     *
+     * @return The compact names, in lower case.
+     */
+    static String[] getCompactNames()
+        {
+        final String[] names = new String[COMPACT_NAMES.length];
+        for (int i = 0; i < names.length; i++)
+            {
+            names[i] = String.valueOf((char) COMPACT_NAMES[i]);
+            }
+        return names;
+        }
+
+    /**
+     * Accessor for the full header name for a compact name.
+     *
+     * @param compactName The compact name, in either case.
+     * @return The full name, or <code>null</code> if it isn't a compact
+     * name we know.
+     */
+    static String toLongName(final char compactName)
+        {
+        final byte lower = (byte) Character.toLowerCase(compactName);
+        for (int i = 0; i < COMPACT_NAMES.length; i++)
+            {
+            if (COMPACT_NAMES[i] == lower)
+                {
+                return LONG_NAMES[i];
+                }
+            }
+        return null;
+        }
+
+    /**
+     * Compacts the headers of the message in a buffer in place.  Nothing
+     * we write ever gets ahead of what we've read, so we work straight on
+     * the buffer rather than on a copy.
+     *
+     * @param buf The buffer, holding a whole message.
+     * @return <code>true</code> if the buffer held a message we compacted,
+     * or <code>false</code> if we left it alone.
+     */
+    static boolean compact(final ByteBuffer buf)
+        {
+        final int start = buf.position();
+        final int limit = buf.limit();
+
+        // Only touch whole messages, not keepalives or anything else.
+        final int headerEnd = findHeaderEnd(buf, start, limit);
+        if (headerEnd == -1 || !isLetter(buf.get(start)))
+            {
+            return false;
+            }
+
+        // The start line goes as is.
+        int r = indexOf(buf, (byte) '\n', start, headerEnd) + 1;
+        int w = r;
+        while (r < headerEnd)
+            {
+            final int lineEnd = indexOf(buf, (byte) '\n', r, headerEnd);
+            final int colon = indexOf(buf, (byte) ':', r, lineEnd);
+            final byte first = buf.get(r);
+            if (first == '\r' || first == '\n' || isSpace(first) ||
+                colon == -1)
+                {
+                // The blank line, folded lines and anything odd go as is.
+                w = copy(buf, r, lineEnd + 1, w);
+                r = lineEnd + 1;
+                continue;
+                }
+            int nameEnd = colon;
+            while (nameEnd > r && isSpace(buf.get(nameEnd - 1)))
+                {
+                nameEnd--;
+                }
+            final int name = findLongName(buf, r, nameEnd);
+            final boolean list = isList(buf, r, nameEnd);
+            final boolean cr = buf.get(lineEnd - 1) == '\r';
+            if (name == -1)
+                {
+                w = copy(buf, r, nameEnd, w);
+                }
+            else
+                {
+                buf.put(w++, COMPACT_NAMES[name]);
+                }
+            buf.put(w++, (byte) ':');
+            w = copyValue(buf, colon + 1, lineEnd, w, list);
+            if (cr)
+                {
+                buf.put(w++, (byte) '\r');
+                }
+            buf.put(w++, (byte) '\n');
+            r = lineEnd + 1;
+            }
+
+        if (w == headerEnd)
+            {
+            return false;
+            }
+        w = copy(buf, headerEnd, limit, w);
+        buf.limit(w);
+        buf.position(start);
+        return true;
+        }
+
+    /**
+     * Copies a header value, dropping whitespace at either end and, in
+     * headers that hold comma-separated lists, after commas outside quoted
+     * strings.  Other headers, such as Date, keep their commas as they
+     * are.
+     *
+     * @return Where to write next.
+     */
+    private static int copyValue(final ByteBuffer buf, final int from,
+        final int lineEnd, final int to, final boolean list)
+        {
+        int r = from;
+        int w = to;
+        int end = lineEnd;
+        while (end > r && (buf.get(end - 1) == '\r' ||
+            isSpace(buf.get(end - 1))))
+            {
+            end--;
+            }
+        while (r < end && isSpace(buf.get(r)))
+            {
+            r++;
+            }
+        boolean quoted = false;
+        while (r < end)
+            {
+            final byte b = buf.get(r++);
+            buf.put(w++, b);
+            if (quoted && b == '\\' && r < end)
+                {
+                buf.put(w++, buf.get(r++));
+                }
+            else if (b == '"')
+                {
+                quoted = !quoted;
+                }
+            else if (list && b == ',' && !quoted)
+                {
+                while (r < end && isSpace(buf.get(r)))
+                    {
+                    r++;
+                    }
+                }
+            }
+        return w;
+        }
+
+    /**
+     * Copies bytes towards the start of the buffer.
+     *
+     * @return Where to write next.
+     */
+    private static int copy(final ByteBuffer buf, final int from,
+        final int to, final int dest)
+        {
+        if (from == dest)
+            {
+            return to;
+            }
+        int w = dest;
+        for (int r = from; r < to; r++)
+            {
+            buf.put(w++, buf.get(r));
+            }
+        return w;
+        }
+
+    /**
+     * Finds the end of the blank line after the headers.
+     *
+     * @return The index just past the blank line, or -1 if there isn't
+     * one.
+     */
+    private static int findHeaderEnd(final ByteBuffer buf, final int from,
+        final int to)
+        {
+        for (int i = from + 1; i < to; i++)
+            {
+            if (buf.get(i) != '\n')
+                {
+                continue;
+                }
+            final byte previous = buf.get(i - 1);
+            if (previous == '\n')
+                {
+                return i + 1;
+                }
+            if (previous == '\r' && i >= from + 2 && buf.get(i - 2) == '\n')
+                {
+                return i + 1;
+                }
+            }
+        return -1;
+        }
+
+    private static int findLongName(final ByteBuffer buf, final int from,
+        final int to)
+        {
+        for (int i = 0; i < LONG_NAME_BYTES.length; i++)
+            {
+            if (matches(buf, from, to, LONG_NAME_BYTES[i]))
+                {
+                return i;
+                }
+            }
+        return -1;
+        }
+
+    private static boolean isList(final ByteBuffer buf, final int from,
+        final int to)
+        {
+        if (to - from == 1)
+            {
+            final byte name =
+                (byte) Character.toLowerCase((char) buf.get(from));
+            for (final byte compact : COMPACT_LIST_NAMES)
+                {
+                if (compact == name)
+                    {
+                    return true;
+                    }
+                }
+            return false;
+            }
+        for (final byte[] name : LIST_NAME_BYTES)
+            {
+            if (matches(buf, from, to, name))
+                {
+                return true;
+                }
+            }
+        return false;
+        }
+
+    private static boolean matches(final ByteBuffer buf, final int from,
+        final int to, final byte[] lowerCaseName)
+        {
+        if (lowerCaseName.length != to - from)
+            {
+            return false;
+            }
+        for (int j = 0; j < lowerCaseName.length; j++)
+            {
+            if (Character.toLowerCase((char) buf.get(from + j)) !=
+                lowerCaseName[j])
+                {
+                return false;
+                }
+            }
+        return true;
+        }
+
+    private static int indexOf(final ByteBuffer buf, final byte b,
+        final int from, final int to)
+        {
+        for (int i = from; i < to; i++)
+            {
+            if (buf.get(i) == b)
+                {
+                return i;
+                }
+            }
+        return -1;
+        }
+
+    private static byte[][] toBytes(final String[] names)
+        {
+        final byte[][] bytes = new byte[names.length][];
+        for (int i = 0; i < names.length; i++)
+            {
+            final String name = names[i].toLowerCase(Locale.US);
+            bytes[i] = new byte[name.length()];
+            for (int j = 0; j < name.length(); j++)
+                {
+                bytes[i][j] = (byte) name.charAt(j);
+                }
+            }
+        return bytes;
+        }
+
+    private static boolean isSpace(final byte b)
+        {
+        return b == ' ' || b == '\t';
+        }
+
+    private static boolean isLetter(final byte b)
+        {
+        return (b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z');
+        }
+
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName() + " " + this.m_mode;
+        }
+    }
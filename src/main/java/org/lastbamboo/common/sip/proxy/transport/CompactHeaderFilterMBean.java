@@ -0,0 +1,30 @@
+package org.lastbamboo.common.sip.proxy.transport;
+
+/**
+ * MBean for monitoring how much compact headers save us.
+ */
+public interface CompactHeaderFilterMBean
+    {
+
+    /**
+     * Accessor for the number of messages we've compacted.
+     * 
+     * @return The number of messages we've compacted.
+     */
+    long getMessagesCompacted();
+    
+    /**
+     * Accessor for the size of the messages we've compacted before we
+     * compacted them.
+     * 
+     * @return The bytes in the messages we've compacted, before compacting.
+     */
+    long getBytesBeforeCompacting();
+    
+    /**
+     * Accessor for the number of bytes compacting has saved.
+     * 
+     * @return The number of bytes we didn't have to write.
+     */
+    long getBytesSaved();
+    }
@@ -0,0 +1,51 @@
+package org.lastbamboo.common.sip.proxy.transport;
+
+import org.littleshoot.mina.filter.codec.ProtocolCodecFactory;
+import org.littleshoot.mina.filter.codec.ProtocolDecoder;
+import org.littleshoot.mina.filter.codec.ProtocolEncoder;
+import org.lastbamboo.common.sip.stack.codec.SipProtocolCodecFactory;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+
+/**
+ * Codec factory that keeps the per-connection cost of the SIP codec down.
+ * The encoder is stateless, so every session shares one, and each session's
+ * decoder can be released while the session is idle.  The encoder also 
+ * handles the requests the stack's encoder doesn't know how to write.
+ */
+public class CompactSipCodecFactory implements ProtocolCodecFactory
+    {
+
+    private final ProtocolCodecFactory m_factory;
+    
+    private final ProtocolEncoder m_encoder;
+
+    /**
+     * Creates a new factory.
+     * 
+     * @param headerFactory The factory for creating headers.
+     * @throws IllegalStateException If the encoder can't be created.
+     */
+    public CompactSipCodecFactory(final SipHeaderFactory headerFactory)
+        {
+        this.m_factory = new SipProtocolCodecFactory(headerFactory);
+        try
+            {
+            this.m_encoder = 
+                new ProxySipMessageEncoder(this.m_factory.getEncoder());
+            }
+        catch (final Exception e)
+            {
+            throw new IllegalStateException("Could not create encoder", e);
+            }
+        }
+
+    public ProtocolDecoder getDecoder()
+        {
+        return new ReleasableProtocolDecoder(this.m_factory);
+        }
+
+    public ProtocolEncoder getEncoder()
+        {
+        return this.m_encoder;
+        }
+    }
@@ -0,0 +1,474 @@
+package org.lastbamboo.common.sip.proxy.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Locale;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoFilterAdapter;
+import org.littleshoot.mina.common.IoSession;
+
+/**
+ * Base class for filters that go in front of the codec and rewrite some
+ * of the header lines of the messages we receive, before the stack's
+ * decoder sees them.  We skip over bodies and leave folded lines alone.
+ * <p>
+ * We work on the bytes as they arrived, so values in UTF-8 come through
+ * intact.  Only lines with one of the names a filter asks for are handed
+ * to it, and buffers without any lines to rewrite pass through untouched.
+ * Otherwise we write a rewritten copy, holding back any header line that's
+ * split across reads until we have all of it.
+ */
+public abstract class HeaderRewritingFilter extends IoFilterAdapter
+    {
+
+    private static final int START = 0;
+    private static final int FIRST_LINE = 1;
+    private static final int HEADERS = 2;
+    private static final int BODY = 3;
+
+    private static final byte[] CONTENT_LENGTH = toBytes("content-length");
+
+    private static final byte[] COMPACT_CONTENT_LENGTH = toBytes("l");
+
+    private static final byte[] RESPONSE_START = toBytes("SIP/");
+
+    private final String m_stateKey = getClass().getName() + ".state";
+
+    private final byte[][] m_names;
+
+    /**
+     * Creates a new filter for header lines with the specified names.
+     *
+     * @param names The names of the headers to rewrite, in any case.
+     */
+    protected HeaderRewritingFilter(final String... names)
+        {
+        this.m_names = new byte[names.length][];
+        for (int i = 0; i < names.length; i++)
+            {
+            this.m_names[i] = toBytes(names[i].toLowerCase(Locale.US));
+            }
+        }
+
+    @Override
+    public void messageReceived(final NextFilter nextFilter,
+        final IoSession session, final Object message) throws Exception
+        {
+        if (!(message instanceof ByteBuffer))
+            {
+            nextFilter.messageReceived(session, message);
+            return;
+            }
+        ScanState state = (ScanState) session.getAttribute(this.m_stateKey);
+        if (state == null)
+            {
+            state = new ScanState(this);
+            session.setAttribute(this.m_stateKey, state);
+            }
+        final ByteBuffer in = (ByteBuffer) message;
+        final ByteBuffer out = state.process(in);
+        if (out == in)
+            {
+            nextFilter.messageReceived(session, in);
+            return;
+            }
+
+        // The codec releases what we pass it, so the original is ours.
+        in.release();
+        if (out.hasRemaining())
+            {
+            nextFilter.messageReceived(session, out);
+            }
+        else
+            {
+            out.release();
+            }
+        }
+
+    /**
+     * Rewrites a header line with one of the names we were created with.
+     *
+     * @param response Whether the line is in a response.
+     * @param name The header name, as it arrived.
+     * @param value The header value's bytes, as they arrived, without
+     * whitespace at either end.
+     * @return The lines to write in place of the line, each ending in
+     * CRLF, or <code>null</code> to leave it alone.
+     */
+    protected abstract byte[] rewrite(boolean response, String name,
+        byte[] value);
+
+    /**
+     * Writes a header line.
+     *
+     * @param out The stream to write the line to.
+     * @param name The header name.
+     * @param value The header value's bytes.
+     */
+    protected static void writeLine(final ByteArrayOutputStream out,
+        final String name, final byte[] value)
+        {
+        final byte[] nameBytes = toBytes(name);
+        out.write(nameBytes, 0, nameBytes.length);
+        out.write(':');
+        out.write(' ');
+        out.write(value, 0, value.length);
+        out.write('\r');
+        out.write('\n');
+        }
+
+    /**
+     * Converts ASCII text to bytes.
+     *
+     * @param text The text.
+     * @return The bytes.
+     */
+    protected static byte[] toBytes(final String text)
+        {
+        try
+            {
+            return text.getBytes("US-ASCII");
+            }
+        catch (final UnsupportedEncodingException e)
+            {
+            throw new IllegalStateException("No ASCII?", e);
+            }
+        }
+
+    private int findName(final ByteBuffer buf, final int from, final int to)
+        {
+        for (int i = 0; i < this.m_names.length; i++)
+            {
+            if (matches(buf, from, to, this.m_names[i]))
+                {
+                return i;
+                }
+            }
+        return -1;
+        }
+
+    private static boolean matches(final ByteBuffer buf, final int from,
+        final int to, final byte[] lowerCaseName)
+        {
+        if (lowerCaseName.length != to - from)
+            {
+            return false;
+            }
+        for (int j = 0; j < lowerCaseName.length; j++)
+            {
+            byte b = buf.get(from + j);
+            if (b >= 'A' && b <= 'Z')
+                {
+                b += 'a' - 'A';
+                }
+            if (b != lowerCaseName[j])
+                {
+                return false;
+                }
+            }
+        return true;
+        }
+
+    private static boolean isSpace(final byte b)
+        {
+        return b == ' ' || b == '\t';
+        }
+
+    /**
+     * Where we are in the current message, and the part of a header line we
+     * couldn't pass on yet.
+     */
+    private static final class ScanState
+        {
+        private final HeaderRewritingFilter m_filter;
+        private int m_state = START;
+        private boolean m_response;
+        private byte[] m_pending;
+        private long m_contentLength;
+        private long m_bodyRemaining;
+
+        private ScanState(final HeaderRewritingFilter filter)
+            {
+            this.m_filter = filter;
+            }
+
+        private ByteBuffer process(final ByteBuffer in)
+            {
+            final int limit = in.limit();
+            ByteBuffer out = null;
+            if (this.m_pending != null)
+                {
+                out = allocate(in.remaining() + this.m_pending.length);
+                }
+
+            // Everything in the buffer before this has been accounted for.
+            int copied = in.position();
+
+            // Where the current header line starts in the buffer, or -1 if
+            // it started in an earlier one and is held in m_pending.
+            int lineStart = this.m_pending != null ? -1 : in.position();
+
+            int i = in.position();
+            while (i < limit)
+                {
+                final byte b = in.get(i);
+                if (this.m_state == BODY)
+                    {
+                    final int skip =
+                        (int) Math.min(limit - i, this.m_bodyRemaining);
+                    i += skip;
+                    this.m_bodyRemaining -= skip;
+                    if (this.m_bodyRemaining == 0)
+                        {
+                        this.m_state = START;
+                        }
+                    continue;
+                    }
+                if (this.m_state == START)
+                    {
+                    if (b == '\r' || b == '\n')
+                        {
+                        // Keepalives are for the decoder to see.
+                        i++;
+                        continue;
+                        }
+                    this.m_state = FIRST_LINE;
+                    this.m_response = false;
+                    this.m_contentLength = 0;
+                    lineStart = i;
+                    }
+                i++;
+                if (b != '\n')
+                    {
+                    continue;
+                    }
+
+                final byte[] rewritten;
+                if (lineStart == -1)
+                    {
+                    // Only a line split across reads needs joining up.
+                    final ByteBuffer line =
+                        join(this.m_pending, in, copied, i);
+                    rewritten = endLine(line, 0, line.limit());
+                    }
+                else
+                    {
+                    rewritten = endLine(in, lineStart, i);
+                    }
+                if (rewritten != null)
+                    {
+                    if (out == null)
+                        {
+                        out = allocate(in.remaining() + rewritten.length);
+                        }
+                    if (lineStart != -1)
+                        {
+                        put(out, in, copied, lineStart);
+                        }
+                    out.put(rewritten);
+                    copied = i;
+                    }
+                else if (lineStart == -1)
+                    {
+                    out.put(this.m_pending);
+                    }
+                this.m_pending = null;
+                lineStart = i;
+                }
+
+            if (this.m_state == FIRST_LINE || this.m_state == HEADERS)
+                {
+                if (lineStart == -1)
+                    {
+                    // Still no end to the line we were holding.
+                    final byte[] pending =
+                        new byte[this.m_pending.length + (limit - copied)];
+                    System.arraycopy(this.m_pending, 0, pending, 0,
+                        this.m_pending.length);
+                    final ByteBuffer rest = in.duplicate();
+                    rest.position(copied);
+                    rest.get(pending, this.m_pending.length, limit - copied);
+                    this.m_pending = pending;
+                    out.flip();
+                    return out;
+                    }
+                if (lineStart < limit)
+                    {
+                    if (out == null)
+                        {
+                        out = allocate(in.remaining());
+                        }
+                    put(out, in, copied, lineStart);
+                    this.m_pending = new byte[limit - lineStart];
+                    final ByteBuffer rest = in.duplicate();
+                    rest.position(lineStart);
+                    rest.get(this.m_pending);
+                    out.flip();
+                    return out;
+                    }
+                }
+            if (out == null)
+                {
+                return in;
+                }
+            put(out, in, copied, limit);
+            out.flip();
+            return out;
+            }
+
+        /**
+         * Processes a complete line.
+         *
+         * @param buf The buffer holding the line.
+         * @param from Where the line starts.
+         * @param to Where the line ends, just past its LF.
+         * @return The bytes to write in place of the line, or
+         * <code>null</code> to leave it alone.
+         */
+        private byte[] endLine(final ByteBuffer buf, final int from,
+            final int to)
+            {
+            int end = to - 1;
+            if (end > from && buf.get(end - 1) == '\r')
+                {
+                end--;
+                }
+            if (this.m_state == FIRST_LINE)
+                {
+                this.m_response = startsWith(buf, from, end, RESPONSE_START);
+                this.m_state = HEADERS;
+                return null;
+                }
+            if (end == from)
+                {
+                this.m_bodyRemaining = this.m_contentLength;
+                this.m_state = this.m_bodyRemaining > 0 ? BODY : START;
+                return null;
+                }
+            if (isSpace(buf.get(from)))
+                {
+                // Folded lines go as they are.
+                return null;
+                }
+            int colon = from;
+            while (colon < end && buf.get(colon) != ':')
+                {
+                colon++;
+                }
+            if (colon == end)
+                {
+                return null;
+                }
+            int nameEnd = colon;
+            while (nameEnd > from && isSpace(buf.get(nameEnd - 1)))
+                {
+                nameEnd--;
+                }
+            int valueStart = colon + 1;
+            while (valueStart < end && isSpace(buf.get(valueStart)))
+                {
+                valueStart++;
+                }
+            int valueEnd = end;
+            while (valueEnd > valueStart && isSpace(buf.get(valueEnd - 1)))
+                {
+                valueEnd--;
+                }
+            if (matches(buf, from, nameEnd, CONTENT_LENGTH) ||
+                matches(buf, from, nameEnd, COMPACT_CONTENT_LENGTH))
+                {
+                this.m_contentLength =
+                    parseLength(buf, valueStart, valueEnd);
+                }
+
+            // Most lines aren't ones we rewrite, so they cost no more than
+            // comparing their names.
+            if (this.m_filter.findName(buf, from, nameEnd) == -1)
+                {
+                return null;
+                }
+            // The name matched one of ours, so it's ASCII.
+            final char[] name = new char[nameEnd - from];
+            for (int i = 0; i < name.length; i++)
+                {
+                name[i] = (char) buf.get(from + i);
+                }
+            final byte[] value = new byte[valueEnd - valueStart];
+            final ByteBuffer slice = buf.duplicate();
+            slice.position(valueStart);
+            slice.get(value);
+            return this.m_filter.rewrite(this.m_response, new String(name),
+                value);
+            }
+
+        private long parseLength(final ByteBuffer buf, final int from,
+            final int to)
+            {
+            if (from == to)
+                {
+                // The decoder will deal with it.
+                return this.m_contentLength;
+                }
+            long length = 0;
+            for (int i = from; i < to; i++)
+                {
+                final byte b = buf.get(i);
+                if (b < '0' || b > '9' || length > Integer.MAX_VALUE)
+                    {
+                    return this.m_contentLength;
+                    }
+                length = length * 10 + (b - '0');
+                }
+            return length;
+            }
+
+        private static boolean startsWith(final ByteBuffer buf,
+            final int from, final int to, final byte[] prefix)
+            {
+            if (to - from < prefix.length)
+                {
+                return false;
+                }
+            for (int i = 0; i < prefix.length; i++)
+                {
+                if (buf.get(from + i) != prefix[i])
+                    {
+                    return false;
+                    }
+                }
+            return true;
+            }
+
+        private static ByteBuffer join(final byte[] pending,
+            final ByteBuffer in, final int from, final int to)
+            {
+            final byte[] line = new byte[pending.length + (to - from)];
+            System.arraycopy(pending, 0, line, 0, pending.length);
+            final ByteBuffer rest = in.duplicate();
+            rest.position(from);
+            rest.get(line, pending.length, to - from);
+            return ByteBuffer.wrap(line);
+            }
+
+        private static ByteBuffer allocate(final int capacity)
+            {
+            final ByteBuffer buf = ByteBuffer.allocate(capacity + 64);
+            buf.setAutoExpand(true);
+            return buf;
+            }
+
+        private static void put(final ByteBuffer out, final ByteBuffer in,
+            final int from, final int to)
+            {
+            if (to <= from)
+                {
+                return;
+                }
+            final ByteBuffer slice = in.duplicate();
+            slice.limit(to);
+            slice.position(from);
+            out.put(slice);
+            }
+        }
+    }
@@ -0,0 +1,72 @@
+package org.lastbamboo.common.sip.proxy.transport;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.littleshoot.mina.common.IdleStatus;
+import org.littleshoot.mina.common.IoFilterAdapter;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.filter.codec.ProtocolCodecFilter;
+
+/**
+ * Filter that releases a session's decoder once the session has sent us
+ * nothing for a while.  Most of our clients only send a keepalive every
+ * so often, so this keeps idle connections down to the session itself.
+ */
+public class IdleDecoderReleaseFilter extends IoFilterAdapter
+    {
+
+    private final int m_idleSeconds;
+    
+    private final AtomicLong m_released = new AtomicLong(0);
+
+    /**
+     * Creates a new filter.
+     * 
+     * @param idleSeconds How long a session has to go without reading 
+     * anything before we release its decoder.
+     */
+    public IdleDecoderReleaseFilter(final int idleSeconds)
+        {
+        this.m_idleSeconds = idleSeconds;
+        }
+    
+    @Override
+    public void sessionCreated(final NextFilter nextFilter, 
+        final IoSession session) throws Exception
+        {
+        session.setIdleTime(IdleStatus.READER_IDLE, this.m_idleSeconds);
+        nextFilter.sessionCreated(session);
+        }
+
+    @Override
+    public void sessionIdle(final NextFilter nextFilter, 
+        final IoSession session, final IdleStatus status) throws Exception
+        {
+        if (status != IdleStatus.READER_IDLE)
+            {
+            nextFilter.sessionIdle(session, status);
+            return;
+            }
+        
+        // We asked for this event ourselves, and SipIoHandler closes idle 
+        // sessions, so don't pass it on.  Closing quiet sessions is up to 
+        // the IdleSessionReaper.
+        final Object decoder = 
+            session.getAttribute(ProtocolCodecFilter.DECODER);
+        if (decoder instanceof ReleasableProtocolDecoder &&
+            ((ReleasableProtocolDecoder) decoder).release(session))
+            {
+            this.m_released.incrementAndGet();
+            }
+        }
+    
+    /**
+     * Accessor for the number of decoders released so far.
+     * 
+     * @return The number of decoders released.
+     */
+    public long getReleased()
+        {
+        return this.m_released.get();
+        }
+    }
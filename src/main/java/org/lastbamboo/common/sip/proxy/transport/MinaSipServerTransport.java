@@ -0,0 +1,170 @@
+package org.lastbamboo.common.sip.proxy.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoHandler;
+import org.littleshoot.mina.common.IoServiceListener;
+import org.littleshoot.mina.common.PooledByteBufferAllocator;
+import org.littleshoot.mina.common.ThreadModel;
+import org.littleshoot.mina.filter.codec.ProtocolCodecFactory;
+import org.littleshoot.mina.filter.codec.ProtocolCodecFilter;
+import org.littleshoot.mina.transport.socket.nio.SocketAcceptor;
+import org.littleshoot.mina.transport.socket.nio.SocketAcceptorConfig;
+import org.littleshoot.mina.transport.socket.nio.SocketSessionConfig;
+import org.lastbamboo.common.sip.proxy.capture.SipCaptureFilter;
+import org.littleshoot.util.JmxUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server transport using the MINA NIO stack.
+ */
+public class MinaSipServerTransport implements SipServerTransport
+    {
+
+    private static final AtomicBoolean BUFFERS_CONFIGURED = 
+        new AtomicBoolean();
+    
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+    
+    private final ProtocolCodecFactory m_codecFactory;
+    
+    private final IoServiceListener m_listener;
+    
+    private final IoHandler m_handler;
+    
+    private final ExecutorService m_executor = 
+        Executors.newCachedThreadPool();
+
+    /**
+     * Creates a new MINA transport.
+     * 
+     * @param codecFactory The factory for the SIP encoder and decoder.
+     * @param listener The listener for session and service events.
+     * @param handler The handler for decoded messages.
+     */
+    public MinaSipServerTransport(final ProtocolCodecFactory codecFactory,
+        final IoServiceListener listener, final IoHandler handler)
+        {
+        this.m_codecFactory = codecFactory;
+        this.m_listener = listener;
+        this.m_handler = handler;
+        }
+
+    public void start(final SipListenerConfig config) throws IOException
+        {
+        // MINA pools buffers in power of two size classes.  We only choose
+        // the kind of buffer and how quickly idle ones are freed.  That's
+        // global to the process, and shared with every other MINA service 
+        // in it, such as the load balancer and replication, so only the 
+        // first transport to start sets it.
+        if (BUFFERS_CONFIGURED.compareAndSet(false, true))
+            {
+            ByteBuffer.setUseDirectBuffers(config.isDirectBuffers());
+            ByteBuffer.setAllocator(new PooledByteBufferAllocator(
+                config.getBufferPoolTimeoutSeconds()));
+            }
+        
+        final SocketAcceptor acceptor = 
+            new SocketAcceptor(config.getIoProcessors(), this.m_executor);
+        acceptor.addListener(this.m_listener);
+        
+        final SocketAcceptorConfig acceptorConfig = new SocketAcceptorConfig();
+        acceptorConfig.setBacklog(config.getBacklog());
+        acceptorConfig.setReuseAddress(config.isReuseAddress());
+        
+        // Messages are handled on the I/O processor threads, as they always
+        // have been.
+        acceptorConfig.setThreadModel(ThreadModel.MANUAL);
+        if (config.getDecoderReleaseIdleSeconds() > 0)
+            {
+            acceptorConfig.getFilterChain().addLast("release", 
+                new IdleDecoderReleaseFilter(
+                    config.getDecoderReleaseIdleSeconds()));
+            }
+        acceptorConfig.getFilterChain().addLast("limits", 
+            new SipMessageSizeFilter(config.getMaxHeaderBytes(), 
+                config.getMaxBodyBytes()));
+        final CompactHeaderFilter.Mode compactMode = 
+            config.getCompactHeaderMode();
+        if (compactMode != CompactHeaderFilter.Mode.OFF)
+            {
+            // Writes pass through filters in reverse, so this sees the 
+            // bytes the codec encodes, and it has to see what the client 
+            // sent before compact names are expanded.
+            final CompactHeaderFilter compact = 
+                new CompactHeaderFilter(compactMode);
+            acceptorConfig.getFilterChain().addLast("compact", compact);
+            JmxUtils.register(ManagementFactory.getPlatformMBeanServer(), 
+                compact);
+            }
+        acceptorConfig.getFilterChain().addLast("expand", 
+            new CompactHeaderExpansionFilter());
+        acceptorConfig.getFilterChain().addLast("methods", 
+            new UnknownMethodResponseFilter());
+        acceptorConfig.getFilterChain().addLast("codec", 
+            new ProtocolCodecFilter(this.m_codecFactory));
+        if (config.getCaptureFile() != null)
+            {
+            acceptorConfig.getFilterChain().addLast("capture", 
+                new SipCaptureFilter(new File(config.getCaptureFile())));
+            }
+        
+        final SocketSessionConfig sessionConfig = 
+            acceptorConfig.getSessionConfig();
+        sessionConfig.setTcpNoDelay(true);
+        if (config.getReceiveBufferSize() > 0)
+            {
+            sessionConfig.setReceiveBufferSize(config.getReceiveBufferSize());
+            }
+        if (config.getSendBufferSize() > 0)
+            {
+            sessionConfig.setSendBufferSize(config.getSendBufferSize());
+            }
+        
+        // With an ephemeral port, each address would otherwise get a 
+        // different port, so we bind the rest to whatever port the first
+        // one got.  The proxy only advertises one port.
+        int port = config.getPort();
+        for (final InetSocketAddress address : config.toSocketAddresses())
+            {
+            final InetSocketAddress toBind = 
+                new InetSocketAddress(address.getAddress(), port);
+            m_log.debug("Binding to: {}", toBind);
+            acceptor.bind(toBind, this.m_handler, acceptorConfig);
+            if (port == 0)
+                {
+                port = boundPort(acceptor);
+                }
+            }
+        }
+
+    private static int boundPort(final SocketAcceptor acceptor)
+        {
+        for (final SocketAddress address : 
+            acceptor.getManagedServiceAddresses())
+            {
+            return ((InetSocketAddress) address).getPort();
+            }
+        return 0;
+        }
+
+    public String getName()
+        {
+        return "mina";
+        }
+    
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName();
+        }
+    }
@@ -0,0 +1,20 @@
+package org.lastbamboo.common.sip.proxy.transport;
+
+import org.littleshoot.mina.common.IoHandler;
+import org.littleshoot.mina.common.IoServiceListener;
+import org.littleshoot.mina.filter.codec.ProtocolCodecFactory;
+
+/**
+ * Factory for the default MINA transport.
+ */
+public class MinaSipServerTransportFactory implements SipServerTransportFactory
+    {
+
+    public SipServerTransport newTransport(
+        final ProtocolCodecFactory codecFactory, 
+        final IoServiceListener listener, final IoHandler handler)
+        {
+        return new MinaSipServerTransport(codecFactory, listener, handler);
+        }
+
+    }
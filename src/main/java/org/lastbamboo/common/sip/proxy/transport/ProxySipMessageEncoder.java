@@ -0,0 +1,151 @@
+package org.lastbamboo.common.sip.proxy.transport;
+
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+import java.util.Map;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.filter.codec.ProtocolEncoder;
+import org.littleshoot.mina.filter.codec.ProtocolEncoderAdapter;
+import org.littleshoot.mina.filter.codec.ProtocolEncoderOutput;
+import org.lastbamboo.common.sip.proxy.SipHeaderRewriter;
+import org.lastbamboo.common.sip.stack.codec.encoder.SipMessageEncoder;
+import org.lastbamboo.common.sip.stack.codec.encoder.SipMessageEncoderImpl;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.SipResponse;
+import org.lastbamboo.common.sip.stack.message.UnknownSipRequest;
+import org.lastbamboo.common.sip.stack.message.header.SipHeader;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderNames;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderValue;
+
+/**
+ * Encoder for the proxy's connections.  The stack's encoder silently drops
+ * requests of methods it doesn't know, such as BYE and ACK, so we render
+ * those ourselves, along with responses to them, which carry their real 
+ * CSeq in {@link UnknownMethodResponseFilter#ORIGINAL_CSEQ}.  Everything 
+ * else is left to the stack.
+ */
+public class ProxySipMessageEncoder extends ProtocolEncoderAdapter
+    implements SipMessageEncoder
+    {
+
+    private final ProtocolEncoder m_protocolEncoder;
+
+    private final SipMessageEncoder m_messageEncoder =
+        new SipMessageEncoderImpl();
+
+    /**
+     * Creates a new encoder that only encodes messages directly with
+     * {@link #encode(SipMessage)}, such as for capturing them.
+     */
+    public ProxySipMessageEncoder()
+        {
+        this(null);
+        }
+
+    /**
+     * Creates a new encoder.
+     *
+     * @param protocolEncoder The stack's encoder for the messages it knows.
+     */
+    public ProxySipMessageEncoder(final ProtocolEncoder protocolEncoder)
+        {
+        this.m_protocolEncoder = protocolEncoder;
+        }
+
+    public void encode(final IoSession session, final Object message,
+        final ProtocolEncoderOutput out) throws Exception
+        {
+        if (isOurs(message))
+            {
+            out.write(encodeOurs((SipMessage) message));
+            }
+        else
+            {
+            this.m_protocolEncoder.encode(session, message, out);
+            }
+        }
+
+    public ByteBuffer encode(final SipMessage message)
+        {
+        if (isOurs(message))
+            {
+            return encodeOurs(message);
+            }
+        return this.m_messageEncoder.encode(message);
+        }
+
+    private static boolean isOurs(final Object message)
+        {
+        if (message instanceof UnknownSipRequest)
+            {
+            return true;
+            }
+        return message instanceof SipResponse && ((SipResponse) message).
+            getHeader(UnknownMethodResponseFilter.ORIGINAL_CSEQ) != null;
+        }
+
+    private ByteBuffer encodeOurs(final SipMessage message)
+        {
+        final Map<String, SipHeader> headers = message.getHeaders();
+        final SipHeader original = 
+            headers.remove(UnknownMethodResponseFilter.ORIGINAL_CSEQ);
+        final StringBuilder sb = new StringBuilder(512);
+        sb.append(message.getStartLine());
+        sb.append("\r\n");
+        for (final Map.Entry<String, SipHeader> header : headers.entrySet())
+            {
+            if (original != null && 
+                SipHeaderNames.CSEQ.equals(header.getKey()))
+                {
+                sb.append(SipHeaderNames.CSEQ);
+                sb.append(": ");
+                SipHeaderRewriter.render(original.getValue(), sb);
+                sb.append("\r\n");
+                continue;
+                }
+            sb.append(header.getKey());
+            sb.append(": ");
+            final List<SipHeaderValue> values = header.getValue().getValues();
+            for (int i = 0; i < values.size(); i++)
+                {
+                if (i > 0)
+                    {
+                    sb.append(',');
+                    }
+                SipHeaderRewriter.render(values.get(i), sb);
+                }
+            sb.append("\r\n");
+            }
+        sb.append("\r\n");
+
+        // Leave the body's position alone so the request can be encoded
+        // again, for example when it's captured.
+        final byte[] head;
+        try
+            {
+            head = sb.toString().getBytes("UTF-8");
+            }
+        catch (final UnsupportedEncodingException e)
+            {
+            throw new IllegalStateException("No UTF-8?", e);
+            }
+        final ByteBuffer body = message.getBody();
+        final int bodyLength = body == null ? 0 : body.remaining();
+        final ByteBuffer buf = ByteBuffer.allocate(head.length + bodyLength);
+        buf.put(head);
+        if (bodyLength > 0)
+            {
+            buf.put(body.duplicate());
+            }
+        buf.flip();
+        return buf;
+        }
+
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName();
+        }
+    }
@@ -0,0 +1,116 @@
+package org.lastbamboo.common.sip.proxy.transport;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.filter.codec.ProtocolCodecFactory;
+import org.littleshoot.mina.filter.codec.ProtocolDecoder;
+import org.littleshoot.mina.filter.codec.ProtocolDecoderOutput;
+
+/**
+ * Decoder that creates the real decoder for a session lazily and can drop
+ * it again while the session is between messages.  The SIP decoder's
+ * state machine keeps buffers that grow to fit the longest line it has 
+ * seen, and with many mostly idle clients those add up, so we release them
+ * for sessions that have gone quiet.
+ */
+public class ReleasableProtocolDecoder implements ProtocolDecoder
+    {
+
+    private final ProtocolCodecFactory m_factory;
+    
+    private ProtocolDecoder m_decoder;
+    
+    /**
+     * Whether the last byte we read completed a message, in which case the
+     * decoder holds nothing we need.
+     */
+    private boolean m_betweenMessages = true;
+    
+    private ByteBuffer m_in;
+    
+    private ProtocolDecoderOutput m_out;
+    
+    private final ProtocolDecoderOutput m_trackingOut = 
+        new ProtocolDecoderOutput()
+        {
+        public void write(final Object message)
+            {
+            m_betweenMessages = !m_in.hasRemaining();
+            m_out.write(message);
+            }
+        
+        public void flush()
+            {
+            m_out.flush();
+            }
+        };
+
+    /**
+     * Creates a new decoder.
+     * 
+     * @param factory The factory for the real decoder.
+     */
+    public ReleasableProtocolDecoder(final ProtocolCodecFactory factory)
+        {
+        this.m_factory = factory;
+        }
+
+    public synchronized void decode(final IoSession session, 
+        final ByteBuffer in, final ProtocolDecoderOutput out) throws Exception
+        {
+        if (this.m_decoder == null)
+            {
+            this.m_decoder = this.m_factory.getDecoder();
+            }
+        this.m_betweenMessages = false;
+        this.m_in = in;
+        this.m_out = out;
+        try
+            {
+            this.m_decoder.decode(session, in, this.m_trackingOut);
+            }
+        finally
+            {
+            this.m_in = null;
+            this.m_out = null;
+            }
+        }
+    
+    /**
+     * Releases the real decoder if the session isn't in the middle of a 
+     * message.
+     * 
+     * @param session The session the decoder belongs to.
+     * @return <code>true</code> if the decoder was released.
+     * @throws Exception If the decoder can't be disposed.
+     */
+    public synchronized boolean release(final IoSession session) 
+        throws Exception
+        {
+        if (this.m_decoder == null || !this.m_betweenMessages)
+            {
+            return false;
+            }
+        this.m_decoder.dispose(session);
+        this.m_decoder = null;
+        return true;
+        }
+
+    public synchronized void finishDecode(final IoSession session, 
+        final ProtocolDecoderOutput out) throws Exception
+        {
+        if (this.m_decoder != null)
+            {
+            this.m_decoder.finishDecode(session, out);
+            }
+        }
+
+    public synchronized void dispose(final IoSession session) throws Exception
+        {
+        if (this.m_decoder != null)
+            {
+            this.m_decoder.dispose(session);
+            this.m_decoder = null;
+            }
+        }
+    }
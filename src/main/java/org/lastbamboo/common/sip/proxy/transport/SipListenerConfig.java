@@ -0,0 +1,452 @@
+package org.lastbamboo.common.sip.proxy.transport;
+
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+import org.lastbamboo.common.sip.proxy.SipConstants;
+
+/**
+ * Configuration for the sockets the proxy listens on.  The defaults match
+ * the historical behavior of listening on {@link SipConstants#SIP_PORT} on
+ * all interfaces.  Set the port to 0 to bind to an ephemeral port, which is
+ * what tests running several proxies in parallel should do.
+ */
+public class SipListenerConfig
+    {
+
+    private List<String> m_bindAddresses = Collections.emptyList();
+    
+    private int m_port = SipConstants.SIP_PORT;
+    
+    private int m_backlog = 1024;
+    
+    private int m_receiveBufferSize = -1;
+    
+    private int m_sendBufferSize = -1;
+    
+    private boolean m_reuseAddress = true;
+    
+    private int m_ioProcessors = Runtime.getRuntime().availableProcessors() + 1;
+    
+    private long m_idleTimeoutMillis = 5 * 60 * 1000;
+    
+    private long m_idleTickMillis = 1000;
+    
+    private String m_captureFile;
+    
+    private int m_decoderReleaseIdleSeconds = 30;
+    
+    private int m_maxHeaderBytes = 16 * 1024;
+    
+    private int m_maxBodyBytes = 64 * 1024;
+    
+    private boolean m_directBuffers = true;
+    
+    private int m_bufferPoolTimeoutSeconds = 60;
+    
+    private CompactHeaderFilter.Mode m_compactHeaders = 
+        CompactHeaderFilter.Mode.OFF;
+
+    /**
+     * Creates the socket addresses to bind to, one for each configured 
+     * address, or the wildcard address if none are configured.
+     * 
+     * @return The socket addresses to bind to.
+     */
+    public Collection<InetSocketAddress> toSocketAddresses()
+        {
+        final Collection<InetSocketAddress> addresses = 
+            new LinkedList<InetSocketAddress>();
+        if (this.m_bindAddresses.isEmpty())
+            {
+            addresses.add(new InetSocketAddress(this.m_port));
+            }
+        else
+            {
+            for (final String host : this.m_bindAddresses)
+                {
+                addresses.add(new InetSocketAddress(host, this.m_port));
+                }
+            }
+        return addresses;
+        }
+    
+    /**
+     * Sets the local addresses to bind to, such as the address of one NIC.
+     * An empty list means all interfaces.
+     * 
+     * @param bindAddresses The host names or literal IP addresses to bind to.
+     */
+    public void setBindAddresses(final List<String> bindAddresses)
+        {
+        this.m_bindAddresses = bindAddresses;
+        }
+
+    /**
+     * Accessor for the local addresses to bind to.
+     * 
+     * @return The local addresses to bind to.
+     */
+    public List<String> getBindAddresses()
+        {
+        return m_bindAddresses;
+        }
+
+    /**
+     * Sets the port to listen on.  0 picks an ephemeral port, which every
+     * bind address then shares.
+     * 
+     * @param port The port to listen on.
+     */
+    public void setPort(final int port)
+        {
+        this.m_port = port;
+        }
+
+    /**
+     * Accessor for the port to listen on.
+     * 
+     * @return The port to listen on.
+     */
+    public int getPort()
+        {
+        return m_port;
+        }
+
+    /**
+     * Sets the accept backlog for each listening socket.
+     * 
+     * @param backlog The accept backlog.
+     */
+    public void setBacklog(final int backlog)
+        {
+        this.m_backlog = backlog;
+        }
+
+    /**
+     * Accessor for the accept backlog.
+     * 
+     * @return The accept backlog.
+     */
+    public int getBacklog()
+        {
+        return m_backlog;
+        }
+
+    /**
+     * Sets SO_RCVBUF for accepted connections.  A negative value leaves the
+     * operating system default in place.
+     * 
+     * @param receiveBufferSize The receive buffer size in bytes.
+     */
+    public void setReceiveBufferSize(final int receiveBufferSize)
+        {
+        this.m_receiveBufferSize = receiveBufferSize;
+        }
+
+    /**
+     * Accessor for SO_RCVBUF for accepted connections.
+     * 
+     * @return The receive buffer size in bytes, or a negative number for the
+     * operating system default.
+     */
+    public int getReceiveBufferSize()
+        {
+        return m_receiveBufferSize;
+        }
+
+    /**
+     * Sets SO_SNDBUF for accepted connections.  A negative value leaves the
+     * operating system default in place.
+     * 
+     * @param sendBufferSize The send buffer size in bytes.
+     */
+    public void setSendBufferSize(final int sendBufferSize)
+        {
+        this.m_sendBufferSize = sendBufferSize;
+        }
+
+    /**
+     * Accessor for SO_SNDBUF for accepted connections.
+     * 
+     * @return The send buffer size in bytes, or a negative number for the
+     * operating system default.
+     */
+    public int getSendBufferSize()
+        {
+        return m_sendBufferSize;
+        }
+
+    /**
+     * Sets SO_REUSEADDR on the listening sockets, allowing a restarted 
+     * process to rebind while old connections are in TIME_WAIT.
+     * 
+     * @param reuseAddress Whether or not to reuse the address.
+     */
+    public void setReuseAddress(final boolean reuseAddress)
+        {
+        this.m_reuseAddress = reuseAddress;
+        }
+
+    /**
+     * Accessor for whether or not SO_REUSEADDR is set.
+     * 
+     * @return Whether or not SO_REUSEADDR is set.
+     */
+    public boolean isReuseAddress()
+        {
+        return m_reuseAddress;
+        }
+
+    /**
+     * Sets the number of I/O processor threads that accepted connections
+     * are spread across.
+     * 
+     * @param ioProcessors The number of I/O processors.
+     */
+    public void setIoProcessors(final int ioProcessors)
+        {
+        this.m_ioProcessors = ioProcessors;
+        }
+
+    /**
+     * Accessor for the number of I/O processor threads.
+     * 
+     * @return The number of I/O processor threads.
+     */
+    public int getIoProcessors()
+        {
+        return m_ioProcessors;
+        }
+    
+    /**
+     * Sets how long a connection may go without sending us anything, 
+     * including keepalives, before we close it.  We close it up to one 
+     * idle tick later than that, but never sooner.
+     * 
+     * @param idleTimeoutMillis The idle timeout in milliseconds.
+     */
+    public void setIdleTimeoutMillis(final long idleTimeoutMillis)
+        {
+        this.m_idleTimeoutMillis = idleTimeoutMillis;
+        }
+
+    /**
+     * Accessor for the idle timeout.
+     * 
+     * @return The idle timeout in milliseconds.
+     */
+    public long getIdleTimeoutMillis()
+        {
+        return m_idleTimeoutMillis;
+        }
+
+    /**
+     * Sets the granularity of idle connection checks, which is also the 
+     * longest a keepalive pong is held before it's sent.
+     * 
+     * @param idleTickMillis The tick length in milliseconds.
+     */
+    public void setIdleTickMillis(final long idleTickMillis)
+        {
+        this.m_idleTickMillis = idleTickMillis;
+        }
+
+    /**
+     * Accessor for the granularity of idle connection checks.
+     * 
+     * @return The tick length in milliseconds.
+     */
+    public long getIdleTickMillis()
+        {
+        return m_idleTickMillis;
+        }
+    
+    /**
+     * Sets a file to capture all inbound messages to for later replay.  
+     * Capturing is off when this is <code>null</code>, which is the 
+     * default.
+     * 
+     * @param captureFile The path of the capture file.
+     */
+    public void setCaptureFile(final String captureFile)
+        {
+        this.m_captureFile = captureFile;
+        }
+
+    /**
+     * Accessor for the capture file.
+     * 
+     * @return The path of the capture file, or <code>null</code> if we're
+     * not capturing.
+     */
+    public String getCaptureFile()
+        {
+        return m_captureFile;
+        }
+    
+    /**
+     * Sets how long a connection has to go without sending us anything 
+     * before we release its decoder and the buffers it holds.  0 keeps
+     * decoders for the life of the connection.
+     * 
+     * @param decoderReleaseIdleSeconds The idle time in seconds.
+     */
+    public void setDecoderReleaseIdleSeconds(
+        final int decoderReleaseIdleSeconds)
+        {
+        this.m_decoderReleaseIdleSeconds = decoderReleaseIdleSeconds;
+        }
+
+    /**
+     * Accessor for how long a connection has to be idle before we release
+     * its decoder.
+     * 
+     * @return The idle time in seconds, or 0 if decoders aren't released.
+     */
+    public int getDecoderReleaseIdleSeconds()
+        {
+        return m_decoderReleaseIdleSeconds;
+        }
+    
+    /**
+     * Sets the most bytes we'll accept for the start line and headers of a 
+     * single message.  Larger requests get a 513 and the connection is 
+     * closed.
+     * 
+     * @param maxHeaderBytes The header limit in bytes.
+     */
+    public void setMaxHeaderBytes(final int maxHeaderBytes)
+        {
+        this.m_maxHeaderBytes = maxHeaderBytes;
+        }
+
+    /**
+     * Accessor for the header size limit.
+     * 
+     * @return The header limit in bytes.
+     */
+    public int getMaxHeaderBytes()
+        {
+        return m_maxHeaderBytes;
+        }
+
+    /**
+     * Sets the largest Content-Length we'll accept.  Larger requests get a
+     * 413 and the connection is closed.
+     * 
+     * @param maxBodyBytes The body limit in bytes.
+     */
+    public void setMaxBodyBytes(final int maxBodyBytes)
+        {
+        this.m_maxBodyBytes = maxBodyBytes;
+        }
+
+    /**
+     * Accessor for the body size limit.
+     * 
+     * @return The body limit in bytes.
+     */
+    public int getMaxBodyBytes()
+        {
+        return m_maxBodyBytes;
+        }
+
+    /**
+     * Sets whether read and write buffers are direct.  This, like the pool
+     * timeout, applies to the whole process since MINA's allocator is 
+     * global, so the first listener to start decides it for every MINA 
+     * service in the process.
+     * 
+     * @param directBuffers Whether or not to use direct buffers.
+     */
+    public void setDirectBuffers(final boolean directBuffers)
+        {
+        this.m_directBuffers = directBuffers;
+        }
+
+    /**
+     * Accessor for whether buffers are direct.
+     * 
+     * @return Whether or not buffers are direct.
+     */
+    public boolean isDirectBuffers()
+        {
+        return m_directBuffers;
+        }
+
+    /**
+     * Sets how long a buffer can sit unused in the pool before it's freed,
+     * which lets the pool shrink again after a burst.  Like direct buffers,
+     * this applies to the whole process, and the first listener to start
+     * decides it.
+     * 
+     * @param bufferPoolTimeoutSeconds The pool timeout in seconds.
+     */
+    public void setBufferPoolTimeoutSeconds(final int bufferPoolTimeoutSeconds)
+        {
+        this.m_bufferPoolTimeoutSeconds = bufferPoolTimeoutSeconds;
+        }
+
+    /**
+     * Accessor for the buffer pool timeout.
+     * 
+     * @return The pool timeout in seconds.
+     */
+    public int getBufferPoolTimeoutSeconds()
+        {
+        return m_bufferPoolTimeoutSeconds;
+        }
+    
+    /**
+     * Sets who we write compact header names to: "off" for nobody, "peer"
+     * for clients that send us compact names themselves, or "always" for
+     * everybody.
+     * 
+     * @param compactHeaders Who to write compact headers to.
+     * @throws IllegalArgumentException If it's none of those.
+     */
+    public void setCompactHeaders(final String compactHeaders)
+        {
+        try
+            {
+            this.m_compactHeaders = CompactHeaderFilter.Mode.valueOf(
+                String.valueOf(compactHeaders).trim().toUpperCase(Locale.US));
+            }
+        catch (final IllegalArgumentException e)
+            {
+            throw new IllegalArgumentException("compactHeaders must be " +
+                "\"off\", \"peer\" or \"always\", not: " + compactHeaders);
+            }
+        }
+
+    /**
+     * Accessor for who we write compact header names to.
+     * 
+     * @return "off", "peer" or "always".
+     */
+    public String getCompactHeaders()
+        {
+        return m_compactHeaders.name().toLowerCase(Locale.US);
+        }
+
+    /**
+     * Accessor for who we write compact header names to.
+     * 
+     * @return Who we write compact header names to.
+     */
+    public CompactHeaderFilter.Mode getCompactHeaderMode()
+        {
+        return m_compactHeaders;
+        }
+    
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName() + " " + toSocketAddresses();
+        }
+    }
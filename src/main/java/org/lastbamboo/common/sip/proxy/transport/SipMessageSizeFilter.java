@@ -0,0 +1,373 @@
+package org.lastbamboo.common.sip.proxy.transport;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoFilterAdapter;
+import org.littleshoot.mina.common.IoFutureListener;
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.proxy.LocalResponseWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Filter that goes in front of the codec and bounds how much a client can
+ * make us buffer for a single message.  It follows message boundaries in
+ * the raw bytes without copying them, so the decoder never sees a header 
+ * block over the header limit or a Content-Length over the body limit.  
+ * Folded header lines count towards the header limit and are joined to
+ * the header they continue, so folding a Content-Length can't hide it.
+ * Oversized requests get a 513 or 413 when we've seen enough headers to 
+ * build one, and the connection is closed either way since we can't 
+ * reliably find the start of the next message.
+ */
+public class SipMessageSizeFilter extends IoFilterAdapter
+    {
+
+    private static final String STATE = "SIP_SIZE_STATE";
+    
+    private static final int START = 0;
+    private static final int HEADERS = 1;
+    private static final int BODY = 2;
+    private static final int REJECTED = 3;
+    
+    /**
+     * The headers a response needs copied from the request.
+     */
+    private static final String[] COPIED = 
+        {"Via", "From", "To", "Call-ID", "CSeq"};
+    
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+    
+    private final int m_maxHeaderBytes;
+    
+    private final int m_maxBodyBytes;
+    
+    private final LocalResponseWriter m_responseWriter = 
+        new LocalResponseWriter();
+    
+    private final AtomicLong m_rejected = new AtomicLong(0);
+
+    /**
+     * Creates a new filter.
+     * 
+     * @param maxHeaderBytes The most bytes we'll accept for a start line 
+     * and headers.
+     * @param maxBodyBytes The largest Content-Length we'll accept.
+     */
+    public SipMessageSizeFilter(final int maxHeaderBytes, 
+        final int maxBodyBytes)
+        {
+        this.m_maxHeaderBytes = maxHeaderBytes;
+        this.m_maxBodyBytes = maxBodyBytes;
+        }
+    
+    @Override
+    public void messageReceived(final NextFilter nextFilter, 
+        final IoSession session, final Object message) throws Exception
+        {
+        if (!(message instanceof ByteBuffer))
+            {
+            nextFilter.messageReceived(session, message);
+            return;
+            }
+        ScanState state = (ScanState) session.getAttribute(STATE);
+        if (state == null)
+            {
+            state = new ScanState();
+            session.setAttribute(STATE, state);
+            }
+        if (state.m_state == REJECTED)
+            {
+            return;
+            }
+        if (scan(state, (ByteBuffer) message))
+            {
+            nextFilter.messageReceived(session, message);
+            }
+        else
+            {
+            reject(session, state);
+            }
+        }
+    
+    /**
+     * Accessor for the number of connections closed for oversized 
+     * messages.
+     * 
+     * @return The number of rejected messages.
+     */
+    public long getRejected()
+        {
+        return this.m_rejected.get();
+        }
+
+    /**
+     * Follows the bytes in the buffer through message boundaries without 
+     * changing its position.
+     * 
+     * @return <code>false</code> if a message is too large.
+     */
+    private boolean scan(final ScanState state, final ByteBuffer buf)
+        {
+        final int limit = buf.limit();
+        int i = buf.position();
+        while (i < limit)
+            {
+            switch (state.m_state)
+                {
+                case START:
+                    final byte first = buf.get(i);
+                    if (first == '\r' || first == '\n')
+                        {
+                        // Keepalives and stray line endings.
+                        i++;
+                        }
+                    else
+                        {
+                        state.startMessage();
+                        }
+                    break;
+                case HEADERS:
+                    final byte b = buf.get(i++);
+                    if (++state.m_headerBytes > this.m_maxHeaderBytes)
+                        {
+                        state.m_status = 513;
+                        return false;
+                        }
+                    if (b == '\n')
+                        {
+                        if (state.m_lineEnded || state.m_lineLength == 0)
+                            {
+                            // The blank line that ends the headers.
+                            state.endLine();
+                            if (state.m_contentLength > this.m_maxBodyBytes)
+                                {
+                                state.m_status = 413;
+                                return false;
+                                }
+                            state.m_bodyRemaining = state.m_contentLength;
+                            state.m_state = 
+                                state.m_bodyRemaining > 0 ? BODY : START;
+                            }
+                        else
+                            {
+                            // We don't know the line is over until we see 
+                            // whether the next one continues it.
+                            state.m_lineEnded = true;
+                            }
+                        }
+                    else if (b != '\r')
+                        {
+                        if (state.m_lineEnded)
+                            {
+                            if (b == ' ' || b == '\t')
+                                {
+                                state.m_lineEnded = false;
+                                }
+                            else
+                                {
+                                state.endLine();
+                                }
+                            }
+                        state.addToLine(b);
+                        }
+                    break;
+                case BODY:
+                    final int skip = 
+                        (int) Math.min(limit - i, state.m_bodyRemaining);
+                    i += skip;
+                    state.m_bodyRemaining -= skip;
+                    if (state.m_bodyRemaining == 0)
+                        {
+                        state.m_state = START;
+                        }
+                    break;
+                default:
+                    return false;
+                }
+            }
+        return true;
+        }
+
+    private void reject(final IoSession session, final ScanState state)
+        {
+        this.m_rejected.incrementAndGet();
+        state.m_state = REJECTED;
+        m_log.info("Closing {} for a message over {} bytes", 
+            session.getRemoteAddress(), state.m_status == 513 ? 
+                "the header limit of " + this.m_maxHeaderBytes :
+                "the body limit of " + this.m_maxBodyBytes);
+        if (!state.canRespond())
+            {
+            session.close();
+            return;
+            }
+        final String reason = state.m_status == 513 ? 
+            "Message Too Large" : "Request Entity Too Large";
+        this.m_responseWriter.write(session, state.m_lines, state.m_status,
+            reason).addListener(IoFutureListener.CLOSE);
+        }
+
+    private static boolean isCopied(final byte b)
+        {
+        switch (Character.toLowerCase((char) b))
+            {
+            case 'v': case 'f': case 't': case 'i': case 'c': case 'l':
+                return true;
+            default:
+                return false;
+            }
+        }
+    
+    private static String fullName(final String name)
+        {
+        if ("via".equals(name) || "v".equals(name))
+            {
+            return "Via";
+            }
+        if ("from".equals(name) || "f".equals(name))
+            {
+            return "From";
+            }
+        if ("to".equals(name) || "t".equals(name))
+            {
+            return "To";
+            }
+        if ("call-id".equals(name) || "i".equals(name))
+            {
+            return "Call-ID";
+            }
+        if ("cseq".equals(name))
+            {
+            return "CSeq";
+            }
+        if ("content-length".equals(name) || "l".equals(name))
+            {
+            return "Content-Length";
+            }
+        return null;
+        }
+
+    /**
+     * Where we are in the current message.  Only the few header lines we'd
+     * need to build a response are kept.
+     */
+    private static final class ScanState
+        {
+        private int m_state = START;
+        private int m_headerBytes;
+        private int m_lineLength;
+        private boolean m_lineEnded;
+        private boolean m_startLine;
+        private boolean m_response;
+        private StringBuilder m_line;
+        private long m_contentLength;
+        private long m_bodyRemaining;
+        private int m_status;
+        private final List<String> m_lines = new LinkedList<String>();
+        
+        private void startMessage()
+            {
+            this.m_state = HEADERS;
+            this.m_headerBytes = 0;
+            this.m_lineLength = 0;
+            this.m_lineEnded = false;
+            this.m_startLine = true;
+            this.m_response = false;
+            this.m_line = null;
+            this.m_contentLength = 0;
+            this.m_lines.clear();
+            }
+        
+        private void addToLine(final byte b)
+            {
+            if (this.m_lineLength == 0)
+                {
+                // Only keep the lines for headers we might copy.
+                if (this.m_startLine || isCopied(b))
+                    {
+                    this.m_line = new StringBuilder(64);
+                    }
+                else
+                    {
+                    this.m_line = null;
+                    }
+                }
+            this.m_lineLength++;
+            if (this.m_line != null)
+                {
+                this.m_line.append((char) b);
+                }
+            }
+        
+        private void endLine()
+            {
+            this.m_lineLength = 0;
+            this.m_lineEnded = false;
+            if (this.m_line == null)
+                {
+                return;
+                }
+            final String line = this.m_line.toString();
+            this.m_line = null;
+            if (this.m_startLine)
+                {
+                this.m_startLine = false;
+                this.m_response = line.startsWith("SIP/");
+                return;
+                }
+            final int colon = line.indexOf(':');
+            if (colon == -1)
+                {
+                return;
+                }
+            final String name = fullName(
+                line.substring(0, colon).trim().toLowerCase(Locale.US));
+            final String value = line.substring(colon + 1).trim();
+            if (name == null)
+                {
+                return;
+                }
+            if ("Content-Length".equals(name))
+                {
+                try
+                    {
+                    this.m_contentLength = Long.parseLong(value);
+                    }
+                catch (final NumberFormatException e)
+                    {
+                    // The decoder will deal with it.
+                    }
+                }
+            else
+                {
+                this.m_lines.add(name + ": " + value);
+                }
+            }
+        
+        private boolean canRespond()
+            {
+            if (this.m_response)
+                {
+                return false;
+                }
+            int found = 0;
+            for (final String name : COPIED)
+                {
+                for (final String line : this.m_lines)
+                    {
+                    if (line.startsWith(name + ":"))
+                        {
+                        found++;
+                        break;
+                        }
+                    }
+                }
+            return found == COPIED.length;
+            }
+        }
+    }
@@ -0,0 +1,29 @@
+package org.lastbamboo.common.sip.proxy.transport;
+
+import java.io.IOException;
+
+/**
+ * Interface for the network backend that accepts SIP connections on behalf
+ * of the proxy.  Implementations decode incoming bytes into SIP messages and
+ * hand them to the proxy's handler, so the registrar and forwarders never
+ * see which backend is running underneath them.
+ */
+public interface SipServerTransport
+    {
+
+    /**
+     * Starts accepting connections on each address in the configuration.
+     * 
+     * @param config The configuration for the listening sockets.
+     * @throws IOException If we could not bind to any of the addresses.
+     */
+    void start(SipListenerConfig config) throws IOException;
+    
+    /**
+     * Accessor for a short name for the backend, useful for labeling the
+     * results of load runs against different backends.
+     * 
+     * @return The name of the backend.
+     */
+    String getName();
+    }
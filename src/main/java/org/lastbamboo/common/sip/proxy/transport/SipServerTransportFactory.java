@@ -0,0 +1,24 @@
+package org.lastbamboo.common.sip.proxy.transport;
+
+import org.littleshoot.mina.common.IoHandler;
+import org.littleshoot.mina.common.IoServiceListener;
+import org.littleshoot.mina.filter.codec.ProtocolCodecFactory;
+
+/**
+ * Factory for creating server transports.  The proxy is handed one of these
+ * so the backend can be swapped from configuration or from a load harness.
+ */
+public interface SipServerTransportFactory
+    {
+
+    /**
+     * Creates a new server transport.
+     * 
+     * @param codecFactory The factory for the SIP encoder and decoder.
+     * @param listener The listener for session and service events.
+     * @param handler The handler for decoded messages.
+     * @return The new transport.
+     */
+    SipServerTransport newTransport(ProtocolCodecFactory codecFactory,
+        IoServiceListener listener, IoHandler handler);
+    }
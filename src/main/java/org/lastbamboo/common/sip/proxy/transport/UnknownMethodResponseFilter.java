@@ -0,0 +1,64 @@
+package org.lastbamboo.common.sip.proxy.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Filter that goes in front of the codec so we can relay responses to
+ * requests like BYE and MESSAGE.  The stack can only build responses whose
+ * CSeq names a method it knows, so for any other method we rewrite the
+ * CSeq to "UNKNOWN" and keep the original in {@link #ORIGINAL_CSEQ}, which
+ * {@link ProxySipMessageEncoder} swaps back in when the response goes out.
+ */
+public class UnknownMethodResponseFilter extends HeaderRewritingFilter
+    {
+
+    /**
+     * The header holding the CSeq a response arrived with.
+     */
+    public static final String ORIGINAL_CSEQ = "X-Original-CSeq";
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * Accessor for whether the stack can build a response to the specified
+     * method.
+     *
+     * @param method The method.
+     * @return <code>true</code> if the stack knows the method.
+     */
+    public static boolean isKnown(final String method)
+        {
+        return "INVITE".equals(method) || "REGISTER".equals(method) ||
+            "UNKNOWN".equals(method);
+        }
+
+    /**
+     * Creates a new filter for rewriting the CSeq of responses.
+     */
+    public UnknownMethodResponseFilter()
+        {
+        super("CSeq");
+        }
+
+    @Override
+    protected byte[] rewrite(final boolean response, final String name,
+        final byte[] value)
+        {
+        if (!response)
+            {
+            return null;
+            }
+        final String cseq = new String(value, 0, value.length, ASCII);
+        final int space = cseq.indexOf(' ');
+        if (space == -1 || isKnown(cseq.substring(space + 1).trim()))
+            {
+            return null;
+            }
+        final ByteArrayOutputStream lines = new ByteArrayOutputStream(64);
+        writeLine(lines, "CSeq", 
+            toBytes(cseq.substring(0, space) + " UNKNOWN"));
+        writeLine(lines, ORIGINAL_CSEQ, value);
+        return lines.toByteArray();
+        }
+    }
@@ -0,0 +1,88 @@
+package org.lastbamboo.common.sip.proxy;
+
+import junit.framework.TestCase;
+
+import org.littleshoot.mina.common.IoSession;
+
+/**
+ * Tests for the flow token table.
+ */
+public class FlowTableTest extends TestCase
+    {
+
+    public void testAddGetRemove() throws Exception
+        {
+        final FlowTable table = new FlowTable(4);
+        final IoSession session = StubSessions.newSession();
+        final int token = table.add(session);
+        assertTrue(token >= 0);
+        assertSame(session, table.get(token));
+        assertSame(session, table.get(table.sign(session, "z9hG4bK1"), 
+            "z9hG4bK1"));
+        assertEquals(token, table.getToken(session));
+        
+        table.remove(session);
+        assertNull(table.get(token));
+        assertEquals(-1, table.getToken(session));
+        }
+    
+    public void testStaleTokenAfterSlotReuse() throws Exception
+        {
+        final FlowTable table = new FlowTable(1);
+        final IoSession first = StubSessions.newSession();
+        final int firstToken = table.add(first);
+        table.remove(first);
+        
+        final IoSession second = StubSessions.newSession();
+        final int secondToken = table.add(second);
+        assertTrue(firstToken != secondToken);
+        assertNull(table.get(firstToken));
+        assertSame(second, table.get(secondToken));
+        }
+    
+    public void testFull() throws Exception
+        {
+        final FlowTable table = new FlowTable(1);
+        assertTrue(table.add(StubSessions.newSession()) >= 0);
+        assertTrue(table.add(StubSessions.newSession()) >= 0);
+        assertEquals(-1, table.add(StubSessions.newSession()));
+        }
+    
+    public void testForgedTokens() throws Exception
+        {
+        final FlowTable table = new FlowTable(4);
+        final IoSession session = StubSessions.newSession();
+        final int token = table.add(session);
+        final String signed = table.sign(session, "z9hG4bK1");
+        assertEquals(token, table.verify(signed, "z9hG4bK1"));
+        
+        // Signed for another transaction.
+        assertEquals(-1, table.verify(signed, "z9hG4bK2"));
+        assertNull(table.get(signed, null));
+        
+        // Guessed from the slot and generation, or tampered with.
+        final String unsigned = Integer.toString(token, Character.MAX_RADIX);
+        assertNull(table.get(unsigned, "z9hG4bK1"));
+        assertNull(table.get(unsigned + ".00000000000000000000", "z9hG4bK1"));
+        final int dot = signed.indexOf('.');
+        final String otherSlot = 
+            Integer.toString(token ^ 1, Character.MAX_RADIX) + 
+            signed.substring(dot);
+        assertNull(table.get(otherSlot, "z9hG4bK1"));
+        
+        // Signed by another proxy.
+        final FlowTable other = new FlowTable(4);
+        other.add(session);
+        assertNull(table.get(other.sign(session, "z9hG4bK1"), "z9hG4bK1"));
+        }
+    
+    public void testGarbage() throws Exception
+        {
+        final FlowTable table = new FlowTable(4);
+        assertNull(table.get(null, "z9hG4bK1"));
+        assertNull(table.get("", "z9hG4bK1"));
+        assertNull(table.get("!!", "z9hG4bK1"));
+        assertNull(table.get("zzzzzzzzzz.1234", "z9hG4bK1"));
+        assertNull(table.sign(StubSessions.newSession(), "z9hG4bK1"));
+        }
+    }
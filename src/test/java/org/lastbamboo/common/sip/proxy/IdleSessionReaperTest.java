@@ -0,0 +1,115 @@
+package org.lastbamboo.common.sip.proxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+import org.littleshoot.mina.common.IoSession;
+
+/**
+ * Tests for the idle session timing wheel.
+ */
+public class IdleSessionReaperTest extends TestCase
+    {
+
+    public void testIdleSessionReaped() throws Exception
+        {
+        final IdleSessionReaper reaper = new IdleSessionReaper(3000, 1000);
+        final IoSession session = StubSessions.newSession();
+        reaper.touch(session);
+        reaper.tick();
+        reaper.tick();
+        reaper.tick();
+        assertEquals(1, reaper.getNumSessions());
+        reaper.tick();
+        assertEquals(0, reaper.getNumSessions());
+        assertTrue(session.isClosing());
+        }
+
+    public void testNeverReapedEarly() throws Exception
+        {
+        // With the idle time a single tick, a session touched just before
+        // a tick has to last through the next whole one.
+        final IdleSessionReaper reaper = new IdleSessionReaper(1000, 1000);
+        final IoSession session = StubSessions.newSession();
+        reaper.touch(session);
+        reaper.tick();
+        assertEquals(1, reaper.getNumSessions());
+        reaper.tick();
+        assertEquals(0, reaper.getNumSessions());
+
+        // An idle time between ticks rounds up.
+        final IdleSessionReaper rounded = new IdleSessionReaper(1500, 1000);
+        rounded.touch(session);
+        rounded.tick();
+        rounded.tick();
+        assertEquals(1, rounded.getNumSessions());
+        rounded.tick();
+        assertEquals(0, rounded.getNumSessions());
+        }
+
+    public void testTouchPushesBackReaping() throws Exception
+        {
+        final IdleSessionReaper reaper = new IdleSessionReaper(3000, 1000);
+        final IoSession session = StubSessions.newSession();
+        reaper.touch(session);
+        reaper.tick();
+        reaper.tick();
+        reaper.touch(session);
+        reaper.tick();
+        reaper.tick();
+        reaper.tick();
+        assertEquals(1, reaper.getNumSessions());
+        reaper.tick();
+        assertEquals(0, reaper.getNumSessions());
+
+        reaper.touch(session);
+        reaper.remove(session);
+        assertEquals(0, reaper.getNumSessions());
+        }
+
+    public void testConcurrentTouchesLeaveOneSlot() throws Exception
+        {
+        final IdleSessionReaper reaper =
+            new IdleSessionReaper(1000 * 1000, 1000);
+        final List<IoSession> sessions = new ArrayList<IoSession>();
+        for (int i = 0; i < 10; i++)
+            {
+            sessions.add(StubSessions.newSession());
+            }
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final CountDownLatch finished = new CountDownLatch(4);
+        for (int i = 0; i < 4; i++)
+            {
+            final Thread t = new Thread(new Runnable()
+                {
+                public void run()
+                    {
+                    while (!done.get())
+                        {
+                        for (final IoSession session : sessions)
+                            {
+                            reaper.touch(session);
+                            }
+                        }
+                    finished.countDown();
+                    }
+                });
+            t.setDaemon(true);
+            t.start();
+            }
+
+        // Each tick moves the slot the touches land in.
+        for (int i = 0; i < 200; i++)
+            {
+            reaper.tick();
+            Thread.sleep(1);
+            }
+        done.set(true);
+        finished.await();
+        assertEquals(sessions.size(), reaper.getNumSessions());
+        }
+    }
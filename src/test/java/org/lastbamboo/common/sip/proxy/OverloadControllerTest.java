@@ -0,0 +1,104 @@
+package org.lastbamboo.common.sip.proxy;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for deciding when to shed load and what Retry-After to send.
+ */
+public class OverloadControllerTest extends TestCase
+    {
+
+    public void testShedAndRecoverOnLag() throws Exception
+        {
+        final OverloadController controller =
+            new OverloadController(new FlowTable(4));
+        controller.setMaxLagMillis(100);
+        controller.sample(99);
+        assertFalse(controller.shouldShed());
+        controller.sample(100);
+        assertTrue(controller.shouldShed());
+
+        // We don't recover until we're well under the threshold.
+        controller.sample(90);
+        assertTrue(controller.shouldShed());
+        controller.sample(80);
+        assertTrue(controller.shouldShed());
+        controller.sample(79);
+        assertFalse(controller.shouldShed());
+        controller.sample(99);
+        assertFalse(controller.shouldShed());
+        }
+
+    public void testShedAndRecoverOnQueueDepth() throws Exception
+        {
+        final OverloadController controller =
+            new OverloadController(new FlowTable(4));
+        controller.setMaxQueueDepth(10);
+        for (int i = 0; i < 10; i++)
+            {
+            controller.queued();
+            }
+        controller.sample(0);
+        assertTrue(controller.shouldShed());
+        controller.dequeued();
+        controller.dequeued();
+        controller.sample(0);
+        assertTrue(controller.shouldShed());
+        controller.dequeued();
+        controller.sample(0);
+        assertFalse(controller.shouldShed());
+        assertEquals(7, controller.getQueueDepth());
+        }
+
+    public void testRetryAfterGrowsWithLoad() throws Exception
+        {
+        final OverloadController controller =
+            new OverloadController(new FlowTable(4));
+        controller.setMaxLagMillis(100);
+        controller.setMinRetryAfterSeconds(5);
+        controller.setMaxRetryAfterSeconds(60);
+        controller.setRetryAfterSpreadSeconds(0);
+
+        controller.sample(100);
+        assertEquals(5, controller.shed());
+        controller.sample(150);
+        assertEquals(33, controller.shed());
+        controller.sample(200);
+        assertEquals(60, controller.shed());
+        controller.sample(1000);
+        assertEquals(60, controller.shed());
+        assertEquals(4, controller.getShed());
+        }
+
+    public void testRetryAfterStaggeredWithinBounds() throws Exception
+        {
+        final OverloadController controller =
+            new OverloadController(new FlowTable(4));
+        controller.setMaxLagMillis(100);
+        controller.setMinRetryAfterSeconds(5);
+        controller.setMaxRetryAfterSeconds(60);
+        controller.setRetryAfterSpreadSeconds(30);
+
+        // At the threshold, the stagger goes up from the minimum.
+        controller.sample(100);
+        final boolean[] seen = new boolean[61];
+        for (int i = 0; i < 2000; i++)
+            {
+            final int retryAfter = controller.shed();
+            assertTrue("Bad Retry-After: " + retryAfter,
+                retryAfter >= 5 && retryAfter <= 35);
+            seen[retryAfter] = true;
+            }
+        assertTrue(seen[5]);
+        assertTrue(seen[35]);
+
+        // At the maximum, it goes down from the maximum.
+        controller.sample(500);
+        for (int i = 0; i < 2000; i++)
+            {
+            final int retryAfter = controller.shed();
+            assertTrue("Bad Retry-After: " + retryAfter,
+                retryAfter >= 30 && retryAfter <= 60);
+            }
+        }
+    }
@@ -0,0 +1,188 @@
+package org.lastbamboo.common.sip.proxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.proxy.PriorityMessageScheduler.Priority;
+import org.lastbamboo.common.sip.proxy.metrics.SipMetrics;
+
+/**
+ * Tests for the priority message scheduler.
+ */
+public class PriorityMessageSchedulerTest extends TestCase
+    {
+
+    private PriorityMessageScheduler m_scheduler;
+
+    @Override
+    protected void tearDown() throws Exception
+        {
+        if (this.m_scheduler != null)
+            {
+            this.m_scheduler.stop();
+            }
+        }
+
+    public void testOrderWithinSession() throws Exception
+        {
+        this.m_scheduler = newScheduler(4);
+        final int sessions = 8;
+        final int perSession = 2000;
+        final List<List<Integer>> processed = new ArrayList<List<Integer>>();
+        final List<IoSession> ioSessions = new ArrayList<IoSession>();
+        for (int i = 0; i < sessions; i++)
+            {
+            processed.add(Collections.synchronizedList(
+                new ArrayList<Integer>()));
+            ioSessions.add(StubSessions.newSession());
+            }
+        final CountDownLatch done = new CountDownLatch(sessions * perSession);
+        final Random random = new Random(42);
+        final Priority[] priorities = Priority.values();
+
+        // Interleave the sessions, with every message in a random class, so
+        // only per-session ordering keeps each session's messages in order.
+        for (int seq = 0; seq < perSession; seq++)
+            {
+            for (int i = 0; i < sessions; i++)
+                {
+                final List<Integer> list = processed.get(i);
+                final Integer value = Integer.valueOf(seq);
+                assertTrue(this.m_scheduler.submit(ioSessions.get(i),
+                    priorities[random.nextInt(priorities.length)],
+                    new Runnable()
+                    {
+                    public void run()
+                        {
+                        list.add(value);
+                        done.countDown();
+                        }
+                    }));
+                }
+            }
+        assertTrue(done.await(20, TimeUnit.SECONDS));
+        for (final List<Integer> list : processed)
+            {
+            assertEquals(perSession, list.size());
+            for (int seq = 0; seq < perSession; seq++)
+                {
+                assertEquals(seq, list.get(seq).intValue());
+                }
+            }
+        }
+
+    public void testPriorityAcrossSessions() throws Exception
+        {
+        this.m_scheduler = newScheduler(1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        assertTrue(this.m_scheduler.submit(StubSessions.newSession(),
+            Priority.KEEPALIVE, new Runnable()
+            {
+            public void run()
+                {
+                blocked.countDown();
+                await(release);
+                }
+            }));
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+        final List<String> order =
+            Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(3);
+        submit(StubSessions.newSession(), Priority.REGISTER, "register",
+            order, done);
+        submit(StubSessions.newSession(), Priority.INVITE, "invite",
+            order, done);
+        submit(StubSessions.newSession(), Priority.RESPONSE, "response",
+            order, done);
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("response", order.get(0));
+        }
+
+    public void testFullQueueTurnsMessagesAway() throws Exception
+        {
+        this.m_scheduler = newScheduler(1);
+        this.m_scheduler.setMaxQueued(3);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final IoSession session = StubSessions.newSession();
+        assertTrue(this.m_scheduler.submit(session, Priority.INVITE,
+            new Runnable()
+            {
+            public void run()
+                {
+                blocked.countDown();
+                await(release);
+                }
+            }));
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+        final List<String> order =
+            Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(3);
+        submit(session, Priority.RESPONSE, "a", order, done);
+        submit(session, Priority.RESPONSE, "b", order, done);
+        submit(session, Priority.RESPONSE, "c", order, done);
+        assertFalse(this.m_scheduler.submit(session, Priority.RESPONSE,
+            new Runnable()
+            {
+            public void run()
+                {
+                fail("Ran a message we turned away");
+                }
+            }));
+        assertEquals(1, this.m_scheduler.getRejected());
+
+        // Running what's queued frees up room again.
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("[a, b, c]", order.toString());
+        }
+
+    private void submit(final IoSession session, final Priority priority,
+        final String name, final List<String> order,
+        final CountDownLatch done)
+        {
+        final boolean queued = this.m_scheduler.submit(session, priority,
+            new Runnable()
+            {
+            public void run()
+                {
+                order.add(name);
+                done.countDown();
+                }
+            });
+        assertTrue(queued);
+        }
+
+    private static PriorityMessageScheduler newScheduler(final int workers)
+        {
+        final PriorityMessageScheduler scheduler =
+            new PriorityMessageScheduler(
+                new OverloadController(new FlowTable(4)), new SipMetrics(),
+                workers);
+        scheduler.start();
+        return scheduler;
+        }
+
+    private static void await(final CountDownLatch latch)
+        {
+        try
+            {
+            latch.await(5, TimeUnit.SECONDS);
+            }
+        catch (final InterruptedException e)
+            {
+            Thread.currentThread().interrupt();
+            }
+        }
+    }
@@ -0,0 +1,72 @@
+package org.lastbamboo.common.sip.proxy;
+
+import java.net.URI;
+
+import junit.framework.TestCase;
+
+import org.littleshoot.mina.common.IoSession;
+
+/**
+ * Tests for one domain's partition of the registrar.
+ */
+public class RegistrarPartitionTest extends TestCase
+    {
+
+    public void testQuota() throws Exception
+        {
+        final RegistrarPartition partition =
+            new RegistrarPartition("lastbamboo.org", 2, 0);
+        final IoSession first = StubSessions.newSession();
+        final IoSession second = StubSessions.newSession();
+        assertTrue(partition.register(uri(1), first));
+        assertTrue(partition.register(uri(2), second));
+        assertFalse(partition.register(uri(3), StubSessions.newSession()));
+        assertEquals(1, partition.getQuotaRejections());
+
+        // Refreshes and moves don't count against the quota.
+        assertTrue(partition.register(uri(1), first));
+        assertTrue(partition.register(uri(2), first));
+        assertSame(first, partition.getIoSession(uri(2)));
+        assertEquals(2, partition.getRegistered());
+
+        // Closing a session the user moved off of leaves the user alone.
+        assertFalse(partition.unregister(uri(2), second));
+        assertTrue(partition.unregister(uri(2), first));
+        assertTrue(partition.register(uri(3), second));
+        assertEquals(2, partition.getRegistered());
+        }
+
+    public void testRate() throws Exception
+        {
+        final RegistrarPartition partition =
+            new RegistrarPartition("lastbamboo.org", 100, 10);
+        int accepted = 0;
+        for (int i = 0; i < 100; i++)
+            {
+            if (partition.acquireRegister())
+                {
+                accepted++;
+                }
+            }
+        assertTrue("Accepted: " + accepted, accepted >= 10 && accepted < 15);
+        assertEquals(100 - accepted, partition.getRateRejections());
+
+        Thread.sleep(300);
+        assertTrue(partition.acquireRegister());
+        }
+
+    public void testDomainOf() throws Exception
+        {
+        assertEquals("lastbamboo.org",
+            SipRegistrarImpl.domainOf(uri(1)));
+        assertEquals("example.com", SipRegistrarImpl.domainOf(
+            new URI("sip:alice@Example.COM:5061;transport=tcp")));
+        assertEquals("example.com",
+            SipRegistrarImpl.domainOf(new URI("sip:example.com")));
+        }
+
+    private static URI uri(final int user) throws Exception
+        {
+        return new URI("sip:" + user + "@lastbamboo.org");
+        }
+    }
@@ -0,0 +1,49 @@
+package org.lastbamboo.common.sip.proxy;
+
+import java.net.URI;
+import java.util.Arrays;
+
+import javax.management.openmbean.CompositeData;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for summarizing registration churn.
+ */
+public class RegistrationChurnTest extends TestCase
+    {
+
+    public void testSummary() throws Exception
+        {
+        final RegistrationChurn churn = new RegistrationChurn();
+        assertTrue(churn.isEmpty());
+        for (int i = 0; i < 3; i++)
+            {
+            churn.record(new URI("sip:1@lastbamboo.org"), "10.0.0.1", true);
+            }
+        churn.record(new URI("sip:2@lastbamboo.org"), "10.0.0.2", true);
+        churn.record(new URI("sip:2@lastbamboo.org"), "10.0.0.2", false);
+        churn.record(new URI("sip:3@lastbamboo.org"), "10.0.0.3", false);
+        churn.record(new URI("sip:4@lastbamboo.org"), null, true);
+        assertFalse(churn.isEmpty());
+
+        final CompositeData summary = churn.summarize(2);
+        assertEquals(RegistrationChurn.SUMMARY_TYPE,
+            summary.getCompositeType());
+        assertEquals(Integer.valueOf(5), summary.get("registers"));
+        assertEquals(Integer.valueOf(2), summary.get("unregisters"));
+        assertEquals(Integer.valueOf(4), summary.get("uniqueAors"));
+        assertEquals(Arrays.asList("10.0.0.1=3", "10.0.0.2=2"),
+            Arrays.asList((String[]) summary.get("topSources")));
+        assertTrue(((Long) summary.get("periodMillis")).longValue() >= 0);
+        }
+
+    public void testFewerSourcesThanAskedFor() throws Exception
+        {
+        final RegistrationChurn churn = new RegistrationChurn();
+        churn.record(new URI("sip:1@lastbamboo.org"), "10.0.0.1", true);
+        final CompositeData summary = churn.summarize(5);
+        assertEquals(Arrays.asList("10.0.0.1=1"),
+            Arrays.asList((String[]) summary.get("topSources")));
+        }
+    }
@@ -0,0 +1,150 @@
+package org.lastbamboo.common.sip.proxy;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.filter.codec.ProtocolDecoder;
+import org.littleshoot.mina.filter.codec.ProtocolDecoderOutput;
+import org.lastbamboo.common.sip.stack.codec.SipProtocolCodecFactory;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactoryImpl;
+import org.lastbamboo.common.sip.stack.message.SipResponse;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactoryImpl;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderNames;
+
+/**
+ * Tests for answering retransmitted requests.
+ */
+public class RetransmissionCacheTest extends TestCase
+    {
+
+    private final SipHeaderFactory m_headerFactory =
+        new SipHeaderFactoryImpl();
+
+    private final RetransmissionCache m_cache = new RetransmissionCache(
+        new SipMessageFactoryImpl(this.m_headerFactory), 1000, 60 * 1000);
+
+    private final List<Object> m_written = new ArrayList<Object>();
+
+    private final IoSession m_session = StubSessions.newSession(
+        new InetSocketAddress("127.0.0.1", 5060), this.m_written);
+
+    public void testNothingAbsorbedBeforeResponse() throws Exception
+        {
+        // Until a response comes back, or when we answered the request
+        // ourselves, retransmissions go through like the original.
+        final SipMessage invite = decode(request("INVITE", "z9hG4bK1"));
+        assertFalse(this.m_cache.absorb(invite, this.m_session));
+        assertFalse(this.m_cache.absorb(invite, this.m_session));
+        assertEquals(0, this.m_cache.size());
+        assertTrue(this.m_written.isEmpty());
+        }
+
+    public void testRetransmissionGetsLastResponse() throws Exception
+        {
+        final SipMessage invite = decode(request("INVITE", "z9hG4bK1"));
+        assertFalse(this.m_cache.absorb(invite, this.m_session));
+        this.m_cache.onResponse(response(180, "z9hG4bK1", "INVITE"));
+        this.m_cache.onResponse(response(486, "z9hG4bK1", "INVITE"));
+
+        // A late provisional response doesn't replace the final one.
+        this.m_cache.onResponse(response(183, "z9hG4bK1", "INVITE"));
+        assertEquals(1, this.m_cache.size());
+
+        assertTrue(this.m_cache.absorb(invite, this.m_session));
+        assertEquals(1, this.m_written.size());
+        final SipResponse replayed = (SipResponse) this.m_written.get(0);
+        assertEquals(486, replayed.getStatusCode());
+
+        // Our Via is gone, leaving the caller's.
+        assertEquals(1,
+            replayed.getHeader(SipHeaderNames.VIA).getValues().size());
+        assertEquals("z9hG4bK1", replayed.getHeader(SipHeaderNames.VIA).
+            getValue().getParamValue("branch"));
+        }
+
+    public void testKeyedByBranchAndMethod() throws Exception
+        {
+        this.m_cache.onResponse(response(200, "z9hG4bK1", "INVITE"));
+        assertFalse(this.m_cache.absorb(
+            decode(request("INVITE", "z9hG4bK2")), this.m_session));
+        assertFalse(this.m_cache.absorb(
+            decode(request("CANCEL", "z9hG4bK1")), this.m_session));
+
+        // ACKs are never answered.
+        assertFalse(this.m_cache.absorb(
+            decode(request("ACK", "z9hG4bK1")), this.m_session));
+        assertTrue(this.m_written.isEmpty());
+
+        // Nor are requests from clients that predate RFC 3261 branches.
+        this.m_cache.onResponse(response(200, "old", "INVITE"));
+        assertFalse(this.m_cache.absorb(
+            decode(request("INVITE", "old")), this.m_session));
+        assertEquals(1, this.m_cache.size());
+        }
+
+    public void testEntriesExpire() throws Exception
+        {
+        final RetransmissionCache cache = new RetransmissionCache(
+            new SipMessageFactoryImpl(this.m_headerFactory), 1000, 50);
+        cache.onResponse(response(200, "z9hG4bK1", "INVITE"));
+        final SipMessage invite = decode(request("INVITE", "z9hG4bK1"));
+        assertTrue(cache.absorb(invite, this.m_session));
+        Thread.sleep(100);
+        assertFalse(cache.absorb(invite, this.m_session));
+        assertEquals(0, cache.size());
+        }
+
+    private static String request(final String method, final String branch)
+        {
+        return method + " sip:2@lastbamboo.org SIP/2.0\r\n" +
+            "Via: SIP/2.0/TCP 10.0.0.1;branch=" + branch + "\r\n" +
+            "To: <sip:2@lastbamboo.org>\r\n" +
+            "From: <sip:1@lastbamboo.org>;tag=a\r\n" +
+            "Call-ID: call\r\n" +
+            "CSeq: 1 " + method + "\r\n" +
+            "Content-Length: 0\r\n\r\n";
+        }
+
+    private SipResponse response(final int status, final String branch,
+        final String method) throws Exception
+        {
+        return (SipResponse) decode("SIP/2.0 " + status + " Whatever\r\n" +
+            "Via: SIP/2.0/TCP 127.0.0.1;branch=z9hG4bKproxy, " +
+            "SIP/2.0/TCP 10.0.0.1;branch=" + branch + "\r\n" +
+            "To: <sip:2@lastbamboo.org>;tag=b\r\n" +
+            "From: <sip:1@lastbamboo.org>;tag=a\r\n" +
+            "Call-ID: call\r\n" +
+            "CSeq: 1 " + method + "\r\n" +
+            "Content-Length: 0\r\n\r\n");
+        }
+
+    private SipMessage decode(final String message) throws Exception
+        {
+        final ProtocolDecoder decoder =
+            new SipProtocolCodecFactory(this.m_headerFactory).getDecoder();
+        final List<SipMessage> messages = new LinkedList<SipMessage>();
+        decoder.decode(StubSessions.newSession(),
+            ByteBuffer.wrap(message.getBytes("US-ASCII")),
+            new ProtocolDecoderOutput()
+            {
+            public void write(final Object decoded)
+                {
+                messages.add((SipMessage) decoded);
+                }
+            public void flush()
+                {
+                // Nothing to flush.
+                }
+            });
+        assertEquals(1, messages.size());
+        return messages.get(0);
+        }
+    }
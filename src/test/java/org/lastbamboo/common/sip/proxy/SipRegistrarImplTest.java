@@ -0,0 +1,220 @@
+package org.lastbamboo.common.sip.proxy;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.id.uuid.UUID;
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.stack.message.Register;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactory;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactoryImpl;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactoryImpl;
+import org.lastbamboo.common.sip.stack.transaction.client.SipTransactionFactoryImpl;
+import org.lastbamboo.common.sip.stack.transaction.client.SipTransactionTrackerImpl;
+import org.lastbamboo.common.sip.stack.transport.SipTcpTransportLayer;
+import org.lastbamboo.common.sip.stack.transport.SipTcpTransportLayerImpl;
+
+/**
+ * Tests for the registrar.
+ */
+public class SipRegistrarImplTest extends TestCase
+    {
+
+    private final SipHeaderFactory m_headerFactory =
+        new SipHeaderFactoryImpl();
+
+    private final SipMessageFactory m_messageFactory =
+        new SipMessageFactoryImpl(this.m_headerFactory);
+
+    private final SipTcpTransportLayer m_transportLayer =
+        new SipTcpTransportLayerImpl(new SipTransactionFactoryImpl(
+            new SipTransactionTrackerImpl(), this.m_messageFactory, 47382),
+            this.m_headerFactory, this.m_messageFactory);
+
+    public void testRefreshOnSameSessionKeepsIt() throws Exception
+        {
+        final SipRegistrarImpl registrar =
+            new SipRegistrarImpl(this.m_messageFactory, this.m_transportLayer);
+        final IoSession session = newSession();
+        final Register register = newRegister();
+        registrar.handleRegister(register, session);
+        registrar.handleRegister(register, session);
+        registrar.handleRegister(newRegister(), session);
+
+        assertFalse(session.isClosing());
+        assertSame(session, registrar.getIoSession(aor()));
+        assertEquals(1, registrar.getSipNumRegistered());
+        }
+
+    public void testMoveClosesOldSession() throws Exception
+        {
+        final SipRegistrarImpl registrar =
+            new SipRegistrarImpl(this.m_messageFactory, this.m_transportLayer);
+        final IoSession first = newSession();
+        final IoSession second = newSession();
+        registrar.handleRegister(newRegister(), first);
+        registrar.handleRegister(newRegister(), second);
+
+        assertTrue(first.isClosing());
+        assertFalse(second.isClosing());
+        assertSame(second, registrar.getIoSession(aor()));
+        assertEquals(1, registrar.getSipNumRegistered());
+
+        // The old session's close doesn't take the user with it.
+        registrar.sessionClosed(first);
+        assertSame(second, registrar.getIoSession(aor()));
+        assertEquals(1, registrar.getSipNumRegistered());
+        }
+
+    public void testOtherDomainsShareOnePartition() throws Exception
+        {
+        final SipRegistrarImpl registrar =
+            new SipRegistrarImpl(this.m_messageFactory, this.m_transportLayer);
+        registrar.setPartitions(Collections.singletonList(
+            new RegistrarPartition("lastbamboo.org", 10, 0)));
+        registrar.setDefaultMaxRegistered(2);
+        for (int i = 0; i < 3; i++)
+            {
+            registrar.handleRegister(
+                newRegister(new URI("sip:1@example" + i + ".com")),
+                newSession());
+            }
+
+        // Made-up domains aren't ours, and only get the shared quota.
+        assertFalse(registrar.hostsDomain("example0.com"));
+        assertEquals(Collections.singleton("lastbamboo.org"),
+            new HashSet<String>(registrar.getHostedDomains()));
+        assertNotNull(registrar.getIoSession(new URI("sip:1@example0.com")));
+        assertNotNull(registrar.getIoSession(new URI("sip:1@example1.com")));
+        assertNull(registrar.getIoSession(new URI("sip:1@example2.com")));
+
+        // Our own domain has its own quota.
+        registrar.handleRegister(newRegister(), newSession());
+        assertNotNull(registrar.getIoSession(aor()));
+        }
+
+    public void testExpiresSpreadOverJitterWindow() throws Exception
+        {
+        final SipRegistrarImpl registrar =
+            new SipRegistrarImpl(this.m_messageFactory, null);
+        registrar.setExpiresJitterSeconds(600);
+        final Register register = newRegister();
+
+        // The stack asks for 7200 seconds.
+        final int[] buckets = new int[6];
+        for (int i = 0; i < 6000; i++)
+            {
+            final int expires = registrar.grantExpires(register);
+            assertTrue("Bad expires: " + expires,
+                expires >= 6600 && expires <= 7200);
+            buckets[Math.min(5, (7200 - expires) / 100)]++;
+            }
+        for (final int bucket : buckets)
+            {
+            assertTrue("Uneven: " + bucket, bucket > 700);
+            }
+        }
+
+    public void testExpiresNeverBelowMinimum() throws Exception
+        {
+        final SipRegistrarImpl registrar =
+            new SipRegistrarImpl(this.m_messageFactory, null);
+        registrar.setExpiresJitterSeconds(100000);
+        registrar.setMinExpiresSeconds(7000);
+        final Register register = newRegister();
+        for (int i = 0; i < 1000; i++)
+            {
+            assertTrue(registrar.grantExpires(register) >= 7000);
+            }
+
+        registrar.setExpiresJitterSeconds(0);
+        assertEquals(7200, registrar.grantExpires(register));
+        }
+
+    public void testChurnReportedOnlyWhileListened() throws Exception
+        {
+        final SipRegistrarImpl registrar =
+            new SipRegistrarImpl(this.m_messageFactory, this.m_transportLayer);
+        registrar.setChurnReportMillis(20);
+        assertFalse(registrar.isReportingChurn());
+
+        final BlockingQueue<Notification> notifications =
+            new LinkedBlockingQueue<Notification>();
+        final NotificationListener listener = new NotificationListener()
+            {
+            public void handleNotification(final Notification notification,
+                final Object handback)
+                {
+                notifications.add(notification);
+                }
+            };
+        registrar.addNotificationListener(listener, null, "a");
+        registrar.addNotificationListener(listener, null, "b");
+        assertTrue(registrar.isReportingChurn());
+
+        registrar.handleRegister(newRegister(), newSession());
+        final Notification notification =
+            notifications.poll(5, TimeUnit.SECONDS);
+        assertNotNull(notification);
+        assertEquals(SipRegistrarImpl.CHURN, notification.getType());
+        final CompositeData summary =
+            (CompositeData) notification.getUserData();
+        assertEquals(Integer.valueOf(1), summary.get("registers"));
+        assertEquals(Integer.valueOf(1), summary.get("uniqueAors"));
+
+        // Each listener gets its own copy.
+        assertSame(notification, notifications.poll(5, TimeUnit.SECONDS));
+
+        // Reporting goes on until the last listener goes.
+        registrar.removeNotificationListener(listener, null, "a");
+        assertTrue(registrar.isReportingChurn());
+        registrar.removeNotificationListener(listener, null, "b");
+        assertFalse(registrar.isReportingChurn());
+
+        notifications.clear();
+        registrar.handleRegister(newRegister(), newSession());
+        Thread.sleep(100);
+        assertTrue(notifications.isEmpty());
+
+        // And starts again with the next one.
+        registrar.addNotificationListener(listener, null, null);
+        assertTrue(registrar.isReportingChurn());
+        registrar.removeNotificationListener(listener);
+        assertFalse(registrar.isReportingChurn());
+        }
+
+    private IoSession newSession()
+        {
+        final IoSession session = StubSessions.newSession();
+        this.m_transportLayer.addConnection(session);
+        return session;
+        }
+
+    private Register newRegister() throws Exception
+        {
+        return newRegister(aor());
+        }
+
+    private Register newRegister(final URI aor) throws Exception
+        {
+        return this.m_messageFactory.createRegisterRequest(
+            new URI("sip:" + aor.getHost()), "Alice", aor,
+            UUID.randomUUID(), new URI("sip:1@127.0.0.1:5070"));
+        }
+
+    private static URI aor() throws Exception
+        {
+        return new URI("sip:1@lastbamboo.org");
+        }
+    }
@@ -0,0 +1,199 @@
+package org.lastbamboo.common.sip.proxy;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.common.support.DefaultWriteFuture;
+
+/**
+ * In-memory stand-ins for IoSessions.  They keep attributes, report their
+ * addresses, remember being closed and count writes instead of doing any 
+ * I/O, which is all the registrar, the forwarder and the decoder need.  
+ * The tests and the benchmarks both use these, so the benchmarks depend on
+ * the test jar.
+ */
+public final class StubSessions
+    {
+
+    /**
+     * Total writes across all stub sessions, so the JIT can't discard them.
+     */
+    public static final AtomicLong WRITES = new AtomicLong(0);
+    
+    /**
+     * The local address every stub session reports.
+     */
+    public static final InetSocketAddress LOCAL_ADDRESS = 
+        new InetSocketAddress("127.0.0.1", 5060);
+    
+    private static final AtomicInteger s_sessions = new AtomicInteger(0);
+    
+    private StubSessions()
+        {
+        // Utility class.
+        }
+
+    /**
+     * Creates a new stub session.
+     * 
+     * @param remoteAddress The address the session reports as its remote
+     * address.
+     * @return The new session.
+     */
+    public static IoSession newSession(final InetSocketAddress remoteAddress)
+        {
+        return newSession(remoteAddress, null);
+        }
+    
+    /**
+     * Creates a new stub session that keeps what's written to it.
+     * 
+     * @param remoteAddress The address the session reports as its remote
+     * address.
+     * @param written The list to add written messages to, or 
+     * <code>null</code> to only count them.
+     * @return The new session.
+     */
+    public static IoSession newSession(final InetSocketAddress remoteAddress,
+        final List<Object> written)
+        {
+        final Map<Object, Object> attributes = 
+            new ConcurrentHashMap<Object, Object>();
+        final AtomicBoolean closed = new AtomicBoolean(false);
+        final InvocationHandler handler = new InvocationHandler()
+            {
+            public Object invoke(final Object proxy, final Method method, 
+                final Object[] args)
+                {
+                final String name = method.getName();
+                if (name.equals("getAttribute"))
+                    {
+                    return attributes.get(args[0]);
+                    }
+                if (name.equals("setAttribute"))
+                    {
+                    if (args.length == 1)
+                        {
+                        return attributes.put(args[0], Boolean.TRUE);
+                        }
+                    if (args[1] == null)
+                        {
+                        return attributes.remove(args[0]);
+                        }
+                    return attributes.put(args[0], args[1]);
+                    }
+                if (name.equals("removeAttribute"))
+                    {
+                    return attributes.remove(args[0]);
+                    }
+                if (name.equals("containsAttribute"))
+                    {
+                    return Boolean.valueOf(attributes.containsKey(args[0]));
+                    }
+                if (name.equals("getRemoteAddress"))
+                    {
+                    return remoteAddress;
+                    }
+                if (name.equals("getLocalAddress"))
+                    {
+                    return LOCAL_ADDRESS;
+                    }
+                if (name.equals("write"))
+                    {
+                    WRITES.incrementAndGet();
+                    if (written != null)
+                        {
+                        written.add(args[0]);
+                        }
+                    return DefaultWriteFuture.newWrittenFuture(
+                        (IoSession) proxy);
+                    }
+                if (name.equals("close"))
+                    {
+                    closed.set(true);
+                    return null;
+                    }
+                if (name.equals("isConnected"))
+                    {
+                    return Boolean.valueOf(!closed.get());
+                    }
+                if (name.equals("isClosing"))
+                    {
+                    return Boolean.valueOf(closed.get());
+                    }
+                if (name.equals("getScheduledWriteBytes") || 
+                    name.equals("getScheduledWriteRequests"))
+                    {
+                    return Integer.valueOf(0);
+                    }
+                if (name.equals("hashCode"))
+                    {
+                    return Integer.valueOf(System.identityHashCode(proxy));
+                    }
+                if (name.equals("equals"))
+                    {
+                    return Boolean.valueOf(proxy == args[0]);
+                    }
+                if (name.equals("toString"))
+                    {
+                    return "StubSession " + remoteAddress;
+                    }
+                // Anything else we don't model.
+                return defaultValue(method.getReturnType());
+                }
+            };
+        return (IoSession) Proxy.newProxyInstance(
+            IoSession.class.getClassLoader(), new Class<?>[] {IoSession.class}, 
+            handler);
+        }
+    
+    /**
+     * Creates a stub session with a loopback address no other stub session
+     * has.
+     * 
+     * @return The new session.
+     */
+    public static IoSession newSession()
+        {
+        return newSession(s_sessions.incrementAndGet());
+        }
+    
+    /**
+     * Creates a stub session with a distinct loopback address.
+     * 
+     * @param index A number unique to the session, up to 2^24.
+     * @return The new session.
+     */
+    public static IoSession newSession(final int index)
+        {
+        final String host = "127." + ((index >>> 16) & 0xff) + "." + 
+            ((index >>> 8) & 0xff) + "." + (index & 0xff);
+        return newSession(new InetSocketAddress(host, 5060)); 
+        }
+    
+    private static Object defaultValue(final Class<?> type)
+        {
+        if (type == Boolean.TYPE)
+            {
+            return Boolean.FALSE;
+            }
+        if (type == Integer.TYPE)
+            {
+            return Integer.valueOf(0);
+            }
+        if (type == Long.TYPE)
+            {
+            return Long.valueOf(0);
+            }
+        return null;
+        }
+    }
@@ -0,0 +1,234 @@
+package org.lastbamboo.common.sip.proxy.auth;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.filter.codec.ProtocolDecoder;
+import org.littleshoot.mina.filter.codec.ProtocolDecoderOutput;
+import org.lastbamboo.common.sip.proxy.LocalResponseWriter;
+import org.lastbamboo.common.sip.proxy.StubSessions;
+import org.lastbamboo.common.sip.stack.codec.SipProtocolCodecFactory;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactoryImpl;
+
+/**
+ * Tests for digest authentication of requests.
+ */
+public class DigestAuthenticatorTest extends TestCase
+    {
+
+    private static final String REALM = "lastbamboo.org";
+
+    private static final Pattern NONCE =
+        Pattern.compile("nonce=\"([^\"]+)\"");
+
+    private final CredentialStore m_store = new CountingStore(
+        new MapCredentialStore(Collections.singletonMap("1", "secret")));
+
+    private final DigestAuthenticator m_authenticator =
+        new DigestAuthenticator(REALM, this.m_store);
+
+    private final LocalResponseWriter m_responseWriter =
+        new LocalResponseWriter();
+
+    private final List<Object> m_written = new ArrayList<Object>();
+
+    private final IoSession m_session = StubSessions.newSession(
+        new InetSocketAddress("127.0.0.1", 5060), this.m_written);
+
+    public void testChallenges() throws Exception
+        {
+        assertFalse(authenticate(request("INVITE", "1", null)));
+        final String proxy = assertResponse(407);
+        assertTrue(proxy, proxy.indexOf("Proxy-Authenticate: Digest realm=\"" +
+            REALM + "\"") != -1);
+
+        assertFalse(authenticate(request("REGISTER", "1", null)));
+        final String registrar = assertResponse(401);
+        assertTrue(registrar, registrar.indexOf(
+            "WWW-Authenticate: Digest realm=\"" + REALM + "\"") != -1);
+        }
+
+    public void testNonceReusedWithHigherCounts() throws Exception
+        {
+        final String nonce = challenge("INVITE");
+        assertTrue(authenticate(request("INVITE", "1",
+            credentials("INVITE", "1", "secret", nonce, 1))));
+        assertTrue(authenticate(request("BYE", "1",
+            credentials("BYE", "1", "secret", nonce, 2))));
+        assertTrue(this.m_written.isEmpty());
+
+        // The HA1 came from the store once and from the cache after.
+        assertEquals(1, ((CountingStore) this.m_store).m_lookups);
+
+        // A replayed count gets a new challenge that isn't stale.
+        assertFalse(authenticate(request("BYE", "1",
+            credentials("BYE", "1", "secret", nonce, 2))));
+        final String response = assertResponse(407);
+        assertEquals(response, -1, response.indexOf("stale=true"));
+        }
+
+    public void testUnknownNonceIsStale() throws Exception
+        {
+        final String nonce = challenge("REGISTER");
+        final String forged = nonce.substring(0, nonce.length() - 1) +
+            (nonce.endsWith("0") ? "1" : "0");
+        assertFalse(authenticate(request("REGISTER", "1",
+            credentials("REGISTER", "1", "secret", forged, 1))));
+        final String response = assertResponse(401);
+        assertTrue(response, response.indexOf("stale=true") != -1);
+        }
+
+    public void testForbidden() throws Exception
+        {
+        final String nonce = challenge("INVITE");
+
+        // The wrong password.
+        assertFalse(authenticate(request("INVITE", "1",
+            credentials("INVITE", "1", "wrong", nonce, 1))));
+        assertResponse(403);
+
+        // Someone else's address-of-record.
+        assertFalse(authenticate(request("INVITE", "3",
+            credentials("INVITE", "1", "secret", nonce, 1))));
+        assertResponse(403);
+
+        // A user we don't know.
+        assertFalse(authenticate(request("INVITE", "3",
+            credentials("INVITE", "3", "secret", nonce, 1))));
+        assertResponse(403);
+
+        // None of that used up the nonce.
+        assertTrue(authenticate(request("INVITE", "1",
+            credentials("INVITE", "1", "secret", nonce, 1))));
+        }
+
+    public void testParse() throws Exception
+        {
+        final SipMessage request = decode(request("INVITE", "1",
+            "Digest username=\"1\", realm=\"a,b\", nonce=\"n\", " +
+            "nc=00000001, qop=auth"));
+        final Map<String, String> params = DigestAuthenticator.parse(
+            request.getHeader("Proxy-Authorization"));
+        assertEquals("1", params.get("username"));
+        assertEquals("a,b", params.get("realm"));
+        assertEquals("n", params.get("nonce"));
+        assertEquals("00000001", params.get("nc"));
+        assertEquals("auth", params.get("qop"));
+        }
+
+    private String challenge(final String method) throws Exception
+        {
+        assertFalse(authenticate(request(method, "1", null)));
+        final String response =
+            assertResponse("REGISTER".equals(method) ? 401 : 407);
+        final Matcher matcher = NONCE.matcher(response);
+        assertTrue(response, matcher.find());
+        return matcher.group(1);
+        }
+
+    private boolean authenticate(final String request) throws Exception
+        {
+        return this.m_authenticator.authenticate(decode(request),
+            this.m_session, this.m_responseWriter);
+        }
+
+    private String assertResponse(final int status) throws Exception
+        {
+        assertEquals(1, this.m_written.size());
+        final ByteBuffer buf = (ByteBuffer) this.m_written.remove(0);
+        final String response =
+            buf.getString(Charset.forName("US-ASCII").newDecoder());
+        assertTrue(response, response.startsWith("SIP/2.0 " + status + " "));
+        return response;
+        }
+
+    private static String credentials(final String method,
+        final String username, final String password, final String nonce,
+        final int count)
+        {
+        final String uri = "sip:2@lastbamboo.org";
+        final String nc = String.format("%08x", Integer.valueOf(count));
+        final String ha1 =
+            Digests.md5Hex(username + ":" + REALM + ":" + password);
+        final String ha2 = Digests.md5Hex(method + ":" + uri);
+        final String response = Digests.md5Hex(ha1 + ":" + nonce + ":" +
+            nc + ":cnonce:auth:" + ha2);
+        return "Digest username=\"" + username + "\", realm=\"" + REALM +
+            "\", nonce=\"" + nonce + "\", uri=\"" + uri + "\", response=\"" +
+            response + "\", algorithm=MD5, qop=auth, nc=" + nc +
+            ", cnonce=\"cnonce\"";
+        }
+
+    private static String request(final String method, final String user,
+        final String credentials)
+        {
+        final boolean register = "REGISTER".equals(method);
+        final StringBuilder sb = new StringBuilder();
+        sb.append(method).append(" sip:2@lastbamboo.org SIP/2.0\r\n");
+        sb.append("Via: SIP/2.0/TCP 10.0.0.1;branch=z9hG4bK1\r\n");
+        sb.append("To: <sip:").append(register ? user : "2");
+        sb.append("@lastbamboo.org>\r\n");
+        sb.append("From: <sip:").append(user);
+        sb.append("@lastbamboo.org>;tag=a\r\n");
+        sb.append("Call-ID: call\r\n");
+        sb.append("CSeq: 1 ").append(method).append("\r\n");
+        if (credentials != null)
+            {
+            sb.append(register ? "Authorization: " : "Proxy-Authorization: ");
+            sb.append(credentials).append("\r\n");
+            }
+        sb.append("Content-Length: 0\r\n\r\n");
+        return sb.toString();
+        }
+
+    private static SipMessage decode(final String message) throws Exception
+        {
+        final ProtocolDecoder decoder = new SipProtocolCodecFactory(
+            new SipHeaderFactoryImpl()).getDecoder();
+        final List<SipMessage> messages = new LinkedList<SipMessage>();
+        decoder.decode(StubSessions.newSession(),
+            ByteBuffer.wrap(message.getBytes("US-ASCII")),
+            new ProtocolDecoderOutput()
+            {
+            public void write(final Object decoded)
+                {
+                messages.add((SipMessage) decoded);
+                }
+            public void flush()
+                {
+                // Nothing to flush.
+                }
+            });
+        assertEquals(1, messages.size());
+        return messages.get(0);
+        }
+
+    private static final class CountingStore implements CredentialStore
+        {
+        private final CredentialStore m_store;
+        private int m_lookups;
+
+        private CountingStore(final CredentialStore store)
+            {
+            this.m_store = store;
+            }
+
+        public String getHa1(final String username, final String realm)
+            {
+            this.m_lookups++;
+            return this.m_store.getHa1(username, realm);
+            }
+        }
+    }
@@ -0,0 +1,36 @@
+package org.lastbamboo.common.sip.proxy.auth;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for caching users' HA1s.
+ */
+public class Ha1CacheTest extends TestCase
+    {
+
+    public void testGetPutRemove() throws Exception
+        {
+        final Ha1Cache cache = new Ha1Cache();
+        assertNull(cache.get("1", "lastbamboo.org"));
+        cache.put("1", "lastbamboo.org", "ha1");
+        assertEquals("ha1", cache.get("1", "lastbamboo.org"));
+        assertNull(cache.get("1", "example.com"));
+        assertEquals(1, cache.size());
+        cache.remove("1", "lastbamboo.org");
+        assertNull(cache.get("1", "lastbamboo.org"));
+        assertEquals(0, cache.size());
+        }
+
+    public void testBounded() throws Exception
+        {
+        final Ha1Cache cache = new Ha1Cache(160);
+        for (int i = 0; i < 10000; i++)
+            {
+            cache.put(String.valueOf(i), "lastbamboo.org", "ha1");
+            }
+        assertTrue(cache.size() <= 160);
+
+        // The most recent users are still there.
+        assertEquals("ha1", cache.get("9999", "lastbamboo.org"));
+        }
+    }
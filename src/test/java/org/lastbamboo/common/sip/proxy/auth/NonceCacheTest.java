@@ -0,0 +1,84 @@
+package org.lastbamboo.common.sip.proxy.auth;
+
+import junit.framework.TestCase;
+
+import org.lastbamboo.common.sip.proxy.auth.NonceCache.Status;
+
+/**
+ * Tests for issuing nonces and tracking their counts.
+ */
+public class NonceCacheTest extends TestCase
+    {
+
+    public void testCountsMustIncrease() throws Exception
+        {
+        final NonceCache nonces = new NonceCache();
+        final String nonce = nonces.create();
+        assertFalse(nonce.equals(nonces.create()));
+
+        // Handing out nonces doesn't take any room.
+        assertEquals(0, nonces.size());
+
+        assertEquals(Status.VALID, nonces.check(nonce, 1));
+        assertEquals(Status.REPLAYED, nonces.check(nonce, 1));
+        assertEquals(Status.VALID, nonces.check(nonce, 3));
+        assertEquals(Status.REPLAYED, nonces.check(nonce, 2));
+        assertEquals(1, nonces.size());
+        }
+
+    public void testNoncesWeDidNotIssueAreStale() throws Exception
+        {
+        final NonceCache nonces = new NonceCache();
+        final String nonce = nonces.create();
+        final String forged = nonce.substring(0, nonce.length() - 1) +
+            (nonce.endsWith("0") ? "1" : "0");
+        assertEquals(Status.STALE, nonces.check(forged, 1));
+        assertEquals(Status.STALE, nonces.check("", 1));
+        assertEquals(Status.STALE, nonces.check("abc", 1));
+
+        // Nor can a client move the time it was issued.
+        final String moved =
+            (nonce.charAt(0) == '1' ? "2" : "1") + nonce.substring(1);
+        assertEquals(Status.STALE, nonces.check(moved, 1));
+
+        // Another process's nonces don't work here either.
+        assertEquals(Status.STALE, new NonceCache().check(nonce, 1));
+        assertEquals(0, nonces.size());
+        }
+
+    public void testNoncesExpire() throws Exception
+        {
+        final NonceCache nonces = new NonceCache(1000, 1000, 500);
+        final String used = nonces.create();
+        final String unused = nonces.create();
+        assertEquals(Status.VALID, nonces.check(used, 1));
+        Thread.sleep(750);
+
+        // A nonce in use lasts its full life, but one that's never been
+        // used can't be used for the first time after a while.
+        assertEquals(Status.VALID, nonces.check(used, 2));
+        assertEquals(Status.STALE, nonces.check(unused, 1));
+        Thread.sleep(750);
+        assertEquals(Status.STALE, nonces.check(used, 3));
+        }
+
+    public void testEvictedNoncesAreStale() throws Exception
+        {
+        final NonceCache nonces = new NonceCache(16, 60 * 1000, 500);
+        final String first = nonces.create();
+        assertEquals(Status.VALID, nonces.check(first, 1));
+        Thread.sleep(750);
+
+        // Fill the cache until the first nonce is pushed out.
+        for (int i = 0; i < 1000; i++)
+            {
+            assertEquals(Status.VALID, nonces.check(nonces.create(), 1));
+            }
+        assertTrue(nonces.size() <= 16);
+
+        // We can't tell whether this is a replay, so the client has to
+        // start again with a new nonce.
+        assertEquals(Status.STALE, nonces.check(first, 1));
+        assertEquals(Status.STALE, nonces.check(first, 2));
+        }
+    }
@@ -0,0 +1,83 @@
+package org.lastbamboo.common.sip.proxy.balancer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the consistent hash ring.
+ */
+public class HashRingTest extends TestCase
+    {
+
+    private static final int USERS = 10000;
+
+    public void testSpread() throws Exception
+        {
+        final HashRing ring = newRing();
+        final Map<Backend, Integer> counts = new HashMap<Backend, Integer>();
+        for (int i = 0; i < USERS; i++)
+            {
+            final Backend backend = ring.get(Integer.toString(100000 + i));
+            final Integer count = counts.get(backend);
+            counts.put(backend, count == null ? 1 : count + 1);
+            }
+        assertEquals(3, counts.size());
+        for (final Integer count : counts.values())
+            {
+            assertTrue("Uneven: " + counts, count > USERS / 4);
+            }
+        }
+
+    public void testDownBackendOnlyMovesItsOwnUsers() throws Exception
+        {
+        final HashRing ring = newRing();
+        final Backend[] before = new Backend[USERS];
+        for (int i = 0; i < USERS; i++)
+            {
+            before[i] = ring.get(Integer.toString(100000 + i));
+            }
+
+        final Backend down = ring.getBackends().get(0);
+        down.setUp(false);
+        for (int i = 0; i < USERS; i++)
+            {
+            final Backend after = ring.get(Integer.toString(100000 + i));
+            assertNotSame(down, after);
+            if (before[i] != down)
+                {
+                assertSame(before[i], after);
+                }
+            }
+
+        down.setUp(true);
+        for (int i = 0; i < USERS; i++)
+            {
+            assertSame(before[i], ring.get(Integer.toString(100000 + i)));
+            }
+        }
+
+    public void testAddAndRemove() throws Exception
+        {
+        final HashRing ring = newRing();
+        assertSame(ring.getBackends().get(1), ring.add("127.0.0.1:5062"));
+        assertEquals(3, ring.getBackends().size());
+
+        assertNotNull(ring.remove("127.0.0.1:5062"));
+        assertNull(ring.remove("127.0.0.1:5062"));
+        assertEquals(2, ring.getBackends().size());
+        for (final Backend backend : ring.getBackends())
+            {
+            backend.setUp(false);
+            }
+        assertNull(ring.get("100000"));
+        }
+
+    private static HashRing newRing()
+        {
+        return new HashRing(Arrays.asList(
+            "127.0.0.1:5061", "127.0.0.1:5062", "127.0.0.1:5063"));
+        }
+    }
@@ -0,0 +1,174 @@
+package org.lastbamboo.common.sip.proxy.replication;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.lastbamboo.common.sip.proxy.SipRegistrarImpl;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactoryImpl;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactoryImpl;
+
+/**
+ * Tests replicating registrations between nodes in this JVM, over a
+ * network we can partition.
+ */
+public class RegistrationReplicatorTest extends TestCase
+    {
+
+    private static final URI ALICE = URI.create("sip:1@lastbamboo.org");
+
+    private static final URI BOB = URI.create("sip:2@lastbamboo.org");
+
+    private Network m_network;
+
+    private RegistrationReplicator m_a;
+
+    private RegistrationReplicator m_b;
+
+    private RegistrationReplicator m_c;
+
+    @Override
+    protected void setUp() throws Exception
+        {
+        this.m_network = new Network();
+        this.m_a = newNode("a");
+        this.m_b = newNode("b");
+        this.m_c = newNode("c");
+        flush();
+        }
+
+    public void testRegisterAndUnregister() throws Exception
+        {
+        this.m_a.onRegistered(ALICE);
+        this.m_a.onRegistered(BOB);
+        flush();
+        assertEquals("a", this.m_b.getOwner(ALICE));
+        assertEquals("a", this.m_c.getOwner(BOB));
+        assertEquals(2, this.m_c.getRemoteRegistrations());
+
+        this.m_a.onUnregistered(ALICE);
+        flush();
+        assertNull(this.m_b.getOwner(ALICE));
+        assertNull(this.m_c.getOwner(ALICE));
+        assertEquals("a", this.m_b.getOwner(BOB));
+        }
+
+    public void testMove() throws Exception
+        {
+        this.m_a.onRegistered(ALICE);
+        flush();
+
+        // Alice shows up on b before a notices she's gone.
+        this.m_b.onRegistered(ALICE);
+        flush();
+        assertEquals("b", this.m_c.getOwner(ALICE));
+
+        this.m_a.onUnregistered(ALICE);
+        flush();
+        assertEquals("b", this.m_a.getOwner(ALICE));
+        assertEquals("b", this.m_c.getOwner(ALICE));
+        }
+
+    public void testPartitionHeals() throws Exception
+        {
+        this.m_a.onRegistered(ALICE);
+        flush();
+
+        this.m_network.partition("a", "c");
+        this.m_a.onUnregistered(ALICE);
+        this.m_a.onRegistered(BOB);
+        flush();
+        assertNull(this.m_b.getOwner(ALICE));
+        assertEquals("a", this.m_b.getOwner(BOB));
+        assertEquals("a", this.m_c.getOwner(ALICE));
+        assertNull(this.m_c.getOwner(BOB));
+
+        // A snapshot brings c up to date, including the unregistration it
+        // never saw.
+        this.m_network.heal();
+        flush();
+        assertNull(this.m_c.getOwner(ALICE));
+        assertEquals("a", this.m_c.getOwner(BOB));
+        assertEquals(3, this.m_a.getSnapshotsSent());
+        assertEquals(2, this.m_b.getSnapshotsSent());
+        }
+
+    private RegistrationReplicator newNode(final String name)
+        throws IOException
+        {
+        final Set<String> peers =
+            new HashSet<String>(Arrays.asList("a", "b", "c"));
+        peers.remove(name);
+        final RegistrationReplicator node = new RegistrationReplicator(name,
+            new SipRegistrarImpl(new SipMessageFactoryImpl(
+                new SipHeaderFactoryImpl()), null),
+            this.m_network.transport(name), Arrays.asList(
+                peers.toArray(new String[peers.size()])));
+        this.m_network.transport(name).start(node);
+        return node;
+        }
+
+    private void flush()
+        {
+        this.m_a.flush();
+        this.m_b.flush();
+        this.m_c.flush();
+        }
+
+    /**
+     * Delivers batches straight to the receiving node.  Each pair of nodes
+     * has a connection, which a partition closes.
+     */
+    private static final class Network
+        {
+
+        private final Map<String, ReplicationReceiver> m_receivers =
+            new HashMap<String, ReplicationReceiver>();
+
+        private final Set<String> m_connected = new HashSet<String>();
+
+        private final Set<String> m_partitioned = new HashSet<String>();
+
+        private ReplicationTransport transport(final String name)
+            {
+            return new ReplicationTransport()
+                {
+                public void start(final ReplicationReceiver receiver)
+                    {
+                    m_receivers.put(name, receiver);
+                    }
+
+                public boolean send(final String peer,
+                    final ReplicationBatch batch) throws IOException
+                    {
+                    final String link = name + "->" + peer;
+                    if (m_partitioned.contains(link))
+                        {
+                        m_connected.remove(link);
+                        throw new IOException("Partitioned: " + link);
+                        }
+                    m_receivers.get(peer).receive(
+                        ReplicationBatch.decode(batch.encode()));
+                    return m_connected.add(link);
+                    }
+                };
+            }
+
+        private void partition(final String a, final String b)
+            {
+            this.m_partitioned.add(a + "->" + b);
+            this.m_partitioned.add(b + "->" + a);
+            }
+
+        private void heal()
+            {
+            this.m_partitioned.clear();
+            }
+        }
+    }
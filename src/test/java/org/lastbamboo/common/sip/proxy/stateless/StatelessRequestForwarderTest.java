@@ -0,0 +1,230 @@
+package org.lastbamboo.common.sip.proxy.stateless;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.filter.codec.ProtocolDecoder;
+import org.littleshoot.mina.filter.codec.ProtocolDecoderOutput;
+import org.lastbamboo.common.sip.proxy.FlowTable;
+import org.lastbamboo.common.sip.proxy.RegistrarPartition;
+import org.lastbamboo.common.sip.proxy.SipHeaderRewriter;
+import org.lastbamboo.common.sip.proxy.SipRegistrarImpl;
+import org.lastbamboo.common.sip.proxy.StubSessions;
+import org.lastbamboo.common.sip.proxy.metrics.SipMetrics;
+import org.lastbamboo.common.sip.stack.codec.SipProtocolCodecFactory;
+import org.lastbamboo.common.sip.stack.message.Invite;
+import org.lastbamboo.common.sip.stack.message.Register;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactory;
+import org.lastbamboo.common.sip.stack.message.SipMessageFactoryImpl;
+import org.lastbamboo.common.sip.stack.message.UnknownSipRequest;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactoryImpl;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderNames;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderValue;
+import org.lastbamboo.common.sip.stack.transaction.client.SipTransactionFactoryImpl;
+import org.lastbamboo.common.sip.stack.transaction.client.SipTransactionTrackerImpl;
+import org.lastbamboo.common.sip.stack.transport.SipTcpTransportLayer;
+import org.lastbamboo.common.sip.stack.transport.SipTcpTransportLayerImpl;
+import org.lastbamboo.common.sip.stack.util.UriUtilsImpl;
+
+/**
+ * Tests for forwarding requests other than INVITE and REGISTER.
+ */
+public class StatelessRequestForwarderTest extends TestCase
+    {
+
+    private final SipHeaderFactory m_headerFactory =
+        new SipHeaderFactoryImpl();
+
+    private final SipMessageFactory m_messageFactory =
+        new SipMessageFactoryImpl(this.m_headerFactory);
+
+    private final List<Object> m_calleeWrites = new ArrayList<Object>();
+
+    private final List<Object> m_callerWrites = new ArrayList<Object>();
+
+    private final FlowTable m_flowTable = new FlowTable();
+
+    private IoSession m_caller;
+
+    private StatelessSipProxy m_proxy;
+
+    @Override
+    protected void setUp() throws Exception
+        {
+        final SipTcpTransportLayer transportLayer =
+            new SipTcpTransportLayerImpl(new SipTransactionFactoryImpl(
+                new SipTransactionTrackerImpl(), this.m_messageFactory,
+                47382), this.m_headerFactory, this.m_messageFactory);
+        final SipRegistrarImpl registrar =
+            new SipRegistrarImpl(this.m_messageFactory, transportLayer);
+        registrar.setPartitions(Collections.singletonList(
+            new RegistrarPartition("lastbamboo.org", 1000000, 0)));
+        this.m_proxy = new StatelessSipProxy(transportLayer, registrar, null,
+            new UriUtilsImpl(), this.m_messageFactory, this.m_flowTable,
+            new SipMetrics());
+
+        final IoSession callee = StubSessions.newSession(
+            new InetSocketAddress("127.0.0.2", 5060), this.m_calleeWrites);
+        transportLayer.addConnection(callee);
+        registrar.handleRegister((Register) decode(
+            "REGISTER sip:lastbamboo.org SIP/2.0\r\n" +
+            "Via: SIP/2.0/TCP 10.0.0.2;branch=z9hG4bKreg\r\n" +
+            "To: <sip:2@lastbamboo.org>\r\n" +
+            "From: <sip:2@lastbamboo.org>;tag=b\r\n" +
+            "Call-ID: reg\r\n" +
+            "CSeq: 1 REGISTER\r\n" +
+            "Contact: <sip:2@10.0.0.2>\r\n" +
+            "Content-Length: 0\r\n\r\n"), callee);
+        this.m_calleeWrites.clear();
+
+        this.m_caller = StubSessions.newSession(
+            new InetSocketAddress("127.0.0.3", 5060), this.m_callerWrites);
+        this.m_flowTable.add(this.m_caller);
+        }
+
+    public void testCancelAndAckGetInviteBranch() throws Exception
+        {
+        this.m_proxy.forwardSipRequest((Invite) decode(request("INVITE",
+            "z9hG4bKcaller", "", "1 INVITE")));
+        this.m_proxy.forwardSipRequest((UnknownSipRequest) decode(request(
+            "CANCEL", "z9hG4bKcaller", "", "1 CANCEL")), this.m_caller);
+        this.m_proxy.forwardSipRequest((UnknownSipRequest) decode(request(
+            "ACK", "z9hG4bKcaller", ";tag=callee", "1 ACK")), this.m_caller);
+        assertTrue(this.m_callerWrites.isEmpty());
+        assertEquals(3, this.m_calleeWrites.size());
+
+        final String branch = topBranch(0);
+        assertTrue(branch, branch.startsWith("z9hG4bK"));
+        assertFalse("z9hG4bKcaller".equals(branch));
+        assertEquals(branch, topBranch(1));
+        assertEquals(branch, topBranch(2));
+        }
+
+    public void testBranchesFollowTransactions() throws Exception
+        {
+        forward(request("BYE", "z9hG4bKbye1", ";tag=callee", "2 BYE"));
+        forward(request("BYE", "z9hG4bKbye1", ";tag=callee", "2 BYE"));
+        forward(request("BYE", "z9hG4bKbye2", ";tag=callee", "3 BYE"));
+        assertEquals(3, this.m_calleeWrites.size());
+
+        // A retransmission gets the same branch, a new request a new one.
+        assertEquals(topBranch(0), topBranch(1));
+        assertFalse(topBranch(0).equals(topBranch(2)));
+
+        // Clients that predate RFC 3261 get branches from the transaction.
+        forward(request("BYE", "old", ";tag=callee", "2 BYE"));
+        forward(request("BYE", "old", ";tag=callee", "3 BYE"));
+        assertFalse(topBranch(3).equals(topBranch(4)));
+        }
+
+    public void testCallerViaTaggedWithFlowToken() throws Exception
+        {
+        forward(request("BYE", "z9hG4bKbye", ";tag=callee", "2 BYE"));
+        final SipMessage forwarded = (SipMessage) this.m_calleeWrites.get(0);
+        final List<SipHeaderValue> vias =
+            forwarded.getHeader(SipHeaderNames.VIA).getValues();
+        assertEquals(2, vias.size());
+        final SipHeaderValue via = vias.get(1);
+        assertEquals("z9hG4bKbye", via.getParamValue("branch"));
+        assertSame(this.m_caller, this.m_flowTable.get(
+            via.getParamValue(FlowTable.FLOW_TOKEN_PARAM), "z9hG4bKbye"));
+        assertEquals("69", forwarded.getHeader(
+            SipHeaderNames.MAX_FORWARDS).getValue().getBaseValue());
+        }
+
+    public void testLoopDetected() throws Exception
+        {
+        forward(request("MESSAGE", "z9hG4bKmsg", "", "1 MESSAGE"));
+        final UnknownSipRequest forwarded =
+            (UnknownSipRequest) this.m_calleeWrites.get(0);
+
+        // The request comes back to us with our Via in it.
+        this.m_proxy.forwardSipRequest(forwarded, this.m_caller);
+        assertEquals(1, this.m_calleeWrites.size());
+        assertResponse(482);
+        }
+
+    public void testRejections() throws Exception
+        {
+        forward(request("MESSAGE", "z9hG4bKmsg", "", "1 MESSAGE").replace(
+            "Max-Forwards: 70", "Max-Forwards: 0"));
+        assertResponse(483);
+
+        forward(request("MESSAGE", "z9hG4bKmsg", "", "1 MESSAGE").replace(
+            "sip:2@", "sip:9@"));
+        assertResponse(404);
+
+        // ACKs never get responses.
+        forward(request("ACK", "z9hG4bKack", ";tag=x", "1 ACK").replace(
+            "sip:2@", "sip:9@"));
+        assertTrue(this.m_callerWrites.isEmpty());
+        assertTrue(this.m_calleeWrites.isEmpty());
+        }
+
+    private void forward(final String request) throws Exception
+        {
+        this.m_proxy.forwardSipRequest((UnknownSipRequest) decode(request),
+            this.m_caller);
+        }
+
+    private void assertResponse(final int status) throws Exception
+        {
+        assertEquals(1, this.m_callerWrites.size());
+        final ByteBuffer buf = (ByteBuffer) this.m_callerWrites.remove(0);
+        final String response =
+            buf.getString(Charset.forName("US-ASCII").newDecoder());
+        assertTrue(response, response.startsWith("SIP/2.0 " + status + " "));
+        }
+
+    private String topBranch(final int write)
+        {
+        return SipHeaderRewriter.getTopParam(
+            (SipMessage) this.m_calleeWrites.get(write), SipHeaderNames.VIA,
+            "branch");
+        }
+
+    private static String request(final String method, final String branch,
+        final String toTag, final String cseq)
+        {
+        return method + " sip:2@lastbamboo.org SIP/2.0\r\n" +
+            "Via: SIP/2.0/TCP 10.0.0.1;branch=" + branch + "\r\n" +
+            "Max-Forwards: 70\r\n" +
+            "To: <sip:2@lastbamboo.org>" + toTag + "\r\n" +
+            "From: <sip:1@lastbamboo.org>;tag=a\r\n" +
+            "Call-ID: call\r\n" +
+            "CSeq: " + cseq + "\r\n" +
+            "Content-Length: 0\r\n\r\n";
+        }
+
+    private SipMessage decode(final String message) throws Exception
+        {
+        final ProtocolDecoder decoder =
+            new SipProtocolCodecFactory(this.m_headerFactory).getDecoder();
+        final List<SipMessage> messages = new LinkedList<SipMessage>();
+        decoder.decode(StubSessions.newSession(),
+            ByteBuffer.wrap(message.getBytes("US-ASCII")),
+            new ProtocolDecoderOutput()
+            {
+            public void write(final Object decoded)
+                {
+                messages.add((SipMessage) decoded);
+                }
+            public void flush()
+                {
+                // Nothing to flush.
+                }
+            });
+        assertEquals(1, messages.size());
+        return messages.get(0);
+        }
+    }
@@ -0,0 +1,235 @@
+package org.lastbamboo.common.sip.proxy.transport;
+
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.filter.codec.ProtocolDecoder;
+import org.littleshoot.mina.filter.codec.ProtocolDecoderOutput;
+import org.lastbamboo.common.sip.proxy.SipHeaderRewriter;
+import org.lastbamboo.common.sip.proxy.StubSessions;
+import org.lastbamboo.common.sip.stack.codec.SipProtocolCodecFactory;
+import org.lastbamboo.common.sip.stack.message.SipMessage;
+import org.lastbamboo.common.sip.stack.message.header.SipHeader;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactoryImpl;
+import org.lastbamboo.common.sip.stack.message.header.SipHeaderValue;
+
+/**
+ * Tests for writing compact headers and expanding the ones we receive.
+ */
+public class CompactHeaderFilterTest extends TestCase
+    {
+
+    private static final String INVITE =
+        "INVITE sip:2@lastbamboo.org SIP/2.0\r\n" +
+        "Via: SIP/2.0/TCP 10.0.0.2;branch=z9hG4bK2, " +
+            "SIP/2.0/TCP 10.0.0.1;branch=z9hG4bK1\r\n" +
+        "Max-Forwards: 70\r\n" +
+        "To: <sip:2@lastbamboo.org>\r\n" +
+        "From: \"Smith, John\" <sip:1@lastbamboo.org>;tag=a\r\n" +
+        "Call-ID: abc\r\n" +
+        "CSeq: 1 INVITE\r\n" +
+        "Contact: <sip:1@10.0.0.1>\r\n" +
+        "Supported: outbound, path\r\n" +
+        "Content-Type: application/sdp\r\n" +
+        "Content-Length: 9\r\n" +
+        "\r\n" +
+        "v=0, o=x\n";
+
+    public void testListHeadersCompacted() throws Exception
+        {
+        final String compacted = compact(INVITE);
+        assertTrue(compacted, compacted.startsWith(
+            "INVITE sip:2@lastbamboo.org SIP/2.0\r\n" +
+            "v:SIP/2.0/TCP 10.0.0.2;branch=z9hG4bK2," +
+                "SIP/2.0/TCP 10.0.0.1;branch=z9hG4bK1\r\n" +
+            "Max-Forwards:70\r\n" +
+            "t:<sip:2@lastbamboo.org>\r\n"));
+        assertTrue(compacted,
+            compacted.indexOf("\r\nk:outbound,path\r\n") != -1);
+        assertTrue(compacted,
+            compacted.indexOf("\r\nCSeq:1 INVITE\r\n") != -1);
+        assertTrue(compacted,
+            compacted.indexOf("\r\nc:application/sdp\r\n") != -1);
+
+        // The body goes as is.
+        assertTrue(compacted, compacted.endsWith("\r\nl:9\r\n\r\nv=0, o=x\n"));
+        }
+
+    public void testOtherHeadersKeepCommaSpaces() throws Exception
+        {
+        final String compacted = compact("SIP/2.0 200 OK\r\n" +
+            "Date:   Sat, 13 Nov 2010 23:29:00 GMT  \r\n" +
+            "Subject: one, two\r\n" +
+            "Content-Length: 0\r\n\r\n");
+        assertEquals("SIP/2.0 200 OK\r\n" +
+            "Date:Sat, 13 Nov 2010 23:29:00 GMT\r\n" +
+            "s:one, two\r\n" +
+            "l:0\r\n\r\n", compacted);
+        }
+
+    public void testQuotedStrings() throws Exception
+        {
+        final String compacted = compact("SIP/2.0 200 OK\r\n" +
+            "Contact: \"Smith, John\" <sip:1@a>, " +
+                "\"a \\\"b, c\\\" d\" <sip:2@b>,  <sip:3@c>\r\n" +
+            "From: \"Smith, John\" <sip:1@a>;tag=1\r\n" +
+            "Content-Length: 0\r\n\r\n");
+        assertEquals("SIP/2.0 200 OK\r\n" +
+            "m:\"Smith, John\" <sip:1@a>," +
+                "\"a \\\"b, c\\\" d\" <sip:2@b>,<sip:3@c>\r\n" +
+            "f:\"Smith, John\" <sip:1@a>;tag=1\r\n" +
+            "l:0\r\n\r\n", compacted);
+        }
+
+    public void testFoldedLinesGoAsIs() throws Exception
+        {
+        final String compacted = compact("SIP/2.0 200 OK\r\n" +
+            "Contact: <sip:1@a>,\r\n  <sip:2@b>\r\n" +
+            "Content-Length: 0\r\n\r\n");
+        assertEquals("SIP/2.0 200 OK\r\n" +
+            "m:<sip:1@a>,\r\n  <sip:2@b>\r\n" +
+            "l:0\r\n\r\n", compacted);
+        }
+
+    public void testOnlyWholeMessagesCompacted() throws Exception
+        {
+        final ByteBuffer keepAlive = toBuffer("\r\n\r\n");
+        assertFalse(CompactHeaderFilter.compact(keepAlive));
+        assertEquals(4, keepAlive.remaining());
+
+        final ByteBuffer partial =
+            toBuffer("SIP/2.0 200 OK\r\nContent-Length: 0\r\n");
+        assertFalse(CompactHeaderFilter.compact(partial));
+
+        final ByteBuffer compact = toBuffer("SIP/2.0 200 OK\r\nl:0\r\n\r\n");
+        assertFalse(CompactHeaderFilter.compact(compact));
+        }
+
+    public void testRoundTrip() throws Exception
+        {
+        final SipMessage original = decode(INVITE);
+        final String compacted = compact(INVITE);
+
+        // Split the compacted message in the middle of a line, so the
+        // expanding filter has to hold part of it back.
+        final RecordingNextFilter next = new RecordingNextFilter();
+        final CompactHeaderExpansionFilter filter =
+            new CompactHeaderExpansionFilter();
+        final IoSession session = StubSessions.newSession();
+        final int split = compacted.indexOf("t:") + 1;
+        filter.messageReceived(next, session,
+            toBuffer(compacted.substring(0, split)));
+        filter.messageReceived(next, session,
+            toBuffer(compacted.substring(split)));
+
+        final StringBuilder sb = new StringBuilder();
+        for (final Object buf : next.m_received)
+            {
+            sb.append(((ByteBuffer) buf).getString(
+                Charset.forName("US-ASCII").newDecoder()));
+            }
+        final String expanded = sb.toString();
+        assertTrue(expanded, expanded.indexOf("\r\nTo: <sip:2@") != -1);
+
+        final SipMessage decoded = decode(expanded);
+        assertEquals(original.getStartLine(), decoded.getStartLine());
+        assertEquals(original.getHeaders().size(),
+            decoded.getHeaders().size());
+        for (final Map.Entry<String, SipHeader> entry :
+            original.getHeaders().entrySet())
+            {
+            assertEquals(entry.getKey(), render(entry.getValue()),
+                render(decoded.getHeader(entry.getKey())));
+            }
+        assertEquals(original.getBody(), decoded.getBody());
+        }
+
+    public void testExpansionKeepsValueBytes() throws Exception
+        {
+        final String message = "SIP/2.0 200 OK\r\n" +
+            "f: \"J\u00fcrgen \u5f20\" <sip:1@lastbamboo.org>;tag=a\r\n" +
+            "l: 0\r\n\r\n";
+        final RecordingNextFilter next = new RecordingNextFilter();
+        new CompactHeaderExpansionFilter().messageReceived(next,
+            StubSessions.newSession(),
+            ByteBuffer.wrap(message.getBytes("UTF-8")));
+        assertEquals(1, next.m_received.size());
+        final ByteBuffer buf = (ByteBuffer) next.m_received.get(0);
+        final byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        assertEquals("SIP/2.0 200 OK\r\n" +
+            "From: \"J\u00fcrgen \u5f20\" <sip:1@lastbamboo.org>;tag=a\r\n" +
+            "Content-Length: 0\r\n\r\n", new String(bytes, "UTF-8"));
+        }
+
+    public void testFullNamesPassUntouched() throws Exception
+        {
+        final RecordingNextFilter next = new RecordingNextFilter();
+        final ByteBuffer buf = ByteBuffer.wrap(INVITE.getBytes("US-ASCII"));
+        new CompactHeaderExpansionFilter().messageReceived(next,
+            StubSessions.newSession(), buf);
+        assertEquals(1, next.m_received.size());
+        assertSame(buf, next.m_received.get(0));
+        }
+
+    private static String compact(final String message) throws Exception
+        {
+        final ByteBuffer buf = toBuffer(message);
+        assertTrue(CompactHeaderFilter.compact(buf));
+        return buf.getString(Charset.forName("US-ASCII").newDecoder());
+        }
+
+    private static ByteBuffer toBuffer(final String message) throws Exception
+        {
+        // Add room on either side, so we know we stay inside the message.
+        final byte[] bytes = message.getBytes("US-ASCII");
+        final ByteBuffer buf = ByteBuffer.allocate(bytes.length + 8);
+        buf.put(new byte[4]);
+        buf.put(bytes);
+        buf.put(new byte[4]);
+        buf.flip();
+        buf.position(4);
+        buf.limit(4 + bytes.length);
+        return buf;
+        }
+
+    private static String render(final SipHeader header)
+        {
+        assertNotNull(header);
+        final StringBuilder sb = new StringBuilder();
+        for (final SipHeaderValue value : header.getValues())
+            {
+            SipHeaderRewriter.render(value, sb);
+            sb.append('|');
+            }
+        return sb.toString();
+        }
+
+    private static SipMessage decode(final String message) throws Exception
+        {
+        final ProtocolDecoder decoder = new SipProtocolCodecFactory(
+            new SipHeaderFactoryImpl()).getDecoder();
+        final List<SipMessage> messages = new LinkedList<SipMessage>();
+        decoder.decode(StubSessions.newSession(),
+            ByteBuffer.wrap(message.getBytes("US-ASCII")),
+            new ProtocolDecoderOutput()
+            {
+            public void write(final Object decoded)
+                {
+                messages.add((SipMessage) decoded);
+                }
+            public void flush()
+                {
+                // Nothing to flush.
+                }
+            });
+        assertEquals(1, messages.size());
+        return messages.get(0);
+        }
+    }
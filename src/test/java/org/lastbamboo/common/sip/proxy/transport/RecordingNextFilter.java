@@ -0,0 +1,57 @@
+package org.lastbamboo.common.sip.proxy.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.littleshoot.mina.common.IdleStatus;
+import org.littleshoot.mina.common.IoFilter.NextFilter;
+import org.littleshoot.mina.common.IoFilter.WriteRequest;
+import org.littleshoot.mina.common.IoSession;
+
+/**
+ * The rest of a filter chain, keeping what a filter passes on.
+ */
+final class RecordingNextFilter implements NextFilter
+    {
+
+    final List<Object> m_received = new ArrayList<Object>();
+
+    public void messageReceived(final IoSession session, final Object message)
+        {
+        this.m_received.add(message);
+        }
+
+    public void sessionCreated(final IoSession session)
+        {
+        }
+
+    public void sessionOpened(final IoSession session)
+        {
+        }
+
+    public void sessionClosed(final IoSession session)
+        {
+        }
+
+    public void sessionIdle(final IoSession session, final IdleStatus status)
+        {
+        }
+
+    public void exceptionCaught(final IoSession session,
+        final Throwable cause)
+        {
+        }
+
+    public void messageSent(final IoSession session, final Object message)
+        {
+        }
+
+    public void filterWrite(final IoSession session,
+        final WriteRequest writeRequest)
+        {
+        }
+
+    public void filterClose(final IoSession session)
+        {
+        }
+    }
@@ -0,0 +1,38 @@
+package org.lastbamboo.common.sip.proxy.transport;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the listener configuration.
+ */
+public class SipListenerConfigTest extends TestCase
+    {
+
+    public void testCompactHeaders() throws Exception
+        {
+        final SipListenerConfig config = new SipListenerConfig();
+        assertEquals(CompactHeaderFilter.Mode.OFF,
+            config.getCompactHeaderMode());
+        config.setCompactHeaders(" Peer ");
+        assertEquals(CompactHeaderFilter.Mode.PEER,
+            config.getCompactHeaderMode());
+        assertEquals("peer", config.getCompactHeaders());
+        }
+
+    public void testBadCompactHeadersRejected() throws Exception
+        {
+        final SipListenerConfig config = new SipListenerConfig();
+        try
+            {
+            config.setCompactHeaders("sometimes");
+            fail("Accepted a bad mode");
+            }
+        catch (final IllegalArgumentException e)
+            {
+            assertTrue(e.getMessage(),
+                e.getMessage().startsWith("compactHeaders"));
+            }
+        assertEquals(CompactHeaderFilter.Mode.OFF,
+            config.getCompactHeaderMode());
+        }
+    }
@@ -0,0 +1,128 @@
+package org.lastbamboo.common.sip.proxy.transport;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.proxy.StubSessions;
+
+/**
+ * Tests for bounding the size of the messages a client can send us.
+ */
+public class SipMessageSizeFilterTest extends TestCase
+    {
+
+    private static final String HEADERS =
+        "Via: SIP/2.0/TCP 10.0.0.1:5060;branch=z9hG4bK1\r\n" +
+        "From: <sip:1@lastbamboo.org>;tag=a\r\n" +
+        "To: <sip:2@lastbamboo.org>\r\n" +
+        "Call-ID: abc\r\n" +
+        "CSeq: 1 MESSAGE\r\n";
+
+    private final SipMessageSizeFilter m_filter =
+        new SipMessageSizeFilter(512, 100);
+
+    private final RecordingNextFilter m_next = new RecordingNextFilter();
+
+    private final List<Object> m_written = new ArrayList<Object>();
+
+    private final IoSession m_session = StubSessions.newSession(
+        new InetSocketAddress("127.0.0.1", 5060), this.m_written);
+
+    public void testWithinLimits() throws Exception
+        {
+        final String message = "MESSAGE sip:2@lastbamboo.org SIP/2.0\r\n" +
+            HEADERS + "Content-Length: 5\r\n\r\nhello";
+        receive("\r\n\r\n" + message + message);
+        receive(message.substring(0, 40));
+        receive(message.substring(40));
+        assertEquals(3, this.m_next.m_received.size());
+        assertTrue(this.m_written.isEmpty());
+        assertFalse(this.m_session.isClosing());
+        assertEquals(0, this.m_filter.getRejected());
+        }
+
+    public void testHeadersTooLarge() throws Exception
+        {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("MESSAGE sip:2@lastbamboo.org SIP/2.0\r\n");
+        sb.append(HEADERS);
+        while (sb.length() < 600)
+            {
+            sb.append("X-Padding: 0123456789\r\n");
+            }
+        receive(sb.toString());
+        assertRejected(513);
+
+        // Anything after is dropped.
+        receive("\r\n");
+        assertEquals(0, this.m_next.m_received.size());
+        }
+
+    public void testBodyTooLarge() throws Exception
+        {
+        receive("MESSAGE sip:2@lastbamboo.org SIP/2.0\r\n" + HEADERS +
+            "Content-Length: 101\r\n\r\n");
+        final String response = assertRejected(413);
+        assertTrue(response, response.indexOf(
+            "Via: SIP/2.0/TCP 10.0.0.1:5060;branch=z9hG4bK1\r\n") != -1);
+        assertTrue(response, response.indexOf("Call-ID: abc\r\n") != -1);
+        assertTrue(response, response.indexOf(
+            "To: <sip:2@lastbamboo.org>;tag=") != -1);
+        }
+
+    public void testFoldedContentLength() throws Exception
+        {
+        receive("MESSAGE sip:2@lastbamboo.org SIP/2.0\r\n" + HEADERS +
+            "l:\r\n");
+        assertEquals(0, this.m_filter.getRejected());
+        receive("  \t 100000\r\n\r\n");
+        assertRejected(413);
+        }
+
+    public void testFoldedHeadersCopied() throws Exception
+        {
+        receive("MESSAGE sip:2@lastbamboo.org SIP/2.0\r\n" +
+            "Via: SIP/2.0/TCP 10.0.0.1:5060\r\n ;branch=z9hG4bK1\r\n" +
+            "From: <sip:1@lastbamboo.org>;tag=a\r\n" +
+            "To: <sip:2@lastbamboo.org>\r\n" +
+            "Call-ID:\r\n\tabc\r\n" +
+            "CSeq: 1 MESSAGE\r\n" +
+            "Content-Length: 101\r\n\r\n");
+        final String response = assertRejected(413);
+        assertTrue(response, response.indexOf(
+            "Via: SIP/2.0/TCP 10.0.0.1:5060 ;branch=z9hG4bK1\r\n") != -1);
+        assertTrue(response, response.indexOf("Call-ID: abc\r\n") != -1);
+        }
+
+    public void testResponseClosedWithoutReply() throws Exception
+        {
+        receive("SIP/2.0 200 OK\r\n" + HEADERS + "Content-Length: 101\r\n\r\n");
+        assertEquals(1, this.m_filter.getRejected());
+        assertTrue(this.m_session.isClosing());
+        assertTrue(this.m_written.isEmpty());
+        }
+
+    private void receive(final String data) throws Exception
+        {
+        final ByteBuffer buf = ByteBuffer.wrap(data.getBytes("US-ASCII"));
+        this.m_filter.messageReceived(this.m_next, this.m_session, buf);
+        }
+
+    private String assertRejected(final int status) throws Exception
+        {
+        assertEquals(1, this.m_filter.getRejected());
+        assertTrue(this.m_session.isClosing());
+        assertEquals(1, this.m_written.size());
+        final ByteBuffer buf = (ByteBuffer) this.m_written.get(0);
+        final String response = buf.getString(
+            Charset.forName("US-ASCII").newDecoder());
+        assertTrue(response, response.startsWith("SIP/2.0 " + status + " "));
+        return response;
+        }
+    }
@@ -0,0 +1,92 @@
+package org.lastbamboo.common.sip.proxy.transport;
+
+import java.nio.charset.Charset;
+
+import junit.framework.TestCase;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+import org.lastbamboo.common.sip.proxy.StubSessions;
+
+/**
+ * Tests for rewriting the CSeq of responses the stack can't build.
+ */
+public class UnknownMethodResponseFilterTest extends TestCase
+    {
+
+    private static final String BYE_RESPONSE =
+        "SIP/2.0 200 OK\r\n" +
+        "Via: SIP/2.0/TCP 10.0.0.1;branch=z9hG4bK1\r\n" +
+        "CSeq: 2 BYE\r\n" +
+        "Content-Length: 13\r\n" +
+        "\r\n" +
+        "CSeq: 3 BYE\r\n";
+
+    private final UnknownMethodResponseFilter m_filter =
+        new UnknownMethodResponseFilter();
+
+    private final RecordingNextFilter m_next = new RecordingNextFilter();
+
+    private final IoSession m_session = StubSessions.newSession();
+
+    public void testUnknownMethodRewritten() throws Exception
+        {
+        receive(BYE_RESPONSE);
+        assertEquals("SIP/2.0 200 OK\r\n" +
+            "Via: SIP/2.0/TCP 10.0.0.1;branch=z9hG4bK1\r\n" +
+            "CSeq: 2 UNKNOWN\r\n" +
+            "X-Original-CSeq: 2 BYE\r\n" +
+            "Content-Length: 13\r\n" +
+            "\r\n" +
+            "CSeq: 3 BYE\r\n", received());
+        }
+
+    public void testSplitAcrossReads() throws Exception
+        {
+        final String message = "\r\n\r\n" + BYE_RESPONSE + BYE_RESPONSE;
+        for (int i = 0; i < message.length(); i += 7)
+            {
+            receive(message.substring(i, Math.min(message.length(), i + 7)));
+            }
+        final String rewritten = BYE_RESPONSE.replace("CSeq: 2 BYE\r\n",
+            "CSeq: 2 UNKNOWN\r\nX-Original-CSeq: 2 BYE\r\n");
+        assertEquals("\r\n\r\n" + rewritten + rewritten, received());
+        }
+
+    public void testOthersPassUntouched() throws Exception
+        {
+        final ByteBuffer request = toBuffer(
+            "BYE sip:2@lastbamboo.org SIP/2.0\r\n" +
+            "CSeq: 2 BYE\r\n" +
+            "Content-Length: 0\r\n\r\n");
+        this.m_filter.messageReceived(this.m_next, this.m_session, request);
+        final ByteBuffer invite = toBuffer(
+            BYE_RESPONSE.replace("2 BYE", "2 INVITE"));
+        this.m_filter.messageReceived(this.m_next, this.m_session, invite);
+        assertEquals(2, this.m_next.m_received.size());
+        assertSame(request, this.m_next.m_received.get(0));
+        assertSame(invite, this.m_next.m_received.get(1));
+        }
+
+    private void receive(final String data) throws Exception
+        {
+        this.m_filter.messageReceived(this.m_next, this.m_session,
+            toBuffer(data));
+        }
+
+    private String received() throws Exception
+        {
+        final StringBuilder sb = new StringBuilder();
+        for (final Object buf : this.m_next.m_received)
+            {
+            sb.append(((ByteBuffer) buf).getString(
+                Charset.forName("US-ASCII").newDecoder()));
+            }
+        return sb.toString();
+        }
+
+    private static ByteBuffer toBuffer(final String data) throws Exception
+        {
+        return ByteBuffer.wrap(data.getBytes("US-ASCII"));
+        }
+    }
@@ -8,6 +8,7 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.net.Socket;
+import java.util.Collections;
 
 import junit.framework.TestCase;
 
@@ -15,13 +16,17 @@ import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.littleshoot.mina.common.RuntimeIOException;
-import org.lastbamboo.common.sip.proxy.SipConstants;
-import org.lastbamboo.common.sip.proxy.SipProxy;
+import org.lastbamboo.common.sip.proxy.FlowTable;
+import org.lastbamboo.common.sip.proxy.OverloadController;
+import org.lastbamboo.common.sip.proxy.PriorityMessageScheduler;
 import org.lastbamboo.common.sip.proxy.SipProxyImpl;
-import org.lastbamboo.common.sip.proxy.SipRegistrar;
+import org.lastbamboo.common.sip.proxy.RegistrarPartition;
 import org.lastbamboo.common.sip.proxy.SipRegistrarImpl;
 import org.lastbamboo.common.sip.proxy.SipRequestAndResponseForwarder;
+import org.lastbamboo.common.sip.proxy.metrics.SipMetrics;
 import org.lastbamboo.common.sip.proxy.stateless.StatelessSipProxy;
+import org.lastbamboo.common.sip.proxy.transport.MinaSipServerTransportFactory;
+import org.lastbamboo.common.sip.proxy.transport.SipListenerConfig;
 import org.lastbamboo.common.sip.stack.message.SipMessageFactory;
 import org.lastbamboo.common.sip.stack.message.SipMessageFactoryImpl;
 import org.lastbamboo.common.sip.stack.message.header.SipHeaderFactory;
@@ -73,6 +78,8 @@ public class SipServerTest extends TestCase
         "m=audio 3456 RTP/AVP 0 1 3 99\r\n" +
         "a=rtpmap:0 PCMU/8000\r\n";
     
+    private volatile SipProxyImpl m_proxy;
+    
     public void testServer() throws Exception
         {
         LOG.debug("Starting server..");
@@ -83,7 +90,7 @@ public class SipServerTest extends TestCase
             wait(6000);
             }
         final Socket sock = new Socket(NetworkUtils.getLocalHost(), 
-            SipConstants.SIP_PORT);
+            this.m_proxy.getSipPort());
         LOG.debug("Connected...");
         final OutputStream os = sock.getOutputStream();
         
@@ -145,16 +152,30 @@ public class SipServerTest extends TestCase
         final SipTcpTransportLayer tcpTransport = 
             new SipTcpTransportLayerImpl(transactionFactory, headerFactory, messageFactory);
         final UriUtils uriUtils = new UriUtilsImpl();
-        final SipRegistrar registrar = 
-            new SipRegistrarImpl(messageFactory, tcpTransport);
+        final SipMetrics metrics = new SipMetrics();
+        final SipRegistrarImpl registrar = 
+            new SipRegistrarImpl(messageFactory, tcpTransport, metrics);
+        registrar.setPartitions(Collections.singletonList(
+            new RegistrarPartition("lastbamboo.org", 1000000, 0)));
+        final FlowTable flowTable = new FlowTable();
         final SipRequestAndResponseForwarder forwarder = 
-            new StatelessSipProxy(tcpTransport, registrar, null, null, uriUtils, 
-                messageFactory); 
+            new StatelessSipProxy(tcpTransport, registrar, null, uriUtils, 
+                messageFactory, flowTable, metrics); 
         
-        final SipProxy proxy = new SipProxyImpl(
-            forwarder, registrar, headerFactory, messageFactory, tcpTransport);
+        // Use an ephemeral port so tests can run alongside other proxies.
+        final SipListenerConfig listenerConfig = new SipListenerConfig();
+        listenerConfig.setPort(0);
+        final OverloadController overloadController = 
+            new OverloadController(flowTable);
+        final SipProxyImpl proxy = new SipProxyImpl(
+            forwarder, registrar, headerFactory, messageFactory, tcpTransport,
+            new MinaSipServerTransportFactory(), listenerConfig, flowTable,
+            overloadController, 
+            new PriorityMessageScheduler(overloadController, metrics, 2),
+            metrics);
 
         proxy.start();
+        this.m_proxy = proxy;
         LOG.debug("Started proxy...");
         }
     }